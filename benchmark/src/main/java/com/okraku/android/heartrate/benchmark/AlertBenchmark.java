@@ -0,0 +1,102 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.alert.AlertEngine;
+import com.okraku.android.heartrate.core.alert.AlertRule;
+import com.okraku.android.heartrate.core.alert.RateOfChangeRule;
+import com.okraku.android.heartrate.core.alert.SustainedAboveRule;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluation of the alert rules of the smartphone for every received sample, compared with the
+ * original single threshold check, for a growing number of rules.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AlertBenchmark {
+    /**
+     * Shape of the trace. Spikes trigger the rules often, a resting heart rate never.
+     */
+    @Param({"REST", "EXERCISE_RAMP", "SPIKES"})
+    public WaveformProfile profile;
+
+    /**
+     * Number of rules. Two are the rules of the smartphone app; more rules alternate between both
+     * kinds with staggered thresholds, like per-wearer rules would.
+     */
+    @Param({"1", "2", "8", "64"})
+    public int rules;
+
+    private int[] trace;
+
+    private int index;
+
+    private long timestamp;
+
+    private AlertEngine engine;
+
+    /**
+     * Receives the triggered rules. Created once, so that it does not count as an allocation.
+     */
+    private AlertEngine.OnAlertListener listener;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        trace = Traces.generate(profile);
+
+        // Starting with the rules of the smartphone app
+        long cooldown = TimeUnit.MINUTES.toMillis(1);
+        AlertRule[] alertRules = new AlertRule[rules];
+        for (int i = 0; i < rules; i++) {
+            int offset = i / 2;
+            alertRules[i] = i % 2 == 0
+                    ? new SustainedAboveRule("high heart rate " + offset, 100 + offset, TimeUnit.SECONDS.toMillis(5), 90 + offset, cooldown)
+                    : new RateOfChangeRule("fast rise " + offset, 3 + offset % 4, TimeUnit.SECONDS.toMillis(5), cooldown);
+        }
+        engine = new AlertEngine(alertRules);
+
+        listener = new AlertEngine.OnAlertListener() {
+            @Override
+            public void onAlert(AlertRule rule, long timestamp, int heartRate) {
+                blackhole.consume(rule);
+            }
+        };
+    }
+
+    /**
+     * The original check of the smartphone: a warning for every heart rate above 100.
+     */
+    @Benchmark
+    public boolean threshold() {
+        index = (index + 1) & Traces.MASK;
+        return trace[index] > 100;
+    }
+
+    /**
+     * All rules of the smartphone, with triggered rules passed to a listener.
+     */
+    @Benchmark
+    public int evaluate() {
+        index = (index + 1) & Traces.MASK;
+        timestamp += Traces.PERIOD_MILLIS;
+        return engine.evaluate(timestamp, trace[index], listener);
+    }
+}
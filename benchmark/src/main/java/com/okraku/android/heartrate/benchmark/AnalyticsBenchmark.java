@@ -0,0 +1,113 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.FlushPolicy;
+import com.okraku.android.heartrate.core.HeartRateSummary;
+import com.okraku.android.heartrate.core.SampleBatcher;
+import com.okraku.android.heartrate.core.SummaryCodec;
+import com.okraku.android.heartrate.core.analytics.HeartRateAnalytics;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The analytics stage of the smartwatch.
+ * <p>
+ * {@link #add(Stream)} is the cost per heart rate of the sensor, including the summary allocated
+ * once per minute.
+ * <p>
+ * After the trial, the radio traffic of heart rates against summaries per hour is printed. The
+ * accuracy of the summaries is checked by {@code HeartRateAnalyticsTest}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalyticsBenchmark {
+    /**
+     * Wall clock time of the first heart rate, not aligned to a minute, so that the first window
+     * is incomplete.
+     */
+    private static final long START = 1700000012345L;
+
+    /**
+     * Generates a trace as measured by the sensor: the integer heart rates of a profile with up
+     * to half a beat per minute of noise.
+     */
+    private static float[] generate() {
+        int[] trace = Traces.generate(WaveformProfile.EXERCISE_RAMP);
+        Random random = new Random(42);
+        float[] values = new float[trace.length];
+        for (int i = 0; i < trace.length; i++) {
+            values[i] = trace[i] + random.nextFloat() - 0.5f;
+        }
+        return values;
+    }
+
+    /**
+     * Heart rates passed to the analytics one by one.
+     */
+    @State(Scope.Thread)
+    public static class Stream {
+        private float[] trace;
+
+        private HeartRateAnalytics analytics;
+
+        private long index;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            trace = generate();
+            analytics = new HeartRateAnalytics(HeartRateAnalytics.DEFAULT_WINDOW_MILLIS, HeartRateAnalytics.DEFAULT_BASELINE_MILLIS);
+        }
+
+        /**
+         * Prints the bytes sent per hour as single heart rates and as summaries.
+         */
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            HeartRateAnalytics analytics = new HeartRateAnalytics(HeartRateAnalytics.DEFAULT_WINDOW_MILLIS, HeartRateAnalytics.DEFAULT_BASELINE_MILLIS);
+            SampleBatcher batcher = new SampleBatcher(FlushPolicy.PER_SAMPLE);
+            long rawBytes = 0;
+            long summaryBytes = 0;
+            int summaries = 0;
+            for (int i = 0; i < trace.length; i++) {
+                long timestamp = START + i * Traces.PERIOD_MILLIS;
+                batcher.add(timestamp, Math.round(trace[i]));
+                rawBytes += batcher.flush(timestamp, i).length;
+                HeartRateSummary summary = analytics.add(timestamp, trace[i]);
+                if (summary != null) {
+                    summaryBytes += SummaryCodec.encode(summary).length;
+                    summaries++;
+                }
+            }
+            double hours = trace.length * Traces.PERIOD_MILLIS / (double) TimeUnit.HOURS.toMillis(1);
+
+            System.out.println();
+            System.out.println(String.format("Per hour: %d heart rate messages with %d bytes, %d summaries with %d bytes",
+                    Math.round(trace.length / hours), Math.round(rawBytes / hours),
+                    Math.round(summaries / hours), Math.round(summaryBytes / hours)));
+        }
+    }
+
+    @Benchmark
+    public HeartRateSummary add(Stream state) {
+        long i = state.index++;
+        return state.analytics.add(START + i * Traces.PERIOD_MILLIS, state.trace[(int) i & Traces.MASK]);
+    }
+}
@@ -0,0 +1,209 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.InMemoryDataLayer;
+import com.okraku.android.heartrate.core.PhonePipeline;
+import com.okraku.android.heartrate.core.SampleBuffer;
+import com.okraku.android.heartrate.core.SendPipeline;
+import com.okraku.android.heartrate.core.WatchPipeline;
+import com.okraku.android.heartrate.core.alert.AlertEngine;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+import com.okraku.android.heartrate.core.store.SampleSpool;
+import com.okraku.android.heartrate.core.store.SessionStore;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains a backlog of spooled heart rates from the smartwatch to the session store of the
+ * smartphone over an {@link InMemoryDataLayer} without latency, with the default interval
+ * between two batches. A drain takes longer than an iteration, so every iteration measures
+ * exactly one. The auxiliary counter {@code samples} is the drain throughput in heart rates per
+ * second.
+ * <p>
+ * Live heart rates are sent every {@link #LIVE_PERIOD_MILLIS} during the drain. The ones that
+ * took longer than {@link #LIVE_LATE_MILLIS} to be received are counted, to show that the
+ * backfill does not starve them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class BackfillBenchmark {
+    /**
+     * Time between two live heart rates during the drain in milliseconds.
+     */
+    private static final long LIVE_PERIOD_MILLIS = 20;
+
+    /**
+     * Time after which a live heart rate counts as late in milliseconds.
+     */
+    private static final long LIVE_LATE_MILLIS = 50;
+
+    /**
+     * Length of the backlog in hours, at one heart rate per second.
+     */
+    @Param({"8"})
+    public int hours;
+
+    /**
+     * Maximum number of spooled heart rates per message.
+     */
+    @Param({"250", "500", "1000"})
+    public int batchSize;
+
+    private int[] trace;
+
+    private File directory;
+
+    private InMemoryDataLayer dataLayer;
+
+    private WatchPipeline watch;
+
+    private PhonePipeline phone;
+
+    private SessionStore store;
+
+    private int backlog;
+
+    /**
+     * Spooled heart rates received, reported per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public long samples;
+    }
+
+    /**
+     * Problems during the drains, reported as totals.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Problems {
+        /**
+         * Live heart rates received later than {@link #LIVE_LATE_MILLIS}.
+         */
+        public long liveLate;
+
+        /**
+         * Heart rates the session store could not keep up with.
+         */
+        public long unsaved;
+    }
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        trace = Traces.generate(WaveformProfile.EXERCISE_RAMP);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("backfill").toFile();
+        dataLayer = new InMemoryDataLayer(0, 0, 42);
+
+        phone = new PhonePipeline(dataLayer.connect("phone", new InMemoryDataLayer.MessageListener() {
+            @Override
+            public void onMessageReceived(String sourceNodeId, String path, byte[] data) {
+                phone.onMessageReceived(sourceNodeId, path, data);
+            }
+        }), 16, SendPipeline.OverflowPolicy.DROP_OLDEST, 1024, new long[]{TimeUnit.MINUTES.toMillis(1)},
+                new PhonePipeline.AlertEngineFactory() {
+                    @Override
+                    public AlertEngine createAlertEngine(String nodeId) {
+                        return new AlertEngine();
+                    }
+                });
+        // As on the smartphone
+        store = new SessionStore(new File(directory, "sessions"), 65536, TimeUnit.SECONDS.toMillis(1), 4096);
+        phone.setSessionStore(store);
+
+        watch = new WatchPipeline(dataLayer.connect("watch", new InMemoryDataLayer.MessageListener() {
+            @Override
+            public void onMessageReceived(String sourceNodeId, String path, byte[] data) {
+            }
+        }), 64, SendPipeline.OverflowPolicy.DROP_OLDEST);
+        watch.setBackfillRate(batchSize, WatchPipeline.DEFAULT_BACKFILL_INTERVAL_MILLIS);
+
+        // The backlog of a smartwatch that has been out of range; the session store needs
+        // timestamps other than 0
+        backlog = (int) TimeUnit.HOURS.toSeconds(hours);
+        SampleSpool spool = new SampleSpool(new File(directory, "spool.hrq"), backlog);
+        SampleBuffer samples = new SampleBuffer(backlog);
+        for (int i = 1; i <= backlog; i++) {
+            samples.add(i * Traces.PERIOD_MILLIS, trace[i & Traces.MASK]);
+        }
+        spool.addAll(samples);
+        watch.setSpool(spool);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        watch.shutdown();
+        phone.shutdown();
+        dataLayer.shutdown();
+        watch.getSpool().close();
+        store.close();
+
+        File[] files = new File(directory, "sessions").listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        new File(directory, "sessions").delete();
+        new File(directory, "spool.hrq").delete();
+        directory.delete();
+    }
+
+    /**
+     * Connects the smartphone and waits until the backlog has been received, sending live heart
+     * rates meanwhile.
+     */
+    @Benchmark
+    public int drain(Throughput throughput, Problems problems) throws InterruptedException {
+        watch.onPeerConnected("phone");
+
+        long timestamp = (backlog + 1) * Traces.PERIOD_MILLIS;
+        long lateNanos = TimeUnit.MILLISECONDS.toNanos(LIVE_LATE_MILLIS);
+        int index = 0;
+        while (phone.getBackfilledSamples() < backlog) {
+            long expected = phone.getReceivedSamples() + 1;
+            long sent = System.nanoTime();
+            // Alternating, so that every live heart rate is a change and sent at once
+            watch.onHeartRate(timestamp, 60 + (index & 1));
+            while (phone.getReceivedSamples() < expected) {
+                Thread.yield();
+            }
+            if (System.nanoTime() - sent > lateNanos) {
+                problems.liveLate++;
+            }
+
+            timestamp += Traces.PERIOD_MILLIS;
+            index++;
+            Thread.sleep(LIVE_PERIOD_MILLIS);
+        }
+
+        throughput.samples += backlog;
+        problems.unsaved += phone.getUnsavedSamples();
+        return index;
+    }
+}
@@ -0,0 +1,191 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.chart.MinMaxDecimator;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+import com.okraku.android.heartrate.core.history.SampleHistory;
+import com.okraku.android.heartrate.core.rollup.RollupBuffer;
+import com.okraku.android.heartrate.core.rollup.RollupStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work of the smartphone chart per frame, without the canvas, while heart rates stream in at
+ * 100 Hz: decimating the live heart rates of a large history to one column per pixel, either
+ * incrementally as the chart does or from scratch, against converting every heart rate into a
+ * line. The number of lines handed to the canvas is at most twice {@link #columns} when decimated
+ * and {@link #samples} otherwise, so the real difference on a device is larger. A frame at 60 fps
+ * may take at most 16.7 ms.
+ * <p>
+ * {@link #rollupDay()} draws a day of aggregated heart rates from a {@link RollupStore} instead,
+ * like the 24 h span of the chart.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChartBenchmark {
+    /**
+     * Time between two heart rates of the history in milliseconds (a mockup at 100 Hz).
+     */
+    private static final long SAMPLE_PERIOD_MILLIS = 10;
+
+    /**
+     * Heart rates further apart are not connected, as in the chart.
+     */
+    private static final long MAX_GAP_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Heart rates received per frame at 100 Hz and 60 fps, rounded up.
+     */
+    private static final int SAMPLES_PER_FRAME = 2;
+
+    /**
+     * Number of heart rates in the history, all of them within the drawn time span.
+     */
+    @Param({"10000", "1000000"})
+    public int samples;
+
+    /**
+     * Width of the chart in pixels.
+     */
+    @Param({"1080"})
+    public int columns;
+
+    private SampleHistory history;
+
+    private RollupStore rollupStore;
+
+    private long[] timestamps;
+
+    private int[] values;
+
+    private float[] points;
+
+    private float[] naivePoints;
+
+    private MinMaxDecimator decimator;
+
+    private final RollupBuffer buckets = new RollupBuffer();
+
+    private int[] trace;
+
+    /**
+     * Time span of the chart: the duration of the history.
+     */
+    private long span;
+
+    /**
+     * Number of heart rates added to the history so far.
+     */
+    private long added;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        trace = Traces.generate(WaveformProfile.EXERCISE_RAMP);
+        history = new SampleHistory(samples, TimeUnit.SECONDS.toMillis(10));
+        span = samples * SAMPLE_PERIOD_MILLIS;
+        while (added < samples) {
+            addSample();
+        }
+
+        rollupStore = new RollupStore(null);
+        int day = (int) TimeUnit.DAYS.toSeconds(1);
+        for (int i = 1; i <= day; i++) {
+            rollupStore.add(i * Traces.PERIOD_MILLIS, trace[i & Traces.MASK]);
+        }
+
+        timestamps = new long[samples];
+        values = new int[samples];
+        decimator = new MinMaxDecimator(columns);
+        decimator.reset(Math.max(1, span / columns), columns);
+        points = new float[columns * MinMaxDecimator.FLOATS_PER_COLUMN];
+        naivePoints = new float[samples * 4];
+    }
+
+    private void addSample() {
+        added++;
+        history.add(added * SAMPLE_PERIOD_MILLIS, trace[(int) added & Traces.MASK]);
+    }
+
+    /**
+     * Receives the heart rates of a frame, adds them to the decimator and draws, like the chart.
+     */
+    @Benchmark
+    public int incremental() {
+        for (int i = 0; i < SAMPLES_PER_FRAME; i++) {
+            addSample();
+        }
+        long to = (added + 1) * SAMPLE_PERIOD_MILLIS;
+        long from = Math.max(to - span, decimator.getNewestTimestamp() + 1);
+        decimator.addAll(timestamps, values, history.copy(from, Long.MAX_VALUE, timestamps, values));
+        return decimator.toLines(points, to, 0, 0, columns, 400, 40, 200, MAX_GAP_MILLIS);
+    }
+
+    /**
+     * Receives the heart rates of a frame and decimates the whole history from scratch, like the
+     * first frame of a time span.
+     */
+    @Benchmark
+    public int full() {
+        for (int i = 0; i < SAMPLES_PER_FRAME; i++) {
+            addSample();
+        }
+        long to = (added + 1) * SAMPLE_PERIOD_MILLIS;
+        decimator.reset(Math.max(1, span / columns), columns);
+        decimator.addAll(timestamps, values, history.copy(to - span, to, timestamps, values));
+        return decimator.toLines(points, to, 0, 0, columns, 400, 40, 200, MAX_GAP_MILLIS);
+    }
+
+    /**
+     * Receives the heart rates of a frame, copies the history and converts every pair of
+     * neighbouring heart rates into a line.
+     */
+    @Benchmark
+    public int naive() {
+        for (int i = 0; i < SAMPLES_PER_FRAME; i++) {
+            addSample();
+        }
+        long to = (added + 1) * SAMPLE_PERIOD_MILLIS;
+        long from = to - span;
+        int count = history.copy(from, to, timestamps, values);
+        float xScale = (float) columns / (to - from);
+        float yScale = 400f / (200 - 40);
+        int floats = 0;
+        for (int i = 1; i < count; i++) {
+            naivePoints[floats++] = (timestamps[i - 1] - from) * xScale;
+            naivePoints[floats++] = 400 - (values[i - 1] - 40) * yScale;
+            naivePoints[floats++] = (timestamps[i] - from) * xScale;
+            naivePoints[floats++] = 400 - (values[i] - 40) * yScale;
+        }
+        return floats;
+    }
+
+    /**
+     * Queries a day of aggregated heart rates at one bucket per pixel and decimates them.
+     */
+    @Benchmark
+    public int rollupDay() {
+        long end = (TimeUnit.DAYS.toSeconds(1) + 1) * Traces.PERIOD_MILLIS;
+        long start = end - TimeUnit.DAYS.toMillis(1);
+        rollupStore.query(start, end, rollupStore.getResolutionFor(end - start, columns), buckets);
+        decimator.reset(Math.max(1, (end - start) / columns), columns);
+        decimator.addAll(buckets);
+        return decimator.toLines(points, end, 0, 0, columns, 400, 40, 200, MAX_GAP_MILLIS);
+    }
+}
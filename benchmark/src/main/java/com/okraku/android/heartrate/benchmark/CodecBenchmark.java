@@ -0,0 +1,165 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.FlushPolicy;
+import com.okraku.android.heartrate.core.HeartRateCodec;
+import com.okraku.android.heartrate.core.SampleBatcher;
+import com.okraku.android.heartrate.core.SampleBuffer;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the message payload: the original ASCII digits against the binary
+ * {@link HeartRateCodec}, for a single sample and for a full batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    /**
+     * Number of samples of a batch, as with {@link FlushPolicy#DEFAULT}.
+     */
+    private static final int BATCH_SIZE = 30;
+
+    private int[] trace;
+
+    private int index;
+
+    private SampleBuffer samples;
+
+    private byte[] encoded;
+
+    private byte[] legacyMessage;
+
+    private byte[] singleMessage;
+
+    private byte[] batchMessage;
+
+    private SampleBatcher perSampleBatcher;
+
+    @Setup
+    public void setUp() {
+        trace = Traces.generate(WaveformProfile.EXERCISE_RAMP);
+        samples = new SampleBuffer(BATCH_SIZE);
+        encoded = new byte[HeartRateCodec.maxEncodedSize(BATCH_SIZE)];
+        perSampleBatcher = new SampleBatcher(FlushPolicy.PER_SAMPLE);
+
+        legacyMessage = String.valueOf(trace[0]).getBytes();
+
+        samples.add(System.currentTimeMillis(), trace[0]);
+        singleMessage = new byte[HeartRateCodec.encode(samples, encoded, 0)];
+        System.arraycopy(encoded, 0, singleMessage, 0, singleMessage.length);
+
+        fillBatch(0);
+        batchMessage = new byte[HeartRateCodec.encode(samples, encoded, 0)];
+        System.arraycopy(encoded, 0, batchMessage, 0, batchMessage.length);
+    }
+
+    /**
+     * Fills the sample buffer with a batch of the trace.
+     *
+     * @param start Index of the first sample
+     */
+    private void fillBatch(int start) {
+        samples.clear();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            samples.add(i * Traces.PERIOD_MILLIS, trace[(start + i) & Traces.MASK]);
+        }
+    }
+
+    /**
+     * Returns the next heart rate of the trace.
+     *
+     * @return A heart rate
+     */
+    private int nextValue() {
+        index = (index + 1) & Traces.MASK;
+        return trace[index];
+    }
+
+    /**
+     * The original encoding of the smartwatch: {@code String.valueOf(heartRate).getBytes()}.
+     */
+    @Benchmark
+    public byte[] encodeLegacy() {
+        return String.valueOf(nextValue()).getBytes();
+    }
+
+    /**
+     * The original decoding of the smartphone: {@code Integer.parseInt(new String(data))}.
+     */
+    @Benchmark
+    public int decodeLegacy() {
+        return Integer.parseInt(new String(legacyMessage));
+    }
+
+    /**
+     * The legacy fallback of the smartphone, which parses the digits without a string.
+     */
+    @Benchmark
+    public int decodeLegacyCodec() {
+        return HeartRateCodec.decodeLegacy(legacyMessage);
+    }
+
+    /**
+     * A single sample with the binary codec into a reused buffer.
+     */
+    @Benchmark
+    public int encodeSingle() {
+        samples.clear();
+        samples.add(index * Traces.PERIOD_MILLIS, nextValue());
+        return HeartRateCodec.encode(samples, encoded, 0);
+    }
+
+    /**
+     * A single sample as sent by the smartwatch, including the copy handed to the message client.
+     */
+    @Benchmark
+    public byte[] encodeSingleBatcher() {
+        long timestamp = index * Traces.PERIOD_MILLIS;
+        perSampleBatcher.add(timestamp, nextValue());
+        return perSampleBatcher.flush(timestamp);
+    }
+
+    /**
+     * A single sample with the binary codec into a reused buffer.
+     */
+    @Benchmark
+    public int decodeSingle() {
+        samples.clear();
+        return HeartRateCodec.decode(singleMessage, samples);
+    }
+
+    /**
+     * A batch of {@value #BATCH_SIZE} samples with the binary codec into a reused buffer.
+     */
+    @Benchmark
+    public int encodeBatch() {
+        index = (index + BATCH_SIZE) & Traces.MASK;
+        fillBatch(index);
+        return HeartRateCodec.encode(samples, encoded, 0);
+    }
+
+    /**
+     * A batch of {@value #BATCH_SIZE} samples with the binary codec into a reused buffer.
+     */
+    @Benchmark
+    public int decodeBatch() {
+        samples.clear();
+        return HeartRateCodec.decode(batchMessage, samples);
+    }
+}
@@ -0,0 +1,155 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.FlushPolicy;
+import com.okraku.android.heartrate.core.InMemoryDataLayer;
+import com.okraku.android.heartrate.core.PhonePipeline;
+import com.okraku.android.heartrate.core.SendPipeline;
+import com.okraku.android.heartrate.core.SendPolicy;
+import com.okraku.android.heartrate.core.WatchPipeline;
+import com.okraku.android.heartrate.core.alert.AlertEngine;
+import com.okraku.android.heartrate.core.alert.RateOfChangeRule;
+import com.okraku.android.heartrate.core.alert.SustainedAboveRule;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+import com.okraku.android.heartrate.core.history.SampleHistory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heart rates from the pipeline of the smartwatch to the pipeline of the smartphone over an
+ * {@link InMemoryDataLayer} without latency. Every operation waits until the smartphone has
+ * processed the samples, so the result is the time through both pipelines and their threads.
+ * <p>
+ * {@link #sample()} is the latency of a single heart rate. {@link #burst()} sends a batch of
+ * heart rates, as delivered by the sensor FIFO, and reports the time per heart rate, so that
+ * the throughput of batched and per-sample flushing can be compared.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndToEndBenchmark {
+    /**
+     * Lengths of the history windows, as on the smartphone: 10 seconds, 1 minute, 5 minutes.
+     */
+    private static final long[] WINDOWS = {TimeUnit.SECONDS.toMillis(10), TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(5)};
+
+    /**
+     * Number of heart rates of a burst, one full batch of {@link FlushPolicy#DEFAULT}.
+     */
+    private static final int BURST_SIZE = 30;
+
+    /**
+     * Flush policy of the smartwatch: every sample is a message, or samples are batched.
+     */
+    @Param({"PER_SAMPLE", "DEFAULT"})
+    public String flushPolicy;
+
+    private int[] trace;
+
+    private int index;
+
+    private long timestamp;
+
+    private InMemoryDataLayer dataLayer;
+
+    private WatchPipeline watch;
+
+    private PhonePipeline phone;
+
+    @Setup
+    public void setUp() {
+        trace = Traces.generate(WaveformProfile.EXERCISE_RAMP);
+        dataLayer = new InMemoryDataLayer(0, 0, 42);
+
+        phone = new PhonePipeline(dataLayer.connect("phone", new InMemoryDataLayer.MessageListener() {
+            @Override
+            public void onMessageReceived(String sourceNodeId, String path, byte[] data) {
+                phone.onMessageReceived(sourceNodeId, path, data);
+            }
+        }), 16, SendPipeline.OverflowPolicy.DROP_OLDEST, SampleHistory.capacityForBudget(256 * 1024, WINDOWS.length), WINDOWS,
+                new PhonePipeline.AlertEngineFactory() {
+                    @Override
+                    public AlertEngine createAlertEngine(String nodeId) {
+                        // The rules of the smartphone app
+                        long cooldown = TimeUnit.MINUTES.toMillis(1);
+                        return new AlertEngine(
+                                new SustainedAboveRule("high heart rate", 100, TimeUnit.SECONDS.toMillis(5), 90, cooldown),
+                                new RateOfChangeRule("fast rise", 3, TimeUnit.SECONDS.toMillis(5), cooldown));
+                    }
+                });
+
+        // Warnings received by the smartwatch are ignored
+        watch = new WatchPipeline(dataLayer.connect("watch", new InMemoryDataLayer.MessageListener() {
+            @Override
+            public void onMessageReceived(String sourceNodeId, String path, byte[] data) {
+            }
+        }), 64, SendPipeline.OverflowPolicy.DROP_OLDEST);
+        watch.setFlushPolicy("DEFAULT".equals(flushPolicy) ? FlushPolicy.DEFAULT : FlushPolicy.PER_SAMPLE);
+
+        // Every heart rate is sent, even if it has not changed, so that every operation receives one
+        watch.setSendPolicy(new SendPolicy(0, 0, 0, 0, 0, 0));
+    }
+
+    @TearDown
+    public void tearDown() {
+        watch.shutdown();
+        phone.shutdown();
+        dataLayer.shutdown();
+    }
+
+    /**
+     * Sends a heart rate and waits until the smartphone has processed it. A batch is flushed
+     * right away, so that the result does not include its maximum age.
+     */
+    @Benchmark
+    public long sample() {
+        long expected = phone.getReceivedSamples() + 1;
+        send();
+        watch.flush();
+        return await(expected);
+    }
+
+    /**
+     * Sends a burst of heart rates and waits until the smartphone has processed all of them.
+     * The rest of a batch is flushed at the end of the burst.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST_SIZE)
+    public long burst() {
+        long expected = phone.getReceivedSamples() + BURST_SIZE;
+        for (int i = 0; i < BURST_SIZE; i++) {
+            send();
+        }
+        watch.flush();
+        return await(expected);
+    }
+
+    private void send() {
+        index = (index + 1) & Traces.MASK;
+        timestamp += Traces.PERIOD_MILLIS;
+        watch.onHeartRate(timestamp, trace[index]);
+    }
+
+    private long await(long expected) {
+        while (phone.getReceivedSamples() < expected) {
+            Thread.yield();
+        }
+        return expected;
+    }
+}
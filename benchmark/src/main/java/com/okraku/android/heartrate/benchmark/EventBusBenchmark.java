@@ -0,0 +1,173 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.HeartRateBus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishing heart rates on a {@link HeartRateBus}.
+ * <p>
+ * {@link #fanOut(FanOut)} publishes to a number of subscribers that are called on the publishing
+ * thread, which is the cost per heart rate for the sensor callback or the message receiver.
+ * {@link #slowSubscriber(Slow)} publishes to a subscriber on its own thread that needs 1 ms per
+ * heart rate, like a UI or a store that falls behind: publishing stays as fast as without it.
+ * <p>
+ * {@link #contended} runs three publishers and a thread that subscribes and unsubscribes at the
+ * same time. That the heart rates arrive complete and in order under contention is checked by
+ * {@code HeartRateBusTest} in the core module.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventBusBenchmark {
+    /**
+     * Subscribers called on the publishing thread.
+     */
+    @State(Scope.Thread)
+    public static class FanOut {
+        @Param({"1", "4", "16"})
+        public int subscribers;
+
+        @Param({"EVERY_SAMPLE", "LATEST_ONLY"})
+        public HeartRateBus.Delivery delivery;
+
+        private final HeartRateBus bus = new HeartRateBus();
+
+        private long timestamp;
+
+        @Setup(Level.Trial)
+        public void setUp(final Blackhole blackhole) {
+            for (int i = 0; i < subscribers; i++) {
+                bus.subscribe(new HeartRateBus.Subscriber() {
+                    @Override
+                    public void onHeartRate(String nodeId, long timestamp, int heartRate, long receivedNanos) {
+                        blackhole.consume(heartRate);
+                    }
+                }, delivery, HeartRateBus.DIRECT);
+            }
+        }
+    }
+
+    /**
+     * A subscriber on its own thread that needs 1 ms per heart rate.
+     */
+    @State(Scope.Thread)
+    public static class Slow {
+        @Param({"EVERY_SAMPLE", "LATEST_ONLY"})
+        public HeartRateBus.Delivery delivery;
+
+        private final HeartRateBus bus = new HeartRateBus();
+
+        private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        private long timestamp;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            bus.subscribe(new HeartRateBus.Subscriber() {
+                @Override
+                public void onHeartRate(String nodeId, long timestamp, int heartRate, long receivedNanos) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+            }, delivery, executor);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Bus shared by the threads of {@link #contended}, with a subscriber of every delivery on the
+     * publishing threads and on a thread of its own.
+     */
+    @State(Scope.Group)
+    public static class Shared {
+        private final HeartRateBus bus = new HeartRateBus();
+
+        private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        private HeartRateBus.Subscriber subscriber;
+
+        @Setup(Level.Trial)
+        public void setUp(final Blackhole blackhole) {
+            subscriber = new HeartRateBus.Subscriber() {
+                @Override
+                public void onHeartRate(String nodeId, long timestamp, int heartRate, long receivedNanos) {
+                    blackhole.consume(timestamp);
+                }
+            };
+            bus.subscribe(subscriber, HeartRateBus.Delivery.EVERY_SAMPLE, HeartRateBus.DIRECT);
+            bus.subscribe(subscriber, HeartRateBus.Delivery.LATEST_ONLY, HeartRateBus.DIRECT);
+            bus.subscribe(subscriber, HeartRateBus.Delivery.EVERY_SAMPLE, executor);
+            bus.subscribe(subscriber, HeartRateBus.Delivery.LATEST_ONLY, executor);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            executor.shutdownNow();
+            System.out.println();
+            System.out.println(bus);
+        }
+    }
+
+    /**
+     * Timestamps of a publisher of {@link #contended}.
+     */
+    @State(Scope.Thread)
+    public static class Publisher {
+        private long timestamp;
+    }
+
+    @Benchmark
+    public void fanOut(FanOut state) {
+        state.timestamp++;
+        state.bus.publish(null, state.timestamp, 60 + (int) (state.timestamp & 63), state.timestamp);
+    }
+
+    @Benchmark
+    public void slowSubscriber(Slow state) {
+        state.timestamp++;
+        state.bus.publish(null, state.timestamp, 60 + (int) (state.timestamp & 63), state.timestamp);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void publish(Shared shared, Publisher publisher) {
+        publisher.timestamp++;
+        shared.bus.publish(null, publisher.timestamp, 60, publisher.timestamp);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public boolean subscribe(Shared shared) {
+        HeartRateBus.Subscription subscription = shared.bus.subscribe(shared.subscriber, HeartRateBus.Delivery.EVERY_SAMPLE, HeartRateBus.DIRECT);
+        return shared.bus.unsubscribe(subscription);
+    }
+}
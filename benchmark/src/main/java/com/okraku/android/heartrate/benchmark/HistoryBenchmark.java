@@ -0,0 +1,161 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+import com.okraku.android.heartrate.core.history.SampleHistory;
+import com.okraku.android.heartrate.core.history.WindowStats;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ingest into and statistics from the history of a smartwatch, sized like on the smartphone.
+ * <p>
+ * {@link #readWhileWrite} adds samples on one thread, like {@code onMessageReceived}, while three
+ * threads read the statistics, like the UI and the alert engine, so that the cost of the
+ * optimistic reads under contention shows up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+    /**
+     * Memory used for the history, as on the smartphone (256 KiB).
+     */
+    private static final int MEMORY_BUDGET = 256 * 1024;
+
+    /**
+     * Lengths of the windows, as on the smartphone: 10 seconds, 1 minute, 5 minutes.
+     */
+    private static final long[] WINDOWS = {TimeUnit.SECONDS.toMillis(10), TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(5)};
+
+    private int[] trace;
+
+    private int index;
+
+    private long timestamp;
+
+    /**
+     * Length of the range copied by {@link #range()}: one minute.
+     */
+    private static final long RANGE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * A history written and read by several threads.
+     */
+    @State(Scope.Group)
+    public static class Shared {
+        private int[] trace;
+
+        private int index;
+
+        private long timestamp;
+
+        private SampleHistory history;
+
+        @Setup
+        public void setUp() {
+            trace = Traces.generate(WaveformProfile.EXERCISE_RAMP);
+            int capacity = SampleHistory.capacityForBudget(MEMORY_BUDGET, WINDOWS.length);
+            history = new SampleHistory(capacity, WINDOWS);
+            for (int i = 0; i < capacity; i++) {
+                add();
+            }
+        }
+
+        /**
+         * Adds the next sample of the trace. Only called by the writing thread.
+         */
+        private void add() {
+            index = (index + 1) & Traces.MASK;
+            timestamp += Traces.PERIOD_MILLIS;
+            history.add(timestamp, trace[index]);
+        }
+    }
+
+    private SampleHistory history;
+
+    private WindowStats stats;
+
+    private long[] rangeTimestamps;
+
+    private int[] rangeValues;
+
+    @Setup
+    public void setUp() {
+        trace = Traces.generate(WaveformProfile.EXERCISE_RAMP);
+        int capacity = SampleHistory.capacityForBudget(MEMORY_BUDGET, WINDOWS.length);
+        history = new SampleHistory(capacity, WINDOWS);
+        stats = new WindowStats();
+        rangeTimestamps = new long[capacity];
+        rangeValues = new int[capacity];
+
+        // Start with a full history, so that old samples are evicted from the beginning
+        for (int i = 0; i < capacity; i++) {
+            add();
+        }
+    }
+
+    /**
+     * Adds the next sample of the trace.
+     */
+    private void add() {
+        index = (index + 1) & Traces.MASK;
+        timestamp += Traces.PERIOD_MILLIS;
+        history.add(timestamp, trace[index]);
+    }
+
+    /**
+     * Adding a sample, including the update of all windows.
+     */
+    @Benchmark
+    public int ingest() {
+        add();
+        return history.size();
+    }
+
+    /**
+     * Reading the statistics of the longest window.
+     */
+    @Benchmark
+    public WindowStats stats() {
+        return history.getStats(WINDOWS.length - 1, stats);
+    }
+
+    /**
+     * Copying the samples of the last minute, e.g. for a chart.
+     */
+    @Benchmark
+    public int range() {
+        return history.copy(timestamp - RANGE_MILLIS, timestamp + 1, rangeTimestamps, rangeValues);
+    }
+
+    @Benchmark
+    @Group("readWhileWrite")
+    @GroupThreads(1)
+    public int write(Shared shared) {
+        shared.add();
+        return shared.history.size();
+    }
+
+    @Benchmark
+    @Group("readWhileWrite")
+    @GroupThreads(3)
+    public WindowStats read(Shared shared) {
+        return shared.history.getStats(WINDOWS.length - 1, stats);
+    }
+}
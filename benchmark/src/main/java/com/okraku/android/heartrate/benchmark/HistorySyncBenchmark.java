@@ -0,0 +1,162 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.InMemoryDataLayer;
+import com.okraku.android.heartrate.core.PhonePipeline;
+import com.okraku.android.heartrate.core.SampleBuffer;
+import com.okraku.android.heartrate.core.SendPipeline;
+import com.okraku.android.heartrate.core.WatchPipeline;
+import com.okraku.android.heartrate.core.alert.AlertEngine;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+import com.okraku.android.heartrate.core.store.SampleSpool;
+import com.okraku.android.heartrate.core.sync.StreamChannel;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfers a backlog of spooled heart rates from the smartwatch to the smartphone over an
+ * {@link InMemoryDataLayer}, either as backfill messages at the default rate or over a history
+ * channel. A transfer takes longer than an iteration, so every iteration measures exactly one.
+ * <p>
+ * The auxiliary counters {@code samples} and {@code bytes} are the transfer rate in heart rates
+ * and in bytes on the wire per second; their ratio is the number of bytes per heart rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class HistorySyncBenchmark {
+    /**
+     * Length of the backlog in hours, at one heart rate per second.
+     */
+    @Param({"8"})
+    public int hours;
+
+    /**
+     * How the backlog is sent: "MESSAGES" or "CHANNEL".
+     */
+    @Param({"MESSAGES", "CHANNEL"})
+    public String path;
+
+    private int[] trace;
+
+    private File directory;
+
+    private InMemoryDataLayer dataLayer;
+
+    private WatchPipeline watch;
+
+    private PhonePipeline phone;
+
+    private int backlog;
+
+    /**
+     * Transferred heart rates and bytes, reported per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transfer {
+        public long samples;
+
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        trace = Traces.generate(WaveformProfile.EXERCISE_RAMP);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("history").toFile();
+        dataLayer = new InMemoryDataLayer(0, 0, 42);
+
+        phone = new PhonePipeline(dataLayer.connect("phone", new InMemoryDataLayer.MessageListener() {
+            @Override
+            public void onMessageReceived(String sourceNodeId, String path, byte[] data) {
+                phone.onMessageReceived(sourceNodeId, path, data);
+            }
+        }), 16, SendPipeline.OverflowPolicy.DROP_OLDEST, 1024, new long[]{TimeUnit.MINUTES.toMillis(1)},
+                new PhonePipeline.AlertEngineFactory() {
+                    @Override
+                    public AlertEngine createAlertEngine(String nodeId) {
+                        return new AlertEngine();
+                    }
+                });
+        dataLayer.setChannelListener("phone", new InMemoryDataLayer.ChannelListener() {
+            @Override
+            public void onChannelOpened(String sourceNodeId, String path, StreamChannel channel) {
+                try {
+                    phone.receiveHistory(sourceNodeId, channel);
+                    channel.close();
+                }
+                catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+
+        watch = new WatchPipeline(dataLayer.connect("watch", new InMemoryDataLayer.MessageListener() {
+            @Override
+            public void onMessageReceived(String sourceNodeId, String path, byte[] data) {
+            }
+        }), 64, SendPipeline.OverflowPolicy.DROP_OLDEST);
+        if ("CHANNEL".equals(path)) {
+            watch.setChannelOpener(dataLayer.getChannelOpener("watch"));
+        }
+
+        backlog = (int) TimeUnit.HOURS.toSeconds(hours);
+        SampleSpool spool = new SampleSpool(new File(directory, "spool.hrq"), backlog);
+        SampleBuffer samples = new SampleBuffer(backlog);
+        for (int i = 1; i <= backlog; i++) {
+            samples.add(i * Traces.PERIOD_MILLIS, trace[i & Traces.MASK]);
+        }
+        spool.addAll(samples);
+        watch.setSpool(spool);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        watch.shutdown();
+        phone.shutdown();
+        dataLayer.shutdown();
+        watch.getSpool().close();
+
+        new File(directory, "spool.hrq").delete();
+        directory.delete();
+    }
+
+    /**
+     * Connects the smartphone and waits until the backlog has been received.
+     */
+    @Benchmark
+    public long transfer(Transfer transfer) throws InterruptedException {
+        watch.onPeerConnected("phone");
+        while (phone.getBackfilledSamples() < backlog) {
+            Thread.sleep(1);
+        }
+
+        transfer.samples += backlog;
+        transfer.bytes += dataLayer.getMessageBytes() + dataLayer.getChannelBytes();
+        return phone.getBackfilledSamples();
+    }
+}
@@ -0,0 +1,250 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.FlushPolicy;
+import com.okraku.android.heartrate.core.HeartRateBus;
+import com.okraku.android.heartrate.core.MessagePaths;
+import com.okraku.android.heartrate.core.PhonePipeline;
+import com.okraku.android.heartrate.core.SampleBatcher;
+import com.okraku.android.heartrate.core.SendPipeline;
+import com.okraku.android.heartrate.core.Transport;
+import com.okraku.android.heartrate.core.alert.AlertEngine;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+import com.okraku.android.heartrate.core.metrics.LatencyHistogram;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many smartwatches sending to one smartphone at the same time. Every source has its own thread
+ * that passes numbered single heart rate messages to {@link PhonePipeline#onMessageReceived} as
+ * fast as it can, so the sources contend for the receive path and publish to the
+ * {@link HeartRateBus} concurrently. An invocation ends when every source has sent
+ * {@link #SAMPLES_PER_SOURCE} heart rates and every subscriber has caught up.
+ * <p>
+ * Three subscribers receive the heart rates, as on the smartphone: alert checks on the receiving
+ * thread, persistence on its own thread with every heart rate, and the display on its own thread
+ * with the latest heart rate only. The auxiliary counters are the heart rates each subscriber
+ * lost; the latency from receiving to delivery of every subscriber is printed after the trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MultiSourceBenchmark {
+    /**
+     * Heart rates every source sends per invocation.
+     */
+    private static final int SAMPLES_PER_SOURCE = 10000;
+
+    /**
+     * Number of smartwatches sending at the same time.
+     */
+    @Param({"1", "8", "32"})
+    public int sources;
+
+    private int[] trace;
+
+    private PhonePipeline phone;
+
+    /**
+     * Runs the sources, one thread each.
+     */
+    private ExecutorService sourceExecutor;
+
+    /**
+     * Calls the persistence and the display subscriber.
+     */
+    private ExecutorService storeExecutor;
+
+    private ExecutorService displayExecutor;
+
+    private Source[] sourceStates;
+
+    private RecordingSubscriber alerts;
+
+    private RecordingSubscriber store;
+
+    private RecordingSubscriber display;
+
+    /**
+     * Counts the heart rates of a subscriber and records their latency from receiving to delivery.
+     */
+    private static class RecordingSubscriber implements HeartRateBus.Subscriber {
+        private final LatencyHistogram latency;
+
+        private HeartRateBus.Subscription subscription;
+
+        RecordingSubscriber(String name) {
+            latency = new LatencyHistogram(name);
+        }
+
+        @Override
+        public void onHeartRate(String nodeId, long timestamp, int heartRate, long receivedNanos) {
+            latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - receivedNanos));
+        }
+
+        /**
+         * Returns true, if every offered heart rate has been delivered or skipped.
+         */
+        boolean isDrained() {
+            return subscription.getDelivered() + subscription.getDropped() + subscription.getConflated() >= subscription.getOffered();
+        }
+    }
+
+    /**
+     * A smartwatch: encodes numbered messages like {@link FlushPolicy#PER_SAMPLE}.
+     */
+    private static class Source {
+        private final String nodeId;
+
+        private final SampleBatcher batcher = new SampleBatcher(FlushPolicy.PER_SAMPLE);
+
+        private long sequence;
+
+        private long timestamp;
+
+        Source(String nodeId) {
+            this.nodeId = nodeId;
+        }
+    }
+
+    /**
+     * Heart rates lost per subscriber, reported as totals. Heart rates the display skips for a
+     * newer one are expected and not counted.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Loss {
+        /**
+         * Heart rates sent, but not published by the smartphone, e.g. skipped as gaps.
+         */
+        public long unpublished;
+
+        public long alertsDropped;
+
+        public long storeDropped;
+
+        public long displayDropped;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        trace = Traces.generate(WaveformProfile.EXERCISE_RAMP);
+
+        final Set<String> nodes = new HashSet<>();
+        sourceStates = new Source[sources];
+        for (int i = 0; i < sources; i++) {
+            sourceStates[i] = new Source("watch-" + i);
+            nodes.add(sourceStates[i].nodeId);
+        }
+
+        // Warnings are discarded
+        Transport transport = new Transport() {
+            @Override
+            public void sendMessage(String nodeId, String path, byte[] data) {
+            }
+
+            @Override
+            public Set<String> loadNodes() {
+                return nodes;
+            }
+        };
+        phone = new PhonePipeline(transport, 16, SendPipeline.OverflowPolicy.DROP_OLDEST, 1024,
+                new long[]{TimeUnit.MINUTES.toMillis(1)}, new PhonePipeline.AlertEngineFactory() {
+                    @Override
+                    public AlertEngine createAlertEngine(String nodeId) {
+                        return new AlertEngine();
+                    }
+                });
+
+        sourceExecutor = Executors.newFixedThreadPool(sources);
+        storeExecutor = Executors.newSingleThreadExecutor();
+        displayExecutor = Executors.newSingleThreadExecutor();
+
+        HeartRateBus bus = phone.getHeartRateBus();
+        alerts = new RecordingSubscriber("alerts (direct, every sample)");
+        alerts.subscription = bus.subscribe(alerts, HeartRateBus.Delivery.EVERY_SAMPLE, HeartRateBus.DIRECT);
+        store = new RecordingSubscriber("store (executor, every sample)");
+        store.subscription = bus.subscribe(store, HeartRateBus.Delivery.EVERY_SAMPLE, storeExecutor);
+        display = new RecordingSubscriber("display (executor, latest only)");
+        display.subscription = bus.subscribe(display, HeartRateBus.Delivery.LATEST_ONLY, displayExecutor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sourceExecutor.shutdownNow();
+        storeExecutor.shutdownNow();
+        displayExecutor.shutdownNow();
+        phone.shutdown();
+
+        System.out.println();
+        System.out.println(phone.getHeartRateBus());
+        System.out.println(alerts.latency);
+        System.out.println(store.latency);
+        System.out.println(display.latency);
+    }
+
+    /**
+     * Sends {@link #SAMPLES_PER_SOURCE} heart rates from every source and waits until every
+     * subscriber has caught up.
+     */
+    @Benchmark
+    public long send(Loss loss) throws InterruptedException {
+        long publishedBefore = phone.getHeartRateBus().getPublished();
+        long alertsDropped = alerts.subscription.getDropped();
+        long storeDropped = store.subscription.getDropped();
+        long displayDropped = display.subscription.getDropped();
+
+        final CountDownLatch done = new CountDownLatch(sources);
+        for (final Source source : sourceStates) {
+            sourceExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < SAMPLES_PER_SOURCE; i++) {
+                            source.timestamp += Traces.PERIOD_MILLIS;
+                            source.batcher.add(source.timestamp, trace[(int) source.sequence & Traces.MASK]);
+                            byte[] message = source.batcher.flush(source.timestamp, source.sequence++);
+                            phone.onMessageReceived(source.nodeId, MessagePaths.HEART_RATE, message);
+                        }
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        while (!alerts.isDrained() || !store.isDrained() || !display.isDrained()) {
+            Thread.yield();
+        }
+
+        long published = phone.getHeartRateBus().getPublished() - publishedBefore;
+        loss.unpublished += (long) sources * SAMPLES_PER_SOURCE - published;
+        loss.alertsDropped += alerts.subscription.getDropped() - alertsDropped;
+        loss.storeDropped += store.subscription.getDropped() - storeDropped;
+        loss.displayDropped += display.subscription.getDropped() - displayDropped;
+        return published;
+    }
+}
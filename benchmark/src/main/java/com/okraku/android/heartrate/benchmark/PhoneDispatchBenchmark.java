@@ -0,0 +1,118 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.FlushPolicy;
+import com.okraku.android.heartrate.core.HeartRateBus;
+import com.okraku.android.heartrate.core.MessagePaths;
+import com.okraku.android.heartrate.core.PhonePipeline;
+import com.okraku.android.heartrate.core.SampleBatcher;
+import com.okraku.android.heartrate.core.SendPipeline;
+import com.okraku.android.heartrate.core.Transport;
+import com.okraku.android.heartrate.core.alert.AlertEngine;
+import com.okraku.android.heartrate.core.alert.RateOfChangeRule;
+import com.okraku.android.heartrate.core.alert.SustainedAboveRule;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+import com.okraku.android.heartrate.core.history.SampleHistory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything the smartphone does for a received message in {@code onMessageReceived}, without
+ * the data layer: the {@link PhonePipeline} decodes the message, updates history and alert rules
+ * and publishes it to the UI subscriber, which reports the heart rate as displayed right away.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhoneDispatchBenchmark {
+    /**
+     * Lengths of the history windows, as on the smartphone: 10 seconds, 1 minute, 5 minutes.
+     */
+    private static final long[] WINDOWS = {TimeUnit.SECONDS.toMillis(10), TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(5)};
+
+    private int[] trace;
+
+    private int index;
+
+    private long timestamp;
+
+    private PhonePipeline pipeline;
+
+    /**
+     * Encodes the received messages.
+     */
+    private SampleBatcher batcher;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        trace = Traces.generate(WaveformProfile.EXERCISE_RAMP);
+
+        // Warnings are discarded, there is always a single peer
+        Transport transport = new Transport() {
+            @Override
+            public void sendMessage(String nodeId, String path, byte[] data) {
+            }
+
+            @Override
+            public Set<String> loadNodes() {
+                return Collections.singleton("watch");
+            }
+        };
+
+        pipeline = new PhonePipeline(transport, 16, SendPipeline.OverflowPolicy.DROP_OLDEST,
+                SampleHistory.capacityForBudget(256 * 1024, WINDOWS.length), WINDOWS, new PhonePipeline.AlertEngineFactory() {
+                    @Override
+                    public AlertEngine createAlertEngine(String nodeId) {
+                        // The rules of the smartphone app
+                        long cooldown = TimeUnit.MINUTES.toMillis(1);
+                        return new AlertEngine(
+                                new SustainedAboveRule("high heart rate", 100, TimeUnit.SECONDS.toMillis(5), 90, cooldown),
+                                new RateOfChangeRule("fast rise", 3, TimeUnit.SECONDS.toMillis(5), cooldown));
+                    }
+                });
+        pipeline.getHeartRateBus().subscribe(new HeartRateBus.Subscriber() {
+            @Override
+            public void onHeartRate(String nodeId, long timestamp, int heartRate, long receivedNanos) {
+                blackhole.consume(heartRate);
+                pipeline.onDisplayed(receivedNanos);
+            }
+        }, HeartRateBus.Delivery.LATEST_ONLY, HeartRateBus.DIRECT);
+        batcher = new SampleBatcher(FlushPolicy.PER_SAMPLE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipeline.shutdown();
+    }
+
+    /**
+     * Like {@code onMessageReceived} for a message with a single sample. The message is encoded
+     * as part of the benchmark, so its cost and allocation are included (see
+     * {@link CodecBenchmark#encodeSingleBatcher()}).
+     */
+    @Benchmark
+    public boolean onMessageReceived() {
+        index = (index + 1) & Traces.MASK;
+        timestamp += Traces.PERIOD_MILLIS;
+
+        batcher.add(timestamp, trace[index]);
+        return pipeline.onMessageReceived("watch", MessagePaths.HEART_RATE, batcher.flush(timestamp));
+    }
+}
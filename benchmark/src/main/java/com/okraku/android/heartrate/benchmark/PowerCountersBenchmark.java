@@ -0,0 +1,128 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.metrics.PowerCounters;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of counting with {@link PowerCounters}, which is done for every sensor event and every
+ * message, against a plain {@link AtomicLong}; from one thread and from four threads at once,
+ * like the sensor, sending and listener threads.
+ * <p>
+ * {@link #account(Clock)} counts a sensor event per second and a message per ten seconds for
+ * two hours of simulated time. The tear down fails the trial unless the rates per hour and the
+ * counts per minute are exact.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PowerCountersBenchmark {
+    private final PowerCounters counters = new PowerCounters();
+
+    private final AtomicLong counter = new AtomicLong();
+
+    /**
+     * Simulated time of {@link #account(Clock)}.
+     */
+    @State(Scope.Thread)
+    public static class Clock {
+        /**
+         * Simulated start, not aligned to a minute.
+         */
+        private static final long START = 1700000012345L;
+
+        private static final long HOURS = 2;
+
+        private PowerCounters counters;
+
+        private long end;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            counters = new PowerCounters(START);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            System.out.println();
+            System.out.print(counters.getReport(end));
+
+            double events = counters.getPerHour(PowerCounters.Counter.SENSOR_EVENTS, end);
+            double messages = counters.getPerHour(PowerCounters.Counter.MESSAGES_SENT, end);
+            if (Math.abs(events - 3600) > 1 || Math.abs(messages - 360) > 1) {
+                throw new IllegalStateException(String.format("%.1f sensor events and %.1f messages per hour instead of 3600 and 360", events, messages));
+            }
+            for (int i = 1; i < PowerCounters.MINUTES; i++) {
+                if (counters.getCount(PowerCounters.Counter.SENSOR_EVENTS, i, end) != 60) {
+                    throw new IllegalStateException(String.format("%d sensor events %d minutes ago instead of 60",
+                            counters.getCount(PowerCounters.Counter.SENSOR_EVENTS, i, end), i));
+                }
+            }
+            if (counters.getTotal(PowerCounters.Counter.SENSOR_EVENTS) != HOURS * 3600) {
+                throw new IllegalStateException(counters.getTotal(PowerCounters.Counter.SENSOR_EVENTS) + " sensor events counted");
+            }
+        }
+    }
+
+    @Benchmark
+    public void increment() {
+        counters.increment(PowerCounters.Counter.SENSOR_EVENTS);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void incrementContended() {
+        counters.increment(PowerCounters.Counter.SENSOR_EVENTS);
+    }
+
+    @Benchmark
+    public long atomicLong() {
+        return counter.incrementAndGet();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long atomicLongContended() {
+        return counter.incrementAndGet();
+    }
+
+    /**
+     * Counts two hours of sensor events and messages.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    public long account(Clock state) {
+        long now = Clock.START;
+        for (int i = 0; i < Clock.HOURS * 3600; i++) {
+            now = Clock.START + i * 1000L;
+            state.counters.add(PowerCounters.Counter.SENSOR_EVENTS, 1, now);
+            if (i % 10 == 0) {
+                state.counters.add(PowerCounters.Counter.MESSAGES_SENT, 1, now);
+                state.counters.add(PowerCounters.Counter.BYTES_SENT, 16, now);
+            }
+        }
+        state.end = now + 1;
+        return state.counters.getTotal(PowerCounters.Counter.SENSOR_EVENTS);
+    }
+}
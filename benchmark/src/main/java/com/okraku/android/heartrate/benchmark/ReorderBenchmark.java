@@ -0,0 +1,309 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.FlushPolicy;
+import com.okraku.android.heartrate.core.HeartRateBus;
+import com.okraku.android.heartrate.core.InMemoryDataLayer;
+import com.okraku.android.heartrate.core.MessagePaths;
+import com.okraku.android.heartrate.core.PhonePipeline;
+import com.okraku.android.heartrate.core.SampleBatcher;
+import com.okraku.android.heartrate.core.SendPipeline;
+import com.okraku.android.heartrate.core.SourceState;
+import com.okraku.android.heartrate.core.Transport;
+import com.okraku.android.heartrate.core.alert.AlertEngine;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+import com.okraku.android.heartrate.core.history.SampleHistory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Restoring the order of heart rate messages on the smartphone.
+ * <p>
+ * {@link #receive(Receive)} passes numbered single-sample messages to the {@link PhonePipeline}
+ * in the order of a fake transport that swaps a share of them with one of the next three messages
+ * and delivers another share twice, which is the cost per delivered message including the
+ * encoding (compare {@link PhoneDispatchBenchmark#onMessageReceived()}).
+ * <p>
+ * {@link #simulate(Simulation)} sends a heart rate every 10 ms over an {@link InMemoryDataLayer}
+ * with 5 ms latency that delays 10 % of the messages by up to 50 ms and delivers 5 % twice. The
+ * tear down prints how long messages have been held back and the time from receiving to
+ * displaying, and fails the trial if a heart rate has been displayed out of order or twice, or
+ * has been lost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReorderBenchmark {
+    /**
+     * Lengths of the history windows, as on the smartphone: 10 seconds, 1 minute, 5 minutes.
+     */
+    private static final long[] WINDOWS = {TimeUnit.SECONDS.toMillis(10), TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(5)};
+
+    /**
+     * Number of messages after which the delivery order of {@link Receive} repeats.
+     */
+    private static final int BLOCK = 1024;
+
+    /**
+     * Maximum number of positions a message of {@link Receive} arrives late.
+     */
+    private static final int MAX_DISPLACEMENT = 3;
+
+    /**
+     * Time between two heart rates of {@link #simulate(Simulation)} in milliseconds.
+     */
+    private static final long SIMULATED_PERIOD_MILLIS = 10;
+
+    /**
+     * Number of heart rates sent by {@link #simulate(Simulation)}.
+     */
+    private static final int SIMULATED_SAMPLES = 1000;
+
+    /**
+     * Creates a smartphone pipeline whose warnings are discarded.
+     */
+    private static PhonePipeline createPipeline(Transport transport) {
+        return new PhonePipeline(transport, 16, SendPipeline.OverflowPolicy.DROP_OLDEST,
+                SampleHistory.capacityForBudget(256 * 1024, WINDOWS.length), WINDOWS, new PhonePipeline.AlertEngineFactory() {
+                    @Override
+                    public AlertEngine createAlertEngine(String nodeId) {
+                        return new AlertEngine();
+                    }
+                });
+    }
+
+    /**
+     * Checks that the displayed heart rates are in order and counts them.
+     */
+    private static class DisplayChecker implements HeartRateBus.Subscriber {
+        private final PhonePipeline pipeline;
+
+        private final AtomicLong displayed = new AtomicLong();
+
+        private final AtomicLong violations = new AtomicLong();
+
+        private long lastTimestamp = -1;
+
+        DisplayChecker(PhonePipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        @Override
+        public void onHeartRate(String nodeId, long timestamp, int heartRate, long receivedNanos) {
+            if (timestamp <= lastTimestamp) {
+                violations.incrementAndGet();
+            }
+            lastTimestamp = timestamp;
+            displayed.incrementAndGet();
+            pipeline.onDisplayed(receivedNanos);
+        }
+    }
+
+    /**
+     * Messages delivered by a fake transport that reorders and duplicates them.
+     */
+    @State(Scope.Thread)
+    public static class Receive {
+        /**
+         * Share of the messages that arrive late.
+         */
+        @Param({"0", "0.1", "0.3"})
+        public double reorderRate;
+
+        /**
+         * Share of the messages that arrive twice.
+         */
+        @Param({"0", "0.05"})
+        public double duplicateRate;
+
+        private int[] trace;
+
+        private PhonePipeline pipeline;
+
+        private DisplayChecker checker;
+
+        private final SampleBatcher batcher = new SampleBatcher(FlushPolicy.PER_SAMPLE);
+
+        /**
+         * Sequence numbers relative to the start of a block, in the order they are delivered.
+         */
+        private int[] order;
+
+        private int position;
+
+        private long base;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            trace = Traces.generate(WaveformProfile.EXERCISE_RAMP);
+            pipeline = createPipeline(new Transport() {
+                @Override
+                public void sendMessage(String nodeId, String path, byte[] data) {
+                }
+
+                @Override
+                public Set<String> loadNodes() {
+                    return Collections.singleton("watch");
+                }
+            });
+            checker = new DisplayChecker(pipeline);
+            pipeline.getHeartRateBus().subscribe(checker, HeartRateBus.Delivery.LATEST_ONLY, HeartRateBus.DIRECT);
+
+            // Late messages swap places with one of the next messages, duplicates follow shortly after
+            Random random = new Random(42);
+            int[] sent = new int[BLOCK];
+            for (int i = 0; i < BLOCK; i++) {
+                sent[i] = i;
+            }
+            for (int i = 0; i < BLOCK - MAX_DISPLACEMENT; i++) {
+                if (random.nextDouble() < reorderRate) {
+                    int j = i + 1 + random.nextInt(MAX_DISPLACEMENT);
+                    int late = sent[i];
+                    sent[i] = sent[j];
+                    sent[j] = late;
+                }
+            }
+            order = new int[2 * BLOCK];
+            int length = 0;
+            for (int i = 0; i < BLOCK; i++) {
+                order[length++] = sent[i];
+                if (i > 0 && random.nextDouble() < duplicateRate) {
+                    order[length++] = sent[i - 1];
+                }
+            }
+            order = Arrays.copyOf(order, length);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pipeline.shutdown();
+            System.out.println();
+            for (SourceState source : pipeline.getSources()) {
+                System.out.println(source.getReorderWindow());
+            }
+            System.out.println(pipeline.getReorderDelay());
+            if (checker.violations.get() > 0) {
+                throw new IllegalStateException(checker.violations.get() + " heart rates displayed out of order");
+            }
+        }
+    }
+
+    /**
+     * A smartwatch and a smartphone connected by a data layer that reorders and duplicates
+     * messages.
+     */
+    @State(Scope.Thread)
+    public static class Simulation {
+        private int[] trace;
+
+        private InMemoryDataLayer dataLayer;
+
+        private Transport watch;
+
+        private PhonePipeline phone;
+
+        private DisplayChecker checker;
+
+        private final SampleBatcher batcher = new SampleBatcher(FlushPolicy.PER_SAMPLE);
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            trace = Traces.generate(WaveformProfile.EXERCISE_RAMP);
+            dataLayer = new InMemoryDataLayer(5, 0, 42);
+            dataLayer.setReordering(0.1, 50);
+            dataLayer.setDuplication(0.05);
+            phone = createPipeline(dataLayer.connect("phone", new InMemoryDataLayer.MessageListener() {
+                @Override
+                public void onMessageReceived(String sourceNodeId, String path, byte[] data) {
+                    phone.onMessageReceived(sourceNodeId, path, data);
+                }
+            }));
+            checker = new DisplayChecker(phone);
+            phone.getHeartRateBus().subscribe(checker, HeartRateBus.Delivery.EVERY_SAMPLE, HeartRateBus.DIRECT);
+            watch = dataLayer.connect("watch", new InMemoryDataLayer.MessageListener() {
+                @Override
+                public void onMessageReceived(String sourceNodeId, String path, byte[] data) {
+                }
+            });
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            phone.shutdown();
+            dataLayer.shutdown();
+            System.out.println();
+            System.out.println(dataLayer);
+            for (SourceState source : phone.getSources()) {
+                System.out.println(source.getReorderWindow());
+            }
+            System.out.println(phone.getReorderDelay());
+            System.out.println(phone.getReceiveToDisplayLatency());
+            if (checker.violations.get() > 0) {
+                throw new IllegalStateException(checker.violations.get() + " heart rates displayed out of order");
+            }
+            if (checker.displayed.get() + phone.getBackfilledSamples() != SIMULATED_SAMPLES) {
+                throw new IllegalStateException(String.format("%d heart rates sent, but %d displayed and %d stored late",
+                        SIMULATED_SAMPLES, checker.displayed.get(), phone.getBackfilledSamples()));
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean receive(Receive state) {
+        long sequence = state.base + state.order[state.position];
+        if (++state.position == state.order.length) {
+            state.position = 0;
+            state.base += BLOCK;
+        }
+
+        long timestamp = (sequence + 1) * Traces.PERIOD_MILLIS;
+        state.batcher.add(timestamp, state.trace[(int) sequence & Traces.MASK]);
+        return state.pipeline.onMessageReceived("watch", MessagePaths.HEART_RATE, state.batcher.flush(timestamp, sequence));
+    }
+
+    /**
+     * Sends all heart rates in real time and waits until the last one could have arrived.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    public long simulate(Simulation state) throws Exception {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < SIMULATED_SAMPLES; i++) {
+            long timestamp = start + i * SIMULATED_PERIOD_MILLIS;
+            long delay = timestamp - System.currentTimeMillis();
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            state.batcher.add(timestamp, state.trace[i & Traces.MASK]);
+            state.watch.sendMessage("phone", MessagePaths.HEART_RATE, state.batcher.flush(timestamp, i));
+        }
+
+        // The latest messages are delayed by up to 55 ms and held back by up to 200 ms
+        Thread.sleep(500);
+        return state.checker.displayed.get();
+    }
+}
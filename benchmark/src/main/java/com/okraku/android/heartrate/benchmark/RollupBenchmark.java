@@ -0,0 +1,191 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.SampleBuffer;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+import com.okraku.android.heartrate.core.rollup.RollupBuffer;
+import com.okraku.android.heartrate.core.rollup.RollupStore;
+import com.okraku.android.heartrate.core.store.SessionStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Range queries over several days of heart rates at one per second: aggregated by a
+ * {@link RollupStore}, against scanning the raw heart rates of a {@link SessionStore} and
+ * aggregating them into the same buckets. Also measures the cost of adding a heart rate to the
+ * rollup tiers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RollupBenchmark {
+    /**
+     * Length of the dataset in days.
+     */
+    @Param({"7"})
+    public int days;
+
+    /**
+     * The query: range and resolution. "HOUR_BY_SECOND", "DAY_BY_MINUTE" or "WEEK_BY_HOUR".
+     */
+    @Param({"HOUR_BY_SECOND", "DAY_BY_MINUTE", "WEEK_BY_HOUR"})
+    public String query;
+
+    private int[] trace;
+
+    private File directory;
+
+    private SessionStore sessionStore;
+
+    private RollupStore rollupStore;
+
+    /**
+     * Store that {@link #ingest()} adds to.
+     */
+    private RollupStore ingestStore;
+
+    private int index;
+
+    private long timestamp;
+
+    private long from;
+
+    private long to;
+
+    private long resolution;
+
+    private final RollupBuffer buckets = new RollupBuffer();
+
+    private final SampleBuffer samples = new SampleBuffer(4096);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        trace = Traces.generate(WaveformProfile.EXERCISE_RAMP);
+        directory = Files.createTempDirectory("rollup").toFile();
+        sessionStore = new SessionStore(new File(directory, "sessions"), 65536, 1, 65536);
+        rollupStore = new RollupStore(null);
+        ingestStore = new RollupStore(null);
+
+        // The session store needs timestamps other than 0
+        int count = (int) TimeUnit.DAYS.toSeconds(days);
+        for (int i = 1; i <= count; i++) {
+            long timestamp = i * Traces.PERIOD_MILLIS;
+            int heartRate = trace[i & Traces.MASK];
+            while (!sessionStore.append(timestamp, heartRate, 0)) {
+                Thread.sleep(1);
+            }
+            rollupStore.add(timestamp, heartRate);
+        }
+        while (sessionStore.getQueueDepth() > 0) {
+            Thread.sleep(1);
+        }
+
+        // The most recent range of the query
+        long end = (count + 1) * Traces.PERIOD_MILLIS;
+        switch (query) {
+            case "HOUR_BY_SECOND":
+                from = end - TimeUnit.HOURS.toMillis(1);
+                resolution = TimeUnit.SECONDS.toMillis(1);
+                break;
+            case "DAY_BY_MINUTE":
+                from = end - TimeUnit.DAYS.toMillis(1);
+                resolution = TimeUnit.MINUTES.toMillis(1);
+                break;
+            case "WEEK_BY_HOUR":
+                from = end - TimeUnit.DAYS.toMillis(7);
+                resolution = TimeUnit.HOURS.toMillis(1);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown query " + query);
+        }
+        to = end;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sessionStore.close();
+        rollupStore.close();
+        ingestStore.close();
+
+        File[] files = new File(directory, "sessions").listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        new File(directory, "sessions").delete();
+        directory.delete();
+    }
+
+    /**
+     * Query of the rollup store, which reads the coarsest sufficient tier.
+     */
+    @Benchmark
+    public int rollup() {
+        return rollupStore.query(from, to, resolution, buckets);
+    }
+
+    /**
+     * Query of the session store and aggregation of the raw heart rates into the same buckets.
+     */
+    @Benchmark
+    public long raw() {
+        samples.clear();
+        sessionStore.query(from, to, samples);
+
+        long start = Math.floorDiv(from, resolution) * resolution;
+        long bucket = Long.MIN_VALUE;
+        long checksum = 0;
+        int min = 0;
+        int max = 0;
+        long sum = 0;
+        int count = 0;
+        for (int i = 0; i < samples.size(); i++) {
+            long current = (samples.getTimestamp(i) - start) / resolution;
+            int heartRate = samples.getValue(i);
+            if (current != bucket) {
+                checksum += min + max + sum + count;
+                bucket = current;
+                min = heartRate;
+                max = heartRate;
+                sum = 0;
+                count = 0;
+            }
+            min = Math.min(min, heartRate);
+            max = Math.max(max, heartRate);
+            sum += heartRate;
+            count++;
+        }
+        return checksum + min + max + sum + count;
+    }
+
+    /**
+     * Adding a heart rate, including closing and compressing buckets.
+     */
+    @Benchmark
+    public long ingest() {
+        index = (index + 1) & Traces.MASK;
+        timestamp += Traces.PERIOD_MILLIS;
+        ingestStore.add(timestamp, trace[index]);
+        return timestamp;
+    }
+}
@@ -0,0 +1,103 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.SampleBuffer;
+import com.okraku.android.heartrate.core.SendFilter;
+import com.okraku.android.heartrate.core.SendPolicy;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a trace through a {@link SendFilter}. Besides the time per trace, the share of sent
+ * heart rates and the error added by not sending the others are reported as auxiliary counters,
+ * so that policies can be compared on the same trace.
+ * <p>
+ * Recordings can be replayed instead of the synthetic traces, e.g. with
+ * {@code -p trace=/path/to/recording.csv}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class SendPolicyBenchmark {
+    /**
+     * Name of a waveform profile, or path of a recording.
+     */
+    @Param({"REST", "EXERCISE_RAMP", "SPIKES", "UNIFORM"})
+    public String trace;
+
+    /**
+     * The send policy.
+     */
+    @Param({"EVERY_CHANGE", "DEFAULT"})
+    public String policy;
+
+    private SampleBuffer samples;
+
+    private SendPolicy sendPolicy;
+
+    /**
+     * Result of the last replay. The values are the same for every replay of a trace.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Result {
+        /**
+         * Share of the heart rates that have been sent, in percent.
+         */
+        public double sentPercent;
+
+        /**
+         * Average difference between every heart rate and the last sent one.
+         */
+        public double meanError;
+
+        /**
+         * Largest difference between a heart rate and the last sent one.
+         */
+        public double maxError;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        samples = Traces.load(trace);
+        sendPolicy = "DEFAULT".equals(policy) ? SendPolicy.DEFAULT : SendPolicy.EVERY_CHANGE;
+    }
+
+    /**
+     * Replays the whole trace. Held heart rates are sent at their deadline, like the timer of
+     * the watch pipeline does.
+     */
+    @Benchmark
+    public SendFilter replay(Result result) {
+        SendFilter filter = new SendFilter(sendPolicy);
+        for (int i = 0; i < samples.size(); i++) {
+            long timestamp = samples.getTimestamp(i);
+            long deadline = filter.getHeldDeadline();
+            if (deadline <= timestamp) {
+                filter.pollHeld(deadline);
+            }
+            filter.offer(timestamp, samples.getValue(i));
+        }
+
+        result.sentPercent = filter.getSent() * 100.0 / filter.getOffered();
+        result.meanError = filter.getMeanError();
+        result.maxError = filter.getMaxError();
+        return filter;
+    }
+}
@@ -0,0 +1,151 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.SampleBuffer;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+import com.okraku.android.heartrate.core.store.SessionStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and recovering a {@link SessionStore} with millions of heart rates. Every invocation
+ * is measured once, since a store can only be filled once.
+ * <p>
+ * {@link #write(Writer)} appends all heart rates to an empty store and closes it, so that the
+ * result includes the group commits; a producer that finds the queue full waits for the writer
+ * instead of dropping heart rates. The commit interval is shorter and the queue larger than on the
+ * smartphone, so that the writer limits the throughput, not the interval.
+ * <p>
+ * {@link #recover(Recovery)} opens a full store and queries the last minute, which is what the
+ * smartphone does after its process has been killed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SessionStoreBenchmark {
+    /**
+     * Records per segment, as on the smartphone.
+     */
+    private static final int SEGMENT_RECORDS = 65536;
+
+    /**
+     * Time between two commits in milliseconds.
+     */
+    private static final long COMMIT_INTERVAL_MILLIS = 10;
+
+    /**
+     * Maximum number of queued heart rates.
+     */
+    private static final int QUEUE_CAPACITY = 65536;
+
+    /**
+     * Number of heart rates in the store.
+     */
+    @Param({"1000000", "4000000"})
+    public int samples;
+
+    private final int[] trace = Traces.generate(WaveformProfile.EXERCISE_RAMP);
+
+    /**
+     * An empty store directory.
+     */
+    @State(Scope.Thread)
+    public static class Writer {
+        private File directory;
+
+        @Setup(Level.Invocation)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("session-write").toFile();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            delete(directory);
+        }
+    }
+
+    /**
+     * A store directory filled once per trial.
+     */
+    @State(Scope.Thread)
+    public static class Recovery {
+        private File directory;
+
+        private final SampleBuffer lastMinute = new SampleBuffer(1024);
+
+        @Setup(Level.Trial)
+        public void setUp(SessionStoreBenchmark benchmark) throws IOException {
+            directory = Files.createTempDirectory("session-recover").toFile();
+            benchmark.fill(directory);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            delete(directory);
+        }
+    }
+
+    @Benchmark
+    public long write(Writer writer) throws IOException {
+        return fill(writer.directory);
+    }
+
+    @Benchmark
+    public int recover(Recovery recovery) throws IOException {
+        SessionStore store = new SessionStore(recovery.directory, SEGMENT_RECORDS, COMMIT_INTERVAL_MILLIS, QUEUE_CAPACITY);
+        try {
+            long end = samples * Traces.PERIOD_MILLIS;
+            recovery.lastMinute.clear();
+            return store.query(end - TimeUnit.MINUTES.toMillis(1), end + 1, recovery.lastMinute);
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Appends all heart rates to a store in the directory and closes it.
+     *
+     * @return Number of stored records
+     */
+    private long fill(File directory) throws IOException {
+        SessionStore store = new SessionStore(directory, SEGMENT_RECORDS, COMMIT_INTERVAL_MILLIS, QUEUE_CAPACITY);
+        for (int i = 1; i <= samples; i++) {
+            // The store needs timestamps other than 0
+            while (!store.append(i * Traces.PERIOD_MILLIS, trace[i & Traces.MASK], 1)) {
+                Thread.yield();
+            }
+        }
+        store.close();
+        return store.getRecordCount();
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
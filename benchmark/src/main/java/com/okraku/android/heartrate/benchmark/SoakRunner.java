@@ -0,0 +1,200 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.FlushPolicy;
+import com.okraku.android.heartrate.core.HeartRateBus;
+import com.okraku.android.heartrate.core.InMemoryDataLayer;
+import com.okraku.android.heartrate.core.PhonePipeline;
+import com.okraku.android.heartrate.core.ReorderWindow;
+import com.okraku.android.heartrate.core.SendPipeline;
+import com.okraku.android.heartrate.core.SendPolicy;
+import com.okraku.android.heartrate.core.Transport;
+import com.okraku.android.heartrate.core.WatchPipeline;
+import com.okraku.android.heartrate.core.alert.AlertEngine;
+import com.okraku.android.heartrate.core.alert.RateOfChangeRule;
+import com.okraku.android.heartrate.core.alert.SustainedAboveRule;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+import com.okraku.android.heartrate.core.history.SampleHistory;
+import com.okraku.android.heartrate.core.metrics.LatencyHistogram;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Soak test: many smartwatches send to one smartphone over an {@link InMemoryDataLayer} with
+ * latency and loss for a long time, as the apps do, instead of the short iterations of the
+ * benchmarks. Every {@link #REPORT_INTERVAL_SECONDS} it prints the heart rates generated and
+ * received, the loss so far, the latencies of the interval and the used heap, so that growing
+ * latency, loss or memory over time can be seen.
+ * <p>
+ * Run with {@code ./gradlew :benchmark:soak}, optionally with
+ * {@code -Psoak.args="watches minutes rateHz lossRate"}, e.g. {@code "32 60 10 0.01"}.
+ */
+public class SoakRunner {
+    /**
+     * Time between two reports in seconds.
+     */
+    private static final int REPORT_INTERVAL_SECONDS = 10;
+
+    /**
+     * Time from sending until delivery of the data layer in milliseconds.
+     */
+    private static final long LATENCY_MILLIS = 5;
+
+    /**
+     * Lengths of the history windows, as on the smartphone: 10 seconds, 1 minute, 5 minutes.
+     */
+    private static final long[] WINDOWS = {TimeUnit.SECONDS.toMillis(10), TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(5)};
+
+    public static void main(String[] args) throws InterruptedException {
+        int watches = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int minutes = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int rateHz = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        double lossRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.01;
+
+        System.out.println(String.format("%d watches at %d Hz for %d minutes, %.1f%% messages lost", watches, rateHz, minutes, lossRate * 100));
+        new SoakRunner(watches, rateHz, lossRate).run(TimeUnit.MINUTES.toSeconds(minutes));
+    }
+
+    private final int[] trace = Traces.generate(WaveformProfile.EXERCISE_RAMP);
+
+    private final int rateHz;
+
+    private final InMemoryDataLayer dataLayer;
+
+    private final PhonePipeline phone;
+
+    private final WatchPipeline[] watches;
+
+    /**
+     * Calls the display subscriber of the smartphone.
+     */
+    private final ExecutorService displayExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Generates the heart rates of all smartwatches.
+     */
+    private final ScheduledExecutorService sensors;
+
+    private final AtomicLong generated = new AtomicLong();
+
+    private SoakRunner(int watchCount, int rateHz, double lossRate) {
+        this.rateHz = rateHz;
+        dataLayer = new InMemoryDataLayer(LATENCY_MILLIS, lossRate, 42);
+
+        phone = new PhonePipeline(dataLayer.connect("phone", new InMemoryDataLayer.MessageListener() {
+            @Override
+            public void onMessageReceived(String sourceNodeId, String path, byte[] data) {
+                phone.onMessageReceived(sourceNodeId, path, data);
+            }
+        }), 16, SendPipeline.OverflowPolicy.DROP_OLDEST, SampleHistory.capacityForBudget(256 * 1024, WINDOWS.length), WINDOWS,
+                new PhonePipeline.AlertEngineFactory() {
+                    @Override
+                    public AlertEngine createAlertEngine(String nodeId) {
+                        // The rules of the smartphone app
+                        long cooldown = TimeUnit.MINUTES.toMillis(1);
+                        return new AlertEngine(
+                                new SustainedAboveRule("high heart rate", 100, TimeUnit.SECONDS.toMillis(5), 90, cooldown),
+                                new RateOfChangeRule("fast rise", 3, TimeUnit.SECONDS.toMillis(5), cooldown));
+                    }
+                });
+        phone.getHeartRateBus().subscribe(new HeartRateBus.Subscriber() {
+            @Override
+            public void onHeartRate(String nodeId, long timestamp, int heartRate, long receivedNanos) {
+                phone.onDisplayed(receivedNanos);
+            }
+        }, HeartRateBus.Delivery.LATEST_ONLY, displayExecutor);
+
+        watches = new WatchPipeline[watchCount];
+        for (int i = 0; i < watchCount; i++) {
+            // Warnings received by the smartwatches are ignored
+            final Transport transport = dataLayer.connect("watch-" + i, new InMemoryDataLayer.MessageListener() {
+                @Override
+                public void onMessageReceived(String sourceNodeId, String path, byte[] data) {
+                }
+            });
+            // Only the smartphone is a peer, the other smartwatches are not
+            watches[i] = new WatchPipeline(new Transport() {
+                @Override
+                public void sendMessage(String nodeId, String path, byte[] data) throws Exception {
+                    transport.sendMessage(nodeId, path, data);
+                }
+
+                @Override
+                public Set<String> loadNodes() {
+                    return Collections.singleton("phone");
+                }
+            }, 64, SendPipeline.OverflowPolicy.DROP_OLDEST);
+            watches[i].setFlushPolicy(FlushPolicy.PER_SAMPLE);
+            // Every heart rate is sent, so that every lost one is counted
+            watches[i].setSendPolicy(new SendPolicy(0, 0, 0, 0, 0, 0));
+        }
+        sensors = Executors.newScheduledThreadPool(Math.min(watchCount, 4));
+    }
+
+    private void run(long seconds) throws InterruptedException {
+        long periodMicros = TimeUnit.SECONDS.toMicros(1) / rateHz;
+        for (int i = 0; i < watches.length; i++) {
+            final WatchPipeline watch = watches[i];
+            final int offset = i * 97;
+            sensors.scheduleAtFixedRate(new Runnable() {
+                private int index = offset;
+
+                @Override
+                public void run() {
+                    index = (index + 1) & Traces.MASK;
+                    watch.onHeartRate(System.currentTimeMillis(), trace[index]);
+                    generated.incrementAndGet();
+                }
+            }, periodMicros * i / watches.length, periodMicros, TimeUnit.MICROSECONDS);
+        }
+
+        System.out.println("seconds  generated   received    lost%  receive p50/p99/max ms  display p50/p99/max ms  heap MB");
+        long start = System.nanoTime();
+        for (long elapsed = REPORT_INTERVAL_SECONDS; elapsed <= seconds; elapsed += REPORT_INTERVAL_SECONDS) {
+            long next = start + TimeUnit.SECONDS.toNanos(elapsed);
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+            report(elapsed);
+        }
+
+        // Let the last messages arrive before counting what has been lost
+        sensors.shutdownNow();
+        sensors.awaitTermination(1, TimeUnit.SECONDS);
+        Thread.sleep(LATENCY_MILLIS + ReorderWindow.DEFAULT_MAX_WAIT_MILLIS + 100);
+        report(seconds);
+
+        System.out.println();
+        System.out.println(dataLayer);
+        System.out.println(phone);
+
+        for (WatchPipeline watch : watches) {
+            watch.shutdown();
+        }
+        phone.shutdown();
+        dataLayer.shutdown();
+        displayExecutor.shutdownNow();
+    }
+
+    /**
+     * Prints a line with the counters so far and the latencies since the last line.
+     */
+    private void report(long elapsedSeconds) {
+        long generated = this.generated.get();
+        long received = phone.getReceivedSamples();
+        LatencyHistogram receive = phone.getSensorToReceiveLatency();
+        LatencyHistogram display = phone.getReceiveToDisplayLatency();
+        Runtime runtime = Runtime.getRuntime();
+
+        System.out.println(String.format("%7d %10d %10d %7.3f%%  %6.1f /%6.1f /%6.1f     %6.1f /%6.1f /%6.1f    %6d",
+                elapsedSeconds, generated, received, generated == 0 ? 0 : 100.0 * (generated - received) / generated,
+                receive.getPercentile(50) / 1000.0, receive.getPercentile(99) / 1000.0, receive.getMax() / 1000.0,
+                display.getPercentile(50) / 1000.0, display.getPercentile(99) / 1000.0, display.getMax() / 1000.0,
+                (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024)));
+        receive.reset();
+        display.reset();
+    }
+}
@@ -0,0 +1,140 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.MessagePaths;
+import com.okraku.android.heartrate.core.metrics.TraceBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of tracing a message on the hot paths: the former log lines, of which only the
+ * formatting is measured (run with {@code -prof gc} for the allocations), against a record in
+ * a {@link TraceBuffer}, enabled and switched off, from one thread and from four at once.
+ * <p>
+ * {@link #dump(Dump)} records more events than the buffer holds and decodes them; the tear down
+ * fails the trial unless exactly the newest records are decoded, in order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceBenchmark {
+    private static final String NODE_ID = "a1b2c3d4";
+
+    private final TraceBuffer trace = new TraceBuffer(TraceBuffer.DEFAULT_CAPACITY);
+
+    private final TraceBuffer disabledTrace = new TraceBuffer(TraceBuffer.DEFAULT_CAPACITY);
+
+    /**
+     * A single heart rate, as sent by the smartwatch.
+     */
+    private final byte[] data = new byte[16];
+
+    @Setup
+    public void setUp() {
+        disabledTrace.setLevel(TraceBuffer.Level.OFF);
+    }
+
+    /**
+     * Records and decodes a full buffer.
+     */
+    @State(Scope.Thread)
+    public static class Dump {
+        private static final int CAPACITY = 1024;
+
+        private static final int EVENTS = 3000;
+
+        private TraceBuffer trace;
+
+        private String output;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            trace = new TraceBuffer(CAPACITY);
+            trace.registerNode(NODE_ID);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            String[] lines = output.split("\n");
+            System.out.println();
+            System.out.println(lines[0]);
+            System.out.println(lines[lines.length - 1]);
+
+            if (lines.length != CAPACITY + 1) {
+                throw new IllegalStateException(lines.length - 1 + " records decoded instead of " + CAPACITY);
+            }
+            for (int i = 0; i < CAPACITY; i++) {
+                long bytes = EVENTS - CAPACITY + i;
+                if (!lines[i].endsWith(" DEBUG sent node=" + NODE_ID + " path=" + MessagePaths.HEART_RATE + " bytes=" + bytes)) {
+                    throw new IllegalStateException("Record " + i + " decoded as " + lines[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * The former log line of a sent message.
+     */
+    @Benchmark
+    public String formatSent() {
+        return String.format("Successfully sent message: target=%s, path=%s, bytes=%d", NODE_ID, MessagePaths.HEART_RATE, data.length);
+    }
+
+    /**
+     * The former log line of a message received by the smartwatch, which copied the message
+     * into a string as well.
+     */
+    @Benchmark
+    public String formatReceived() {
+        return String.format("Received message: path=%s, data=%s", MessagePaths.HEART_RATE, new String(data));
+    }
+
+    @Benchmark
+    public void record() {
+        trace.record(TraceBuffer.Event.MESSAGE_SENT, NODE_ID, MessagePaths.HEART_RATE, data.length);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        trace.record(TraceBuffer.Event.MESSAGE_SENT, NODE_ID, MessagePaths.HEART_RATE, data.length);
+    }
+
+    @Benchmark
+    public void recordDisabled() {
+        disabledTrace.record(TraceBuffer.Event.MESSAGE_SENT, NODE_ID, MessagePaths.HEART_RATE, data.length);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    public String dump(Dump state) {
+        for (int i = 0; i < Dump.EVENTS; i++) {
+            state.trace.record(TraceBuffer.Event.MESSAGE_SENT, NODE_ID, MessagePaths.HEART_RATE, i);
+        }
+        StringWriter writer = new StringWriter();
+        state.trace.dump(new PrintWriter(writer));
+        state.output = writer.toString();
+        return state.output;
+    }
+}
@@ -0,0 +1,79 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.SampleBuffer;
+import com.okraku.android.heartrate.core.generator.ReplayHeartRateSource;
+import com.okraku.android.heartrate.core.generator.SyntheticHeartRateSource;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Heart rate traces shared by the benchmarks. Benchmarks loop over a precomputed trace, so that
+ * generating the values is not part of the measurement.
+ */
+final class Traces {
+    /**
+     * Number of samples of a trace. A power of two, so that the index can be masked.
+     */
+    static final int LENGTH = 4096;
+
+    /**
+     * Mask to wrap an index into a trace.
+     */
+    static final int MASK = LENGTH - 1;
+
+    /**
+     * Time between two samples in milliseconds, like the sensor of the smartwatch.
+     */
+    static final long PERIOD_MILLIS = 1000;
+
+    /**
+     * Seed of all traces, so that every run measures the same values.
+     */
+    private static final long SEED = 42;
+
+    private Traces() {
+    }
+
+    /**
+     * Generates a trace.
+     *
+     * @param profile Shape of the trace
+     * @return {@link #LENGTH} heart rates, one per {@link #PERIOD_MILLIS}
+     */
+    static int[] generate(WaveformProfile profile) {
+        SyntheticHeartRateSource source = new SyntheticHeartRateSource(profile, SEED);
+        int[] values = new int[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            values[i] = source.next(i * PERIOD_MILLIS);
+        }
+        return values;
+    }
+
+    /**
+     * Loads a trace with timestamps: either a synthetic one, or a recording as read by
+     * {@link ReplayHeartRateSource#read(Reader)}.
+     *
+     * @param trace Name of a {@link WaveformProfile}, or path of a recording
+     * @return The samples of the trace
+     * @throws IOException If the recording could not be read
+     */
+    static SampleBuffer load(String trace) throws IOException {
+        for (WaveformProfile profile : WaveformProfile.values()) {
+            if (profile.name().equals(trace)) {
+                int[] values = generate(profile);
+                SampleBuffer samples = new SampleBuffer(values.length);
+                for (int i = 0; i < values.length; i++) {
+                    samples.add(i * PERIOD_MILLIS, values[i]);
+                }
+                return samples;
+            }
+        }
+
+        try (Reader reader = new FileReader(trace)) {
+            return ReplayHeartRateSource.read(reader);
+        }
+    }
+}
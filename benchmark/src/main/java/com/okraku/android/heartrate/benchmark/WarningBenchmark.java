@@ -0,0 +1,273 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.InMemoryDataLayer;
+import com.okraku.android.heartrate.core.MessagePaths;
+import com.okraku.android.heartrate.core.NodeRegistry;
+import com.okraku.android.heartrate.core.PhonePipeline;
+import com.okraku.android.heartrate.core.SendPipeline;
+import com.okraku.android.heartrate.core.Transport;
+import com.okraku.android.heartrate.core.Warning;
+import com.okraku.android.heartrate.core.WarningCodec;
+import com.okraku.android.heartrate.core.WarningReceiver;
+import com.okraku.android.heartrate.core.WarningSender;
+import com.okraku.android.heartrate.core.alert.AlertEngine;
+import com.okraku.android.heartrate.core.history.SampleHistory;
+import com.okraku.android.heartrate.core.metrics.LatencyHistogram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivery of warnings from the smartphone to the smartwatch while the smartphone saturates the
+ * link with bulk messages: the data layer accepts a message every 5 ms and delivers it 5 ms
+ * later, losing a share of them, while bulk messages are queued every 4 ms, so that the send
+ * queue of the smartphone app (16 messages, dropping the oldest) is always full.
+ * <p>
+ * With {@code lane=URGENT}, warnings are sent by the {@link WarningSender} of the
+ * {@link PhonePipeline} and acknowledged by the smartwatch, as by the apps. With
+ * {@code lane=BULK}, they are queued behind the bulk messages and never sent again, as before.
+ * The tear down prints the time from sending a warning until the smartwatch has received it and
+ * until the acknowledgement has arrived, and fails the trial if a warning of the urgent lane has
+ * not been shown exactly once or has not been acknowledged.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 3)
+@Fork(1)
+public class WarningBenchmark {
+    /**
+     * Lengths of the history windows, which are unused.
+     */
+    private static final long[] WINDOWS = {TimeUnit.SECONDS.toMillis(10)};
+
+    /**
+     * Path of the bulk messages, which the smartwatch ignores.
+     */
+    private static final String BULK_PATH = "/benchmark_bulk";
+
+    /**
+     * Capacity of the send queue, as in the smartphone app.
+     */
+    private static final int SEND_QUEUE_CAPACITY = 16;
+
+    /**
+     * Time the data layer needs to accept a message in milliseconds.
+     */
+    private static final long SEND_MILLIS = 5;
+
+    /**
+     * Time between two bulk messages in milliseconds.
+     */
+    private static final long BULK_PERIOD_MILLIS = 4;
+
+    /**
+     * Time between two warnings in milliseconds.
+     */
+    private static final long WARNING_PERIOD_MILLIS = 50;
+
+    /**
+     * Number of warnings sent per iteration.
+     */
+    private static final int WARNINGS = 60;
+
+    /**
+     * Longest time to wait for the outstanding acknowledgements in milliseconds.
+     */
+    private static final long MAX_SETTLE_MILLIS = 10000;
+
+    /**
+     * How warnings are sent.
+     */
+    public enum Lane {
+        URGENT,
+        BULK
+    }
+
+    @Param({"URGENT", "BULK"})
+    public Lane lane;
+
+    /**
+     * Share of the messages that the data layer loses.
+     */
+    @Param({"0", "0.05"})
+    public double lossRate;
+
+    private InMemoryDataLayer dataLayer;
+
+    private PhonePipeline phone;
+
+    private SendPipeline watchSender;
+
+    private WarningReceiver receiver;
+
+    private Thread flooder;
+
+    private volatile boolean flooding;
+
+    /**
+     * {@link System#nanoTime()} when the warnings have been sent, by ID.
+     */
+    private final ConcurrentHashMap<Long, Long> sentNanos = new ConcurrentHashMap<>();
+
+    private LatencyHistogram receiptLatency;
+
+    private final AtomicLong shown = new AtomicLong();
+
+    private long nextBulkId;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        dataLayer = new InMemoryDataLayer(5, lossRate, 42);
+        final Transport phoneTransport = dataLayer.connect("phone", new InMemoryDataLayer.MessageListener() {
+            @Override
+            public void onMessageReceived(String sourceNodeId, String path, byte[] data) {
+                phone.onMessageReceived(sourceNodeId, path, data);
+            }
+        });
+        phone = new PhonePipeline(new Transport() {
+            @Override
+            public void sendMessage(String nodeId, String path, byte[] data) throws Exception {
+                Thread.sleep(SEND_MILLIS);
+                phoneTransport.sendMessage(nodeId, path, data);
+            }
+
+            @Override
+            public Set<String> loadNodes() throws Exception {
+                return phoneTransport.loadNodes();
+            }
+        }, SEND_QUEUE_CAPACITY, SendPipeline.OverflowPolicy.DROP_OLDEST, SampleHistory.capacityForBudget(64 * 1024, WINDOWS.length), WINDOWS, new PhonePipeline.AlertEngineFactory() {
+            @Override
+            public AlertEngine createAlertEngine(String nodeId) {
+                return new AlertEngine();
+            }
+        });
+
+        // The smartwatch acknowledges and shows warnings like its data layer service
+        receiver = new WarningReceiver(WarningReceiver.DEFAULT_COALESCE_MILLIS);
+        receiptLatency = new LatencyHistogram("warning receipt");
+        sentNanos.clear();
+        shown.set(0);
+        Transport watchTransport = dataLayer.connect("watch", new InMemoryDataLayer.MessageListener() {
+            @Override
+            public void onMessageReceived(String sourceNodeId, String path, byte[] data) {
+                if (!MessagePaths.WARNING.equals(path)) {
+                    return;
+                }
+                Warning warning = WarningCodec.decode(data);
+                if (lane == Lane.URGENT) {
+                    watchSender.sendUrgent(sourceNodeId, MessagePaths.WARNING_ACK, WarningCodec.encodeAck(warning.getId()));
+                }
+                if (receiver.onWarning(sourceNodeId, warning, System.currentTimeMillis()) != WarningReceiver.Result.DUPLICATE) {
+                    receiptLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentNanos.get(warning.getId())));
+                    shown.incrementAndGet();
+                }
+            }
+        });
+        watchSender = new SendPipeline("watch-sender", watchTransport, new NodeRegistry(watchTransport, NodeRegistry.DEFAULT_TTL_MILLIS),
+                64, SendPipeline.OverflowPolicy.DROP_OLDEST);
+
+        flooding = true;
+        final byte[] bulk = new byte[256];
+        flooder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (flooding) {
+                    phone.getSendPipeline().send("watch", BULK_PATH, bulk);
+                    try {
+                        Thread.sleep(BULK_PERIOD_MILLIS);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "bulk-flooder");
+        flooder.start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        flooding = false;
+        flooder.join();
+        phone.shutdown();
+        watchSender.shutdown();
+        dataLayer.shutdown();
+
+        WarningSender sender = phone.getWarningSender();
+        System.out.println();
+        System.out.println(dataLayer);
+        System.out.println(phone.getSendPipeline());
+        System.out.println(receiver);
+        System.out.println(receiptLatency);
+        System.out.println(sender);
+        System.out.printf("%d of %d warnings shown%n", shown.get(), WARNINGS);
+
+        if (lane == Lane.URGENT) {
+            if (shown.get() != WARNINGS || receiver.getReceived() - receiver.getDuplicates() != WARNINGS) {
+                throw new IllegalStateException(String.format("%d warnings sent, but %d shown", WARNINGS, shown.get()));
+            }
+            if (sender.getAcknowledged() != WARNINGS || sender.getExpired() > 0) {
+                throw new IllegalStateException(String.format("%d warnings sent, but %d acknowledged and %d given up",
+                        WARNINGS, sender.getAcknowledged(), sender.getExpired()));
+            }
+        }
+    }
+
+    /**
+     * Sends the warnings in real time and waits until all have been acknowledged or could have
+     * arrived.
+     */
+    @Benchmark
+    public long deliver() throws Exception {
+        // Let the bulk queue fill up
+        Thread.sleep(500);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < WARNINGS; i++) {
+            long delay = start + i * WARNING_PERIOD_MILLIS - System.currentTimeMillis();
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            if (lane == Lane.URGENT) {
+                // The ID is only known afterwards; the smartwatch cannot receive the warning within this time
+                long now = System.nanoTime();
+                sentNanos.put(phone.getWarningSender().send("watch", "benchmark"), now);
+            }
+            else {
+                long id = nextBulkId++;
+                sentNanos.put(id, System.nanoTime());
+                phone.getSendPipeline().send("watch", MessagePaths.WARNING, WarningCodec.encode(id, "benchmark"));
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + MAX_SETTLE_MILLIS;
+        if (lane == Lane.URGENT) {
+            while (phone.getWarningSender().getPending() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+        else {
+            // A full queue of bulk messages takes 16 * 5 ms to send
+            Thread.sleep(1000);
+        }
+        return shown.get();
+    }
+}
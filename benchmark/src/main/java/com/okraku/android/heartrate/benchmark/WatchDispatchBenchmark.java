@@ -0,0 +1,96 @@
+package com.okraku.android.heartrate.benchmark;
+
+import com.okraku.android.heartrate.core.FlushPolicy;
+import com.okraku.android.heartrate.core.SendPipeline;
+import com.okraku.android.heartrate.core.Transport;
+import com.okraku.android.heartrate.core.WatchPipeline;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything the smartwatch does for a new heart rate in {@code onNewHeartRate}, without the
+ * data layer: notify the UI listener and pass the value to the {@link WatchPipeline}, which
+ * batches, encodes and queues the message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WatchDispatchBenchmark {
+    /**
+     * Flush policy of the smartwatch: every sample is a message, or samples are batched.
+     */
+    @Param({"PER_SAMPLE", "DEFAULT"})
+    public String flushPolicy;
+
+    private int[] trace;
+
+    private int index;
+
+    private long timestamp;
+
+    /**
+     * The most recent heart rate, like {@code AbstractHeartRateEventListener.lastHeartRate}.
+     */
+    private int lastHeartRate;
+
+    private WatchPipeline pipeline;
+
+    @Setup
+    public void setUp() {
+        trace = Traces.generate(WaveformProfile.EXERCISE_RAMP);
+
+        // Messages are discarded, there is always a single peer
+        Transport transport = new Transport() {
+            @Override
+            public void sendMessage(String nodeId, String path, byte[] data) {
+            }
+
+            @Override
+            public Set<String> loadNodes() {
+                return Collections.singleton("phone");
+            }
+        };
+
+        pipeline = new WatchPipeline(transport, 64, SendPipeline.OverflowPolicy.DROP_OLDEST);
+        pipeline.setFlushPolicy("DEFAULT".equals(flushPolicy) ? FlushPolicy.DEFAULT : FlushPolicy.PER_SAMPLE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipeline.shutdown();
+    }
+
+    /**
+     * Like {@code onNewHeartRate}: remembers the value, notifies the UI listener and passes the
+     * value to the pipeline.
+     */
+    @Benchmark
+    public void onNewHeartRate(Blackhole blackhole) {
+        index = (index + 1) & Traces.MASK;
+        timestamp += Traces.PERIOD_MILLIS;
+
+        lastHeartRate = trace[index];
+        blackhole.consume(lastHeartRate);
+        pipeline.onHeartRate(timestamp, lastHeartRate);
+    }
+}
@@ -0,0 +1,105 @@
+package com.okraku.android.heartrate.core;
+
+/**
+ * Estimates the offset between the clock of a smartwatch and the local clock from the send
+ * times of its messages.
+ * <p>
+ * Every message yields {@code receiveTime - sendTime}, which is the clock offset plus the transit
+ * delay of the message. The smallest value seen is the best estimate, because it contains the
+ * least delay. To follow clock drift and adjustments, the minimum is taken over the current and
+ * the previous window only. The estimate always includes the minimum transit delay, so latencies
+ * corrected with it are relative to the fastest delivery.
+ * <p>
+ * Updates must be done by a single thread. The estimate may be read from any thread.
+ */
+public class ClockOffsetEstimator {
+    /**
+     * Default length of a window in milliseconds (5 minutes).
+     */
+    public static final long DEFAULT_WINDOW_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Length of a window in milliseconds.
+     */
+    private final long windowMillis;
+
+    /**
+     * Local time the current window has started, in milliseconds.
+     */
+    private long windowStart;
+
+    /**
+     * Smallest difference of the current window.
+     */
+    private long currentMin = Long.MAX_VALUE;
+
+    /**
+     * Smallest difference of the previous window.
+     */
+    private long previousMin = Long.MAX_VALUE;
+
+    /**
+     * The current estimate in milliseconds.
+     */
+    private volatile long offset = 0;
+
+    /**
+     * True, once the first message has been seen.
+     */
+    private volatile boolean estimated = false;
+
+    /**
+     * Creates a new estimator.
+     *
+     * @param windowMillis Length of a window in milliseconds
+     */
+    public ClockOffsetEstimator(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Updates the estimate with a received message.
+     *
+     * @param sendTime Time the message has been sent by the remote clock, in milliseconds
+     * @param receiveTime Time the message has been received by the local clock, in milliseconds
+     */
+    public void update(long sendTime, long receiveTime) {
+        if (!estimated || receiveTime - windowStart >= windowMillis) {
+            previousMin = currentMin;
+            currentMin = Long.MAX_VALUE;
+            windowStart = receiveTime;
+        }
+
+        currentMin = Math.min(currentMin, receiveTime - sendTime);
+        offset = Math.min(currentMin, previousMin);
+        estimated = true;
+    }
+
+    /**
+     * Converts a time of the remote clock to the local clock.
+     *
+     * @param remoteTime A time of the remote clock in milliseconds
+     * @return The time of the local clock in milliseconds, or the time itself if no estimate exists
+     */
+    public long toLocalTime(long remoteTime) {
+        return remoteTime + offset;
+    }
+
+    /**
+     * Returns the estimated offset: local clock minus remote clock, plus the minimum transit delay.
+     *
+     * @return The offset in milliseconds, 0 if no message has been seen
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public boolean isEstimated() {
+        return estimated;
+    }
+
+    @Override
+    public String toString() {
+        return estimated ? String.format("clock offset=%dms", offset) : "clock offset unknown";
+    }
+}
@@ -0,0 +1,105 @@
+package com.okraku.android.heartrate.core;
+
+/**
+ * Decides when a {@link SampleBatcher} hands its collected samples over to the transport.
+ * A batch is flushed as soon as one of the limits has been reached.
+ * <p>
+ * While a warning of the smartphone is recent, every sample is flushed immediately, so that the
+ * smartphone sees how the heart rate develops without the delay of a batch. The smartwatch does
+ * not know the alert rules of the smartphone, so the warnings themselves decide this.
+ */
+public final class FlushPolicy {
+    /**
+     * Sends every sample on its own, which is the behaviour of the original transport.
+     */
+    public static final FlushPolicy PER_SAMPLE = new FlushPolicy(1, 0, 0);
+
+    /**
+     * Collects up to 30 samples or 10 seconds, but sends every sample immediately for a minute
+     * after a warning.
+     */
+    public static final FlushPolicy DEFAULT = new FlushPolicy(30, 10000, 60000);
+
+    /**
+     * Timestamp of the last warning, if no warning has been received.
+     */
+    public static final long NO_WARNING = Long.MIN_VALUE;
+
+    /**
+     * Maximum number of samples per batch.
+     */
+    private final int maxSamples;
+
+    /**
+     * Maximum age of the oldest sample in a batch in milliseconds.
+     */
+    private final long maxAgeMillis;
+
+    /**
+     * Time after a warning during which every sample is flushed immediately, in milliseconds.
+     * Zero disables this.
+     */
+    private final long urgentMillis;
+
+    /**
+     * Creates a new flush policy.
+     *
+     * @param maxSamples Maximum number of samples per batch
+     * @param maxAgeMillis Maximum age of the oldest sample in milliseconds
+     * @param urgentMillis Time after a warning during which every sample is sent immediately in
+     *                     milliseconds (0 = disabled)
+     */
+    public FlushPolicy(int maxSamples, long maxAgeMillis, long urgentMillis) {
+        if (maxSamples < 1) {
+            throw new IllegalArgumentException("maxSamples must be at least 1: " + maxSamples);
+        }
+        if (maxAgeMillis < 0) {
+            throw new IllegalArgumentException("maxAgeMillis must not be negative: " + maxAgeMillis);
+        }
+        if (urgentMillis < 0) {
+            throw new IllegalArgumentException("urgentMillis must not be negative: " + urgentMillis);
+        }
+        this.maxSamples = maxSamples;
+        this.maxAgeMillis = maxAgeMillis;
+        this.urgentMillis = urgentMillis;
+    }
+
+    public int getMaxSamples() {
+        return maxSamples;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public long getUrgentMillis() {
+        return urgentMillis;
+    }
+
+    /**
+     * Returns true, if every sample is sent on its own.
+     *
+     * @return True, if batching is disabled
+     */
+    public boolean isPerSample() {
+        return maxSamples == 1;
+    }
+
+    /**
+     * Returns true, if a sample has to be sent without waiting for the batch to fill, because a
+     * warning has been received shortly before.
+     *
+     * @param timestamp Timestamp of the sample in milliseconds
+     * @param warningTimestamp Time the last warning has been received in milliseconds, or
+     *                         {@link #NO_WARNING}
+     * @return True, if the batch should be flushed now
+     */
+    public boolean isUrgent(long timestamp, long warningTimestamp) {
+        return warningTimestamp != NO_WARNING && timestamp - warningTimestamp < urgentMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FlushPolicy[maxSamples=%d, maxAgeMillis=%d, urgentMillis=%d]", maxSamples, maxAgeMillis, urgentMillis);
+    }
+}
@@ -0,0 +1,465 @@
+package com.okraku.android.heartrate.core;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Distributes heart rates to any number of subscribers, e.g. the UI, a store and a debug screen.
+ * <p>
+ * The publisher, e.g. the sensor callback of the smartwatch or the message receiver of the
+ * smartphone, never waits for a subscriber: every subscription has a bounded queue, and its
+ * subscriber is called by its own {@link Executor}. A subscriber either receives
+ * {@link Delivery#EVERY_SAMPLE every heart rate}, as long as it keeps up with its queue, or only
+ * the {@link Delivery#LATEST_ONLY most recent one} whenever it is ready.
+ * <p>
+ * Publishing, subscribing and unsubscribing are lock-free and may happen on any thread at the
+ * same time: the subscriptions are an array that is copied on change, and the queues are arrays
+ * of sequence numbers and columns that are allocated once. Publishing does not allocate.
+ */
+public class HeartRateBus {
+    /**
+     * Receives heart rates from the bus.
+     */
+    public interface Subscriber {
+        /**
+         * Called with a heart rate by the executor of the subscription, by one thread at a time.
+         *
+         * @param nodeId ID of the smartwatch, or null on the smartwatch itself
+         * @param timestamp Time the heart rate has been measured in milliseconds
+         * @param heartRate The heart rate
+         * @param receivedNanos {@link System#nanoTime()} when the heart rate has been received
+         */
+        void onHeartRate(String nodeId, long timestamp, int heartRate, long receivedNanos);
+    }
+
+    /**
+     * Which heart rates a subscriber receives.
+     */
+    public enum Delivery {
+        /**
+         * Every heart rate in order. If the subscriber falls behind by more than the capacity of
+         * its queue, the newest heart rates are dropped.
+         */
+        EVERY_SAMPLE,
+
+        /**
+         * Only the most recent heart rate whenever the subscriber is called; older ones that
+         * have not been delivered yet are skipped.
+         */
+        LATEST_ONLY
+    }
+
+    /**
+     * Calls subscribers on the publishing thread. Only for subscribers that return quickly.
+     */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Capacity of the queue of a subscription with {@link Delivery#EVERY_SAMPLE}, e.g. 10 seconds
+     * at 100 Hz.
+     */
+    public static final int EVERY_SAMPLE_CAPACITY = 1024;
+
+    /**
+     * Capacity of the queue of a subscription with {@link Delivery#LATEST_ONLY}: the smallest one
+     * the queue supports, since a slot for position {@code p} must be distinguishable from a
+     * slot with the heart rate of position {@code p - 1}.
+     */
+    private static final int LATEST_ONLY_CAPACITY = 2;
+
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+
+    /**
+     * The subscriptions. Replaced, never modified.
+     */
+    private final AtomicReference<Subscription[]> subscriptions = new AtomicReference<>(NO_SUBSCRIPTIONS);
+
+    private final AtomicLong published = new AtomicLong();
+
+    /**
+     * Subscribes to the heart rates published from now on.
+     *
+     * @param subscriber The subscriber
+     * @param delivery Which heart rates the subscriber receives
+     * @param executor Calls the subscriber, e.g. {@link #DIRECT} or a single thread executor
+     * @return The subscription, e.g. to unsubscribe
+     */
+    public Subscription subscribe(Subscriber subscriber, Delivery delivery, Executor executor) {
+        return add(new Subscription(subscriber, delivery, executor,
+                delivery == Delivery.EVERY_SAMPLE ? EVERY_SAMPLE_CAPACITY : LATEST_ONLY_CAPACITY));
+    }
+
+    /**
+     * Subscribes to the heart rates published from now on, starting with a given one, e.g. the
+     * most recent heart rate, so that a new subscriber does not have to wait for the next one.
+     * The given heart rate is queued before any published one and delivered by the executor
+     * like them.
+     *
+     * @param subscriber The subscriber
+     * @param delivery Which heart rates the subscriber receives
+     * @param executor Calls the subscriber, e.g. {@link #DIRECT} or a single thread executor
+     * @param nodeId ID of the smartwatch of the first heart rate, or null on the smartwatch itself
+     * @param timestamp Time the first heart rate has been measured in milliseconds
+     * @param heartRate The first heart rate
+     * @param receivedNanos {@link System#nanoTime()} when the first heart rate has been received
+     * @return The subscription, e.g. to unsubscribe
+     */
+    public Subscription subscribe(Subscriber subscriber, Delivery delivery, Executor executor,
+            String nodeId, long timestamp, int heartRate, long receivedNanos) {
+        Subscription subscription = new Subscription(subscriber, delivery, executor,
+                delivery == Delivery.EVERY_SAMPLE ? EVERY_SAMPLE_CAPACITY : LATEST_ONLY_CAPACITY);
+        subscription.offer(nodeId, timestamp, heartRate, receivedNanos);
+        return add(subscription);
+    }
+
+    private Subscription add(Subscription subscription) {
+        Subscription[] current;
+        Subscription[] next;
+        do {
+            current = subscriptions.get();
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = subscription;
+        } while (!subscriptions.compareAndSet(current, next));
+        return subscription;
+    }
+
+    /**
+     * Unsubscribes. The subscriber is not called anymore once this method has returned, except
+     * by a call that is already running.
+     *
+     * @param subscription The subscription
+     * @return False, if it had already been unsubscribed
+     */
+    public boolean unsubscribe(Subscription subscription) {
+        Subscription[] current;
+        Subscription[] next;
+        do {
+            current = subscriptions.get();
+            int index = Arrays.asList(current).indexOf(subscription);
+            if (index < 0) {
+                return false;
+            }
+            next = current.length == 1 ? NO_SUBSCRIPTIONS : new Subscription[current.length - 1];
+            System.arraycopy(current, 0, next, 0, index);
+            System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+        } while (!subscriptions.compareAndSet(current, next));
+        subscription.cancelled = true;
+        return true;
+    }
+
+    /**
+     * Publishes a heart rate to all subscribers. May be called on any thread; never blocks.
+     *
+     * @param nodeId ID of the smartwatch, or null on the smartwatch itself
+     * @param timestamp Time the heart rate has been measured in milliseconds
+     * @param heartRate The heart rate
+     * @param receivedNanos {@link System#nanoTime()} when the heart rate has been received
+     */
+    public void publish(String nodeId, long timestamp, int heartRate, long receivedNanos) {
+        published.incrementAndGet();
+        for (Subscription subscription : subscriptions.get()) {
+            subscription.offer(nodeId, timestamp, heartRate, receivedNanos);
+        }
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.get().length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(String.format("HeartRateBus[published=%d, subscribers=%d]", getPublished(), getSubscriberCount()));
+        for (Subscription subscription : subscriptions.get()) {
+            builder.append("\n  ").append(subscription);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A subscriber with its queue.
+     * <p>
+     * The queue is a bounded multi-producer queue after Dmitry Vyukov: every slot has a sequence
+     * number that tells whether it may be written for position {@code p} ({@code p}) or read for
+     * position {@code p} ({@code p + 1}). Positions are claimed by CAS, so publishers never lock.
+     * The subscriber is only called by one drain at a time, guarded by {@link #scheduled}.
+     */
+    public static final class Subscription {
+        private final Subscriber subscriber;
+
+        private final Delivery delivery;
+
+        private final Executor executor;
+
+        private final int capacity;
+
+        private final int mask;
+
+        /**
+         * Sequence number of every slot.
+         */
+        private final AtomicLongArray sequences;
+
+        /**
+         * Columns of the queue, written before and read after the sequence number of a slot.
+         */
+        private final String[] nodeIds;
+
+        private final long[] timestamps;
+
+        private final int[] heartRates;
+
+        private final long[] receivedNanos;
+
+        /**
+         * Next position to read.
+         */
+        private final AtomicLong head = new AtomicLong();
+
+        /**
+         * Next position to write.
+         */
+        private final AtomicLong tail = new AtomicLong();
+
+        /**
+         * True, while a drain has been handed to the executor and not finished.
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        /**
+         * Heart rate read by the drain. Only accessed by the drain.
+         */
+        private String polledNodeId;
+
+        private long polledTimestamp;
+
+        private int polledHeartRate;
+
+        private long polledReceivedNanos;
+
+        private volatile boolean cancelled = false;
+
+        private final AtomicLong offered = new AtomicLong();
+
+        private final AtomicLong delivered = new AtomicLong();
+
+        /**
+         * Heart rates not delivered because the queue was full ({@link Delivery#EVERY_SAMPLE}).
+         */
+        private final AtomicLong dropped = new AtomicLong();
+
+        /**
+         * Heart rates skipped for a newer one ({@link Delivery#LATEST_ONLY}).
+         */
+        private final AtomicLong conflated = new AtomicLong();
+
+        /**
+         * Calls of the subscriber that have thrown an exception.
+         */
+        private final AtomicLong failed = new AtomicLong();
+
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        private Subscription(Subscriber subscriber, Delivery delivery, Executor executor, int capacity) {
+            this.subscriber = subscriber;
+            this.delivery = delivery;
+            this.executor = executor;
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+            this.nodeIds = new String[capacity];
+            this.timestamps = new long[capacity];
+            this.heartRates = new int[capacity];
+            this.receivedNanos = new long[capacity];
+        }
+
+        /**
+         * Queues a heart rate and schedules a drain, if none is scheduled.
+         */
+        private void offer(String nodeId, long timestamp, int heartRate, long receivedNanos) {
+            offered.incrementAndGet();
+            if (delivery == Delivery.LATEST_ONLY) {
+                // Make room by skipping the oldest heart rate
+                while (!tryOffer(nodeId, timestamp, heartRate, receivedNanos)) {
+                    if (poll(false)) {
+                        conflated.incrementAndGet();
+                    }
+                }
+            }
+            else if (!tryOffer(nodeId, timestamp, heartRate, receivedNanos)) {
+                dropped.incrementAndGet();
+                return;
+            }
+
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(drain);
+            }
+        }
+
+        /**
+         * Writes a heart rate to the queue.
+         *
+         * @return False, if the queue is full
+         */
+        private boolean tryOffer(String nodeId, long timestamp, int heartRate, long receivedNanos) {
+            long position = tail.get();
+            while (true) {
+                int slot = (int) position & mask;
+                long difference = sequences.get(slot) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        nodeIds[slot] = nodeId;
+                        timestamps[slot] = timestamp;
+                        heartRates[slot] = heartRate;
+                        this.receivedNanos[slot] = receivedNanos;
+                        sequences.set(slot, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                }
+                else if (difference < 0) {
+                    return false;
+                }
+                else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        /**
+         * Removes the oldest heart rate from the queue.
+         *
+         * @param read True to copy it to the polled fields; only the drain may pass true
+         * @return False, if the queue is empty
+         */
+        private boolean poll(boolean read) {
+            long position = head.get();
+            while (true) {
+                int slot = (int) position & mask;
+                long difference = sequences.get(slot) - (position + 1);
+                if (difference == 0) {
+                    if (head.compareAndSet(position, position + 1)) {
+                        if (read) {
+                            polledNodeId = nodeIds[slot];
+                            polledTimestamp = timestamps[slot];
+                            polledHeartRate = heartRates[slot];
+                            polledReceivedNanos = receivedNanos[slot];
+                        }
+                        sequences.set(slot, position + capacity);
+                        return true;
+                    }
+                    position = head.get();
+                }
+                else if (difference < 0) {
+                    return false;
+                }
+                else {
+                    position = head.get();
+                }
+            }
+        }
+
+        /**
+         * Returns true, if the oldest heart rate of the queue has been written completely.
+         */
+        private boolean isReady() {
+            long position = head.get();
+            return sequences.get((int) position & mask) == position + 1;
+        }
+
+        /**
+         * Delivers the queued heart rates. A publisher that queues a heart rate after the last
+         * check schedules the next drain.
+         */
+        private void drain() {
+            while (true) {
+                if (delivery == Delivery.LATEST_ONLY) {
+                    boolean polled = false;
+                    while (poll(true)) {
+                        if (polled) {
+                            conflated.incrementAndGet();
+                        }
+                        polled = true;
+                    }
+                    if (polled) {
+                        deliver();
+                    }
+                }
+                else {
+                    while (poll(true)) {
+                        deliver();
+                    }
+                }
+
+                scheduled.set(false);
+                if (!isReady() || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        private void deliver() {
+            delivered.incrementAndGet();
+            if (cancelled) {
+                return;
+            }
+            try {
+                subscriber.onHeartRate(polledNodeId, polledTimestamp, polledHeartRate, polledReceivedNanos);
+            }
+            catch (RuntimeException e) {
+                // Keep draining for the other heart rates
+                failed.incrementAndGet();
+            }
+        }
+
+        public Delivery getDelivery() {
+            return delivery;
+        }
+
+        public long getOffered() {
+            return offered.get();
+        }
+
+        public long getDelivered() {
+            return delivered.get();
+        }
+
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        public long getConflated() {
+            return conflated.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Subscription[%s, %s, offered=%d, delivered=%d, dropped=%d, conflated=%d, failed=%d]",
+                    subscriber.getClass().getSimpleName(), delivery, getOffered(), getDelivered(), getDropped(), getConflated(), getFailed());
+        }
+    }
+}
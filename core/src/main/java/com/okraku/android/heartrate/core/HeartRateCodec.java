@@ -0,0 +1,332 @@
+package com.okraku.android.heartrate.core;
+
+/**
+ * Binary wire format for heart rate samples, used on /heart_rate and /heart_rate_batch.
+ * <p>
+ * A message consists of a fixed header followed by the samples:
+ * <pre>
+ * byte    MAGIC (0xB8, never a valid ASCII character)
+ * byte    VERSION
+ * byte    flags: {@link #FLAG_SEND_TIME}, {@link #FLAG_SEQUENCE}, {@link #FLAG_EPOCH}, all other bits 0
+ * varint  number of samples
+ * varint  timestamp of the first sample in milliseconds
+ * [zig-zag varint send time minus timestamp of the first sample, if FLAG_SEND_TIME is set]
+ * [varint  sequence number of the message, if FLAG_SEQUENCE is set]
+ * [varint  epoch of the sequence number, if FLAG_EPOCH is set]
+ * n times zig-zag varint timestamp delta to the previous sample,
+ *         zig-zag varint heart rate delta to the previous sample (starting at 0)
+ * </pre>
+ * A single sample usually takes 9 bytes, every further sample of a batch 2-3 bytes. The send time
+ * takes 1-3 bytes more; it lets the receiver estimate the clock offset between the devices. The
+ * sequence number takes 1-3 bytes for the first two million messages; it lets the receiver
+ * restore the order of the messages and drop duplicates. The epoch takes 1-2 bytes more; it
+ * changes whenever the sender starts over, so that the receiver recognizes a restart.
+ * <p>
+ * The original format was the heart rate as ASCII digits. Such messages can still be recognized
+ * with {@link #isLegacy(byte[])} and parsed with {@link #decodeLegacy(byte[])}.
+ * <p>
+ * All methods work on caller-provided buffers and do not allocate.
+ */
+public final class HeartRateCodec {
+    /**
+     * First byte of every binary message.
+     */
+    public static final byte MAGIC = (byte) 0xB8;
+
+    /**
+     * Current version of the format.
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * Flag: the header contains the time the message has been sent.
+     */
+    public static final int FLAG_SEND_TIME = 0x01;
+
+    /**
+     * Flag: the header contains the sequence number of the message.
+     */
+    public static final int FLAG_SEQUENCE = 0x02;
+
+    /**
+     * Flag: the header contains the epoch of the sequence number.
+     */
+    public static final int FLAG_EPOCH = 0x04;
+
+    /**
+     * All flags known to this version of the codec.
+     */
+    private static final int KNOWN_FLAGS = FLAG_SEND_TIME | FLAG_SEQUENCE | FLAG_EPOCH;
+
+    /**
+     * Size of the fixed part of the header in bytes.
+     */
+    private static final int FIXED_HEADER_SIZE = 3;
+
+    /**
+     * Maximum size of a varint encoded long.
+     */
+    private static final int MAX_VARLONG_SIZE = 10;
+
+    /**
+     * Maximum size of a varint encoded int.
+     */
+    private static final int MAX_VARINT_SIZE = 5;
+
+    /**
+     * Highest heart rate accepted by the decoders. Higher values, and negative ones, can only
+     * come from a corrupt message; 0 is sent while the sensor has no skin contact.
+     */
+    public static final int MAX_HEART_RATE = 300;
+
+    private HeartRateCodec() {
+    }
+
+    /**
+     * Returns the number of bytes needed to encode the given number of samples in the worst case.
+     *
+     * @param count Number of samples
+     * @return Maximum size of the message in bytes
+     */
+    public static int maxEncodedSize(int count) {
+        return FIXED_HEADER_SIZE + MAX_VARINT_SIZE + 4 * MAX_VARLONG_SIZE + count * (MAX_VARLONG_SIZE + MAX_VARINT_SIZE);
+    }
+
+    /**
+     * Encodes all samples of a buffer, including its send time, sequence number and epoch, if set.
+     *
+     * @param samples The samples to encode
+     * @param out Target array, at least {@link #maxEncodedSize(int)} bytes long
+     * @param offset Offset in the target array
+     * @return Number of bytes written
+     */
+    public static int encode(SampleBuffer samples, byte[] out, int offset) {
+        int count = samples.size();
+        if (out.length - offset < maxEncodedSize(count)) {
+            throw new IllegalArgumentException(String.format("Buffer too small for %d samples: %d bytes", count, out.length - offset));
+        }
+
+        int pos = offset;
+        out[pos++] = MAGIC;
+        out[pos++] = VERSION;
+        out[pos++] = (byte) ((samples.hasSendTime() ? FLAG_SEND_TIME : 0) | (samples.hasSequence() ? FLAG_SEQUENCE : 0)
+                | (samples.hasEpoch() ? FLAG_EPOCH : 0));
+        pos = writeVarLong(count, out, pos);
+
+        long previousTimestamp = count > 0 ? samples.getTimestamp(0) : 0;
+        int previousValue = 0;
+        pos = writeVarLong(previousTimestamp, out, pos);
+        if (samples.hasSendTime()) {
+            pos = writeVarLong(zigZag(samples.getSendTime() - previousTimestamp), out, pos);
+        }
+        if (samples.hasSequence()) {
+            pos = writeVarLong(samples.getSequence(), out, pos);
+        }
+        if (samples.hasEpoch()) {
+            pos = writeVarLong(samples.getEpoch(), out, pos);
+        }
+
+        for (int i = 0; i < count; i++) {
+            long timestamp = samples.getTimestamp(i);
+            int value = samples.getValue(i);
+            pos = writeVarLong(zigZag(timestamp - previousTimestamp), out, pos);
+            pos = writeVarLong(zigZag(value - previousValue), out, pos);
+            previousTimestamp = timestamp;
+            previousValue = value;
+        }
+        return pos - offset;
+    }
+
+    /**
+     * Decodes a message and appends its samples to the buffer. The send time, sequence number and
+     * epoch of the buffer are set to the ones of the message, if it contains them. If the message
+     * is malformed, the buffer is left as it was.
+     *
+     * @param data The message
+     * @param offset Offset of the message
+     * @param length Length of the message
+     * @param samples Buffer the samples are appended to
+     * @return Number of decoded samples
+     * @throws IllegalArgumentException If the message is malformed or of an unknown version
+     */
+    public static int decode(byte[] data, int offset, int length, SampleBuffer samples) {
+        int end = offset + length;
+        if (length < FIXED_HEADER_SIZE || data[offset] != MAGIC) {
+            throw new IllegalArgumentException("Not a binary heart rate message");
+        }
+        if (data[offset + 1] != VERSION) {
+            throw new IllegalArgumentException("Unsupported version: " + data[offset + 1]);
+        }
+        int flags = data[offset + 2] & 0xFF;
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            throw new IllegalArgumentException(String.format("Unsupported flags: 0x%02x", flags));
+        }
+
+        int pos = offset + FIXED_HEADER_SIZE;
+        long count = readVarLong(data, pos, end);
+        pos += varLongSize(count);
+        if (count < 0 || count > (end - pos) / 2) {
+            // Every sample takes at least two bytes
+            throw new IllegalArgumentException("Invalid number of samples: " + count);
+        }
+
+        long timestamp = readVarLong(data, pos, end);
+        pos += varLongSize(timestamp);
+        long sendTime = SampleBuffer.NO_SEND_TIME;
+        if ((flags & FLAG_SEND_TIME) != 0) {
+            long sendTimeDelta = readVarLong(data, pos, end);
+            pos += varLongSize(sendTimeDelta);
+            sendTime = timestamp + unZigZag(sendTimeDelta);
+        }
+        long sequence = SampleBuffer.NO_SEQUENCE;
+        if ((flags & FLAG_SEQUENCE) != 0) {
+            sequence = readVarLong(data, pos, end);
+            pos += varLongSize(sequence);
+            if (sequence < 0) {
+                throw new IllegalArgumentException("Invalid sequence number: " + sequence);
+            }
+        }
+        long epoch = SampleBuffer.NO_EPOCH;
+        if ((flags & FLAG_EPOCH) != 0) {
+            epoch = readVarLong(data, pos, end);
+            pos += varLongSize(epoch);
+            if (epoch < 0) {
+                throw new IllegalArgumentException("Invalid epoch: " + epoch);
+            }
+        }
+
+        int size = samples.size();
+        try {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                long timestampDelta = readVarLong(data, pos, end);
+                pos += varLongSize(timestampDelta);
+                long valueDelta = readVarLong(data, pos, end);
+                pos += varLongSize(valueDelta);
+
+                timestamp += unZigZag(timestampDelta);
+                value += unZigZag(valueDelta);
+                if (value < 0 || value > MAX_HEART_RATE) {
+                    throw new IllegalArgumentException("Invalid heart rate: " + value);
+                }
+                samples.add(timestamp, (int) value);
+            }
+
+            if (pos != end) {
+                throw new IllegalArgumentException(String.format("%d trailing bytes", end - pos));
+            }
+        }
+        catch (IllegalArgumentException e) {
+            // Do not pass on the samples decoded before the error
+            samples.truncate(size);
+            throw e;
+        }
+
+        if (sendTime != SampleBuffer.NO_SEND_TIME) {
+            samples.setSendTime(sendTime);
+        }
+        if (sequence != SampleBuffer.NO_SEQUENCE) {
+            samples.setSequence(sequence);
+        }
+        if (epoch != SampleBuffer.NO_EPOCH) {
+            samples.setEpoch(epoch);
+        }
+        return (int) count;
+    }
+
+    /**
+     * Decodes a message and appends its samples to the buffer.
+     *
+     * @param data The message
+     * @param samples Buffer the samples are appended to
+     * @return Number of decoded samples
+     * @throws IllegalArgumentException If the message is malformed or of an unknown version
+     */
+    public static int decode(byte[] data, SampleBuffer samples) {
+        return decode(data, 0, data.length, samples);
+    }
+
+    /**
+     * Returns true, if the message uses the original format, i.e. the heart rate as ASCII digits.
+     *
+     * @param data The message
+     * @return True, if the message is not binary
+     */
+    public static boolean isLegacy(byte[] data) {
+        return data.length > 0 && data[0] != MAGIC;
+    }
+
+    /**
+     * Parses a message in the original format without creating a string.
+     *
+     * @param data The heart rate as ASCII digits
+     * @return The heart rate
+     * @throws IllegalArgumentException If the message is no number or the heart rate is above
+     *         {@link #MAX_HEART_RATE}
+     */
+    public static int decodeLegacy(byte[] data) {
+        if (data.length == 0 || data.length > 9) {
+            throw new IllegalArgumentException("Invalid legacy message length: " + data.length);
+        }
+
+        int value = 0;
+        for (byte b : data) {
+            if (b < '0' || b > '9') {
+                throw new IllegalArgumentException("Invalid legacy message");
+            }
+            value = value * 10 + (b - '0');
+        }
+        if (value > MAX_HEART_RATE) {
+            throw new IllegalArgumentException("Invalid heart rate: " + value);
+        }
+        return value;
+    }
+
+    static int writeVarLong(long value, byte[] out, int pos) {
+        while ((value & ~0x7FL) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Reads a varint. Only the shortest encoding of a value is accepted, so the number of bytes
+     * read is always {@link #varLongSize(long)} of the result.
+     */
+    static long readVarLong(byte[] data, int pos, int end) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= end) {
+                throw new IllegalArgumentException("Truncated message");
+            }
+            byte b = data[pos++];
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (b == 0 && shift > 0) {
+                    throw new IllegalArgumentException("Non-canonical varint");
+                }
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
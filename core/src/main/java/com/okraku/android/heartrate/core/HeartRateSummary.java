@@ -0,0 +1,114 @@
+package com.okraku.android.heartrate.core;
+
+/**
+ * Aggregates of the heart rates of a smartwatch over a time window, computed on the smartwatch
+ * (see {@link com.okraku.android.heartrate.core.analytics.HeartRateAnalytics}) and sent on
+ * {@link MessagePaths#HEART_RATE_SUMMARY} instead of or in addition to the heart rates.
+ * <p>
+ * Instances are immutable.
+ */
+public final class HeartRateSummary {
+    /**
+     * Start of the window in milliseconds.
+     */
+    private final long startTimestamp;
+
+    /**
+     * End of the window in milliseconds, exclusive.
+     */
+    private final long endTimestamp;
+
+    /**
+     * Number of heart rates in the window.
+     */
+    private final int count;
+
+    private final float mean;
+
+    private final float min;
+
+    private final float max;
+
+    /**
+     * Root mean square of the successive differences of the beat intervals derived from the
+     * heart rates, in milliseconds.
+     */
+    private final float rmssd;
+
+    /**
+     * Slope of the least squares line through the heart rates, in beats per minute per minute.
+     */
+    private final float slope;
+
+    /**
+     * Resting heart rate at the end of the window.
+     */
+    private final float baseline;
+
+    /**
+     * Creates a new summary.
+     *
+     * @param startTimestamp Start of the window in milliseconds
+     * @param endTimestamp End of the window in milliseconds, exclusive
+     * @param count Number of heart rates in the window
+     * @param mean Mean heart rate
+     * @param min Lowest heart rate
+     * @param max Highest heart rate
+     * @param rmssd Root mean square of the successive differences of the beat intervals in milliseconds
+     * @param slope Trend of the heart rate in beats per minute per minute
+     * @param baseline Resting heart rate at the end of the window
+     */
+    public HeartRateSummary(long startTimestamp, long endTimestamp, int count, float mean, float min, float max, float rmssd, float slope, float baseline) {
+        this.startTimestamp = startTimestamp;
+        this.endTimestamp = endTimestamp;
+        this.count = count;
+        this.mean = mean;
+        this.min = min;
+        this.max = max;
+        this.rmssd = rmssd;
+        this.slope = slope;
+        this.baseline = baseline;
+    }
+
+    public long getStartTimestamp() {
+        return startTimestamp;
+    }
+
+    public long getEndTimestamp() {
+        return endTimestamp;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public float getMean() {
+        return mean;
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    public float getRmssd() {
+        return rmssd;
+    }
+
+    public float getSlope() {
+        return slope;
+    }
+
+    public float getBaseline() {
+        return baseline;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HeartRateSummary[%d-%d: count=%d, mean=%.1f, min=%.1f, max=%.1f, rmssd=%.1fms, slope=%.2f/min, baseline=%.1f]",
+                startTimestamp, endTimestamp, count, mean, min, max, rmssd, slope, baseline);
+    }
+}
@@ -0,0 +1,397 @@
+package com.okraku.android.heartrate.core;
+
+import com.okraku.android.heartrate.core.sync.HistorySender;
+import com.okraku.android.heartrate.core.sync.StreamChannel;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the data layer that connects nodes within one process, e.g. to run a phone and
+ * any number of simulated watches on a plain JVM.
+ * <p>
+ * Messages are delivered on a single thread, like the listener service of a device, after a
+ * configurable latency. A configurable share of the messages is lost silently; other shares can
+ * be delayed further, so they overtake each other, or delivered twice, like retried messages
+ * (see {@link #setReordering(double, long)} and {@link #setDuplication(double)}).
+ * <p>
+ * Channels are pairs of in-process pipes without latency or loss. Every opened channel is passed
+ * to the {@link ChannelListener} of the target node on a new thread.
+ * <pre>
+ * InMemoryDataLayer dataLayer = new InMemoryDataLayer(5, 0.01, 42);
+ * PhonePipeline phone = new PhonePipeline(dataLayer.connect("phone", phoneListener), ...);
+ * WatchPipeline watch = new WatchPipeline(dataLayer.connect("watch-1", watchListener), ...);
+ * </pre>
+ */
+public class InMemoryDataLayer {
+    /**
+     * Interface which will be called when a node receives a message.
+     */
+    public interface MessageListener {
+        /**
+         * Called when a message has been received.
+         *
+         * @param sourceNodeId ID of the sending node
+         * @param path The message path
+         * @param data The message
+         */
+        void onMessageReceived(String sourceNodeId, String path, byte[] data);
+    }
+
+    /**
+     * Interface which will be called when another node has opened a channel to a node.
+     */
+    public interface ChannelListener {
+        /**
+         * Called on a new thread when a channel has been opened. The channel is open until the
+         * listener closes it.
+         *
+         * @param sourceNodeId ID of the node that opened the channel
+         * @param path The channel path
+         * @param channel The channel
+         */
+        void onChannelOpened(String sourceNodeId, String path, StreamChannel channel);
+    }
+
+    /**
+     * Size of the pipe buffers of a channel in bytes.
+     */
+    private static final int CHANNEL_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Time from sending until delivery in milliseconds.
+     */
+    private final long latencyMillis;
+
+    /**
+     * Share of the messages that are lost, between 0 and 1.
+     */
+    private final double lossRate;
+
+    /**
+     * Share of the messages that are delayed further, between 0 and 1.
+     */
+    private volatile double reorderRate = 0;
+
+    /**
+     * Maximum additional delay of a reordered message in milliseconds.
+     */
+    private volatile long maxExtraDelayMillis = 0;
+
+    /**
+     * Share of the messages that are delivered twice, between 0 and 1.
+     */
+    private volatile double duplicateRate = 0;
+
+    /**
+     * Decides which messages are lost, reordered or duplicated. Guarded by itself.
+     */
+    private final Random random;
+
+    /**
+     * Connected nodes and their listeners, by node ID.
+     */
+    private final ConcurrentHashMap<String, MessageListener> nodes = new ConcurrentHashMap<>();
+
+    /**
+     * Nodes that accept channels and their listeners, by node ID.
+     */
+    private final ConcurrentHashMap<String, ChannelListener> channelListeners = new ConcurrentHashMap<>();
+
+    /**
+     * Delivers the messages.
+     */
+    private final ScheduledExecutorService delivery;
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong delivered = new AtomicLong();
+
+    private final AtomicLong lost = new AtomicLong();
+
+    private final AtomicLong reordered = new AtomicLong();
+
+    private final AtomicLong duplicated = new AtomicLong();
+
+    /**
+     * Number of bytes of all sent messages.
+     */
+    private final AtomicLong messageBytes = new AtomicLong();
+
+    /**
+     * Number of bytes written to all channels, in both directions.
+     */
+    private final AtomicLong channelBytes = new AtomicLong();
+
+    /**
+     * Creates a new data layer.
+     *
+     * @param latencyMillis Time from sending until delivery in milliseconds
+     * @param lossRate Share of the messages that are lost, between 0 and 1
+     * @param seed Seed of the random number generator that decides which messages are lost
+     */
+    public InMemoryDataLayer(long latencyMillis, double lossRate, long seed) {
+        this.latencyMillis = latencyMillis;
+        this.lossRate = lossRate;
+        this.random = new Random(seed);
+        this.delivery = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "in-memory-data-layer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Delays a share of the messages further, so that later messages may overtake them.
+     *
+     * @param rate Share of the messages that are delayed, between 0 and 1
+     * @param maxExtraDelayMillis Maximum additional delay in milliseconds; the delay of every
+     *                            such message is chosen uniformly up to this value
+     */
+    public void setReordering(double rate, long maxExtraDelayMillis) {
+        this.maxExtraDelayMillis = maxExtraDelayMillis;
+        this.reorderRate = rate;
+    }
+
+    /**
+     * Delivers a share of the messages twice, the second time after a random additional delay
+     * of up to the maximum of {@link #setReordering(double, long)}.
+     *
+     * @param rate Share of the messages that are duplicated, between 0 and 1
+     */
+    public void setDuplication(double rate) {
+        this.duplicateRate = rate;
+    }
+
+    /**
+     * Connects a node.
+     *
+     * @param nodeId ID of the node
+     * @param listener Receives the messages sent to the node
+     * @return The transport of the node
+     */
+    public Transport connect(final String nodeId, MessageListener listener) {
+        nodes.put(nodeId, listener);
+
+        return new Transport() {
+            @Override
+            public void sendMessage(String targetNodeId, String path, byte[] data) throws IOException {
+                send(nodeId, targetNodeId, path, data);
+            }
+
+            @Override
+            public Set<String> loadNodes() {
+                Set<String> result = new HashSet<>(nodes.keySet());
+                result.remove(nodeId);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Disconnects a node. Messages and new channels to this node fail from now on.
+     *
+     * @param nodeId ID of the node
+     */
+    public void disconnect(String nodeId) {
+        nodes.remove(nodeId);
+    }
+
+    /**
+     * Lets a connected node accept channels.
+     *
+     * @param nodeId ID of the node
+     * @param listener Receives the channels opened to the node
+     */
+    public void setChannelListener(String nodeId, ChannelListener listener) {
+        channelListeners.put(nodeId, listener);
+    }
+
+    /**
+     * Returns an opener for channels from a node to other nodes.
+     *
+     * @param nodeId ID of the node that opens the channels
+     * @return The channel opener of the node
+     */
+    public HistorySender.ChannelOpener getChannelOpener(final String nodeId) {
+        return new HistorySender.ChannelOpener() {
+            @Override
+            public StreamChannel openChannel(String targetNodeId, String path) throws IOException {
+                return InMemoryDataLayer.this.openChannel(nodeId, targetNodeId, path);
+            }
+        };
+    }
+
+    private StreamChannel openChannel(final String sourceNodeId, String targetNodeId, final String path) throws IOException {
+        final ChannelListener listener = channelListeners.get(targetNodeId);
+        if (listener == null || !nodes.containsKey(targetNodeId)) {
+            throw new IOException("Node not connected or not accepting channels: " + targetNodeId);
+        }
+
+        PipedInputStream toTarget = new PipedInputStream(CHANNEL_BUFFER_SIZE);
+        PipedInputStream toSource = new PipedInputStream(CHANNEL_BUFFER_SIZE);
+        final StreamChannel remote = new PipeChannel(toTarget, new PipedOutputStream(toSource));
+        StreamChannel local = new PipeChannel(toSource, new PipedOutputStream(toTarget));
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                listener.onChannelOpened(sourceNodeId, path, remote);
+            }
+        }, "in-memory-channel-" + path);
+        thread.setDaemon(true);
+        thread.start();
+        return local;
+    }
+
+    private void send(final String sourceNodeId, String targetNodeId, final String path, final byte[] data) throws IOException {
+        final MessageListener listener = nodes.get(targetNodeId);
+        if (listener == null) {
+            throw new IOException("Node not connected: " + targetNodeId);
+        }
+        sent.incrementAndGet();
+        messageBytes.addAndGet(data.length);
+
+        long delayMillis = latencyMillis;
+        long duplicateDelayMillis = -1;
+        double reorderRate = this.reorderRate;
+        double duplicateRate = this.duplicateRate;
+        if (lossRate > 0 || reorderRate > 0 || duplicateRate > 0) {
+            long maxExtraDelayMillis = this.maxExtraDelayMillis;
+            synchronized (random) {
+                if (random.nextDouble() < lossRate) {
+                    lost.incrementAndGet();
+                    return;
+                }
+                if (random.nextDouble() < reorderRate) {
+                    delayMillis += (long) (random.nextDouble() * maxExtraDelayMillis);
+                    reordered.incrementAndGet();
+                }
+                if (random.nextDouble() < duplicateRate) {
+                    duplicateDelayMillis = latencyMillis + (long) (random.nextDouble() * maxExtraDelayMillis);
+                    duplicated.incrementAndGet();
+                }
+            }
+        }
+
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                listener.onMessageReceived(sourceNodeId, path, data);
+                delivered.incrementAndGet();
+            }
+        };
+        deliver(task, delayMillis);
+        if (duplicateDelayMillis >= 0) {
+            deliver(task, duplicateDelayMillis);
+        }
+    }
+
+    private void deliver(Runnable task, long delayMillis) {
+        if (delayMillis > 0) {
+            delivery.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        }
+        else {
+            delivery.execute(task);
+        }
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    public long getLost() {
+        return lost.get();
+    }
+
+    public long getReordered() {
+        return reordered.get();
+    }
+
+    public long getDuplicated() {
+        return duplicated.get();
+    }
+
+    public long getMessageBytes() {
+        return messageBytes.get();
+    }
+
+    public long getChannelBytes() {
+        return channelBytes.get();
+    }
+
+    /**
+     * Stops delivering messages.
+     */
+    public void shutdown() {
+        delivery.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("InMemoryDataLayer[nodes=%d, sent=%d, delivered=%d, lost=%d, reordered=%d, duplicated=%d, messageBytes=%d, channelBytes=%d]",
+                nodes.size(), getSent(), getDelivered(), getLost(), getReordered(), getDuplicated(), getMessageBytes(), getChannelBytes());
+    }
+
+    /**
+     * One end of a channel. Counts the written bytes.
+     */
+    private final class PipeChannel implements StreamChannel {
+        private final InputStream in;
+
+        private final OutputStream out;
+
+        PipeChannel(InputStream in, OutputStream pipe) {
+            this.in = in;
+            this.out = new FilterOutputStream(pipe) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    channelBytes.incrementAndGet();
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    channelBytes.addAndGet(len);
+                }
+            };
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.okraku.android.heartrate.core;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Paths of the messages and channels exchanged between smartwatches and smartphones.
+ */
+public final class MessagePaths {
+    /**
+     * This path is used by smartwatches to send the current heart rate (see {@link HeartRateCodec}).
+     * Older smartwatch apps send the heart rate as ASCII digits.
+     */
+    public static final String HEART_RATE = "/heart_rate";
+
+    /**
+     * This path is used by smartwatches to send a batch of heart rates (see {@link HeartRateCodec}).
+     */
+    public static final String HEART_RATE_BATCH = "/heart_rate_batch";
+
+    /**
+     * This path is used by smartwatches to send heart rates that could not be sent earlier,
+     * because no smartphone was connected (see {@link HeartRateCodec}). The samples are older
+     * than the ones sent live at the same time.
+     */
+    public static final String HEART_RATE_BACKFILL = "/heart_rate_backfill";
+
+    /**
+     * This path is used by smartwatches to open a channel that transfers heart rates which could
+     * not be sent earlier in bulk (see {@link com.okraku.android.heartrate.core.sync.HistorySender}).
+     * If the channel fails, the smartwatch falls back to {@link #HEART_RATE_BACKFILL}.
+     */
+    public static final String HEART_RATE_HISTORY = "/heart_rate_history";
+
+    /**
+     * This path is used by smartwatches to send a summary of the heart rates of a time window
+     * (see {@link SummaryCodec}), in addition to the heart rates or instead of them, depending on
+     * the {@link StreamMode}.
+     */
+    public static final String HEART_RATE_SUMMARY = "/heart_rate_summary";
+
+    /**
+     * This path is used by smartphones to choose what smartwatches send. The data is the name of
+     * a {@link StreamMode} as ASCII.
+     */
+    public static final String STREAM_MODE = "/heart_rate_stream_mode";
+
+    /**
+     * This path is used by smartphones to send warnings, if the heart rate is too high (see
+     * {@link WarningCodec}). Older smartphone apps send the name of the alert rule that has
+     * triggered as UTF-8.
+     */
+    public static final String WARNING = "/heart_rate_warning";
+
+    /**
+     * This path is used by smartwatches to acknowledge a warning that has an ID (see
+     * {@link WarningCodec}). Until then, the smartphone sends the warning again.
+     */
+    public static final String WARNING_ACK = "/heart_rate_warning_ack";
+
+    /**
+     * Paths of the messages received by smartphones. The data layer only starts the service of
+     * the smartphone app for paths declared in its manifest, so every one must be declared there.
+     */
+    public static final List<String> RECEIVED_BY_PHONE = Collections.unmodifiableList(Arrays.asList(
+            HEART_RATE, HEART_RATE_BATCH, HEART_RATE_BACKFILL, HEART_RATE_SUMMARY, WARNING_ACK));
+
+    /**
+     * Paths of the channels opened by smartwatches, which must be declared in the manifest of
+     * the smartphone app as well.
+     */
+    public static final List<String> CHANNELS_OF_PHONE = Collections.singletonList(HEART_RATE_HISTORY);
+
+    /**
+     * Paths of the messages received by smartwatches, which must be declared in the manifest of
+     * the smartwatch app.
+     */
+    public static final List<String> RECEIVED_BY_WATCH = Collections.unmodifiableList(Arrays.asList(WARNING, STREAM_MODE));
+
+    private MessagePaths() {
+    }
+}
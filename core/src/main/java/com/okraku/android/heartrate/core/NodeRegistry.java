@@ -0,0 +1,215 @@
+package com.okraku.android.heartrate.core;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the set of connected nearby nodes in memory, so that sending a message does not need
+ * to query the node client every time.
+ * <p>
+ * The set is updated incrementally by peer events and is only loaded completely if it is older
+ * than the time to live. An empty set is kept for a shorter time, so that sending while no node
+ * is connected does not query the node client for every message; a connecting peer is added by
+ * {@link #onPeerConnected(String)} anyway. Readers get an immutable snapshot without locking;
+ * updates replace the snapshot.
+ */
+public class NodeRegistry {
+    /**
+     * Default time after which the nodes are loaded again, even without peer events.
+     */
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Default time after which the nodes are loaded again, if none were connected.
+     */
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Loads the connected nearby nodes, usually from the node client of the data layer.
+     */
+    public interface NodeLoader {
+        /**
+         * Returns the IDs of all connected nearby nodes. May block.
+         *
+         * @return A set of node IDs
+         * @throws Exception If the nodes could not be loaded
+         */
+        Set<String> loadNodes() throws Exception;
+    }
+
+    /**
+     * Loads the nodes on a miss.
+     */
+    private final NodeLoader loader;
+
+    /**
+     * Time to live of a complete load in nanoseconds.
+     */
+    private final long ttlNanos;
+
+    /**
+     * Time to live of a complete load that found no nodes in nanoseconds.
+     */
+    private final long negativeTtlNanos;
+
+    /**
+     * The current, immutable set of node IDs.
+     */
+    private volatile Set<String> nodes = Collections.emptySet();
+
+    /**
+     * Time of the last complete load (see {@link System#nanoTime()}).
+     */
+    private volatile long loadedAt;
+
+    /**
+     * True, once the nodes have been loaded at least once.
+     */
+    private volatile boolean loaded = false;
+
+    /**
+     * Number of calls to {@link #getNodes()}.
+     */
+    private final AtomicLong lookups = new AtomicLong();
+
+    /**
+     * Number of lookups answered from memory.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Number of complete loads.
+     */
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /**
+     * Creates a new registry that keeps an empty set for {@link #DEFAULT_NEGATIVE_TTL_MILLIS}, or
+     * the time to live, if that is shorter.
+     *
+     * @param loader Loads the nodes on a miss
+     * @param ttlMillis Time after which the nodes are loaded again
+     */
+    public NodeRegistry(NodeLoader loader, long ttlMillis) {
+        this(loader, ttlMillis, Math.min(ttlMillis, DEFAULT_NEGATIVE_TTL_MILLIS));
+    }
+
+    /**
+     * Creates a new registry.
+     *
+     * @param loader Loads the nodes on a miss
+     * @param ttlMillis Time after which the nodes are loaded again
+     * @param negativeTtlMillis Time after which the nodes are loaded again, if none are known
+     */
+    public NodeRegistry(NodeLoader loader, long ttlMillis, long negativeTtlMillis) {
+        this.loader = loader;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+    }
+
+    /**
+     * Returns the IDs of all connected nearby nodes. Loads them, if the last complete load is older
+     * than the time to live, or than the negative time to live if none are known.
+     *
+     * @return An immutable set of node IDs
+     * @throws Exception If the nodes had to be loaded and loading failed
+     */
+    public Set<String> getNodes() throws Exception {
+        lookups.incrementAndGet();
+
+        Set<String> current = nodes;
+        if (isValid(current)) {
+            hits.incrementAndGet();
+            return current;
+        }
+        return refreshIfInvalid();
+    }
+
+    /**
+     * Loads all nodes, replacing the known ones.
+     *
+     * @return An immutable set of node IDs
+     * @throws Exception If loading failed
+     */
+    public synchronized Set<String> refresh() throws Exception {
+        refreshes.incrementAndGet();
+
+        Set<String> current = Collections.unmodifiableSet(new HashSet<>(loader.loadNodes()));
+        nodes = current;
+        loadedAt = System.nanoTime();
+        loaded = true;
+        return current;
+    }
+
+    /**
+     * Loads all nodes, unless another thread has done so while this one was waiting for the lock.
+     */
+    private synchronized Set<String> refreshIfInvalid() throws Exception {
+        Set<String> current = nodes;
+        return isValid(current) ? current : refresh();
+    }
+
+    private boolean isValid(Set<String> current) {
+        return loaded && System.nanoTime() - loadedAt < (current.isEmpty() ? negativeTtlNanos : ttlNanos);
+    }
+
+    /**
+     * Called when a peer has connected.
+     *
+     * @param nodeId ID of the peer
+     */
+    public synchronized void onPeerConnected(String nodeId) {
+        if (!nodes.contains(nodeId)) {
+            Set<String> updated = new HashSet<>(nodes);
+            updated.add(nodeId);
+            nodes = Collections.unmodifiableSet(updated);
+        }
+    }
+
+    /**
+     * Called when a peer has disconnected.
+     *
+     * @param nodeId ID of the peer
+     */
+    public synchronized void onPeerDisconnected(String nodeId) {
+        if (nodes.contains(nodeId)) {
+            Set<String> updated = new HashSet<>(nodes);
+            updated.remove(nodeId);
+            nodes = Collections.unmodifiableSet(updated);
+        }
+    }
+
+    /**
+     * Returns the number of lookups.
+     *
+     * @return Number of calls to {@link #getNodes()}
+     */
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    /**
+     * Returns the number of lookups that did not need to load the nodes.
+     *
+     * @return Number of saved loads
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of complete loads.
+     *
+     * @return Number of loads
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NodeRegistry[nodes=%d, lookups=%d, saved=%d, refreshes=%d]", nodes.size(), getLookups(), getHits(), getRefreshes());
+    }
+}
@@ -0,0 +1,691 @@
+package com.okraku.android.heartrate.core;
+
+import com.okraku.android.heartrate.core.alert.AlertEngine;
+import com.okraku.android.heartrate.core.alert.AlertRule;
+import com.okraku.android.heartrate.core.history.SampleHistory;
+import com.okraku.android.heartrate.core.metrics.LatencyHistogram;
+import com.okraku.android.heartrate.core.rollup.RollupStore;
+import com.okraku.android.heartrate.core.store.SessionStore;
+import com.okraku.android.heartrate.core.sync.HistoryReceiver;
+import com.okraku.android.heartrate.core.sync.StreamChannel;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receiving side of the smartphone: decodes heart rates of any number of smartwatches, keeps
+ * their state, persists them and sends warnings back to the smartwatch that triggered an alert,
+ * until it acknowledges them (see {@link WarningSender}).
+ * Summaries computed by the smartwatches are kept and passed to listeners; with
+ * {@link #setStreamMode(StreamMode)}, the smartwatches can be asked to send only those.
+ * <p>
+ * Messages are processed one at a time, on the receiving thread or on the thread that releases
+ * messages held back for reordering. History channels may be received on other threads at the
+ * same time. State may be read from any thread.
+ */
+public class PhonePipeline implements SourceState.OnSourceAlertListener {
+    /**
+     * Creates the alert rules of a new smartwatch.
+     */
+    public interface AlertEngineFactory {
+        /**
+         * Creates the alert rules of a smartwatch.
+         *
+         * @param nodeId ID of the smartwatch
+         * @return A new alert engine that is not shared with other smartwatches
+         */
+        AlertEngine createAlertEngine(String nodeId);
+    }
+
+    /**
+     * Interface which will be called when a smartwatch has sent a summary of its heart rates.
+     */
+    public interface OnSummaryListener {
+        /**
+         * Called on the receiving thread when a summary has been received.
+         *
+         * @param source The smartwatch
+         * @param summary The summary
+         */
+        void onSummary(SourceState source, HeartRateSummary summary);
+    }
+
+    /**
+     * Connected nodes, kept up to date by peer events.
+     */
+    private final NodeRegistry nodeRegistry;
+
+    /**
+     * Sends all messages in order on a single thread.
+     */
+    private final SendPipeline sendPipeline;
+
+    /**
+     * Number of samples kept in the history of every smartwatch.
+     */
+    private final int historyCapacity;
+
+    /**
+     * Lengths of the windows rolling statistics are kept for, in milliseconds.
+     */
+    private final long[] historyWindows;
+
+    /**
+     * Creates the alert rules of new smartwatches.
+     */
+    private final AlertEngineFactory alertEngineFactory;
+
+    /**
+     * State of every smartwatch that has sent heart rates, by node ID.
+     */
+    private final ConcurrentHashMap<String, SourceState> sources = new ConcurrentHashMap<>();
+
+    /**
+     * Buffer for decoded samples, reused for every message.
+     */
+    private final SampleBuffer samples = new SampleBuffer(32);
+
+    /**
+     * Buffer for messages that have been held back by a {@link ReorderWindow}, decoded again
+     * once they are released.
+     */
+    private final SampleBuffer reorderedSamples = new SampleBuffer(32);
+
+    /**
+     * The smartwatch that has sent the most recent heart rate.
+     */
+    private volatile SourceState latestSource;
+
+    /**
+     * Persists all received heart rates, if set.
+     */
+    private volatile SessionStore sessionStore;
+
+    /**
+     * Aggregates all received heart rates for queries over long time ranges, if set.
+     */
+    private volatile RollupStore rollupStore;
+
+    /**
+     * Serializes the processing of messages, which are received on the caller's thread and
+     * released from a {@link ReorderWindow} on {@link #timer}.
+     */
+    private final Object receiveLock = new Object();
+
+    /**
+     * Releases messages that have been held back for reordering, if no further message arrives
+     * within the maximum wait time of the {@link ReorderWindow}, and sends unacknowledged
+     * warnings again.
+     */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "phone-timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Sources whose held messages are checked by {@link #timer}. Guarded by
+     * {@link #receiveLock}.
+     */
+    private final Set<SourceState> scheduledReleases = new HashSet<>();
+
+    /**
+     * Sends warnings on the urgent lane of {@link #sendPipeline} until they are acknowledged.
+     */
+    private final WarningSender warningSender;
+
+    /**
+     * Receives heart rates that the smartwatches could not send earlier over channels.
+     */
+    private final HistoryReceiver historyReceiver = new HistoryReceiver(new HistoryReceiver.OnSamplesReceivedListener() {
+        @Override
+        public void onSamplesReceived(String nodeId, SampleBuffer samples) {
+            onBackfillReceived(nodeId, samples);
+        }
+    });
+
+    /**
+     * Publishes every live heart rate; backfilled ones are only persisted. A subscriber that displays heart
+     * rates should call {@link #onDisplayed(long)} once a heart rate is displayed.
+     */
+    private final HeartRateBus heartRateBus = new HeartRateBus();
+
+    /**
+     * Notified of every received summary.
+     */
+    private final CopyOnWriteArrayList<OnSummaryListener> summaryListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * What the smartwatches are asked to send.
+     */
+    private volatile StreamMode streamMode = StreamMode.RAW;
+
+    private final AtomicLong receivedSamples = new AtomicLong();
+
+    private final AtomicLong receivedSummaries = new AtomicLong();
+
+    /**
+     * Number of received samples that the smartwatches could not send earlier.
+     */
+    private final AtomicLong backfilledSamples = new AtomicLong();
+
+    /**
+     * Number of samples that could not be persisted, because the session store was busy.
+     */
+    private final AtomicLong unsavedSamples = new AtomicLong();
+
+    /**
+     * Time from the measurement on the smartwatch until a sample has been received, corrected
+     * by the clock offset of the smartwatch.
+     */
+    private final LatencyHistogram sensorToReceiveLatency = new LatencyHistogram("sensor to receive");
+
+    /**
+     * Time from receiving a sample until it has been displayed.
+     */
+    private final LatencyHistogram receiveToDisplayLatency = new LatencyHistogram("receive to display");
+
+    /**
+     * Time a message has been held back until its predecessors have arrived; included in
+     * {@link #receiveToDisplayLatency}.
+     */
+    private final LatencyHistogram reorderDelay = new LatencyHistogram("reorder delay");
+
+    /**
+     * Creates a new pipeline.
+     *
+     * @param transport Connection to the data layer
+     * @param sendQueueCapacity Maximum number of messages waiting to be sent
+     * @param overflowPolicy What to do if more messages are waiting
+     * @param historyCapacity Number of samples kept in the history of every smartwatch
+     * @param historyWindows Lengths of the windows rolling statistics are kept for, in milliseconds
+     * @param alertEngineFactory Creates the alert rules of new smartwatches
+     */
+    public PhonePipeline(Transport transport, int sendQueueCapacity, SendPipeline.OverflowPolicy overflowPolicy,
+                         int historyCapacity, long[] historyWindows, AlertEngineFactory alertEngineFactory) {
+        this.nodeRegistry = new NodeRegistry(transport, NodeRegistry.DEFAULT_TTL_MILLIS);
+        this.sendPipeline = new SendPipeline("phone-sender", transport, nodeRegistry, sendQueueCapacity, overflowPolicy);
+        this.warningSender = new WarningSender(sendPipeline, timer);
+        this.historyCapacity = historyCapacity;
+        this.historyWindows = historyWindows.clone();
+        this.alertEngineFactory = alertEngineFactory;
+    }
+
+    /**
+     * Sets the session log all received heart rates are appended to.
+     *
+     * @param sessionStore The session log, or null to not store heart rates
+     */
+    public void setSessionStore(SessionStore sessionStore) {
+        this.sessionStore = sessionStore;
+    }
+
+    /**
+     * Returns the session log all received heart rates are appended to.
+     *
+     * @return The session log, or null
+     */
+    public SessionStore getSessionStore() {
+        return sessionStore;
+    }
+
+    /**
+     * Sets the store that aggregates all received heart rates, including late ones, into tiers
+     * of seconds, minutes and hours.
+     *
+     * @param rollupStore The rollup store, or null to not aggregate heart rates
+     */
+    public void setRollupStore(RollupStore rollupStore) {
+        this.rollupStore = rollupStore;
+    }
+
+    /**
+     * Returns the store that aggregates all received heart rates.
+     *
+     * @return The rollup store, or null
+     */
+    public RollupStore getRollupStore() {
+        return rollupStore;
+    }
+
+    /**
+     * Adds a listener that is notified of every summary received from now on.
+     *
+     * @param listener The listener
+     */
+    public void addSummaryListener(OnSummaryListener listener) {
+        summaryListeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added by {@link #addSummaryListener(OnSummaryListener)}.
+     *
+     * @param listener The listener
+     */
+    public void removeSummaryListener(OnSummaryListener listener) {
+        summaryListeners.remove(listener);
+    }
+
+    /**
+     * Asks all smartwatches to send heart rates and summaries, or only summaries. Smartwatches
+     * that connect later are asked as well.
+     *
+     * @param mode What the smartwatches should send
+     */
+    public void setStreamMode(StreamMode mode) {
+        streamMode = mode;
+        sendPipeline.broadcast(MessagePaths.STREAM_MODE, mode.toBytes());
+    }
+
+    public StreamMode getStreamMode() {
+        return streamMode;
+    }
+
+    /**
+     * Returns the bus that publishes the heart rates received from the smartwatches as they
+     * arrive, e.g. to subscribe the UI.
+     *
+     * @return The bus
+     */
+    public HeartRateBus getHeartRateBus() {
+        return heartRateBus;
+    }
+
+    /**
+     * Called when a message has been received.
+     *
+     * @param sourceNodeId ID of the sending node
+     * @param path The message path
+     * @param data The message
+     * @return False, if the path is unknown
+     * @throws IllegalArgumentException If the message is malformed
+     */
+    public boolean onMessageReceived(String sourceNodeId, String path, byte[] data) {
+        if (MessagePaths.HEART_RATE_SUMMARY.equals(path)) {
+            onSummaryReceived(sourceNodeId, data);
+            return true;
+        }
+        if (MessagePaths.WARNING_ACK.equals(path)) {
+            warningSender.onAck(sourceNodeId, data);
+            return true;
+        }
+        boolean backfill = MessagePaths.HEART_RATE_BACKFILL.equals(path);
+        if (!backfill && !MessagePaths.HEART_RATE.equals(path) && !MessagePaths.HEART_RATE_BATCH.equals(path)) {
+            return false;
+        }
+
+        synchronized (receiveLock) {
+            if (backfill) {
+                onBackfillReceived(sourceNodeId, data);
+            }
+            else {
+                onLiveMessageReceived(sourceNodeId, data);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called when a smartwatch has sent a summary of its heart rates. Keeps it as the latest
+     * summary of the smartwatch and notifies the listeners.
+     *
+     * @param sourceNodeId ID of the smartwatch
+     * @param data The message
+     */
+    private void onSummaryReceived(String sourceNodeId, byte[] data) {
+        HeartRateSummary summary = SummaryCodec.decode(data);
+        SourceState source = getSourceState(sourceNodeId);
+        source.onSummary(summary);
+        receivedSummaries.incrementAndGet();
+
+        for (OnSummaryListener listener : summaryListeners) {
+            listener.onSummary(source, summary);
+        }
+    }
+
+    /**
+     * Processes a message of {@link MessagePaths#HEART_RATE} or {@link MessagePaths#HEART_RATE_BATCH}.
+     * Must be called with {@link #receiveLock} held.
+     *
+     * @param sourceNodeId ID of the sending node
+     * @param data The message
+     */
+    private void onLiveMessageReceived(String sourceNodeId, byte[] data) {
+        long receivedNanos = System.nanoTime();
+        long receivedTime = System.currentTimeMillis();
+
+        samples.clear();
+        if (HeartRateCodec.isLegacy(data)) {
+            samples.add(receivedTime, HeartRateCodec.decodeLegacy(data));
+        }
+        else {
+            HeartRateCodec.decode(data, samples);
+        }
+
+        // Messages without send time are from older smartwatch apps; their latency is unknown
+        SourceState source = getSourceState(sourceNodeId);
+        ClockOffsetEstimator clockOffset = source.getClockOffset();
+        if (samples.hasSendTime()) {
+            clockOffset.update(samples.getSendTime(), receivedTime);
+            for (int i = 0; i < samples.size(); i++) {
+                sensorToReceiveLatency.record(TimeUnit.MILLISECONDS.toMicros(receivedTime - clockOffset.toLocalTime(samples.getTimestamp(i))));
+            }
+        }
+
+        // Messages without sequence number are from older smartwatch apps; they are shown as they arrive
+        if (!samples.hasSequence()) {
+            onHeartRatesReceived(source, samples, receivedNanos);
+            return;
+        }
+
+        switch (source.getReorderWindow().offer(samples.getEpoch(), samples.getSequence(), data, receivedNanos)) {
+            case ACCEPTED:
+                releaseMessages(source, data);
+                break;
+            case LATE:
+                // Newer heart rates have been shown already; only persist these ones
+                onBackfillReceived(sourceNodeId, samples);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Processes the messages of a smartwatch that its reorder window releases, in the order they
+     * have been sent. If messages are still held back, checks them again after the maximum wait
+     * time. Must be called with {@link #receiveLock} held.
+     *
+     * @param source The smartwatch
+     * @param decoded The message whose samples are in {@link #samples}, or null
+     */
+    private void releaseMessages(final SourceState source, byte[] decoded) {
+        ReorderWindow reorderWindow = source.getReorderWindow();
+        byte[] message;
+        while ((message = reorderWindow.poll(System.nanoTime())) != null) {
+            SampleBuffer released = samples;
+            if (message != decoded) {
+                reorderedSamples.clear();
+                HeartRateCodec.decode(message, reorderedSamples);
+                released = reorderedSamples;
+            }
+            if (reorderWindow.isPolledRestart()) {
+                source.onRestart();
+            }
+            long messageReceivedNanos = reorderWindow.getPolledReceivedNanos();
+            reorderDelay.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - messageReceivedNanos));
+            onHeartRatesReceived(source, released, messageReceivedNanos);
+        }
+
+        if (reorderWindow.getHeld() > 0 && scheduledReleases.add(source)) {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (receiveLock) {
+                        scheduledReleases.remove(source);
+                        releaseMessages(source, null);
+                    }
+                }
+            }, reorderWindow.getMaxWaitMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Processes the heart rates of a message in the order they have been measured.
+     *
+     * @param source The smartwatch
+     * @param received The heart rates
+     * @param receivedNanos {@link System#nanoTime()} when the message has been received
+     */
+    private void onHeartRatesReceived(SourceState source, SampleBuffer received, long receivedNanos) {
+        for (int i = 0; i < received.size(); i++) {
+            onHeartRateReceived(source, received.getTimestamp(i), received.getValue(i), receivedNanos);
+        }
+    }
+
+    /**
+     * Called when heart rates have been received that the smartwatch could not send earlier.
+     * They are only persisted and aggregated, where the stores merge them into their time
+     * position; the current heart rate, the history and the alert rules only see live heart rates.
+     *
+     * @param sourceNodeId ID of the smartwatch
+     * @param data The message
+     */
+    private void onBackfillReceived(String sourceNodeId, byte[] data) {
+        samples.clear();
+        HeartRateCodec.decode(data, samples);
+        onBackfillReceived(sourceNodeId, samples);
+    }
+
+    /**
+     * Persists and aggregates heart rates that a smartwatch could not send earlier.
+     *
+     * @param sourceNodeId ID of the smartwatch
+     * @param backfill The heart rates
+     */
+    private void onBackfillReceived(String sourceNodeId, SampleBuffer backfill) {
+        backfilledSamples.addAndGet(backfill.size());
+
+        SessionStore store = sessionStore;
+        RollupStore rollups = rollupStore;
+        if (store == null && rollups == null) {
+            return;
+        }
+        // Both stores take appends from several threads without holding each other up for a
+        // whole chunk, so a history channel does not delay live messages
+        int source = sourceNodeId.hashCode();
+        for (int i = 0; i < backfill.size(); i++) {
+            if (store != null && !store.append(backfill.getTimestamp(i), backfill.getValue(i), source)) {
+                unsavedSamples.incrementAndGet();
+            }
+            if (rollups != null) {
+                rollups.add(backfill.getTimestamp(i), backfill.getValue(i));
+            }
+        }
+    }
+
+    /**
+     * Receives the heart rates a smartwatch sends over a history channel (see
+     * {@link MessagePaths#HEART_RATE_HISTORY}) and persists them like {@link MessagePaths#HEART_RATE_BACKFILL}.
+     * Blocks until the transfer is complete; may be called on any thread.
+     *
+     * @param sourceNodeId ID of the smartwatch
+     * @param channel The channel opened by the smartwatch; not closed by this method
+     * @return Number of received heart rates
+     * @throws IOException If the channel broke off; the smartwatch resumes with the next channel
+     */
+    public long receiveHistory(String sourceNodeId, StreamChannel channel) throws IOException {
+        return historyReceiver.receive(sourceNodeId, channel);
+    }
+
+    /**
+     * Called for every heart rate received from a smartwatch.
+     *
+     * @param source The smartwatch
+     * @param timestamp Time the heart rate has been measured in milliseconds
+     * @param heartRate The received heart rate
+     * @param receivedNanos {@link System#nanoTime()} when the heart rate has been received
+     */
+    private void onHeartRateReceived(SourceState source, long timestamp, int heartRate, long receivedNanos) {
+        receivedSamples.incrementAndGet();
+
+        // Store value and evaluate the alert rules of this smartwatch; a stale heart rate is only persisted
+        boolean current = source.onSample(timestamp, heartRate);
+        if (current) {
+            latestSource = source;
+        }
+
+        SessionStore store = sessionStore;
+        if (store != null && !store.append(timestamp, heartRate, source.getNodeId().hashCode())) {
+            unsavedSamples.incrementAndGet();
+        }
+        RollupStore rollups = rollupStore;
+        if (rollups != null) {
+            rollups.add(timestamp, heartRate);
+        }
+
+        if (current) {
+            heartRateBus.publish(source.getNodeId(), timestamp, heartRate, receivedNanos);
+        }
+    }
+
+    /**
+     * Called by a subscriber of the {@link #getHeartRateBus() bus} when a heart rate has been
+     * displayed. May be called on any thread.
+     *
+     * @param receivedNanos {@link System#nanoTime()} when the heart rate has been received, as
+     *                      passed to the subscriber
+     */
+    public void onDisplayed(long receivedNanos) {
+        receiveToDisplayLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - receivedNanos));
+    }
+
+    /**
+     * Returns the state of a smartwatch. Creates it, if the smartwatch has not sent heart rates
+     * before.
+     *
+     * @param nodeId ID of the smartwatch
+     * @return The state of the smartwatch
+     */
+    private SourceState getSourceState(String nodeId) {
+        SourceState source = sources.get(nodeId);
+        if (source == null) {
+            SampleHistory history = new SampleHistory(historyCapacity, historyWindows);
+            source = new SourceState(nodeId, history, alertEngineFactory.createAlertEngine(nodeId), this);
+
+            SourceState existing = sources.putIfAbsent(nodeId, source);
+            if (existing != null) {
+                source = existing;
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Called when an alert rule of a smartwatch has triggered. Sends a warning to this smartwatch,
+     * ahead of all other messages.
+     */
+    @Override
+    public void onAlert(SourceState source, AlertRule rule, long timestamp, int heartRate) {
+        warningSender.send(source.getNodeId(), rule.getName());
+    }
+
+    /**
+     * Sends a message to all smartwatches.
+     *
+     * @param path The message path
+     * @param data The message
+     */
+    public void broadcast(String path, byte[] data) {
+        sendPipeline.broadcast(path, data);
+    }
+
+    /**
+     * Called when a peer has connected.
+     *
+     * @param nodeId ID of the peer
+     */
+    public void onPeerConnected(String nodeId) {
+        nodeRegistry.onPeerConnected(nodeId);
+
+        // A smartwatch sends everything after a restart
+        StreamMode mode = streamMode;
+        if (mode != StreamMode.RAW) {
+            sendPipeline.send(nodeId, MessagePaths.STREAM_MODE, mode.toBytes());
+        }
+    }
+
+    /**
+     * Called when a peer has disconnected.
+     *
+     * @param nodeId ID of the peer
+     */
+    public void onPeerDisconnected(String nodeId) {
+        nodeRegistry.onPeerDisconnected(nodeId);
+    }
+
+    /**
+     * Returns the state of all smartwatches that have sent heart rates.
+     *
+     * @return The state of every smartwatch
+     */
+    public Collection<SourceState> getSources() {
+        return Collections.unmodifiableCollection(sources.values());
+    }
+
+    /**
+     * Returns the smartwatch that has sent the most recent heart rate.
+     *
+     * @return The state of the smartwatch, or null if no heart rate has been received yet
+     */
+    public SourceState getLatestSource() {
+        return latestSource;
+    }
+
+    public long getReceivedSamples() {
+        return receivedSamples.get();
+    }
+
+    public long getBackfilledSamples() {
+        return backfilledSamples.get();
+    }
+
+    public long getReceivedSummaries() {
+        return receivedSummaries.get();
+    }
+
+    public long getUnsavedSamples() {
+        return unsavedSamples.get();
+    }
+
+    public LatencyHistogram getSensorToReceiveLatency() {
+        return sensorToReceiveLatency;
+    }
+
+    public LatencyHistogram getReceiveToDisplayLatency() {
+        return receiveToDisplayLatency;
+    }
+
+    public LatencyHistogram getReorderDelay() {
+        return reorderDelay;
+    }
+
+    public NodeRegistry getNodeRegistry() {
+        return nodeRegistry;
+    }
+
+    public SendPipeline getSendPipeline() {
+        return sendPipeline;
+    }
+
+    public WarningSender getWarningSender() {
+        return warningSender;
+    }
+
+    /**
+     * Stops the sending thread. Queued messages and pending warnings are discarded.
+     */
+    public void shutdown() {
+        sendPipeline.shutdown();
+        timer.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PhonePipeline[sources=%d, samples=%d, backfilled=%d, unsaved=%d, summaries=%d, %s]%n  %s%n  %s%n  %s%n  %s%n  %s%n  %s%n  %s", sources.size(), getReceivedSamples(), getBackfilledSamples(), getUnsavedSamples(),
+                getReceivedSummaries(), streamMode, nodeRegistry, sendPipeline, warningSender, sensorToReceiveLatency, receiveToDisplayLatency, reorderDelay, heartRateBus);
+    }
+}
@@ -0,0 +1,413 @@
+package com.okraku.android.heartrate.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Restores the order of the numbered messages of a smartwatch (see
+ * {@link SampleBuffer#getSequence()}), since the data layer may deliver them out of order and
+ * more than once.
+ * <p>
+ * Every message is passed to {@link #offer(long, byte[], long)}, then {@link #poll(long)}
+ * returns the messages that may be processed now, in order. A message that arrives before its
+ * predecessor is held until the predecessor arrives, until {@link #getSize()} messages are held,
+ * or until the oldest held message has waited for the maximum wait time; in the latter cases the
+ * missing messages are counted as gaps and skipped. The wait time is only checked when
+ * {@link #poll(long)} is called, so while messages are held ({@link #getHeld()}), it should be
+ * called again after the maximum wait time even if no further message arrives.
+ * <p>
+ * Duplicates of the last 64 released messages are recognized and dropped. A message that arrives
+ * after it has been skipped is late: it is still stored, but must not be shown as the current
+ * heart rate.
+ * <p>
+ * The sequence numbers start over when the app on the smartwatch is restarted. This is
+ * recognized by a new epoch (see {@link SampleBuffer#getEpoch()}); messages of the previous epoch
+ * that are still held are released first, in order, and those that arrive afterwards are late. Without epochs, a sequence number of 0 or one more than
+ * {@link #RESTART_DISTANCE} behind the expected one starts over, so that a restart whose first
+ * messages have been lost is recognized, too.
+ * <p>
+ * The window has a fixed size and holds references to the messages, so it does not allocate.
+ * Instances are not thread-safe; like {@link SourceState}, messages of a source must be passed
+ * in by a single thread. The counters may be read from any thread.
+ */
+public class ReorderWindow {
+    /**
+     * What {@link #offer(long, byte[], long)} did with a message.
+     */
+    public enum Result {
+        /**
+         * The message is in the window; {@link #poll(long)} returns it in order.
+         */
+        ACCEPTED,
+
+        /**
+         * The message has been received before and is dropped.
+         */
+        DUPLICATE,
+
+        /**
+         * The message has been skipped as a gap before it arrived; it is not in the window.
+         */
+        LATE
+    }
+
+    /**
+     * Default number of messages held while waiting for a missing one.
+     */
+    public static final int DEFAULT_SIZE = 8;
+
+    /**
+     * Default time a message is held while waiting for a missing one, in milliseconds.
+     */
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 200;
+
+    /**
+     * Number of released sequence numbers that are remembered to recognize duplicates.
+     */
+    private static final int HISTORY_BITS = 64;
+
+    /**
+     * Distance behind the expected sequence number from which a message without epoch is taken
+     * as a restart of the smartwatch rather than a late message: far more messages than the data
+     * layer reorders.
+     */
+    public static final int RESTART_DISTANCE = 1024;
+
+    /**
+     * Value of {@link #next} before the first message.
+     */
+    private static final long UNKNOWN = -1;
+
+    private final int size;
+
+    private final long maxWaitNanos;
+
+    /**
+     * The held messages in no particular order, with their sequence numbers and
+     * {@link System#nanoTime()} when they have been received. One more than {@link #size}, so a
+     * message can always be accepted before the oldest one is released.
+     */
+    private final long[] sequences;
+
+    private final byte[][] messages;
+
+    private final long[] receivedNanos;
+
+    /**
+     * Marks the held messages of the run before the last restart, which are released first.
+     */
+    private final boolean[] previousRun;
+
+    /**
+     * Number of held messages.
+     */
+    private int held = 0;
+
+    /**
+     * Number of held messages of the run before the last restart.
+     */
+    private int draining = 0;
+
+    /**
+     * Sequence number of the next message of the run before the last restart.
+     */
+    private long drainNext;
+
+    /**
+     * True after a restart until the first message of the new run has been released.
+     */
+    private boolean restarted = false;
+
+    /**
+     * Sequence number of the next message to release, or {@link #UNKNOWN}.
+     */
+    private long next = UNKNOWN;
+
+    /**
+     * Epoch of the current sequence numbers, or {@link SampleBuffer#NO_EPOCH}.
+     */
+    private long epoch = SampleBuffer.NO_EPOCH;
+
+    /**
+     * Epoch before the last restart, whose messages are late, or {@link SampleBuffer#NO_EPOCH}.
+     */
+    private long previousEpoch = SampleBuffer.NO_EPOCH;
+
+    /**
+     * Bit {@code i} is set, if sequence number {@code next - 1 - i} has been released.
+     */
+    private long released = 0;
+
+    /**
+     * Time the message returned by the last {@link #poll(long)} has been received.
+     */
+    private long polledReceivedNanos;
+
+    /**
+     * True, if the message returned by the last {@link #poll(long)} is the first one after a
+     * restart.
+     */
+    private boolean polledRestart;
+
+    private volatile long releasedMessages = 0;
+
+    private volatile long duplicates = 0;
+
+    private volatile long late = 0;
+
+    /**
+     * Number of missing messages that have been skipped.
+     */
+    private volatile long gaps = 0;
+
+    private volatile long restarts = 0;
+
+    /**
+     * Creates a new window.
+     *
+     * @param size Maximum number of messages held while waiting for a missing one
+     * @param maxWaitMillis Maximum time a message is held while waiting for a missing one
+     */
+    public ReorderWindow(int size, long maxWaitMillis) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1: " + size);
+        }
+        this.size = size;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.sequences = new long[size + 1];
+        this.messages = new byte[size + 1][];
+        this.receivedNanos = new long[size + 1];
+        this.previousRun = new boolean[size + 1];
+    }
+
+    /**
+     * Passes a received message without epoch to the window. If it is accepted,
+     * {@link #poll(long)} must be called until it returns null.
+     *
+     * @param sequence Sequence number of the message
+     * @param message The message; kept until it is released
+     * @param receivedNanos {@link System#nanoTime()} when the message has been received
+     * @return What happened to the message
+     */
+    public Result offer(long sequence, byte[] message, long receivedNanos) {
+        return offer(SampleBuffer.NO_EPOCH, sequence, message, receivedNanos);
+    }
+
+    /**
+     * Passes a received message to the window. If it is accepted, {@link #poll(long)} must be
+     * called until it returns null.
+     *
+     * @param epoch Epoch of the sequence number, or {@link SampleBuffer#NO_EPOCH}
+     * @param sequence Sequence number of the message
+     * @param message The message; kept until it is released
+     * @param receivedNanos {@link System#nanoTime()} when the message has been received
+     * @return What happened to the message
+     */
+    public Result offer(long epoch, long sequence, byte[] message, long receivedNanos) {
+        if (next == UNKNOWN) {
+            next = sequence;
+            this.epoch = epoch;
+        }
+        else if (epoch != SampleBuffer.NO_EPOCH && epoch != this.epoch) {
+            if (epoch == previousEpoch) {
+                // Sent before the restart, but received after it
+                late = late + 1;
+                return Result.LATE;
+            }
+            restart(epoch, sequence);
+        }
+        else if (epoch == SampleBuffer.NO_EPOCH && next - sequence > (sequence == 0 ? 0 : RESTART_DISTANCE) && !isReleased(sequence)) {
+            restart(epoch, sequence);
+        }
+
+        if (sequence < next) {
+            if (isReleased(sequence)) {
+                duplicates = duplicates + 1;
+                return Result.DUPLICATE;
+            }
+            late = late + 1;
+            markReleased(sequence);
+            return Result.LATE;
+        }
+        if (indexOf(sequence) >= 0) {
+            duplicates = duplicates + 1;
+            return Result.DUPLICATE;
+        }
+
+        sequences[held] = sequence;
+        messages[held] = message;
+        this.receivedNanos[held] = receivedNanos;
+        previousRun[held] = false;
+        held++;
+        return Result.ACCEPTED;
+    }
+
+    /**
+     * Returns the next message that may be processed, if any.
+     *
+     * @param nowNanos The current {@link System#nanoTime()}
+     * @return The message, or null if none may be processed now
+     */
+    public byte[] poll(long nowNanos) {
+        if (draining > 0) {
+            // The previous run is over: release what has arrived of it and skip what is missing
+            int index = -1;
+            for (int i = 0; i < held; i++) {
+                if (previousRun[i] && (index < 0 || sequences[i] < sequences[index])) {
+                    index = i;
+                }
+            }
+            gaps += sequences[index] - drainNext;
+            drainNext = sequences[index] + 1;
+            draining--;
+            polledRestart = false;
+            return remove(index);
+        }
+        if (held == 0) {
+            return null;
+        }
+
+        int index = indexOf(next);
+        if (index < 0) {
+            int oldest = 0;
+            int lowest = 0;
+            for (int i = 1; i < held; i++) {
+                if (receivedNanos[i] < receivedNanos[oldest]) {
+                    oldest = i;
+                }
+                if (sequences[i] < sequences[lowest]) {
+                    lowest = i;
+                }
+            }
+            if (held <= size && nowNanos - receivedNanos[oldest] < maxWaitNanos) {
+                return null;
+            }
+
+            // Give up on the missing messages
+            long skipped = sequences[lowest] - next;
+            gaps += skipped;
+            released = skipped >= HISTORY_BITS ? 0 : released << skipped;
+            next = sequences[lowest];
+            index = lowest;
+        }
+
+        released = (released << 1) | 1;
+        next++;
+        polledRestart = restarted;
+        restarted = false;
+        return remove(index);
+    }
+
+    /**
+     * Removes a held message to release it.
+     */
+    private byte[] remove(int index) {
+        byte[] message = messages[index];
+        polledReceivedNanos = receivedNanos[index];
+        held--;
+        sequences[index] = sequences[held];
+        messages[index] = messages[held];
+        receivedNanos[index] = receivedNanos[held];
+        previousRun[index] = previousRun[held];
+        messages[held] = null;
+        releasedMessages = releasedMessages + 1;
+        return message;
+    }
+
+    /**
+     * Returns when the message returned by the last {@link #poll(long)} has been received.
+     *
+     * @return {@link System#nanoTime()} when it has been received
+     */
+    public long getPolledReceivedNanos() {
+        return polledReceivedNanos;
+    }
+
+    /**
+     * Returns whether the message returned by the last {@link #poll(long)} is the first one of
+     * the smartwatch after a restart. Its clock may have been set back in the meantime.
+     *
+     * @return True, if the smartwatch has started over with this message
+     */
+    public boolean isPolledRestart() {
+        return polledRestart;
+    }
+
+    /**
+     * Returns the index of a held message of the current run, or -1.
+     */
+    private int indexOf(long sequence) {
+        for (int i = 0; i < held; i++) {
+            if (sequences[i] == sequence && !previousRun[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isReleased(long sequence) {
+        long distance = next - 1 - sequence;
+        return distance >= 0 && distance < HISTORY_BITS && (released & (1L << distance)) != 0;
+    }
+
+    private void markReleased(long sequence) {
+        long distance = next - 1 - sequence;
+        if (distance < HISTORY_BITS) {
+            released |= 1L << distance;
+        }
+    }
+
+    /**
+     * The smartwatch starts over; held messages of the previous run are released first.
+     */
+    private void restart(long epoch, long sequence) {
+        restarts = restarts + 1;
+        for (int i = 0; i < held; i++) {
+            previousRun[i] = true;
+        }
+        draining = held;
+        drainNext = next;
+        restarted = true;
+        next = sequence;
+        released = 0;
+        previousEpoch = this.epoch;
+        this.epoch = epoch;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+    }
+
+    public int getHeld() {
+        return held;
+    }
+
+    public long getReleasedMessages() {
+        return releasedMessages;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    public long getLate() {
+        return late;
+    }
+
+    public long getGaps() {
+        return gaps;
+    }
+
+    public long getRestarts() {
+        return restarts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ReorderWindow[released=%d, duplicates=%d, late=%d, gaps=%d, restarts=%d]",
+                releasedMessages, duplicates, late, gaps, restarts);
+    }
+}
@@ -0,0 +1,119 @@
+package com.okraku.android.heartrate.core;
+
+import java.util.Arrays;
+
+/**
+ * Collects timestamped heart rate samples until the {@link FlushPolicy} requests a flush.
+ * <p>
+ * Samples are kept in a {@link SampleBuffer} and encoded with the {@link HeartRateCodec}; both
+ * buffers are reused for every batch. All methods are synchronized, because samples are added by
+ * the sensor while flushes may be triggered by a timer.
+ */
+public class SampleBatcher {
+    /**
+     * The policy that decides when to flush.
+     */
+    private final FlushPolicy policy;
+
+    /**
+     * The collected samples.
+     */
+    private final SampleBuffer samples;
+
+    /**
+     * Buffer the batch is encoded into.
+     */
+    private final byte[] encoded;
+
+    /**
+     * Creates a new batcher.
+     *
+     * @param policy The policy that decides when to flush
+     */
+    public SampleBatcher(FlushPolicy policy) {
+        this.policy = policy;
+        this.samples = new SampleBuffer(policy.getMaxSamples());
+        this.encoded = new byte[HeartRateCodec.maxEncodedSize(policy.getMaxSamples())];
+    }
+
+    public FlushPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Adds a sample to the batch.
+     *
+     * @param timestamp Timestamp of the sample in milliseconds
+     * @param heartRate The heart rate
+     * @return True, if the batch has to be flushed now
+     */
+    public synchronized boolean add(long timestamp, int heartRate) {
+        samples.add(timestamp, heartRate);
+
+        return samples.size() >= policy.getMaxSamples() || isExpired(timestamp);
+    }
+
+    /**
+     * Returns true, if the oldest sample of the batch is older than allowed.
+     *
+     * @param now The current time in milliseconds
+     * @return True, if the batch has to be flushed
+     */
+    public synchronized boolean isExpired(long now) {
+        return !samples.isEmpty() && now - samples.getTimestamp(0) >= policy.getMaxAgeMillis();
+    }
+
+    /**
+     * Returns the number of collected samples.
+     *
+     * @return Number of samples
+     */
+    public synchronized int size() {
+        return samples.size();
+    }
+
+    /**
+     * Encodes all collected samples into a message and clears the batch.
+     * <p>
+     * The returned array is a copy, because the message client keeps a reference to it until
+     * the message has been sent.
+     *
+     * @param now The current time in milliseconds, encoded as the send time of the message
+     * @return The encoded message, or null if the batch is empty
+     */
+    public synchronized byte[] flush(long now) {
+        return flush(now, SampleBuffer.NO_SEQUENCE);
+    }
+
+    /**
+     * Encodes all collected samples into a numbered message and clears the batch.
+     *
+     * @param now The current time in milliseconds, encoded as the send time of the message
+     * @param sequence Number of the message, or {@link SampleBuffer#NO_SEQUENCE}
+     * @return The encoded message, or null if the batch is empty
+     */
+    public synchronized byte[] flush(long now, long sequence) {
+        return flush(now, SampleBuffer.NO_EPOCH, sequence);
+    }
+
+    /**
+     * Encodes all collected samples into a numbered message and clears the batch.
+     *
+     * @param now The current time in milliseconds, encoded as the send time of the message
+     * @param epoch Epoch of the sequence number, or {@link SampleBuffer#NO_EPOCH}
+     * @param sequence Number of the message, or {@link SampleBuffer#NO_SEQUENCE}
+     * @return The encoded message, or null if the batch is empty
+     */
+    public synchronized byte[] flush(long now, long epoch, long sequence) {
+        if (samples.isEmpty()) {
+            return null;
+        }
+
+        samples.setSendTime(now);
+        samples.setSequence(sequence);
+        samples.setEpoch(epoch);
+        int length = HeartRateCodec.encode(samples, encoded, 0);
+        samples.clear();
+        return Arrays.copyOf(encoded, length);
+    }
+}
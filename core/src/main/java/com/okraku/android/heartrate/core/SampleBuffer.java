@@ -0,0 +1,202 @@
+package com.okraku.android.heartrate.core;
+
+import java.util.Arrays;
+
+/**
+ * Reusable list of timestamped heart rate samples, backed by primitive arrays.
+ * <p>
+ * The buffer is meant to be reused for every message, so that encoding and decoding does not
+ * allocate. It only grows if more samples are added than fit into its current capacity.
+ * Instances are not thread-safe.
+ */
+public final class SampleBuffer {
+    /**
+     * Send time of samples whose send time is unknown.
+     */
+    public static final long NO_SEND_TIME = Long.MIN_VALUE;
+
+    /**
+     * Sequence number of samples that have not been numbered.
+     */
+    public static final long NO_SEQUENCE = -1;
+
+    /**
+     * Epoch of samples whose sender run is unknown.
+     */
+    public static final long NO_EPOCH = -1;
+
+    /**
+     * Timestamps of the samples in milliseconds.
+     */
+    private long[] timestamps;
+
+    /**
+     * Heart rates of the samples.
+     */
+    private int[] values;
+
+    /**
+     * Number of samples in the buffer.
+     */
+    private int size = 0;
+
+    /**
+     * Time the samples have been sent in milliseconds, or {@link #NO_SEND_TIME}.
+     */
+    private long sendTime = NO_SEND_TIME;
+
+    /**
+     * Number of the message of the samples, counted per sender, or {@link #NO_SEQUENCE}.
+     */
+    private long sequence = NO_SEQUENCE;
+
+    /**
+     * Identifies the run of the sender that numbered the message, or {@link #NO_EPOCH}.
+     */
+    private long epoch = NO_EPOCH;
+
+    /**
+     * Creates a new buffer.
+     *
+     * @param capacity Initial number of samples the buffer can hold
+     */
+    public SampleBuffer(int capacity) {
+        timestamps = new long[Math.max(1, capacity)];
+        values = new int[Math.max(1, capacity)];
+    }
+
+    /**
+     * Appends a sample.
+     *
+     * @param timestamp Timestamp of the sample in milliseconds
+     * @param heartRate The heart rate
+     */
+    public void add(long timestamp, int heartRate) {
+        if (size == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        timestamps[size] = timestamp;
+        values[size] = heartRate;
+        size++;
+    }
+
+    /**
+     * Removes the samples after the first ones.
+     *
+     * @param size Number of samples to keep
+     */
+    public void truncate(int size) {
+        if (size < 0 || size > this.size) {
+            throw new IllegalArgumentException(String.format("Cannot truncate %d samples to %d", this.size, size));
+        }
+        this.size = size;
+    }
+
+    /**
+     * Removes all samples, the send time, the sequence number and the epoch. The capacity is kept.
+     */
+    public void clear() {
+        size = 0;
+        sendTime = NO_SEND_TIME;
+        sequence = NO_SEQUENCE;
+        epoch = NO_EPOCH;
+    }
+
+    /**
+     * Sets the time the samples are sent, i.e. encoded into a message.
+     *
+     * @param sendTime Send time in milliseconds, or {@link #NO_SEND_TIME}
+     */
+    public void setSendTime(long sendTime) {
+        this.sendTime = sendTime;
+    }
+
+    /**
+     * Returns the time the samples have been sent.
+     *
+     * @return Send time in milliseconds, or {@link #NO_SEND_TIME} if unknown
+     */
+    public long getSendTime() {
+        return sendTime;
+    }
+
+    public boolean hasSendTime() {
+        return sendTime != NO_SEND_TIME;
+    }
+
+    /**
+     * Sets the number of the message the samples are sent in. The sender counts its messages, so
+     * that the receiver can restore their order and detect duplicates and gaps.
+     *
+     * @param sequence Sequence number, at least 0, or {@link #NO_SEQUENCE}
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Returns the number of the message the samples have been sent in.
+     *
+     * @return Sequence number, or {@link #NO_SEQUENCE} if unknown
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public boolean hasSequence() {
+        return sequence != NO_SEQUENCE;
+    }
+
+    /**
+     * Sets the epoch of the sequence number: a number the sender chooses when it starts, so that
+     * the receiver recognizes that the sequence numbers start over even if the first message of
+     * the new run is lost.
+     *
+     * @param epoch Epoch, at least 0, or {@link #NO_EPOCH}
+     */
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    /**
+     * Returns the epoch of the sequence number.
+     *
+     * @return Epoch, or {@link #NO_EPOCH} if unknown
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public boolean hasEpoch() {
+        return epoch != NO_EPOCH;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the timestamp of a sample.
+     *
+     * @param index Index of the sample
+     * @return Timestamp in milliseconds
+     */
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    /**
+     * Returns the heart rate of a sample.
+     *
+     * @param index Index of the sample
+     * @return The heart rate
+     */
+    public int getValue(int index) {
+        return values[index];
+    }
+}
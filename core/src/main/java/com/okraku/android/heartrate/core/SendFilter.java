@@ -0,0 +1,251 @@
+package com.okraku.android.heartrate.core;
+
+/**
+ * Applies a {@link SendPolicy} to the heart rates of the smartwatch.
+ * <p>
+ * Every heart rate is passed to {@link #offer(long, int)}, which decides whether it is sent now.
+ * A heart rate that is not sent is held. It is sent later by {@link #pollHeld(long)}, once the
+ * minimum interval has passed (if it exceeds the deadband) or as a keepalive once the maximum
+ * interval has passed; a newer heart rate replaces it.
+ * <p>
+ * The filter counts the sent heart rates and the error it adds, i.e. the difference between
+ * every heart rate and the last sent one, which the smartphone displays meanwhile.
+ * Instances are not thread-safe.
+ */
+public class SendFilter {
+    /**
+     * Time constant of the moving average of the rate of change in milliseconds.
+     */
+    private static final double RATE_SMOOTHING_MILLIS = 5000;
+
+    /**
+     * The policy.
+     */
+    private final SendPolicy policy;
+
+    /**
+     * Timestamp of the last sent heart rate, or {@link Long#MIN_VALUE} if none has been sent.
+     */
+    private long sentTimestamp = Long.MIN_VALUE;
+
+    private int sentHeartRate;
+
+    /**
+     * Timestamp of the held heart rate, or {@link Long#MIN_VALUE} if none is held.
+     */
+    private long heldTimestamp = Long.MIN_VALUE;
+
+    private int heldHeartRate;
+
+    /**
+     * True, if the held heart rate exceeds the deadband and only waits for the minimum interval.
+     */
+    private boolean heldSignificant;
+
+    /**
+     * Smoothed rate of change in beats per minute per second.
+     */
+    private double rate = 0;
+
+    private long previousTimestamp = Long.MIN_VALUE;
+
+    private int previousHeartRate;
+
+    private long offered = 0;
+
+    private long sent = 0;
+
+    /**
+     * Number of held heart rates that have been sent after the minimum interval.
+     */
+    private long delayed = 0;
+
+    private long keepalives = 0;
+
+    /**
+     * Number of heart rates that have been sent because of the boost.
+     */
+    private long boosted = 0;
+
+    /**
+     * Sum of the differences between every offered heart rate and the last sent one.
+     */
+    private long errorSum = 0;
+
+    private int maxError = 0;
+
+    /**
+     * Creates a new filter.
+     *
+     * @param policy The policy
+     */
+    public SendFilter(SendPolicy policy) {
+        this.policy = policy;
+    }
+
+    public SendPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Decides whether a heart rate is sent now. If not, it is held.
+     *
+     * @param timestamp Timestamp of the heart rate in milliseconds
+     * @param heartRate The heart rate
+     * @return True, if the heart rate has to be sent now
+     */
+    public boolean offer(long timestamp, int heartRate) {
+        offered++;
+        updateRate(timestamp, heartRate);
+
+        if (sentTimestamp == Long.MIN_VALUE) {
+            markSent(timestamp, heartRate);
+            return true;
+        }
+
+        long elapsed = timestamp - sentTimestamp;
+        int change = Math.abs(heartRate - sentHeartRate);
+        boolean boost = policy.isBoosted(heartRate, rate);
+
+        if (boost && change > 0) {
+            boosted++;
+            markSent(timestamp, heartRate);
+            return true;
+        }
+        boolean significant = change >= policy.getDeadband();
+        if ((significant && elapsed >= policy.getMinIntervalMillis()) || isKeepaliveDue(elapsed)) {
+            if (!significant) {
+                keepalives++;
+            }
+            markSent(timestamp, heartRate);
+            return true;
+        }
+
+        heldTimestamp = timestamp;
+        heldHeartRate = heartRate;
+        heldSignificant = significant;
+        errorSum += change;
+        maxError = Math.max(maxError, change);
+        return false;
+    }
+
+    /**
+     * Returns the time the held heart rate has to be sent.
+     *
+     * @return Time in milliseconds, or {@link Long#MAX_VALUE} if nothing has to be sent
+     */
+    public long getHeldDeadline() {
+        if (heldTimestamp == Long.MIN_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        if (heldSignificant) {
+            return sentTimestamp + policy.getMinIntervalMillis();
+        }
+        if (policy.getMaxIntervalMillis() > 0) {
+            return sentTimestamp + policy.getMaxIntervalMillis();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Marks the held heart rate as sent, if its deadline has passed.
+     *
+     * @param now The current time in milliseconds
+     * @return True, if the held heart rate has to be sent now; it is the last sent one from now
+     *         on ({@link #getSentTimestamp()}, {@link #getSentHeartRate()})
+     */
+    public boolean pollHeld(long now) {
+        if (now < getHeldDeadline()) {
+            return false;
+        }
+
+        if (heldSignificant) {
+            delayed++;
+        }
+        else {
+            keepalives++;
+        }
+        markSent(heldTimestamp, heldHeartRate);
+        return true;
+    }
+
+    public long getSentTimestamp() {
+        return sentTimestamp;
+    }
+
+    public int getSentHeartRate() {
+        return sentHeartRate;
+    }
+
+    private boolean isKeepaliveDue(long elapsed) {
+        return policy.getMaxIntervalMillis() > 0 && elapsed >= policy.getMaxIntervalMillis();
+    }
+
+    private void markSent(long timestamp, int heartRate) {
+        sent++;
+        sentTimestamp = timestamp;
+        sentHeartRate = heartRate;
+        heldTimestamp = Long.MIN_VALUE;
+    }
+
+    /**
+     * Updates the smoothed rate of change, like {@link com.okraku.android.heartrate.core.alert.RateOfChangeRule}.
+     *
+     * @param timestamp Timestamp of the heart rate in milliseconds
+     * @param heartRate The heart rate
+     */
+    private void updateRate(long timestamp, int heartRate) {
+        if (previousTimestamp != Long.MIN_VALUE && timestamp > previousTimestamp) {
+            long elapsed = timestamp - previousTimestamp;
+            double current = (heartRate - previousHeartRate) * 1000.0 / elapsed;
+            double alpha = 1 - Math.exp(-elapsed / RATE_SMOOTHING_MILLIS);
+            rate += alpha * (current - rate);
+        }
+        previousTimestamp = timestamp;
+        previousHeartRate = heartRate;
+    }
+
+    public long getOffered() {
+        return offered;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    public long getDelayed() {
+        return delayed;
+    }
+
+    public long getKeepalives() {
+        return keepalives;
+    }
+
+    public long getBoosted() {
+        return boosted;
+    }
+
+    /**
+     * Returns the average difference between the offered heart rates and the last sent one.
+     *
+     * @return Average error in beats per minute
+     */
+    public double getMeanError() {
+        return offered > 0 ? (double) errorSum / offered : 0;
+    }
+
+    /**
+     * Returns the largest difference between an offered heart rate and the last sent one.
+     *
+     * @return Maximum error in beats per minute
+     */
+    public int getMaxError() {
+        return maxError;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SendFilter[offered=%d, sent=%d (%.1f%%), delayed=%d, keepalives=%d, boosted=%d, error avg=%.2f max=%d]",
+                offered, sent, offered > 0 ? sent * 100.0 / offered : 0, delayed, keepalives, boosted, getMeanError(), maxError);
+    }
+}
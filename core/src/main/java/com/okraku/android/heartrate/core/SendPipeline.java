@@ -0,0 +1,534 @@
+package com.okraku.android.heartrate.core;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends messages on a single dedicated thread, in the order they have been enqueued.
+ * <p>
+ * Messages wait in a bounded queue. If the queue is full, the {@link OverflowPolicy} decides
+ * which message is given up. Since only one thread sends, messages to the same node always
+ * arrive in order.
+ * <p>
+ * Urgent messages, e.g. warnings, wait in a second queue of the same capacity that is emptied
+ * first, so they only wait for the message that is being sent, not for the bulk traffic queued
+ * before them. They are never conflated; if that queue is full, the oldest one is dropped.
+ * Urgent messages are in order among themselves, but may overtake other messages.
+ * <p>
+ * Background messages, e.g. heart rates sent late, wait in a third queue that is only emptied
+ * while no other message is queued. They are never dropped or conflated, so callers must bound
+ * their number, e.g. by enqueueing the next one only when {@link #isBackgroundIdle()}.
+ */
+public class SendPipeline {
+    /**
+     * Decides what happens when a message is enqueued while the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The oldest queued message is dropped.
+         */
+        DROP_OLDEST,
+
+        /**
+         * The newest queued message with the same destination and path is replaced by the new
+         * message, keeping its position in the queue. If there is none, the oldest message is
+         * dropped.
+         */
+        CONFLATE_LATEST
+    }
+
+    /**
+     * Sends a single message, usually through the message client of the data layer.
+     */
+    public interface MessageSender {
+        /**
+         * Sends a message and blocks until it has been handed over to the data layer.
+         *
+         * @param nodeId ID of the target node
+         * @param path The message path
+         * @param data The message
+         * @throws Exception If the message could not be sent
+         */
+        void sendMessage(String nodeId, String path, byte[] data) throws Exception;
+    }
+
+    /**
+     * Interface which will be notified when a broadcast message could not be sent to any node.
+     */
+    public interface OnUndeliverableListener {
+        /**
+         * Called on the sending thread when no node was connected, the nodes could not be
+         * loaded, or sending to every connected node failed. An exception thrown by the listener
+         * is counted as a failure and does not stop the sending thread.
+         *
+         * @param path The message path
+         * @param data The message
+         */
+        void onUndeliverable(String path, byte[] data);
+    }
+
+    /**
+     * A queued message.
+     */
+    private static final class Message {
+        /**
+         * ID of the target node, or null to send the message to all connected nodes.
+         */
+        final String nodeId;
+
+        final String path;
+
+        byte[] data;
+
+        /**
+         * Time the message has been enqueued (see {@link System#nanoTime()}).
+         */
+        long enqueuedAt;
+
+        Message(String nodeId, String path, byte[] data, long enqueuedAt) {
+            this.nodeId = nodeId;
+            this.path = path;
+            this.data = data;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        boolean hasSameDestination(String nodeId, String path) {
+            return this.path.equals(path) && (this.nodeId == null ? nodeId == null : this.nodeId.equals(nodeId));
+        }
+    }
+
+    /**
+     * Sends the messages.
+     */
+    private final MessageSender sender;
+
+    /**
+     * Resolves the nodes of broadcast messages.
+     */
+    private final NodeRegistry nodeRegistry;
+
+    /**
+     * Maximum number of queued messages.
+     */
+    private final int capacity;
+
+    /**
+     * What to do if the queue is full.
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * The queued messages, guarded by {@link #lock}.
+     */
+    private final ArrayDeque<Message> queue;
+
+    /**
+     * The queued urgent messages, sent before {@link #queue}. Guarded by {@link #lock}.
+     */
+    private final ArrayDeque<Message> urgentQueue;
+
+    /**
+     * The queued background messages, sent after {@link #queue}. Guarded by {@link #lock}.
+     */
+    private final ArrayDeque<Message> backgroundQueue = new ArrayDeque<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * The thread that sends the messages.
+     */
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    /**
+     * True, while the sending thread delivers a background message. Set with {@link #lock} held.
+     */
+    private volatile boolean deliveringBackground = false;
+
+    private volatile OnUndeliverableListener onUndeliverableListener;
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong conflated = new AtomicLong();
+
+    /**
+     * Number of urgent messages enqueued.
+     */
+    private final AtomicLong urgent = new AtomicLong();
+
+    /**
+     * Number of broadcast messages that could not be sent, because no node was connected, the
+     * nodes could not be loaded or sending failed for all of them.
+     */
+    private final AtomicLong undeliverable = new AtomicLong();
+
+    /**
+     * Highest number of queued messages so far.
+     */
+    private volatile int maxQueueDepth = 0;
+
+    /**
+     * Sum of the latencies of all sent messages in nanoseconds, from enqueueing until the data
+     * layer accepted the message.
+     */
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+    private volatile long maxLatencyNanos = 0;
+
+    /**
+     * Creates a new pipeline and starts its thread.
+     *
+     * @param name Name of the sending thread
+     * @param sender Sends the messages
+     * @param nodeRegistry Resolves the nodes of broadcast messages
+     * @param capacity Maximum number of queued messages
+     * @param overflowPolicy What to do if the queue is full
+     */
+    public SendPipeline(String name, MessageSender sender, NodeRegistry nodeRegistry, int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        }
+        this.sender = sender;
+        this.nodeRegistry = nodeRegistry;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.queue = new ArrayDeque<>(capacity);
+        this.urgentQueue = new ArrayDeque<>(capacity);
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processQueue();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sets a listener that will be notified when a broadcast message could not be sent to any node.
+     *
+     * @param onUndeliverableListener Listener to set, or null
+     */
+    public void setOnUndeliverableListener(OnUndeliverableListener onUndeliverableListener) {
+        this.onUndeliverableListener = onUndeliverableListener;
+    }
+
+    /**
+     * Enqueues a message to a single node.
+     *
+     * @param nodeId ID of the target node
+     * @param path The message path
+     * @param data The message
+     */
+    public void send(String nodeId, String path, byte[] data) {
+        enqueue(nodeId, path, data);
+    }
+
+    /**
+     * Enqueues a message to all connected nodes.
+     *
+     * @param path The message path
+     * @param data The message
+     */
+    public void broadcast(String path, byte[] data) {
+        enqueue(null, path, data);
+    }
+
+    /**
+     * Enqueues an urgent message to a single node, which is sent before all messages that are
+     * not urgent.
+     *
+     * @param nodeId ID of the target node
+     * @param path The message path
+     * @param data The message
+     */
+    public void sendUrgent(String nodeId, String path, byte[] data) {
+        lock.lock();
+        try {
+            if (urgentQueue.size() >= capacity) {
+                urgentQueue.pollFirst();
+                dropped.incrementAndGet();
+            }
+            urgentQueue.addLast(new Message(nodeId, path, data, System.nanoTime()));
+            urgent.incrementAndGet();
+            notEmpty.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Enqueues a background message to all connected nodes, which is sent when no other message
+     * is queued. It is never dropped or conflated.
+     *
+     * @param path The message path
+     * @param data The message
+     */
+    public void broadcastInBackground(String path, byte[] data) {
+        lock.lock();
+        try {
+            backgroundQueue.addLast(new Message(null, path, data, System.nanoTime()));
+            notEmpty.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(String nodeId, String path, byte[] data) {
+        long now = System.nanoTime();
+
+        lock.lock();
+        try {
+            if (queue.size() >= capacity) {
+                if (overflowPolicy == OverflowPolicy.CONFLATE_LATEST && conflate(nodeId, path, data, now)) {
+                    return;
+                }
+                queue.pollFirst();
+                dropped.incrementAndGet();
+            }
+
+            queue.addLast(new Message(nodeId, path, data, now));
+            if (queue.size() > maxQueueDepth) {
+                maxQueueDepth = queue.size();
+            }
+            notEmpty.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the data of the newest queued message with the same destination and path.
+     * Must be called with the lock held.
+     *
+     * @return True, if a message has been replaced
+     */
+    private boolean conflate(String nodeId, String path, byte[] data, long now) {
+        Iterator<Message> iterator = queue.descendingIterator();
+        while (iterator.hasNext()) {
+            Message message = iterator.next();
+            if (message.hasSameDestination(nodeId, path)) {
+                message.data = data;
+                message.enqueuedAt = now;
+                conflated.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void processQueue() {
+        while (running) {
+            Message message;
+
+            lock.lock();
+            try {
+                while (queue.isEmpty() && urgentQueue.isEmpty() && backgroundQueue.isEmpty() && running) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (!urgentQueue.isEmpty()) {
+                    message = urgentQueue.pollFirst();
+                }
+                else if (!queue.isEmpty()) {
+                    message = queue.pollFirst();
+                }
+                else {
+                    message = backgroundQueue.pollFirst();
+                    deliveringBackground = message != null;
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+
+            if (message != null) {
+                try {
+                    deliver(message);
+                }
+                catch (RuntimeException e) {
+                    // A faulty sender must not stop the only sending thread
+                    failed.incrementAndGet();
+                }
+                finally {
+                    deliveringBackground = false;
+                }
+            }
+        }
+    }
+
+    private void deliver(Message message) {
+        Set<String> nodeIds;
+        if (message.nodeId != null) {
+            nodeIds = Collections.singleton(message.nodeId);
+        }
+        else {
+            try {
+                nodeIds = nodeRegistry.getNodes();
+            }
+            catch (Exception e) {
+                failed.incrementAndGet();
+                onUndeliverable(message);
+                return;
+            }
+
+            if (nodeIds.isEmpty()) {
+                onUndeliverable(message);
+                return;
+            }
+        }
+
+        int delivered = 0;
+        for (String nodeId : nodeIds) {
+            try {
+                sender.sendMessage(nodeId, message.path, message.data);
+                sent.incrementAndGet();
+                delivered++;
+
+                long latency = System.nanoTime() - message.enqueuedAt;
+                totalLatencyNanos.addAndGet(latency);
+                if (latency > maxLatencyNanos) {
+                    maxLatencyNanos = latency;
+                }
+            }
+            catch (Exception e) {
+                failed.incrementAndGet();
+            }
+        }
+
+        if (delivered == 0 && message.nodeId == null) {
+            onUndeliverable(message);
+        }
+    }
+
+    private void onUndeliverable(Message message) {
+        undeliverable.incrementAndGet();
+
+        OnUndeliverableListener listener = onUndeliverableListener;
+        if (listener != null) {
+            try {
+                listener.onUndeliverable(message.path, message.data);
+            }
+            catch (RuntimeException e) {
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Stops the sending thread. Queued messages are discarded.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            running = false;
+            queue.clear();
+            urgentQueue.clear();
+            backgroundQueue.clear();
+            notEmpty.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of queued messages, including urgent and background ones.
+     *
+     * @return Current queue depth
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queue.size() + urgentQueue.size() + backgroundQueue.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true, if no background message is queued or being delivered, so that every
+     * background message enqueued before has been sent or given up.
+     *
+     * @return True, if no background message is pending
+     */
+    public boolean isBackgroundIdle() {
+        lock.lock();
+        try {
+            return backgroundQueue.isEmpty() && !deliveringBackground;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getConflated() {
+        return conflated.get();
+    }
+
+    public long getUndeliverable() {
+        return undeliverable.get();
+    }
+
+    public long getUrgent() {
+        return urgent.get();
+    }
+
+    /**
+     * Returns the average time from enqueueing a message until the data layer accepted it.
+     *
+     * @return Average latency in milliseconds
+     */
+    public double getAverageLatencyMillis() {
+        long count = sent.get();
+        return count == 0 ? 0 : totalLatencyNanos.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Returns the highest time from enqueueing a message until the data layer accepted it.
+     *
+     * @return Maximum latency in milliseconds
+     */
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SendPipeline[queued=%d (max %d of %d), sent=%d, urgent=%d, failed=%d, dropped=%d, conflated=%d, undeliverable=%d, latency avg=%.1fms max=%.1fms]",
+                getQueueDepth(), maxQueueDepth, capacity, getSent(), getUrgent(), getFailed(), getDropped(), getConflated(), getUndeliverable(), getAverageLatencyMillis(), getMaxLatencyMillis());
+    }
+}
@@ -0,0 +1,125 @@
+package com.okraku.android.heartrate.core;
+
+/**
+ * Decides which heart rates of the smartwatch are worth sending, see {@link SendFilter}.
+ * <p>
+ * A heart rate is sent if it differs from the last sent one by at least the deadband and the
+ * minimum interval has passed. While the heart rate changes quickly or is near the alert
+ * threshold of the smartphone, every change is sent immediately. If nothing has been sent for
+ * the maximum interval, the current heart rate is sent as a keepalive.
+ */
+public final class SendPolicy {
+    /**
+     * Sends every change of the heart rate, which is the behaviour of the original sensor listener.
+     */
+    public static final SendPolicy EVERY_CHANGE = new SendPolicy(1, 0, 0, 0, 0, 0);
+
+    /**
+     * Ignores changes below 3 beats per minute, sends at most once per second and at least every
+     * 30 seconds. Sends every change while the heart rate changes by more than 2 beats per minute
+     * per second or is within 5 of 100.
+     */
+    public static final SendPolicy DEFAULT = new SendPolicy(3, 1000, 30000, 2, 100, 5);
+
+    /**
+     * Minimum change of the heart rate that is sent, in beats per minute. 0 sends every heart
+     * rate, even if it has not changed.
+     */
+    private final int deadband;
+
+    /**
+     * Minimum time between two sent heart rates in milliseconds, unless boosted.
+     */
+    private final long minIntervalMillis;
+
+    /**
+     * Maximum time between two sent heart rates in milliseconds. 0 disables keepalives.
+     */
+    private final long maxIntervalMillis;
+
+    /**
+     * Every change is sent while the heart rate changes faster than this, in beats per minute
+     * per second. 0 disables this boost.
+     */
+    private final double fastChangePerSecond;
+
+    /**
+     * Alert threshold of the smartphone. 0 disables this boost.
+     */
+    private final int alertThreshold;
+
+    /**
+     * Every change is sent while the heart rate is within this margin of the alert threshold.
+     */
+    private final int thresholdMargin;
+
+    /**
+     * Creates a new send policy.
+     *
+     * @param deadband Minimum change that is sent in beats per minute (0 = every heart rate)
+     * @param minIntervalMillis Minimum time between two sent heart rates in milliseconds
+     * @param maxIntervalMillis Maximum time between two sent heart rates in milliseconds (0 = no keepalives)
+     * @param fastChangePerSecond Every change is sent while the heart rate changes faster than this (0 = disabled)
+     * @param alertThreshold Alert threshold of the smartphone (0 = disabled)
+     * @param thresholdMargin Every change is sent while the heart rate is within this margin of the threshold
+     */
+    public SendPolicy(int deadband, long minIntervalMillis, long maxIntervalMillis, double fastChangePerSecond, int alertThreshold, int thresholdMargin) {
+        if (deadband < 0) {
+            throw new IllegalArgumentException("deadband must not be negative: " + deadband);
+        }
+        if (minIntervalMillis < 0) {
+            throw new IllegalArgumentException("minIntervalMillis must not be negative: " + minIntervalMillis);
+        }
+        if (maxIntervalMillis != 0 && maxIntervalMillis < minIntervalMillis) {
+            throw new IllegalArgumentException(String.format("maxIntervalMillis must not be less than minIntervalMillis: %d < %d", maxIntervalMillis, minIntervalMillis));
+        }
+        this.deadband = deadband;
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.fastChangePerSecond = fastChangePerSecond;
+        this.alertThreshold = alertThreshold;
+        this.thresholdMargin = thresholdMargin;
+    }
+
+    public int getDeadband() {
+        return deadband;
+    }
+
+    public long getMinIntervalMillis() {
+        return minIntervalMillis;
+    }
+
+    public long getMaxIntervalMillis() {
+        return maxIntervalMillis;
+    }
+
+    public double getFastChangePerSecond() {
+        return fastChangePerSecond;
+    }
+
+    public int getAlertThreshold() {
+        return alertThreshold;
+    }
+
+    public int getThresholdMargin() {
+        return thresholdMargin;
+    }
+
+    /**
+     * Returns true, if every change should be sent immediately.
+     *
+     * @param heartRate The current heart rate
+     * @param ratePerSecond The current rate of change in beats per minute per second
+     * @return True, if deadband and minimum interval do not apply
+     */
+    public boolean isBoosted(int heartRate, double ratePerSecond) {
+        return (fastChangePerSecond > 0 && Math.abs(ratePerSecond) > fastChangePerSecond)
+                || (alertThreshold > 0 && Math.abs(heartRate - alertThreshold) <= thresholdMargin);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SendPolicy[deadband=%d, minIntervalMillis=%d, maxIntervalMillis=%d, fastChangePerSecond=%.1f, alertThreshold=%d, thresholdMargin=%d]",
+                deadband, minIntervalMillis, maxIntervalMillis, fastChangePerSecond, alertThreshold, thresholdMargin);
+    }
+}
@@ -0,0 +1,217 @@
+package com.okraku.android.heartrate.core;
+
+import com.okraku.android.heartrate.core.alert.AlertEngine;
+import com.okraku.android.heartrate.core.alert.AlertRule;
+import com.okraku.android.heartrate.core.history.SampleHistory;
+
+/**
+ * Everything the smartphone knows about a single smartwatch: its latest heart rate, its history
+ * and the state of its alert rules.
+ * <p>
+ * Samples of a source must be passed in by a single thread. The latest value and the history
+ * may be read from any thread.
+ */
+public class SourceState implements AlertEngine.OnAlertListener {
+    /**
+     * Interface which will be called when an alert rule of a source has triggered.
+     */
+    public interface OnSourceAlertListener {
+        /**
+         * Called when an alert rule has triggered.
+         *
+         * @param source The source whose heart rate triggered the rule
+         * @param rule The rule
+         * @param timestamp Timestamp of the sample in milliseconds
+         * @param heartRate The heart rate
+         */
+        void onAlert(SourceState source, AlertRule rule, long timestamp, int heartRate);
+    }
+
+    /**
+     * ID of the node that sends the samples.
+     */
+    private final String nodeId;
+
+    /**
+     * History of the samples of this source.
+     */
+    private final SampleHistory history;
+
+    /**
+     * Alert rules, evaluated for every sample of this source.
+     */
+    private final AlertEngine alertEngine;
+
+    /**
+     * Notified when an alert rule has triggered.
+     */
+    private final OnSourceAlertListener alertListener;
+
+    /**
+     * Offset between the clock of the source and the local clock.
+     */
+    private final ClockOffsetEstimator clockOffset = new ClockOffsetEstimator(ClockOffsetEstimator.DEFAULT_WINDOW_MILLIS);
+
+    /**
+     * Restores the order of the messages of the source.
+     */
+    private final ReorderWindow reorderWindow = new ReorderWindow(ReorderWindow.DEFAULT_SIZE, ReorderWindow.DEFAULT_MAX_WAIT_MILLIS);
+
+    /**
+     * The most recent heart rate.
+     */
+    private volatile int latestValue = 0;
+
+    /**
+     * Timestamp of the most recent heart rate in milliseconds.
+     */
+    private volatile long latestTimestamp = 0;
+
+    /**
+     * The most recent summary of the heart rates, or null.
+     */
+    private volatile HeartRateSummary latestSummary;
+
+    /**
+     * Number of samples received from this source. Only written by the receiving thread.
+     */
+    private volatile long sampleCount = 0;
+
+    /**
+     * Number of samples older than the most recent heart rate. Only written by the receiving
+     * thread.
+     */
+    private volatile long staleCount = 0;
+
+    /**
+     * True after the source has started over, until its next sample. Only used by the receiving
+     * thread.
+     */
+    private boolean restarted = false;
+
+    /**
+     * Creates the state of a new source.
+     *
+     * @param nodeId ID of the node that sends the samples
+     * @param history History for the samples of this source
+     * @param alertEngine Alert rules for this source; must not be shared with other sources
+     * @param alertListener Notified when an alert rule has triggered
+     */
+    public SourceState(String nodeId, SampleHistory history, AlertEngine alertEngine, OnSourceAlertListener alertListener) {
+        this.nodeId = nodeId;
+        this.history = history;
+        this.alertEngine = alertEngine;
+        this.alertListener = alertListener;
+    }
+
+    /**
+     * Processes a new sample of this source: stores it and evaluates the alert rules. A sample
+     * older than the most recent heart rate is ignored, so it never replaces a newer one, unless
+     * the source has started over before it (see {@link #onRestart()}).
+     *
+     * @param timestamp Timestamp of the sample in milliseconds
+     * @param heartRate The heart rate
+     * @return False, if the sample is older than the most recent heart rate
+     */
+    public boolean onSample(long timestamp, int heartRate) {
+        if (timestamp < latestTimestamp && !restarted) {
+            staleCount = staleCount + 1;
+            return false;
+        }
+        restarted = false;
+
+        latestValue = heartRate;
+        latestTimestamp = timestamp;
+        sampleCount = sampleCount + 1;
+
+        history.add(timestamp, heartRate);
+        alertEngine.evaluate(timestamp, heartRate, this);
+        return true;
+    }
+
+    /**
+     * Called when the source has started over, as recognized by its {@link #getReorderWindow()
+     * reorder window}. Its clock may have been set back in the meantime, so its next sample is
+     * current even if it is older than the most recent heart rate.
+     */
+    public void onRestart() {
+        restarted = true;
+    }
+
+    /**
+     * Keeps a new summary of the heart rates of this source.
+     *
+     * @param summary The summary
+     */
+    public void onSummary(HeartRateSummary summary) {
+        latestSummary = summary;
+    }
+
+    @Override
+    public void onAlert(AlertRule rule, long timestamp, int heartRate) {
+        alertListener.onAlert(this, rule, timestamp, heartRate);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public SampleHistory getHistory() {
+        return history;
+    }
+
+    public AlertEngine getAlertEngine() {
+        return alertEngine;
+    }
+
+    /**
+     * Returns the offset between the clock of the source and the local clock. It must only be
+     * updated by the thread that passes in the samples.
+     *
+     * @return The clock offset estimator of this source
+     */
+    public ClockOffsetEstimator getClockOffset() {
+        return clockOffset;
+    }
+
+    /**
+     * Returns the window that restores the order of the messages of the source. It must only be
+     * used by the thread that passes in the samples.
+     *
+     * @return The reorder window of this source
+     */
+    public ReorderWindow getReorderWindow() {
+        return reorderWindow;
+    }
+
+    public int getLatestValue() {
+        return latestValue;
+    }
+
+    public long getLatestTimestamp() {
+        return latestTimestamp;
+    }
+
+    /**
+     * Returns the most recent summary of the heart rates of this source.
+     *
+     * @return The summary, or null if none has been received yet
+     */
+    public HeartRateSummary getLatestSummary() {
+        return latestSummary;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public long getStaleCount() {
+        return staleCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Source %s: latest=%d at %d, samples=%d, stale=%d, history=%d, %s, %s, %s, %s", nodeId, latestValue, latestTimestamp, sampleCount, staleCount, history.size(), clockOffset, reorderWindow, alertEngine,
+                latestSummary != null ? latestSummary : "no summary");
+    }
+}
@@ -0,0 +1,40 @@
+package com.okraku.android.heartrate.core;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * What a smartwatch sends to the smartphones, chosen by a smartphone on
+ * {@link MessagePaths#STREAM_MODE}.
+ */
+public enum StreamMode {
+    /**
+     * Every heart rate worth sending and a summary per window. The default.
+     */
+    RAW,
+
+    /**
+     * Only a summary per window, which saves most of the radio traffic. Heart rates are neither
+     * sent nor kept for later.
+     */
+    SUMMARY_ONLY;
+
+    /**
+     * Returns the message that requests this mode.
+     *
+     * @return The name of the mode as ASCII
+     */
+    public byte[] toBytes() {
+        return name().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Parses a message on {@link MessagePaths#STREAM_MODE}.
+     *
+     * @param data The message
+     * @return The requested mode
+     * @throws IllegalArgumentException If the mode is unknown
+     */
+    public static StreamMode fromBytes(byte[] data) {
+        return valueOf(new String(data, StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,123 @@
+package com.okraku.android.heartrate.core;
+
+import java.util.Arrays;
+
+/**
+ * Binary wire format for {@link HeartRateSummary heart rate summaries}, used on
+ * {@link MessagePaths#HEART_RATE_SUMMARY}:
+ * <pre>
+ * byte    MAGIC (0xB9, never a valid ASCII character)
+ * byte    VERSION
+ * varint  start of the window in milliseconds
+ * varint  length of the window in milliseconds
+ * varint  number of heart rates
+ * varint  mean, min, max heart rate in 1/100 beats per minute
+ * varint  RMSSD in 1/100 milliseconds
+ * zig-zag varint slope in 1/100 beats per minute per minute
+ * varint  baseline in 1/100 beats per minute
+ * </pre>
+ * A summary takes about 25 bytes; a minute of heart rates at one per second takes 60 messages
+ * of about 16 bytes each, plus the overhead of the data layer per message.
+ * <p>
+ * The fixed point values are rounded to 1/100, which is below the resolution of the sensor.
+ */
+public final class SummaryCodec {
+    /**
+     * First byte of every summary.
+     */
+    public static final byte MAGIC = (byte) 0xB9;
+
+    /**
+     * Current version of the format.
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * Maximum size of an encoded summary in bytes.
+     */
+    public static final int MAX_ENCODED_SIZE = 2 + 9 * 10;
+
+    /**
+     * Factor of the fixed point values.
+     */
+    private static final float SCALE = 100f;
+
+    private SummaryCodec() {
+    }
+
+    /**
+     * Encodes a summary.
+     *
+     * @param summary The summary
+     * @param out Target array, at least {@link #MAX_ENCODED_SIZE} bytes long
+     * @param offset Offset in the target array
+     * @return Number of bytes written
+     */
+    public static int encode(HeartRateSummary summary, byte[] out, int offset) {
+        if (out.length - offset < MAX_ENCODED_SIZE) {
+            throw new IllegalArgumentException("Buffer too small for a summary: " + (out.length - offset) + " bytes");
+        }
+
+        int pos = offset;
+        out[pos++] = MAGIC;
+        out[pos++] = VERSION;
+        pos = HeartRateCodec.writeVarLong(summary.getStartTimestamp(), out, pos);
+        pos = HeartRateCodec.writeVarLong(summary.getEndTimestamp() - summary.getStartTimestamp(), out, pos);
+        pos = HeartRateCodec.writeVarLong(summary.getCount(), out, pos);
+        pos = HeartRateCodec.writeVarLong(toFixedPoint(summary.getMean()), out, pos);
+        pos = HeartRateCodec.writeVarLong(toFixedPoint(summary.getMin()), out, pos);
+        pos = HeartRateCodec.writeVarLong(toFixedPoint(summary.getMax()), out, pos);
+        pos = HeartRateCodec.writeVarLong(toFixedPoint(summary.getRmssd()), out, pos);
+        pos = HeartRateCodec.writeVarLong(HeartRateCodec.zigZag(Math.round(summary.getSlope() * SCALE)), out, pos);
+        pos = HeartRateCodec.writeVarLong(toFixedPoint(summary.getBaseline()), out, pos);
+        return pos - offset;
+    }
+
+    /**
+     * Encodes a summary into a new array of its exact size, e.g. to send it.
+     *
+     * @param summary The summary
+     * @return The encoded summary
+     */
+    public static byte[] encode(HeartRateSummary summary) {
+        byte[] out = new byte[MAX_ENCODED_SIZE];
+        return Arrays.copyOf(out, encode(summary, out, 0));
+    }
+
+    /**
+     * Decodes a summary.
+     *
+     * @param data The encoded summary
+     * @return The summary
+     * @throws IllegalArgumentException If the summary is malformed or of an unknown version
+     */
+    public static HeartRateSummary decode(byte[] data) {
+        if (data.length < 2 || data[0] != MAGIC) {
+            throw new IllegalArgumentException("Not a heart rate summary");
+        }
+        if (data[1] != VERSION) {
+            throw new IllegalArgumentException("Unsupported version: " + data[1]);
+        }
+
+        long[] fields = new long[9];
+        int pos = 2;
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = HeartRateCodec.readVarLong(data, pos, data.length);
+            pos += HeartRateCodec.varLongSize(fields[i]);
+        }
+        if (pos != data.length) {
+            throw new IllegalArgumentException(String.format("%d trailing bytes", data.length - pos));
+        }
+        if (fields[2] > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid number of heart rates: " + fields[2]);
+        }
+
+        return new HeartRateSummary(fields[0], fields[0] + fields[1], (int) fields[2],
+                fields[3] / SCALE, fields[4] / SCALE, fields[5] / SCALE, fields[6] / SCALE,
+                HeartRateCodec.unZigZag(fields[7]) / SCALE, fields[8] / SCALE);
+    }
+
+    private static long toFixedPoint(float value) {
+        return Math.max(0, Math.round(value * SCALE));
+    }
+}
@@ -0,0 +1,12 @@
+package com.okraku.android.heartrate.core;
+
+/**
+ * Connection to the data layer: sends messages to nodes and lists the connected nodes.
+ * <p>
+ * On devices this is implemented with the message and node clients of the Wearable API;
+ * {@link InMemoryDataLayer} provides an implementation for running the pipelines on a plain JVM.
+ * Incoming messages are passed to {@link WatchPipeline} or {@link PhonePipeline} by whoever
+ * receives them.
+ */
+public interface Transport extends SendPipeline.MessageSender, NodeRegistry.NodeLoader {
+}
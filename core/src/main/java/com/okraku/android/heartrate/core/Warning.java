@@ -0,0 +1,57 @@
+package com.okraku.android.heartrate.core;
+
+/**
+ * A warning sent by a smartphone to a smartwatch when an alert rule has triggered (see
+ * {@link WarningCodec}).
+ * <p>
+ * Instances are immutable.
+ */
+public final class Warning {
+    /**
+     * ID of warnings from older smartphone apps, which are neither acknowledged nor sent again.
+     */
+    public static final long NO_ID = -1;
+
+    /**
+     * ID of the warning, unique per smartphone, or {@link #NO_ID}.
+     */
+    private final long id;
+
+    /**
+     * Name of the alert rule that has triggered.
+     */
+    private final String rule;
+
+    /**
+     * Creates a new warning.
+     *
+     * @param id ID of the warning, unique per smartphone, or {@link #NO_ID}
+     * @param rule Name of the alert rule that has triggered
+     */
+    public Warning(long id, String rule) {
+        this.id = id;
+        this.rule = rule;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Returns whether the warning has an ID, i.e. must be acknowledged.
+     *
+     * @return False for warnings of older smartphone apps
+     */
+    public boolean hasId() {
+        return id != NO_ID;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Warning[id=%d, rule=%s]", id, rule);
+    }
+}
@@ -0,0 +1,116 @@
+package com.okraku.android.heartrate.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary wire format of {@link Warning warnings} on {@link MessagePaths#WARNING} and of their
+ * acknowledgements on {@link MessagePaths#WARNING_ACK}:
+ * <pre>
+ * warning:         byte MAGIC (0xBA), byte VERSION, varint ID, UTF-8 name of the alert rule
+ * acknowledgement: byte MAGIC (0xBA), byte VERSION, varint ID
+ * </pre>
+ * Older smartphone apps send only the name of the alert rule. Names start with a character, and
+ * 0xBA never starts a UTF-8 character, so those warnings are decoded with {@link Warning#NO_ID}.
+ */
+public final class WarningCodec {
+    /**
+     * First byte of every warning and acknowledgement.
+     */
+    public static final byte MAGIC = (byte) 0xBA;
+
+    /**
+     * Current version of the format.
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * Size of the header and the longest ID in bytes.
+     */
+    private static final int MAX_HEADER_SIZE = 2 + 10;
+
+    private WarningCodec() {
+    }
+
+    /**
+     * Encodes a warning.
+     *
+     * @param id ID of the warning, not negative
+     * @param rule Name of the alert rule that has triggered
+     * @return The encoded warning
+     */
+    public static byte[] encode(long id, String rule) {
+        if (id < 0) {
+            throw new IllegalArgumentException("id must not be negative: " + id);
+        }
+        byte[] name = rule.getBytes(StandardCharsets.UTF_8);
+        byte[] out = new byte[MAX_HEADER_SIZE + name.length];
+        int pos = writeHeader(id, out);
+        System.arraycopy(name, 0, out, pos, name.length);
+        return Arrays.copyOf(out, pos + name.length);
+    }
+
+    /**
+     * Decodes a warning, including the ones of older smartphone apps.
+     *
+     * @param data The encoded warning
+     * @return The warning
+     * @throws IllegalArgumentException If the warning is of an unknown version
+     */
+    public static Warning decode(byte[] data) {
+        if (data.length == 0 || data[0] != MAGIC) {
+            return new Warning(Warning.NO_ID, new String(data, StandardCharsets.UTF_8));
+        }
+        long id = readId(data);
+        int pos = 2 + HeartRateCodec.varLongSize(id);
+        return new Warning(id, new String(data, pos, data.length - pos, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes the acknowledgement of a warning.
+     *
+     * @param id ID of the warning
+     * @return The encoded acknowledgement
+     */
+    public static byte[] encodeAck(long id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("id must not be negative: " + id);
+        }
+        byte[] out = new byte[MAX_HEADER_SIZE];
+        return Arrays.copyOf(out, writeHeader(id, out));
+    }
+
+    /**
+     * Decodes the acknowledgement of a warning.
+     *
+     * @param data The encoded acknowledgement
+     * @return ID of the acknowledged warning
+     * @throws IllegalArgumentException If the acknowledgement is malformed or of an unknown version
+     */
+    public static long decodeAck(byte[] data) {
+        if (data.length == 0 || data[0] != MAGIC) {
+            throw new IllegalArgumentException("Not a warning acknowledgement");
+        }
+        long id = readId(data);
+        if (2 + HeartRateCodec.varLongSize(id) != data.length) {
+            throw new IllegalArgumentException(String.format("%d trailing bytes", data.length - 2 - HeartRateCodec.varLongSize(id)));
+        }
+        return id;
+    }
+
+    private static int writeHeader(long id, byte[] out) {
+        out[0] = MAGIC;
+        out[1] = VERSION;
+        return HeartRateCodec.writeVarLong(id, out, 2);
+    }
+
+    private static long readId(byte[] data) {
+        if (data.length < 3) {
+            throw new IllegalArgumentException("Truncated warning");
+        }
+        if (data[1] != VERSION) {
+            throw new IllegalArgumentException("Unsupported version: " + data[1]);
+        }
+        return HeartRateCodec.readVarLong(data, 2, data.length);
+    }
+}
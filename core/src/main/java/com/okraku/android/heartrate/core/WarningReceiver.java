@@ -0,0 +1,154 @@
+package com.okraku.android.heartrate.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how a smartwatch shows the warnings it receives: warnings that have been received
+ * already, because the smartphone has sent them again, are dropped, and warnings that follow
+ * shortly after an alert only update the shown notification instead of alerting the user again.
+ * <p>
+ * The IDs of the last {@link #RECENT_IDS} warnings are kept, which covers all retries of a
+ * warning (see {@link WarningSender}). Warnings of older smartphone apps have no ID and are
+ * never dropped, but coalesced as well.
+ */
+public class WarningReceiver {
+    /**
+     * How a warning is shown.
+     */
+    public enum Result {
+        /**
+         * The warning has been received already and is not shown again.
+         */
+        DUPLICATE,
+
+        /**
+         * The user is alerted, e.g. by a vibration.
+         */
+        ALERT,
+
+        /**
+         * The notification is updated silently, since the user has been alerted shortly before.
+         */
+        UPDATE
+    }
+
+    /**
+     * Default time after an alert during which further warnings only update the notification:
+     * one minute.
+     */
+    public static final long DEFAULT_COALESCE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Number of warning IDs kept to recognize duplicates.
+     */
+    public static final int RECENT_IDS = 32;
+
+    private final long coalesceMillis;
+
+    /**
+     * IDs of the last received warnings and the hash codes of their senders, in a ring.
+     */
+    private final long[] recentIds = new long[RECENT_IDS];
+
+    private final int[] recentNodes = new int[RECENT_IDS];
+
+    private int recentCount = 0;
+
+    private int recentNext = 0;
+
+    /**
+     * Time of the last alert in milliseconds.
+     */
+    private long lastAlert = Long.MIN_VALUE;
+
+    /**
+     * Number of warnings since the last alert, including the one that alerted.
+     */
+    private int coalesced = 0;
+
+    /**
+     * Name of the alert rule of the most recent warning, or null.
+     */
+    private String latestRule;
+
+    private volatile long received = 0;
+
+    private volatile long duplicates = 0;
+
+    private volatile long alerts = 0;
+
+    /**
+     * Creates a new receiver.
+     *
+     * @param coalesceMillis Time after an alert during which further warnings only update the
+     *                       notification, in milliseconds
+     */
+    public WarningReceiver(long coalesceMillis) {
+        this.coalesceMillis = coalesceMillis;
+    }
+
+    /**
+     * Called when a warning has been received.
+     *
+     * @param sourceNodeId ID of the smartphone
+     * @param warning The warning
+     * @param now The current time in milliseconds
+     * @return How to show the warning
+     */
+    public synchronized Result onWarning(String sourceNodeId, Warning warning, long now) {
+        received = received + 1;
+        if (warning.hasId()) {
+            int node = sourceNodeId.hashCode();
+            for (int i = 0; i < recentCount; i++) {
+                if (recentIds[i] == warning.getId() && recentNodes[i] == node) {
+                    duplicates = duplicates + 1;
+                    return Result.DUPLICATE;
+                }
+            }
+            recentIds[recentNext] = warning.getId();
+            recentNodes[recentNext] = node;
+            recentNext = (recentNext + 1) % RECENT_IDS;
+            recentCount = Math.min(recentCount + 1, RECENT_IDS);
+        }
+
+        latestRule = warning.getRule();
+        if (lastAlert != Long.MIN_VALUE && now - lastAlert >= 0 && now - lastAlert < coalesceMillis) {
+            coalesced++;
+            return Result.UPDATE;
+        }
+        lastAlert = now;
+        coalesced = 1;
+        alerts = alerts + 1;
+        return Result.ALERT;
+    }
+
+    /**
+     * Returns the number of warnings shown by the current notification.
+     *
+     * @return Warnings since the last alert, including the one that alerted
+     */
+    public synchronized int getCoalesced() {
+        return coalesced;
+    }
+
+    public synchronized String getLatestRule() {
+        return latestRule;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    public long getAlerts() {
+        return alerts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("WarningReceiver[received=%d, duplicates=%d, alerts=%d, coalesced=%d]", received, duplicates, alerts, getCoalesced());
+    }
+}
@@ -0,0 +1,214 @@
+package com.okraku.android.heartrate.core;
+
+import com.okraku.android.heartrate.core.metrics.LatencyHistogram;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends warnings to smartwatches on the urgent lane of a {@link SendPipeline} and sends them
+ * again until the smartwatch acknowledges them on {@link MessagePaths#WARNING_ACK}.
+ * <p>
+ * The time until the next attempt starts at {@link #INITIAL_RETRY_MILLIS} and doubles up to
+ * {@link #MAX_RETRY_MILLIS}; after {@link #MAX_ATTEMPTS} attempts the warning is given up, e.g.
+ * because the smartwatch runs an older app that does not acknowledge warnings. Smartwatches
+ * recognize warnings they have received already by their ID, so retries never show a warning
+ * twice.
+ * <p>
+ * IDs start at the current time in milliseconds, so that they stay unique when the app is
+ * restarted. All methods may be called from any thread.
+ */
+public class WarningSender {
+    /**
+     * Time until a warning is sent again for the first time, in milliseconds.
+     */
+    public static final long INITIAL_RETRY_MILLIS = 500;
+
+    /**
+     * Longest time between two attempts, in milliseconds.
+     */
+    public static final long MAX_RETRY_MILLIS = 8000;
+
+    /**
+     * Number of attempts, including the first one, after which a warning is given up: about
+     * 23 seconds in total.
+     */
+    public static final int MAX_ATTEMPTS = 7;
+
+    /**
+     * A warning that has not been acknowledged yet.
+     */
+    private final class Pending implements Runnable {
+        final long id;
+
+        final String nodeId;
+
+        final byte[] data;
+
+        /**
+         * {@link System#nanoTime()} of the first attempt.
+         */
+        final long sentNanos;
+
+        /**
+         * Number of attempts so far. Only accessed by the timer after the first attempt.
+         */
+        int attempts = 1;
+
+        long retryMillis = INITIAL_RETRY_MILLIS;
+
+        Pending(long id, String nodeId, byte[] data, long sentNanos) {
+            this.id = id;
+            this.nodeId = nodeId;
+            this.data = data;
+            this.sentNanos = sentNanos;
+        }
+
+        /**
+         * Sends the warning again, unless it has been acknowledged meanwhile.
+         */
+        @Override
+        public void run() {
+            if (!pending.containsKey(id)) {
+                return;
+            }
+            if (attempts >= MAX_ATTEMPTS) {
+                if (pending.remove(id) != null) {
+                    expired.incrementAndGet();
+                }
+                return;
+            }
+            attempts++;
+            retries.incrementAndGet();
+            sendPipeline.sendUrgent(nodeId, MessagePaths.WARNING, data);
+            retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+            schedule(this);
+        }
+    }
+
+    private final SendPipeline sendPipeline;
+
+    /**
+     * Runs the retries.
+     */
+    private final ScheduledExecutorService timer;
+
+    private final AtomicLong nextId = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * Warnings that have not been acknowledged or given up yet, by ID.
+     */
+    private final ConcurrentHashMap<Long, Pending> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Time from the first attempt until the acknowledgement has been received.
+     */
+    private final LatencyHistogram ackLatency = new LatencyHistogram("warning ack");
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private final AtomicLong acknowledged = new AtomicLong();
+
+    /**
+     * Number of acknowledgements of warnings that have been acknowledged or given up already.
+     */
+    private final AtomicLong lateAcks = new AtomicLong();
+
+    /**
+     * Number of warnings given up after {@link #MAX_ATTEMPTS} attempts.
+     */
+    private final AtomicLong expired = new AtomicLong();
+
+    /**
+     * Creates a new sender.
+     *
+     * @param sendPipeline Sends the warnings on its urgent lane
+     * @param timer Runs the retries
+     */
+    public WarningSender(SendPipeline sendPipeline, ScheduledExecutorService timer) {
+        this.sendPipeline = sendPipeline;
+        this.timer = timer;
+    }
+
+    /**
+     * Sends a warning to a smartwatch until it is acknowledged.
+     *
+     * @param nodeId ID of the smartwatch
+     * @param rule Name of the alert rule that has triggered
+     * @return ID of the warning
+     */
+    public long send(String nodeId, String rule) {
+        long id = nextId.getAndIncrement();
+        Pending warning = new Pending(id, nodeId, WarningCodec.encode(id, rule), System.nanoTime());
+        pending.put(id, warning);
+        sent.incrementAndGet();
+        sendPipeline.sendUrgent(nodeId, MessagePaths.WARNING, warning.data);
+        schedule(warning);
+        return id;
+    }
+
+    private void schedule(Pending warning) {
+        timer.schedule(warning, warning.retryMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called when a smartwatch has acknowledged a warning. Stops sending it.
+     *
+     * @param sourceNodeId ID of the smartwatch
+     * @param data The message
+     * @throws IllegalArgumentException If the message is malformed
+     */
+    public void onAck(String sourceNodeId, byte[] data) {
+        long id = WarningCodec.decodeAck(data);
+        Pending warning = pending.get(id);
+        if (warning == null || !warning.nodeId.equals(sourceNodeId) || !pending.remove(id, warning)) {
+            lateAcks.incrementAndGet();
+            return;
+        }
+        acknowledged.incrementAndGet();
+        ackLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - warning.sentNanos));
+    }
+
+    /**
+     * Returns the number of warnings that have not been acknowledged or given up yet.
+     *
+     * @return Number of pending warnings
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    public LatencyHistogram getAckLatency() {
+        return ackLatency;
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getAcknowledged() {
+        return acknowledged.get();
+    }
+
+    public long getLateAcks() {
+        return lateAcks.get();
+    }
+
+    public long getExpired() {
+        return expired.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("WarningSender[sent=%d, pending=%d, acknowledged=%d, retries=%d, expired=%d, late acks=%d, %s]",
+                getSent(), getPending(), getAcknowledged(), getRetries(), getExpired(), getLateAcks(), ackLatency);
+    }
+}
@@ -0,0 +1,719 @@
+package com.okraku.android.heartrate.core;
+
+import com.okraku.android.heartrate.core.store.SampleSpool;
+import com.okraku.android.heartrate.core.sync.HistorySender;
+import com.okraku.android.heartrate.core.sync.StreamChannel;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sending side of the smartwatch: selects the heart rates worth sending according to a
+ * {@link SendPolicy}, batches them according to a {@link FlushPolicy}, encodes them and sends
+ * them to all connected nodes.
+ * <p>
+ * Heart rates that cannot be sent, because no node is connected, are kept in a
+ * {@link SampleSpool}, if one is set. When a node connects, they are sent in bulk over a channel
+ * on {@link MessagePaths#HEART_RATE_HISTORY}, if a {@link HistorySender.ChannelOpener} is set,
+ * while live heart rates keep flowing as messages. Otherwise, or if the channel fails, they are
+ * sent on {@link MessagePaths#HEART_RATE_BACKFILL} in large batches. Only one batch is sent per
+ * interval, and only while no other message is waiting, so live heart rates are not delayed.
+ * <p>
+ * Summaries of windows of heart rates are sent on {@link MessagePaths#HEART_RATE_SUMMARY}. A
+ * smartphone that only needs those can switch off the heart rates with
+ * {@link StreamMode#SUMMARY_ONLY}.
+ */
+public class WatchPipeline {
+    /**
+     * Default maximum number of spooled heart rates sent in one message (about 1.5 KB).
+     */
+    public static final int DEFAULT_BACKFILL_BATCH_SIZE = 500;
+
+    /**
+     * Default time between two messages of spooled heart rates in milliseconds.
+     */
+    public static final long DEFAULT_BACKFILL_INTERVAL_MILLIS = 250;
+
+    /**
+     * Number of possible epochs; fits into two bytes of the message header.
+     */
+    private static final int EPOCHS = 1 << 14;
+
+    /**
+     * Connected nodes, kept up to date by peer events.
+     */
+    private final NodeRegistry nodeRegistry;
+
+    /**
+     * Sends all messages in order on a single thread.
+     */
+    private final SendPipeline sendPipeline;
+
+    /**
+     * Flushes batches whose oldest sample exceeds the maximum age and sends held heart rates.
+     */
+    private final ScheduledExecutorService flushTimer;
+
+    /**
+     * Sends spooled heart rates over history channels.
+     */
+    private final ExecutorService historyExecutor;
+
+    /**
+     * Collects heart rates until they are sent as one message. Guarded by this.
+     */
+    private SampleBatcher batcher = new SampleBatcher(FlushPolicy.PER_SAMPLE);
+
+    /**
+     * Sequence number of the next live message, so that the smartphone can restore the order of
+     * the messages and drop duplicates. Guarded by this.
+     */
+    private long nextSequence = 0;
+
+    /**
+     * Epoch of the sequence numbers, chosen at random for every pipeline, so that the smartphone
+     * recognizes that they start over even if the first message is lost.
+     */
+    private final long epoch = new Random().nextInt(EPOCHS);
+
+    /**
+     * The scheduled flush of the current batch, if any. Guarded by this.
+     */
+    private ScheduledFuture<?> pendingFlush;
+
+    /**
+     * Time the last warning has been received in milliseconds, or {@link FlushPolicy#NO_WARNING}.
+     * Guarded by this.
+     */
+    private long warningTimestamp = FlushPolicy.NO_WARNING;
+
+    /**
+     * Selects the heart rates that are sent. Guarded by this.
+     */
+    private SendFilter sendFilter = new SendFilter(SendPolicy.EVERY_CHANGE);
+
+    /**
+     * The scheduled send of the heart rate held by the send filter, if any. Guarded by this.
+     */
+    private ScheduledFuture<?> pendingHeld;
+
+    /**
+     * Time {@link #pendingHeld} is scheduled for in milliseconds. Guarded by this.
+     */
+    private long pendingHeldDeadline;
+
+    /**
+     * Incremented whenever {@link #pendingHeld} is replaced or cancelled, so that a send that
+     * has already started when it was cancelled can tell. Guarded by this.
+     */
+    private long pendingHeldGeneration;
+
+    /**
+     * What is sent, as chosen by the smartphone.
+     */
+    private volatile StreamMode streamMode = StreamMode.RAW;
+
+    /**
+     * Keeps heart rates that could not be sent, if set.
+     */
+    private volatile SampleSpool spool;
+
+    /**
+     * Buffer for heart rates decoded from undeliverable messages. Only used by the sending thread.
+     */
+    private final SampleBuffer undeliverableSamples = new SampleBuffer(32);
+
+    /**
+     * Maximum number of spooled heart rates sent in one message. Guarded by this.
+     */
+    private int backfillBatchSize = DEFAULT_BACKFILL_BATCH_SIZE;
+
+    /**
+     * Time between two messages of spooled heart rates in milliseconds. Guarded by this.
+     */
+    private long backfillIntervalMillis = DEFAULT_BACKFILL_INTERVAL_MILLIS;
+
+    /**
+     * Buffer for spooled heart rates that are sent next. Guarded by this.
+     */
+    private final SampleBuffer backfillSamples = new SampleBuffer(DEFAULT_BACKFILL_BATCH_SIZE);
+
+    /**
+     * Buffer for the encoded spooled heart rates. Guarded by this.
+     */
+    private byte[] backfillData = new byte[HeartRateCodec.maxEncodedSize(DEFAULT_BACKFILL_BATCH_SIZE)];
+
+    /**
+     * The periodic send of spooled heart rates, if running. Guarded by this.
+     */
+    private ScheduledFuture<?> backfill;
+
+    /**
+     * Opens history channels, if set.
+     */
+    private volatile HistorySender.ChannelOpener channelOpener;
+
+    /**
+     * Sends the spooled heart rates over a history channel. Guarded by this.
+     */
+    private HistorySender historySender;
+
+    /**
+     * True, while spooled heart rates are sent over a history channel. Guarded by this.
+     */
+    private boolean historySyncRunning;
+
+    /**
+     * Number of spooled heart rates that have been sent over history channels.
+     */
+    private final AtomicLong historySamples = new AtomicLong();
+
+    /**
+     * Number of history channels that failed.
+     */
+    private final AtomicLong historyFailures = new AtomicLong();
+
+    /**
+     * Number of heart rates put into the spool.
+     */
+    private final AtomicLong spooledSamples = new AtomicLong();
+
+    /**
+     * Number of spooled heart rates that have been sent again.
+     */
+    private final AtomicLong backfilledSamples = new AtomicLong();
+
+    /**
+     * Number of heart rates that have not been sent, because the smartphone only wants summaries.
+     */
+    private final AtomicLong skippedSamples = new AtomicLong();
+
+    /**
+     * Number of summaries that have been sent.
+     */
+    private final AtomicLong sentSummaries = new AtomicLong();
+
+    /**
+     * Creates a new pipeline.
+     *
+     * @param transport Connection to the data layer
+     * @param sendQueueCapacity Maximum number of messages waiting to be sent
+     * @param overflowPolicy What to do if more messages are waiting
+     */
+    public WatchPipeline(Transport transport, int sendQueueCapacity, SendPipeline.OverflowPolicy overflowPolicy) {
+        nodeRegistry = new NodeRegistry(transport, NodeRegistry.DEFAULT_TTL_MILLIS);
+        sendPipeline = new SendPipeline("watch-sender", transport, nodeRegistry, sendQueueCapacity, overflowPolicy);
+        flushTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "watch-flush-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        historyExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "watch-history-sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sendPipeline.setOnUndeliverableListener(new SendPipeline.OnUndeliverableListener() {
+            @Override
+            public void onUndeliverable(String path, byte[] data) {
+                spool(path, data);
+            }
+        });
+    }
+
+    /**
+     * Sets the policy that decides how many heart rates are collected before they are sent.
+     * Pending heart rates of the previous policy are sent immediately.
+     *
+     * @param policy The new flush policy
+     */
+    public synchronized void setFlushPolicy(FlushPolicy policy) {
+        flush();
+        batcher = new SampleBatcher(policy);
+    }
+
+    public synchronized FlushPolicy getFlushPolicy() {
+        return batcher.getPolicy();
+    }
+
+    /**
+     * Sets the policy that decides which heart rates are sent. A heart rate held by the previous
+     * policy is dropped, and the statistics of the previous policy are reset.
+     *
+     * @param policy The new send policy
+     */
+    public synchronized void setSendPolicy(SendPolicy policy) {
+        cancelHeld();
+        sendFilter = new SendFilter(policy);
+    }
+
+    public synchronized SendPolicy getSendPolicy() {
+        return sendFilter.getPolicy();
+    }
+
+    /**
+     * Passes a new heart rate to the {@link SendPolicy}. If it is worth sending, it is sent to all
+     * connected nodes, either immediately or as part of a batch, depending on the current
+     * {@link FlushPolicy}.
+     *
+     * @param timestamp Timestamp of the heart rate in milliseconds
+     * @param heartRate The heart rate
+     */
+    public synchronized void onHeartRate(long timestamp, int heartRate) {
+        if (streamMode == StreamMode.SUMMARY_ONLY) {
+            skippedSamples.incrementAndGet();
+            return;
+        }
+        if (sendFilter.offer(timestamp, heartRate)) {
+            cancelHeld();
+            batch(timestamp, heartRate);
+        }
+        else {
+            scheduleHeld();
+        }
+    }
+
+    /**
+     * Passes a batch of heart rates, e.g. from the sensor FIFO, to the pipeline at once, like
+     * {@link #onHeartRate(long, int)} for each of them.
+     *
+     * @param samples The heart rates in the order they have been measured
+     */
+    public synchronized void onHeartRates(SampleBuffer samples) {
+        for (int i = 0; i < samples.size(); i++) {
+            onHeartRate(samples.getTimestamp(i), samples.getValue(i));
+        }
+    }
+
+    /**
+     * Makes sure the heart rate held by the send filter is sent by its deadline.
+     */
+    private void scheduleHeld() {
+        long deadline = sendFilter.getHeldDeadline();
+        if (deadline == Long.MAX_VALUE || (pendingHeld != null && pendingHeldDeadline <= deadline)) {
+            return;
+        }
+
+        cancelHeld();
+        pendingHeldDeadline = deadline;
+        final long generation = pendingHeldGeneration;
+        pendingHeld = flushTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onHeldDeadline(generation);
+            }
+        }, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called by the timer when the heart rate held by the send filter may have to be sent.
+     *
+     * @param generation Value of {@link #pendingHeldGeneration} when the send was scheduled
+     */
+    private synchronized void onHeldDeadline(long generation) {
+        if (generation != pendingHeldGeneration) {
+            // Cancelled after it had started; a newer send may be scheduled already
+            return;
+        }
+        pendingHeld = null;
+        pendingHeldGeneration++;
+        if (sendFilter.pollHeld(System.currentTimeMillis())) {
+            batch(sendFilter.getSentTimestamp(), sendFilter.getSentHeartRate());
+        }
+        else {
+            scheduleHeld();
+        }
+    }
+
+    private void cancelHeld() {
+        if (pendingHeld != null) {
+            pendingHeld.cancel(false);
+            pendingHeld = null;
+            pendingHeldGeneration++;
+        }
+    }
+
+    /**
+     * Adds a heart rate that is worth sending to the current batch.
+     *
+     * @param timestamp Timestamp of the heart rate in milliseconds
+     * @param heartRate The heart rate
+     */
+    private void batch(long timestamp, int heartRate) {
+        if (batcher.add(timestamp, heartRate) || batcher.getPolicy().isUrgent(timestamp, warningTimestamp)) {
+            flush();
+        }
+        else if (pendingFlush == null) {
+            // First sample of a new batch: make sure it does not wait longer than allowed
+            pendingFlush = flushTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, batcher.getPolicy().getMaxAgeMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Called when a warning has been received from a smartphone. Sends the collected heart rates
+     * now and, depending on the {@link FlushPolicy}, every heart rate immediately for a while.
+     *
+     * @param now The current time in milliseconds
+     */
+    public synchronized void onWarningReceived(long now) {
+        warningTimestamp = now;
+        flush();
+    }
+
+    /**
+     * Sends all collected heart rates as one message.
+     */
+    public synchronized void flush() {
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+
+        byte[] data = batcher.flush(System.currentTimeMillis(), epoch, nextSequence);
+        if (data != null) {
+            nextSequence++;
+            String path = batcher.getPolicy().isPerSample() ? MessagePaths.HEART_RATE : MessagePaths.HEART_RATE_BATCH;
+            sendPipeline.broadcast(path, data);
+        }
+    }
+
+    /**
+     * Sends the summary of a window of heart rates, regardless of the {@link StreamMode}.
+     * Summaries that cannot be delivered are dropped, since they are only of interest while they
+     * are current.
+     *
+     * @param summary The summary
+     */
+    public void onSummary(HeartRateSummary summary) {
+        sendPipeline.broadcast(MessagePaths.HEART_RATE_SUMMARY, SummaryCodec.encode(summary));
+        sentSummaries.incrementAndGet();
+    }
+
+    /**
+     * Sets what is sent, as requested by a smartphone on {@link MessagePaths#STREAM_MODE}. With
+     * several smartphones, the last request applies to all of them. Heart rates collected so far
+     * are still sent.
+     *
+     * @param mode The new stream mode
+     */
+    public synchronized void setStreamMode(StreamMode mode) {
+        if (mode == StreamMode.SUMMARY_ONLY) {
+            cancelHeld();
+            flush();
+        }
+        streamMode = mode;
+    }
+
+    public StreamMode getStreamMode() {
+        return streamMode;
+    }
+
+    /**
+     * Sets the spool that keeps heart rates which could not be sent. If it contains heart rates
+     * already, sending them is started.
+     *
+     * @param spool The spool, or null to drop heart rates that cannot be sent
+     */
+    public synchronized void setSpool(SampleSpool spool) {
+        this.spool = spool;
+        historySender = spool != null ? new HistorySender(spool, HistorySender.DEFAULT_CHUNK_SIZE, HistorySender.DEFAULT_WINDOW) : null;
+        if (spool == null) {
+            stopBackfill();
+        }
+        else {
+            startBackfill();
+        }
+    }
+
+    public SampleSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * Sets the opener of history channels. If set, spooled heart rates are sent over a channel in
+     * compressed chunks; backfill messages are only used if the channel fails.
+     *
+     * @param channelOpener Opens channels to other nodes, or null to only use backfill messages
+     */
+    public void setChannelOpener(HistorySender.ChannelOpener channelOpener) {
+        this.channelOpener = channelOpener;
+    }
+
+    /**
+     * Sets how fast spooled heart rates are sent as backfill messages. Takes effect the next time sending them starts.
+     *
+     * @param batchSize Maximum number of heart rates sent in one message
+     * @param intervalMillis Time between two messages in milliseconds
+     */
+    public synchronized void setBackfillRate(int batchSize, long intervalMillis) {
+        if (batchSize < 1 || intervalMillis < 1) {
+            throw new IllegalArgumentException(String.format("Invalid backfill rate: %d samples per %dms", batchSize, intervalMillis));
+        }
+        backfillBatchSize = batchSize;
+        backfillIntervalMillis = intervalMillis;
+        backfillData = new byte[HeartRateCodec.maxEncodedSize(batchSize)];
+    }
+
+    /**
+     * Called on the sending thread when a message could not be sent to any node. Puts its heart
+     * rates into the spool; summaries are dropped. Spooled heart rates are put back in front of
+     * the spool, so that they are sent again in their order.
+     *
+     * @param path The message path
+     * @param data The message
+     */
+    private void spool(String path, byte[] data) {
+        SampleSpool current = spool;
+        if (current == null) {
+            return;
+        }
+
+        if (MessagePaths.HEART_RATE_SUMMARY.equals(path)) {
+            return;
+        }
+        undeliverableSamples.clear();
+        HeartRateCodec.decode(data, undeliverableSamples);
+        if (MessagePaths.HEART_RATE_BACKFILL.equals(path)) {
+            // The node is gone again: keep the rest until the next one connects
+            current.addFirst(undeliverableSamples);
+            backfilledSamples.addAndGet(-undeliverableSamples.size());
+            stopBackfill();
+            return;
+        }
+
+        current.addAll(undeliverableSamples);
+        spooledSamples.addAndGet(undeliverableSamples.size());
+    }
+
+    /**
+     * Starts sending the spooled heart rates, unless the spool is empty or they are being sent
+     * already.
+     */
+    private synchronized void startBackfill() {
+        SampleSpool current = spool;
+        if (current == null || current.isEmpty() || backfill != null || historySyncRunning) {
+            return;
+        }
+
+        if (channelOpener != null) {
+            historySyncRunning = true;
+            historyExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    syncHistory();
+                }
+            });
+        }
+        else {
+            startBackfillMessages();
+        }
+    }
+
+    /**
+     * Sends the spooled heart rates over a history channel to a connected node. Runs on the
+     * history thread; falls back to backfill messages if the channel fails.
+     */
+    private void syncHistory() {
+        HistorySender sender;
+        synchronized (this) {
+            sender = historySender;
+        }
+
+        boolean failed = false;
+        try {
+            Set<String> nodeIds = nodeRegistry.getNodes();
+            HistorySender.ChannelOpener opener = channelOpener;
+            if (sender != null && opener != null && !nodeIds.isEmpty()) {
+                // The spool holds the samples of all nodes, so one node receives them
+                StreamChannel channel = opener.openChannel(nodeIds.iterator().next(), MessagePaths.HEART_RATE_HISTORY);
+                try {
+                    historySamples.addAndGet(sender.send(channel));
+                }
+                finally {
+                    channel.close();
+                }
+            }
+        }
+        catch (Exception e) {
+            historyFailures.incrementAndGet();
+            failed = true;
+        }
+
+        synchronized (this) {
+            historySyncRunning = false;
+            if (failed) {
+                startBackfillMessages();
+            }
+        }
+    }
+
+    /**
+     * Starts sending the spooled heart rates as backfill messages, unless they are being sent
+     * already.
+     */
+    private synchronized void startBackfillMessages() {
+        if (backfill != null) {
+            return;
+        }
+
+        backfill = flushTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sendBackfill();
+            }
+        }, 0, backfillIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopBackfill() {
+        if (backfill != null) {
+            backfill.cancel(false);
+            backfill = null;
+        }
+    }
+
+    /**
+     * Called by the timer: sends the next batch of spooled heart rates, unless the previous batch
+     * is still waiting.
+     */
+    private synchronized void sendBackfill() {
+        SampleSpool current = spool;
+        if (current == null || current.isEmpty()) {
+            stopBackfill();
+            if (current != null) {
+                current.force();
+            }
+            return;
+        }
+
+        // One batch at a time keeps the order if it cannot be sent and is put back into the
+        // spool. Background messages wait for the live ones and are never dropped for them
+        if (!sendPipeline.isBackgroundIdle()) {
+            return;
+        }
+
+        backfillSamples.clear();
+        long position = current.peek(backfillSamples, backfillBatchSize);
+        int length = HeartRateCodec.encode(backfillSamples, backfillData, 0);
+
+        // Removed before sending; if the message cannot be sent, its heart rates are put back
+        // in front of the spool
+        current.remove(position, backfillSamples.size());
+        backfilledSamples.addAndGet(backfillSamples.size());
+        sendPipeline.broadcastInBackground(MessagePaths.HEART_RATE_BACKFILL, Arrays.copyOf(backfillData, length));
+    }
+
+    /**
+     * Called when a peer has connected. Starts sending the spooled heart rates.
+     *
+     * @param nodeId ID of the peer
+     */
+    public void onPeerConnected(String nodeId) {
+        nodeRegistry.onPeerConnected(nodeId);
+        startBackfill();
+    }
+
+    /**
+     * Called when a peer has disconnected.
+     *
+     * @param nodeId ID of the peer
+     */
+    public void onPeerDisconnected(String nodeId) {
+        nodeRegistry.onPeerDisconnected(nodeId);
+    }
+
+    /**
+     * Returns the statistics of the current send policy: sent heart rates and the added error.
+     *
+     * @return A single line
+     */
+    public synchronized String getSendStats() {
+        return sendFilter.toString();
+    }
+
+    public NodeRegistry getNodeRegistry() {
+        return nodeRegistry;
+    }
+
+    public SendPipeline getSendPipeline() {
+        return sendPipeline;
+    }
+
+    public long getSpooledSamples() {
+        return spooledSamples.get();
+    }
+
+    public long getBackfilledSamples() {
+        return backfilledSamples.get();
+    }
+
+    public long getHistorySamples() {
+        return historySamples.get();
+    }
+
+    public long getHistoryFailures() {
+        return historyFailures.get();
+    }
+
+    public long getSkippedSamples() {
+        return skippedSamples.get();
+    }
+
+    public long getSentSummaries() {
+        return sentSummaries.get();
+    }
+
+    /**
+     * Returns true, while spooled heart rates are being sent.
+     *
+     * @return True, if sending spooled heart rates is running
+     */
+    public synchronized boolean isBackfilling() {
+        return backfill != null || historySyncRunning;
+    }
+
+    /**
+     * Returns the statistics of the spool: spooled heart rates and the ones sent again.
+     *
+     * @return A single line
+     */
+    public String getSpoolStats() {
+        SampleSpool current = spool;
+        return String.format("Backfill[spooled=%d, sent=%d, history=%d, historyFailures=%d, running=%b] %s",
+                getSpooledSamples(), getBackfilledSamples(), getHistorySamples(), getHistoryFailures(), isBackfilling(),
+                current != null ? current : "SampleSpool not open");
+    }
+
+    /**
+     * Stops all threads of the pipeline. Collected and queued heart rates are discarded.
+     */
+    public void shutdown() {
+        flushTimer.shutdownNow();
+        historyExecutor.shutdownNow();
+        sendPipeline.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("WatchPipeline[%s, %s, %s, skipped=%d, summaries=%d]%n  %s%n  %s%n  %s%n  %s", getSendPolicy(), getFlushPolicy(), streamMode,
+                getSkippedSamples(), getSentSummaries(), getSendStats(), nodeRegistry, sendPipeline, getSpoolStats());
+    }
+}
@@ -0,0 +1,74 @@
+package com.okraku.android.heartrate.core.alert;
+
+import java.util.Arrays;
+
+/**
+ * Evaluates a set of {@link AlertRule}s for every heart rate sample.
+ * <p>
+ * Evaluating a sample costs a constant amount of work per rule and does not allocate.
+ * Instances are not thread-safe.
+ */
+public class AlertEngine {
+    /**
+     * Interface which will be called when a rule has triggered.
+     */
+    public interface OnAlertListener {
+        /**
+         * Called when a rule has triggered.
+         *
+         * @param rule The rule
+         * @param timestamp Timestamp of the sample that triggered the rule in milliseconds
+         * @param heartRate The heart rate that triggered the rule
+         */
+        void onAlert(AlertRule rule, long timestamp, int heartRate);
+    }
+
+    /**
+     * The rules to evaluate.
+     */
+    private final AlertRule[] rules;
+
+    /**
+     * Creates a new engine.
+     *
+     * @param rules The rules to evaluate
+     */
+    public AlertEngine(AlertRule... rules) {
+        this.rules = Arrays.copyOf(rules, rules.length);
+    }
+
+    /**
+     * Evaluates all rules for a sample.
+     *
+     * @param timestamp Timestamp of the sample in milliseconds
+     * @param heartRate The heart rate
+     * @param listener Listener for triggered rules, may be null
+     * @return Number of triggered rules
+     */
+    public int evaluate(long timestamp, int heartRate, OnAlertListener listener) {
+        int triggered = 0;
+        for (AlertRule rule : rules) {
+            if (rule.evaluate(timestamp, heartRate)) {
+                triggered++;
+                if (listener != null) {
+                    listener.onAlert(rule, timestamp, heartRate);
+                }
+            }
+        }
+        return triggered;
+    }
+
+    /**
+     * Returns the number of rules.
+     *
+     * @return Number of rules
+     */
+    public int getRuleCount() {
+        return rules.length;
+    }
+
+    @Override
+    public String toString() {
+        return "AlertEngine" + Arrays.toString(rules);
+    }
+}
@@ -0,0 +1,113 @@
+package com.okraku.android.heartrate.core.alert;
+
+/**
+ * A rule that is evaluated for every heart rate sample and may trigger an alert.
+ * <p>
+ * A rule keeps a constant amount of state. After it has triggered, it is disarmed until its
+ * re-arm condition holds (hysteresis), and it does not trigger again within its cooldown.
+ * Instances are not thread-safe; every source of samples needs its own rules.
+ */
+public abstract class AlertRule {
+    /**
+     * Name of the rule, used in logs and warnings.
+     */
+    private final String name;
+
+    /**
+     * Minimum time between two alerts of this rule in milliseconds.
+     */
+    private final long cooldownMillis;
+
+    /**
+     * False after the rule has triggered, until the re-arm condition holds.
+     */
+    private boolean armed = true;
+
+    /**
+     * Time of the last alert in milliseconds.
+     */
+    private long lastAlert = Long.MIN_VALUE;
+
+    /**
+     * Number of alerts triggered by this rule.
+     */
+    private int alertCount = 0;
+
+    /**
+     * Creates a new rule.
+     *
+     * @param name Name of the rule
+     * @param cooldownMillis Minimum time between two alerts in milliseconds
+     */
+    protected AlertRule(String name, long cooldownMillis) {
+        this.name = name;
+        this.cooldownMillis = cooldownMillis;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isArmed() {
+        return armed;
+    }
+
+    public int getAlertCount() {
+        return alertCount;
+    }
+
+    /**
+     * Evaluates the rule for a new sample.
+     *
+     * @param timestamp Timestamp of the sample in milliseconds
+     * @param heartRate The heart rate
+     * @return True, if the rule has triggered an alert
+     */
+    public final boolean evaluate(long timestamp, int heartRate) {
+        update(timestamp, heartRate);
+
+        if (!armed) {
+            armed = canRearm(timestamp, heartRate);
+            return false;
+        }
+
+        if (isTriggered(timestamp, heartRate) && (lastAlert == Long.MIN_VALUE || timestamp - lastAlert >= cooldownMillis)) {
+            armed = false;
+            lastAlert = timestamp;
+            alertCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Updates the state of the rule with a new sample. Called before any other method.
+     *
+     * @param timestamp Timestamp of the sample in milliseconds
+     * @param heartRate The heart rate
+     */
+    protected abstract void update(long timestamp, int heartRate);
+
+    /**
+     * Returns true, if the alert condition holds for the current state.
+     *
+     * @param timestamp Timestamp of the sample in milliseconds
+     * @param heartRate The heart rate
+     * @return True, if an alert should be triggered
+     */
+    protected abstract boolean isTriggered(long timestamp, int heartRate);
+
+    /**
+     * Returns true, if the rule may trigger again after it has triggered.
+     *
+     * @param timestamp Timestamp of the sample in milliseconds
+     * @param heartRate The heart rate
+     * @return True, if the rule should be armed again
+     */
+    protected abstract boolean canRearm(long timestamp, int heartRate);
+
+    @Override
+    public String toString() {
+        return String.format("%s[armed=%b, alerts=%d]", name, armed, alertCount);
+    }
+}
@@ -0,0 +1,73 @@
+package com.okraku.android.heartrate.core.alert;
+
+/**
+ * Triggers if the heart rate rises faster than a given rate.
+ * <p>
+ * The rate is smoothed with an exponentially weighted moving average, so single outliers do not
+ * trigger the rule. It is armed again once the smoothed rate has dropped below half the limit.
+ */
+public class RateOfChangeRule extends AlertRule {
+    /**
+     * Maximum allowed rise in beats per minute per second.
+     */
+    private final double maxRatePerSecond;
+
+    /**
+     * Time constant of the moving average in milliseconds.
+     */
+    private final double smoothingMillis;
+
+    /**
+     * Smoothed rate in beats per minute per second.
+     */
+    private double rate = 0;
+
+    private long previousTimestamp = Long.MIN_VALUE;
+
+    private int previousHeartRate;
+
+    /**
+     * Creates a new rule.
+     *
+     * @param name Name of the rule
+     * @param maxRatePerSecond Maximum allowed rise in beats per minute per second
+     * @param smoothingMillis Time constant of the moving average in milliseconds
+     * @param cooldownMillis Minimum time between two alerts in milliseconds
+     */
+    public RateOfChangeRule(String name, double maxRatePerSecond, long smoothingMillis, long cooldownMillis) {
+        super(name, cooldownMillis);
+        this.maxRatePerSecond = maxRatePerSecond;
+        this.smoothingMillis = Math.max(1, smoothingMillis);
+    }
+
+    /**
+     * Returns the smoothed rate of change.
+     *
+     * @return Rate in beats per minute per second
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    @Override
+    protected void update(long timestamp, int heartRate) {
+        if (previousTimestamp != Long.MIN_VALUE && timestamp > previousTimestamp) {
+            long elapsed = timestamp - previousTimestamp;
+            double current = (heartRate - previousHeartRate) * 1000.0 / elapsed;
+            double alpha = 1 - Math.exp(-elapsed / smoothingMillis);
+            rate += alpha * (current - rate);
+        }
+        previousTimestamp = timestamp;
+        previousHeartRate = heartRate;
+    }
+
+    @Override
+    protected boolean isTriggered(long timestamp, int heartRate) {
+        return rate > maxRatePerSecond;
+    }
+
+    @Override
+    protected boolean canRearm(long timestamp, int heartRate) {
+        return rate < maxRatePerSecond / 2;
+    }
+}
@@ -0,0 +1,66 @@
+package com.okraku.android.heartrate.core.alert;
+
+/**
+ * Triggers if the heart rate stays above a threshold for a given time. It is armed again once
+ * the heart rate has dropped below a lower bound.
+ */
+public class SustainedAboveRule extends AlertRule {
+    /**
+     * The heart rate has to be above this value.
+     */
+    private final int threshold;
+
+    /**
+     * How long the heart rate has to be above the threshold, in milliseconds.
+     */
+    private final long durationMillis;
+
+    /**
+     * The rule is armed again below this heart rate.
+     */
+    private final int rearmBelow;
+
+    /**
+     * Time the heart rate has exceeded the threshold, or {@link Long#MIN_VALUE} if it is below.
+     */
+    private long aboveSince = Long.MIN_VALUE;
+
+    /**
+     * Creates a new rule.
+     *
+     * @param name Name of the rule
+     * @param threshold The heart rate has to be above this value
+     * @param durationMillis How long the heart rate has to be above the threshold (0 = immediately)
+     * @param rearmBelow The rule is armed again below this heart rate
+     * @param cooldownMillis Minimum time between two alerts in milliseconds
+     */
+    public SustainedAboveRule(String name, int threshold, long durationMillis, int rearmBelow, long cooldownMillis) {
+        super(name, cooldownMillis);
+        if (rearmBelow > threshold) {
+            throw new IllegalArgumentException(String.format("rearmBelow (%d) must not be above threshold (%d)", rearmBelow, threshold));
+        }
+        this.threshold = threshold;
+        this.durationMillis = durationMillis;
+        this.rearmBelow = rearmBelow;
+    }
+
+    @Override
+    protected void update(long timestamp, int heartRate) {
+        if (heartRate <= threshold) {
+            aboveSince = Long.MIN_VALUE;
+        }
+        else if (aboveSince == Long.MIN_VALUE) {
+            aboveSince = timestamp;
+        }
+    }
+
+    @Override
+    protected boolean isTriggered(long timestamp, int heartRate) {
+        return aboveSince != Long.MIN_VALUE && timestamp - aboveSince >= durationMillis;
+    }
+
+    @Override
+    protected boolean canRearm(long timestamp, int heartRate) {
+        return heartRate < rearmBelow;
+    }
+}
@@ -0,0 +1,247 @@
+package com.okraku.android.heartrate.core.analytics;
+
+import com.okraku.android.heartrate.core.HeartRateSummary;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes aggregates of the heart rates of the sensor as they arrive, in constant memory, and
+ * summarizes them once per window (see {@link HeartRateSummary}):
+ * <ul>
+ *     <li>mean, minimum and maximum</li>
+ *     <li>variability: the root mean square of the successive differences (RMSSD) of the beat
+ *     intervals, derived from the heart rates as {@code 60000 / heart rate} milliseconds. The
+ *     sensor reports averaged heart rates instead of single beats, so this is an approximation
+ *     of the RMSSD of an ECG, but it follows its changes</li>
+ *     <li>trend: the slope of the least squares line through the heart rates</li>
+ *     <li>resting baseline: an exponential moving average of the heart rate with a time constant
+ *     of {@link #getBaselineMillis()}, which rises {@link #BASELINE_RISE_FACTOR} times slower
+ *     than it falls, so that it stays near the resting heart rate during exercise</li>
+ * </ul>
+ * The windows are aligned to multiples of their length since the epoch, so summaries of
+ * several smartwatches cover the same time ranges. Everything but the baseline is computed
+ * exactly per window; heart rates that are older than the current window are ignored.
+ * <p>
+ * The heart rates are not rounded, so the variability is not lost to the integer heart rates
+ * that are sent. Instances are not thread-safe; heart rates must be passed in by a single thread.
+ * Only a summary is allocated per window.
+ */
+public class HeartRateAnalytics {
+    /**
+     * Default length of the windows: one minute.
+     */
+    public static final long DEFAULT_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Default time constant of the baseline: ten minutes.
+     */
+    public static final long DEFAULT_BASELINE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * The baseline rises this many times slower than it falls.
+     */
+    public static final int BASELINE_RISE_FACTOR = 4;
+
+    /**
+     * Milliseconds per minute, to convert heart rates into beat intervals and times into minutes.
+     */
+    private static final double MILLIS_PER_MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    private final long windowMillis;
+
+    private final long baselineMillis;
+
+    /**
+     * Start of the current window in milliseconds, or {@link Long#MIN_VALUE} before the first
+     * heart rate.
+     */
+    private long windowStart = Long.MIN_VALUE;
+
+    /**
+     * Number of heart rates in the current window.
+     */
+    private int count;
+
+    private float min;
+
+    private float max;
+
+    /**
+     * Sum of the heart rates of the current window.
+     */
+    private double sum;
+
+    /**
+     * Sum of the squared differences of successive beat intervals of the current window.
+     */
+    private double sumOfSquaredDifferences;
+
+    /**
+     * Beat interval of the previous heart rate of the current window in milliseconds.
+     */
+    private double previousInterval;
+
+    /**
+     * Sums of the least squares line of the current window, with the time in minutes since the
+     * start of the window.
+     */
+    private double sumOfTimes;
+
+    private double sumOfSquaredTimes;
+
+    private double sumOfProducts;
+
+    /**
+     * The resting baseline, or NaN before the first heart rate.
+     */
+    private double baseline = Double.NaN;
+
+    /**
+     * Timestamp of the last heart rate that has been added to the baseline.
+     */
+    private long baselineTimestamp;
+
+    private volatile long samples = 0;
+
+    private volatile long summaries = 0;
+
+    /**
+     * Number of heart rates that were older than the current window.
+     */
+    private volatile long ignored = 0;
+
+    /**
+     * Creates a new analytics stage.
+     *
+     * @param windowMillis Length of the windows in milliseconds
+     * @param baselineMillis Time constant of the baseline in milliseconds
+     */
+    public HeartRateAnalytics(long windowMillis, long baselineMillis) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be positive: " + windowMillis);
+        }
+        if (baselineMillis <= 0) {
+            throw new IllegalArgumentException("baselineMillis must be positive: " + baselineMillis);
+        }
+        this.windowMillis = windowMillis;
+        this.baselineMillis = baselineMillis;
+    }
+
+    /**
+     * Adds a heart rate. If it is the first one of a new window, the previous window is
+     * summarized.
+     *
+     * @param timestamp Time the heart rate has been measured in milliseconds
+     * @param heartRate The heart rate as measured by the sensor; values of 0 or less are ignored
+     * @return The summary of the previous window, or null if the heart rate belongs to the
+     *         current window
+     */
+    public HeartRateSummary add(long timestamp, float heartRate) {
+        if (heartRate <= 0) {
+            return null;
+        }
+        if (timestamp < windowStart) {
+            ignored = ignored + 1;
+            return null;
+        }
+        samples = samples + 1;
+
+        HeartRateSummary summary = null;
+        if (timestamp >= windowStart + windowMillis || windowStart == Long.MIN_VALUE) {
+            if (count > 0) {
+                summary = summarize();
+            }
+            windowStart = timestamp - timestamp % windowMillis;
+            count = 0;
+        }
+
+        double interval = MILLIS_PER_MINUTE / heartRate;
+        double time = (timestamp - windowStart) / MILLIS_PER_MINUTE;
+        if (count == 0) {
+            min = heartRate;
+            max = heartRate;
+            sum = 0;
+            sumOfSquaredDifferences = 0;
+            sumOfTimes = 0;
+            sumOfSquaredTimes = 0;
+            sumOfProducts = 0;
+        }
+        else {
+            double difference = interval - previousInterval;
+            sumOfSquaredDifferences += difference * difference;
+            min = Math.min(min, heartRate);
+            max = Math.max(max, heartRate);
+        }
+        count++;
+        sum += heartRate;
+        sumOfTimes += time;
+        sumOfSquaredTimes += time * time;
+        sumOfProducts += time * heartRate;
+        previousInterval = interval;
+
+        updateBaseline(timestamp, heartRate);
+        return summary;
+    }
+
+    /**
+     * Moves the baseline towards a heart rate, weighted by the time since the previous one.
+     */
+    private void updateBaseline(long timestamp, float heartRate) {
+        if (Double.isNaN(baseline)) {
+            baseline = heartRate;
+        }
+        else if (timestamp > baselineTimestamp) {
+            long timeConstant = heartRate > baseline ? baselineMillis * BASELINE_RISE_FACTOR : baselineMillis;
+            double alpha = 1 - Math.exp(-(timestamp - baselineTimestamp) / (double) timeConstant);
+            baseline += alpha * (heartRate - baseline);
+        }
+        baselineTimestamp = Math.max(baselineTimestamp, timestamp);
+    }
+
+    private HeartRateSummary summarize() {
+        double mean = sum / count;
+        double rmssd = count > 1 ? Math.sqrt(sumOfSquaredDifferences / (count - 1)) : 0;
+
+        // Least squares: slope = cov(t, y) / var(t)
+        double denominator = count * sumOfSquaredTimes - sumOfTimes * sumOfTimes;
+        double slope = denominator > 0 ? (count * sumOfProducts - sumOfTimes * sum) / denominator : 0;
+
+        summaries = summaries + 1;
+        return new HeartRateSummary(windowStart, windowStart + windowMillis, count, (float) mean, min, max,
+                (float) rmssd, (float) slope, (float) baseline);
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public long getBaselineMillis() {
+        return baselineMillis;
+    }
+
+    /**
+     * Returns the current resting baseline.
+     *
+     * @return The baseline, or NaN before the first heart rate
+     */
+    public double getBaseline() {
+        return baseline;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    public long getSummaries() {
+        return summaries;
+    }
+
+    public long getIgnored() {
+        return ignored;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HeartRateAnalytics[samples=%d, summaries=%d, ignored=%d, baseline=%.1f]", samples, summaries, ignored, baseline);
+    }
+}
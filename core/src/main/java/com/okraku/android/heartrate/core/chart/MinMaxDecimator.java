@@ -0,0 +1,298 @@
+package com.okraku.android.heartrate.core.chart;
+
+import com.okraku.android.heartrate.core.rollup.RollupBuffer;
+
+import java.util.Arrays;
+
+/**
+ * Reduces a heart rate series to what can be seen on a chart: for every pixel column of the
+ * time axis, the first, last, lowest and highest heart rate in it (M4 aggregation).
+ * <p>
+ * Drawing these four values per column with {@link #toLines(float[], long, float, float, float, float, float, float, long)}
+ * gives the same picture as drawing every sample, but the cost of drawing depends on the width of
+ * the chart instead of the number of samples.
+ * <p>
+ * Columns are aligned to multiples of their duration and kept in a ring, so a scrolling chart
+ * only adds the heart rates received since the last frame: columns that scroll out on the left
+ * are reused for new ones on the right. Adding a heart rate takes constant time.
+ * <p>
+ * All arrays are allocated once for a maximum number of columns, so a chart can decimate and draw
+ * every frame without allocating. Not thread-safe.
+ */
+public final class MinMaxDecimator {
+    /**
+     * Number of floats per column written by {@link #toLines(float[], long, float, float, float, float, float, float, long)}:
+     * a line from the previous column and a vertical line, two points each.
+     */
+    public static final int FLOATS_PER_COLUMN = 8;
+
+    /**
+     * Per column, indexed by column number modulo {@link #columns}.
+     */
+    private final int[] firsts;
+
+    private final int[] lasts;
+
+    private final int[] mins;
+
+    private final int[] maxs;
+
+    /**
+     * True for every column that contains at least one heart rate.
+     */
+    private final boolean[] filled;
+
+    /**
+     * Duration of a column in milliseconds.
+     */
+    private long columnMillis = 1;
+
+    /**
+     * Number of columns kept.
+     */
+    private int columns = 1;
+
+    /**
+     * Number of the newest column, i.e. its start divided by {@link #columnMillis}.
+     */
+    private long newestColumn = Long.MIN_VALUE;
+
+    /**
+     * Highest timestamp added since the last reset.
+     */
+    private long newestTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Creates a new decimator.
+     *
+     * @param maxColumns Maximum number of columns, e.g. the width of the largest chart in pixels
+     */
+    public MinMaxDecimator(int maxColumns) {
+        if (maxColumns < 1) {
+            throw new IllegalArgumentException("maxColumns must be at least 1: " + maxColumns);
+        }
+        firsts = new int[maxColumns];
+        lasts = new int[maxColumns];
+        mins = new int[maxColumns];
+        maxs = new int[maxColumns];
+        filled = new boolean[maxColumns];
+    }
+
+    /**
+     * Removes all heart rates and sets the time axis.
+     *
+     * @param columnMillis Duration of a column in milliseconds, e.g. the time span of the chart
+     *                     divided by its width in pixels
+     * @param columns Number of columns, at most the maximum given to the constructor
+     */
+    public void reset(long columnMillis, int columns) {
+        if (columns < 1 || columns > filled.length || columnMillis < 1) {
+            throw new IllegalArgumentException(String.format("Invalid axis: %d columns of %d ms", columns, columnMillis));
+        }
+        this.columnMillis = columnMillis;
+        this.columns = columns;
+        Arrays.fill(filled, 0, columns, false);
+        newestColumn = Long.MIN_VALUE;
+        newestTimestamp = Long.MIN_VALUE;
+    }
+
+    /**
+     * Adds a heart rate. Heart rates older than the oldest kept column are ignored. Heart rates
+     * must be added in time order for the first and last value of a column to be right.
+     *
+     * @param timestamp Timestamp of the heart rate in milliseconds
+     * @param heartRate The heart rate
+     */
+    public void add(long timestamp, int heartRate) {
+        add(timestamp, heartRate, heartRate, heartRate, heartRate);
+    }
+
+    /**
+     * Adds an aggregate of heart rates, e.g. a bucket of a rollup tier.
+     *
+     * @param timestamp Timestamp of the aggregate in milliseconds
+     * @param first First heart rate
+     * @param last Last heart rate
+     * @param min Lowest heart rate
+     * @param max Highest heart rate
+     */
+    public void add(long timestamp, int first, int last, int min, int max) {
+        long column = Math.floorDiv(timestamp, columnMillis);
+        if (newestColumn == Long.MIN_VALUE) {
+            newestColumn = column;
+        }
+        else if (column > newestColumn) {
+            // Reuse the columns that scroll out for the new ones
+            long cleared = Math.min(column - newestColumn, columns);
+            for (long c = column - cleared + 1; c <= column; c++) {
+                filled[slot(c)] = false;
+            }
+            newestColumn = column;
+        }
+        else if (column <= newestColumn - columns) {
+            return;
+        }
+        newestTimestamp = Math.max(newestTimestamp, timestamp);
+
+        int slot = slot(column);
+        if (filled[slot]) {
+            lasts[slot] = last;
+            mins[slot] = Math.min(mins[slot], min);
+            maxs[slot] = Math.max(maxs[slot], max);
+        }
+        else {
+            filled[slot] = true;
+            firsts[slot] = first;
+            lasts[slot] = last;
+            mins[slot] = min;
+            maxs[slot] = max;
+        }
+    }
+
+    /**
+     * Adds heart rates, e.g. copied from a {@link com.okraku.android.heartrate.core.history.SampleHistory}.
+     *
+     * @param timestamps Timestamps of the heart rates in milliseconds, oldest first
+     * @param heartRates The heart rates
+     * @param count Number of heart rates
+     */
+    public void addAll(long[] timestamps, int[] heartRates, int count) {
+        for (int i = 0; i < count; i++) {
+            add(timestamps[i], heartRates[i]);
+        }
+    }
+
+    /**
+     * Adds the non-empty buckets of a rollup query. A bucket has no first and last heart rate,
+     * so the line through the columns uses its mean.
+     *
+     * @param buckets Result of a query
+     */
+    public void addAll(RollupBuffer buckets) {
+        for (int i = 0; i < buckets.size(); i++) {
+            if (buckets.getCount(i) > 0) {
+                int mean = (int) Math.round(buckets.getMean(i));
+                add(buckets.getStart(i), mean, mean, buckets.getMin(i), buckets.getMax(i));
+            }
+        }
+    }
+
+    private int slot(long column) {
+        return (int) Math.floorMod(column, (long) columns);
+    }
+
+    /**
+     * Converts the columns that end at a point in time into line segments as expected by
+     * {@code Canvas.drawLines()}: for every non-empty column a vertical line from its lowest to
+     * its highest heart rate, and a line from the last heart rate of the previous non-empty column
+     * to its first one, unless the gap between the two is too long.
+     *
+     * @param points Receives x and y of the start and end of every line; must hold
+     *               {@link #FLOATS_PER_COLUMN} floats per column
+     * @param to End of the time axis in milliseconds (exclusive); the rightmost column is the one
+     *           before it
+     * @param left Left edge of the chart in pixels
+     * @param top Top edge of the chart in pixels
+     * @param width Width of the chart in pixels
+     * @param height Height of the chart in pixels
+     * @param bottomValue Heart rate at the bottom edge
+     * @param topValue Heart rate at the top edge
+     * @param maxGapMillis Longest time between two heart rates that are still connected
+     * @return Number of floats written
+     */
+    public int toLines(float[] points, long to, float left, float top, float width, float height, float bottomValue, float topValue, long maxGapMillis) {
+        float columnWidth = width / columns;
+        float scale = height / (topValue - bottomValue);
+        float bottom = top + height;
+        long maxGapColumns = maxGapMillis / columnMillis;
+        if (newestColumn == Long.MIN_VALUE) {
+            return 0;
+        }
+
+        long last = Math.floorDiv(to - 1, columnMillis);
+        long first = last - columns + 1;
+        int count = 0;
+        long previous = Long.MIN_VALUE;
+        for (long column = Math.max(first, newestColumn - columns + 1); column <= Math.min(last, newestColumn); column++) {
+            int slot = slot(column);
+            if (!filled[slot]) {
+                continue;
+            }
+            float x = left + (column - first + 0.5f) * columnWidth;
+
+            if (previous != Long.MIN_VALUE && column - previous <= maxGapColumns + 1) {
+                int previousSlot = slot(previous);
+                points[count++] = left + (previous - first + 0.5f) * columnWidth;
+                points[count++] = bottom - (lasts[previousSlot] - bottomValue) * scale;
+                points[count++] = x;
+                points[count++] = bottom - (firsts[slot] - bottomValue) * scale;
+            }
+            points[count++] = x;
+            points[count++] = bottom - (mins[slot] - bottomValue) * scale;
+            points[count++] = x;
+            points[count++] = bottom - (maxs[slot] - bottomValue) * scale;
+            previous = column;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the lowest heart rate of the columns that end at a point in time.
+     *
+     * @param to End of the time axis in milliseconds (exclusive)
+     * @return Minimum, or {@link Integer#MAX_VALUE} if the columns are empty
+     */
+    public int getMinValue(long to) {
+        int min = Integer.MAX_VALUE;
+        if (newestColumn == Long.MIN_VALUE) {
+            return min;
+        }
+        long last = Math.floorDiv(to - 1, columnMillis);
+        for (long column = Math.max(last - columns + 1, newestColumn - columns + 1); column <= Math.min(last, newestColumn); column++) {
+            int slot = slot(column);
+            if (filled[slot]) {
+                min = Math.min(min, mins[slot]);
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Returns the highest heart rate of the columns that end at a point in time.
+     *
+     * @param to End of the time axis in milliseconds (exclusive)
+     * @return Maximum, or {@link Integer#MIN_VALUE} if the columns are empty
+     */
+    public int getMaxValue(long to) {
+        int max = Integer.MIN_VALUE;
+        if (newestColumn == Long.MIN_VALUE) {
+            return max;
+        }
+        long last = Math.floorDiv(to - 1, columnMillis);
+        for (long column = Math.max(last - columns + 1, newestColumn - columns + 1); column <= Math.min(last, newestColumn); column++) {
+            int slot = slot(column);
+            if (filled[slot]) {
+                max = Math.max(max, maxs[slot]);
+            }
+        }
+        return max;
+    }
+
+    public long getColumnMillis() {
+        return columnMillis;
+    }
+
+    public int getColumnCount() {
+        return columns;
+    }
+
+    /**
+     * Returns the highest timestamp added since the last reset, so that a chart only needs to
+     * add newer heart rates with the next frame.
+     *
+     * @return Timestamp in milliseconds, or {@link Long#MIN_VALUE} if nothing has been added
+     */
+    public long getNewestTimestamp() {
+        return newestTimestamp;
+    }
+}
@@ -0,0 +1,99 @@
+package com.okraku.android.heartrate.core.display;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the most recent heart rate for the screen until the next frame takes it.
+ * <p>
+ * Heart rates may be offered on any thread and at any rate; a newer one replaces the one that has
+ * not been taken yet, so the screen shows at most one heart rate per frame, always the newest.
+ * {@link #offer(int, long)} tells the caller when a frame has to be scheduled: only for the first
+ * heart rate after the slot has been taken. The slot is a single {@link AtomicLong}, so neither
+ * side locks or allocates.
+ * <p>
+ * The numbers of offered and taken heart rates show how many updates of the screen are saved.
+ */
+public final class ConflatedValue {
+    /**
+     * Content of the slot while no heart rate is waiting.
+     */
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    /**
+     * The heart rate waiting for the next frame, or {@link #EMPTY}.
+     */
+    private final AtomicLong slot = new AtomicLong(EMPTY);
+
+    /**
+     * {@link System#nanoTime()} when the most recent heart rate has been received. Written before
+     * the slot, so it may belong to a heart rate received just after the taken one.
+     */
+    private volatile long receivedNanos;
+
+    private final AtomicLong offered = new AtomicLong();
+
+    private final AtomicLong taken = new AtomicLong();
+
+    /**
+     * Offers a heart rate for the next frame, replacing one that has not been taken yet.
+     * May be called on any thread.
+     *
+     * @param heartRate The heart rate
+     * @param receivedNanos {@link System#nanoTime()} when the heart rate has been received
+     * @return True, if the slot was empty and the caller has to schedule a frame
+     */
+    public boolean offer(int heartRate, long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+        offered.incrementAndGet();
+        return slot.getAndSet(heartRate) == EMPTY;
+    }
+
+    /**
+     * Takes the waiting heart rate for a frame and empties the slot.
+     *
+     * @return The heart rate, or -1 if none is waiting
+     */
+    public int take() {
+        long heartRate = slot.getAndSet(EMPTY);
+        if (heartRate == EMPTY) {
+            return -1;
+        }
+        taken.incrementAndGet();
+        return (int) heartRate;
+    }
+
+    /**
+     * Returns true, if a heart rate is waiting, e.g. to schedule a frame when the screen becomes
+     * visible again.
+     *
+     * @return True, if a heart rate is waiting
+     */
+    public boolean isPending() {
+        return slot.get() != EMPTY;
+    }
+
+    /**
+     * Returns when the most recently offered heart rate has been received.
+     *
+     * @return {@link System#nanoTime()} when it has been received
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    public long getOffered() {
+        return offered.get();
+    }
+
+    public long getTaken() {
+        return taken.get();
+    }
+
+    @Override
+    public String toString() {
+        long offered = getOffered();
+        long taken = getTaken();
+        return String.format("screen updates: received=%d, rendered=%d (%.1f%%)",
+                offered, taken, offered > 0 ? taken * 100.0 / offered : 0);
+    }
+}
@@ -0,0 +1,38 @@
+package com.okraku.android.heartrate.core.display;
+
+import com.okraku.android.heartrate.core.HeartRateCodec;
+
+/**
+ * Text of heart rates for the screen. The strings of all plausible heart rates are created once,
+ * so showing a heart rate does not allocate.
+ */
+public final class HeartRateText {
+    /**
+     * Highest heart rate whose string is cached: the highest one accepted from a message.
+     */
+    private static final int MAX_CACHED = HeartRateCodec.MAX_HEART_RATE;
+
+    private static final String[] STRINGS = new String[MAX_CACHED + 1];
+
+    static {
+        for (int i = 0; i <= MAX_CACHED; i++) {
+            STRINGS[i] = Integer.toString(i);
+        }
+    }
+
+    private HeartRateText() {
+    }
+
+    /**
+     * Returns the decimal string of a heart rate.
+     *
+     * @param heartRate The heart rate
+     * @return The cached string, or a new one for heart rates outside 0 to 300
+     */
+    public static String toString(int heartRate) {
+        if (heartRate >= 0 && heartRate <= MAX_CACHED) {
+            return STRINGS[heartRate];
+        }
+        return Integer.toString(heartRate);
+    }
+}
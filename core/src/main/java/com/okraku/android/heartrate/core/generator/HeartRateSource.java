@@ -0,0 +1,14 @@
+package com.okraku.android.heartrate.core.generator;
+
+/**
+ * Produces heart rates for testing, e.g. synthetic waveforms or recorded samples.
+ */
+public interface HeartRateSource {
+    /**
+     * Returns the next heart rate.
+     *
+     * @param elapsedMillis Time since the source has been started in milliseconds
+     * @return The heart rate
+     */
+    int next(long elapsedMillis);
+}
@@ -0,0 +1,82 @@
+package com.okraku.android.heartrate.core.generator;
+
+import com.okraku.android.heartrate.core.SampleBuffer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Replays recorded heart rates in order, starting over at the end.
+ * <p>
+ * Recordings are text files with one sample per line, either {@code timestamp,heartRate} or
+ * just {@code heartRate}; samples without timestamp are assumed to be one second apart.
+ * Empty lines and lines starting with {@code #} are ignored. Replay ignores the recorded
+ * timestamps and emits the heart rates at the rate of the caller.
+ */
+public class ReplayHeartRateSource implements HeartRateSource {
+    /**
+     * The recorded samples.
+     */
+    private final SampleBuffer samples;
+
+    /**
+     * Index of the next sample.
+     */
+    private int position = 0;
+
+    /**
+     * Creates a new source.
+     *
+     * @param samples The recorded samples; must not be empty
+     */
+    public ReplayHeartRateSource(SampleBuffer samples) {
+        if (samples.isEmpty()) {
+            throw new IllegalArgumentException("Recording is empty");
+        }
+        this.samples = samples;
+    }
+
+    /**
+     * Reads a recording.
+     *
+     * @param reader The recording
+     * @return The recorded samples
+     * @throws IOException If the recording could not be read or is malformed
+     */
+    public static SampleBuffer read(Reader reader) throws IOException {
+        SampleBuffer samples = new SampleBuffer(1024);
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int number = 0;
+
+        while ((line = in.readLine()) != null) {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            try {
+                int comma = line.indexOf(',');
+                if (comma < 0) {
+                    samples.add(samples.size() * 1000L, Integer.parseInt(line));
+                }
+                else {
+                    samples.add(Long.parseLong(line.substring(0, comma).trim()), Integer.parseInt(line.substring(comma + 1).trim()));
+                }
+            }
+            catch (NumberFormatException e) {
+                throw new IOException(String.format("Invalid sample in line %d: %s", number, line), e);
+            }
+        }
+        return samples;
+    }
+
+    @Override
+    public int next(long elapsedMillis) {
+        int value = samples.getValue(position);
+        position = (position + 1) % samples.size();
+        return value;
+    }
+}
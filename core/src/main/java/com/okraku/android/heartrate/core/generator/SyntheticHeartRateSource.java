@@ -0,0 +1,104 @@
+package com.okraku.android.heartrate.core.generator;
+
+import java.util.Random;
+
+/**
+ * Generates heart rates following a {@link WaveformProfile}.
+ * <p>
+ * The output only depends on the seed and the elapsed times passed in, so a run can be
+ * reproduced exactly. Instances are not thread-safe.
+ */
+public class SyntheticHeartRateSource implements HeartRateSource {
+    /**
+     * Resting heart rate of the REST and SPIKES profiles.
+     */
+    private static final double RESTING = 65;
+
+    /**
+     * Period of the breathing-related oscillation in milliseconds.
+     */
+    private static final double BREATHING_PERIOD = 4000;
+
+    /**
+     * Time constant of the decay of a spike in milliseconds.
+     */
+    private static final double SPIKE_DECAY = 7000;
+
+    /**
+     * Average time between two spikes in milliseconds.
+     */
+    private static final double SPIKE_INTERVAL = 60000;
+
+    private static final long MINUTE = 60000;
+
+    private final WaveformProfile profile;
+
+    private final Random random;
+
+    /**
+     * Current height of the spike above the resting heart rate.
+     */
+    private double spike = 0;
+
+    private long previousElapsed = 0;
+
+    /**
+     * Creates a new source.
+     *
+     * @param profile Shape of the heart rates
+     * @param seed Seed of the random number generator
+     */
+    public SyntheticHeartRateSource(WaveformProfile profile, long seed) {
+        this.profile = profile;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public int next(long elapsedMillis) {
+        long delta = Math.max(0, elapsedMillis - previousElapsed);
+        previousElapsed = elapsedMillis;
+
+        double value;
+        switch (profile) {
+            case UNIFORM:
+                return 80 + random.nextInt(41);
+            case REST:
+                value = rest(elapsedMillis);
+                break;
+            case EXERCISE_RAMP:
+                value = exercise(elapsedMillis) + random.nextGaussian() * 1.5;
+                break;
+            case SPIKES:
+                spike *= Math.exp(-delta / SPIKE_DECAY);
+                if (random.nextDouble() < delta / SPIKE_INTERVAL) {
+                    spike = 30 + random.nextDouble() * 20;
+                }
+                value = rest(elapsedMillis) + spike;
+                break;
+            default:
+                throw new IllegalStateException("Unknown profile " + profile);
+        }
+        return (int) Math.round(value);
+    }
+
+    private double rest(long elapsedMillis) {
+        return RESTING + 3 * Math.sin(2 * Math.PI * elapsedMillis / BREATHING_PERIOD) + random.nextGaussian();
+    }
+
+    /**
+     * Returns the heart rate of the workout cycle without noise.
+     */
+    private static double exercise(long elapsedMillis) {
+        long t = elapsedMillis % (15 * MINUTE);
+        if (t < 5 * MINUTE) {
+            return 70 + 90.0 * t / (5 * MINUTE);
+        }
+        if (t < 10 * MINUTE) {
+            return 160;
+        }
+        if (t < 13 * MINUTE) {
+            return 160 - 80.0 * (t - 10 * MINUTE) / (3 * MINUTE);
+        }
+        return 80;
+    }
+}
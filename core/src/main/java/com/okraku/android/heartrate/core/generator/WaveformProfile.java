@@ -0,0 +1,27 @@
+package com.okraku.android.heartrate.core.generator;
+
+/**
+ * Shapes of synthetic heart rates.
+ */
+public enum WaveformProfile {
+    /**
+     * Uniformly distributed between 80 and 120, independent of the previous value.
+     */
+    UNIFORM,
+
+    /**
+     * Resting heart rate around 65 with breathing-related oscillation and small noise.
+     */
+    REST,
+
+    /**
+     * Repeated workout: warm-up from 70 to 160 over 5 minutes, 5 minutes at 160, cool-down
+     * to 80 over 3 minutes, 2 minutes rest.
+     */
+    EXERCISE_RAMP,
+
+    /**
+     * Resting heart rate with sudden spikes of up to 50 beats that decay within about 20 seconds.
+     */
+    SPIKES
+}
@@ -0,0 +1,368 @@
+package com.okraku.android.heartrate.core.history;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * In-memory history of the most recent heart rate samples with rolling statistics.
+ * <p>
+ * Samples are stored in primitive ring buffers of a fixed capacity, so the memory used does not
+ * grow and nothing is boxed. For every configured window (e.g. the last 10 seconds) the minimum,
+ * maximum, mean and standard deviation are updated incrementally when a sample is added:
+ * sums are adjusted for the samples entering and leaving the window, minimum and maximum are
+ * tracked with monotonic queues. Adding a sample therefore takes amortized constant time,
+ * independent of the number of samples in a window.
+ * <p>
+ * There must be a single writer, e.g. the thread that receives messages. Any number of threads
+ * may read concurrently; readers do not block the writer unless they copy samples.
+ * Samples are expected in time order.
+ */
+public class SampleHistory {
+    /**
+     * Timestamps of the samples in milliseconds, indexed by sample number modulo capacity.
+     */
+    private final long[] timestamps;
+
+    /**
+     * Heart rates of the samples, indexed like {@link #timestamps}.
+     */
+    private final short[] values;
+
+    /**
+     * The windows statistics are kept for.
+     */
+    private final Window[] windows;
+
+    /**
+     * Guards all fields below and the contents of the arrays.
+     */
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * Number of samples added so far. The newest sample has the number {@code added - 1}.
+     */
+    private long added = 0;
+
+    /**
+     * Creates a new history.
+     *
+     * @param capacity Maximum number of samples kept
+     * @param windowMillis Lengths of the windows statistics are kept for, in milliseconds
+     */
+    public SampleHistory(int capacity, long... windowMillis) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        }
+        timestamps = new long[capacity];
+        values = new short[capacity];
+        windows = new Window[windowMillis.length];
+        for (int i = 0; i < windowMillis.length; i++) {
+            windows[i] = new Window(windowMillis[i], capacity);
+        }
+    }
+
+    /**
+     * Returns the number of samples that fit into the given memory budget.
+     *
+     * @param budgetBytes Memory budget in bytes
+     * @param windowCount Number of windows statistics are kept for
+     * @return Capacity for {@link #SampleHistory(int, long...)}
+     */
+    public static int capacityForBudget(long budgetBytes, int windowCount) {
+        // timestamp + heart rate + two monotonic queue entries per window
+        long bytesPerSample = 8 + 2 + windowCount * 2 * 4;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / bytesPerSample));
+    }
+
+    /**
+     * Adds a sample. Must only be called by a single thread.
+     *
+     * @param timestamp Timestamp of the sample in milliseconds
+     * @param heartRate The heart rate
+     */
+    public void add(long timestamp, int heartRate) {
+        int capacity = timestamps.length;
+        short value = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, heartRate));
+
+        long stamp = lock.writeLock();
+        try {
+            long index = added;
+
+            // The sample that is overwritten leaves all windows first
+            if (index >= capacity) {
+                for (Window window : windows) {
+                    window.evictUpTo(index - capacity);
+                }
+            }
+
+            int slot = (int) (index % capacity);
+            timestamps[slot] = timestamp;
+            values[slot] = value;
+            added = index + 1;
+
+            for (Window window : windows) {
+                window.add(index);
+                window.evictOlderThan(timestamp - window.durationMillis);
+            }
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the number of samples kept.
+     *
+     * @return Number of samples
+     */
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        long count = added;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                count = added;
+            }
+            finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return (int) Math.min(count, timestamps.length);
+    }
+
+    /**
+     * Returns the maximum number of samples kept.
+     *
+     * @return Capacity
+     */
+    public int getCapacity() {
+        return timestamps.length;
+    }
+
+    /**
+     * Returns the number of windows.
+     *
+     * @return Number of windows
+     */
+    public int getWindowCount() {
+        return windows.length;
+    }
+
+    /**
+     * Reads the statistics of a window.
+     *
+     * @param window Index of the window, in the order given to the constructor
+     * @param stats Receives the statistics
+     * @return The given statistics object
+     */
+    public WindowStats getStats(int window, WindowStats stats) {
+        Window w = windows[window];
+
+        long stamp = lock.tryOptimisticRead();
+        w.read(stats);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                w.read(stats);
+            }
+            finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Copies the samples of a time range, oldest first.
+     *
+     * @param from Start of the range in milliseconds (inclusive)
+     * @param to End of the range in milliseconds (exclusive)
+     * @param timestampsOut Receives the timestamps
+     * @param valuesOut Receives the heart rates
+     * @return Number of copied samples, at most the length of the target arrays
+     */
+    public int copy(long from, long to, long[] timestampsOut, int[] valuesOut) {
+        int capacity = timestamps.length;
+        int max = Math.min(timestampsOut.length, valuesOut.length);
+
+        long stamp = lock.readLock();
+        try {
+            long first = Math.max(0, added - capacity);
+
+            // Binary search for the first sample at or after the start of the range
+            long low = first;
+            long high = added;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                if (timestamps[(int) (mid % capacity)] < from) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+
+            int count = 0;
+            for (long i = low; i < added && count < max; i++) {
+                int slot = (int) (i % capacity);
+                if (timestamps[slot] >= to) {
+                    break;
+                }
+                timestampsOut[count] = timestamps[slot];
+                valuesOut[count] = values[slot];
+                count++;
+            }
+            return count;
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Rolling statistics of one window. Only accessed with the lock of the history held.
+     */
+    private final class Window {
+        /**
+         * Length of the window in milliseconds.
+         */
+        final long durationMillis;
+
+        /**
+         * Number of the oldest sample in the window.
+         */
+        long start = 0;
+
+        /**
+         * Number of the next sample to enter the window.
+         */
+        long end = 0;
+
+        long sum = 0;
+
+        long sumOfSquares = 0;
+
+        /**
+         * Sample numbers with increasing heart rates; the first one is the minimum of the window.
+         */
+        final MonotonicQueue minQueue;
+
+        /**
+         * Sample numbers with decreasing heart rates; the first one is the maximum of the window.
+         */
+        final MonotonicQueue maxQueue;
+
+        Window(long durationMillis, int capacity) {
+            this.durationMillis = durationMillis;
+            this.minQueue = new MonotonicQueue(capacity);
+            this.maxQueue = new MonotonicQueue(capacity);
+        }
+
+        void add(long index) {
+            int value = valueAt(index);
+            sum += value;
+            sumOfSquares += (long) value * value;
+            end = index + 1;
+
+            while (!minQueue.isEmpty() && valueAt(minQueue.last()) >= value) {
+                minQueue.removeLast();
+            }
+            minQueue.addLast(index);
+
+            while (!maxQueue.isEmpty() && valueAt(maxQueue.last()) <= value) {
+                maxQueue.removeLast();
+            }
+            maxQueue.addLast(index);
+        }
+
+        void evictOlderThan(long timestamp) {
+            while (start < end && timestamps[(int) (start % timestamps.length)] < timestamp) {
+                evictFirst();
+            }
+        }
+
+        void evictUpTo(long index) {
+            while (start < end && start <= index) {
+                evictFirst();
+            }
+        }
+
+        private void evictFirst() {
+            int value = valueAt(start);
+            sum -= value;
+            sumOfSquares -= (long) value * value;
+
+            if (!minQueue.isEmpty() && minQueue.first() == start) {
+                minQueue.removeFirst();
+            }
+            if (!maxQueue.isEmpty() && maxQueue.first() == start) {
+                maxQueue.removeFirst();
+            }
+            start++;
+        }
+
+        void read(WindowStats stats) {
+            int count = (int) (end - start);
+            stats.durationMillis = durationMillis;
+            stats.count = count;
+            stats.sum = sum;
+            stats.sumOfSquares = sumOfSquares;
+            stats.min = count > 0 && !minQueue.isEmpty() ? valueAt(minQueue.first()) : 0;
+            stats.max = count > 0 && !maxQueue.isEmpty() ? valueAt(maxQueue.first()) : 0;
+        }
+
+        private int valueAt(long index) {
+            return values[(int) (index % values.length)];
+        }
+    }
+
+    /**
+     * Double-ended queue of sample numbers, backed by an array. Sample numbers are stored as
+     * ring buffer slots; this is unambiguous, because a window never holds more samples than
+     * the ring buffer.
+     */
+    private final class MonotonicQueue {
+        private final int[] slots;
+
+        private int head = 0;
+
+        private int size = 0;
+
+        MonotonicQueue(int capacity) {
+            slots = new int[capacity];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        long first() {
+            return toIndex(slots[head]);
+        }
+
+        long last() {
+            return toIndex(slots[(head + size - 1) % slots.length]);
+        }
+
+        void addLast(long index) {
+            slots[(head + size) % slots.length] = (int) (index % slots.length);
+            size++;
+        }
+
+        void removeFirst() {
+            head = (head + 1) % slots.length;
+            size--;
+        }
+
+        void removeLast() {
+            size--;
+        }
+
+        /**
+         * Converts a slot back into the number of the newest sample stored in it.
+         */
+        private long toIndex(int slot) {
+            long newest = added - 1;
+            return newest - Math.floorMod(newest - slot, (long) slots.length);
+        }
+    }
+}
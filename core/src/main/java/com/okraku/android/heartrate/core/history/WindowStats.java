@@ -0,0 +1,84 @@
+package com.okraku.android.heartrate.core.history;
+
+/**
+ * Statistics of the heart rates within a time window. Instances are mutable, so that readers
+ * can reuse them for every query.
+ */
+public final class WindowStats {
+    /**
+     * Length of the window in milliseconds.
+     */
+    long durationMillis;
+
+    /**
+     * Number of samples in the window.
+     */
+    int count;
+
+    int min;
+
+    int max;
+
+    /**
+     * Sum of all heart rates in the window.
+     */
+    long sum;
+
+    /**
+     * Sum of the squares of all heart rates in the window.
+     */
+    long sumOfSquares;
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the lowest heart rate in the window.
+     *
+     * @return Minimum, or 0 if the window is empty
+     */
+    public int getMin() {
+        return min;
+    }
+
+    /**
+     * Returns the highest heart rate in the window.
+     *
+     * @return Maximum, or 0 if the window is empty
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the average heart rate in the window.
+     *
+     * @return Mean, or 0 if the window is empty
+     */
+    public double getMean() {
+        return count == 0 ? 0 : sum / (double) count;
+    }
+
+    /**
+     * Returns the population standard deviation of the heart rates in the window.
+     *
+     * @return Standard deviation, or 0 if the window is empty
+     */
+    public double getStandardDeviation() {
+        if (count == 0) {
+            return 0;
+        }
+        double mean = getMean();
+        return Math.sqrt(Math.max(0, sumOfSquares / (double) count - mean * mean));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%ds: n=%d, min=%d, max=%d, mean=%.1f, sd=%.1f", durationMillis / 1000, count, min, max, getMean(), getStandardDeviation());
+    }
+}
@@ -0,0 +1,167 @@
+package com.okraku.android.heartrate.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds with a fixed memory footprint.
+ * <p>
+ * Values below 16 are counted exactly. Above, every power of two is split into 16 buckets, so a
+ * reported percentile is at most 1/16 (6.25%) above the actual value. Values above
+ * {@link #MAX_TRACKABLE} (about 19 hours) are counted in the highest bucket; negative values,
+ * e.g. caused by clock adjustments, in the lowest one.
+ * <p>
+ * Recording does not allocate or lock and may be done by any number of threads. Percentiles
+ * may be read concurrently; they reflect the values recorded so far.
+ */
+public class LatencyHistogram {
+    /**
+     * Number of bits that select the bucket within a power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /**
+     * Number of buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Largest value that is counted in its own bucket, in microseconds.
+     */
+    public static final long MAX_TRACKABLE = (1L << 36) - 1;
+
+    /**
+     * Number of buckets: the exact values, then {@link #SUB_BUCKETS} per power of two up to
+     * {@link #MAX_TRACKABLE}.
+     */
+    private static final int BUCKET_COUNT = bucketIndex(MAX_TRACKABLE) + 1;
+
+    /**
+     * Name of the measured latency.
+     */
+    private final String name;
+
+    /**
+     * Number of recorded values per bucket.
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Number of recorded values.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Largest recorded value.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Creates an empty histogram.
+     *
+     * @param name Name of the measured latency, used by {@link #toString()}
+     */
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param micros The latency in microseconds
+     */
+    public void record(long micros) {
+        long value = Math.max(0, Math.min(micros, MAX_TRACKABLE));
+        buckets.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Returns the latency below which the given share of the recorded values lies.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return The latency in microseconds, or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        // Rank of the value, starting at 1
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Removes all recorded values. Values recorded concurrently may or may not be kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Returns the index of the bucket a value is counted in.
+     *
+     * @param value A value between 0 and {@link #MAX_TRACKABLE}
+     * @return Index of the bucket
+     */
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // The highest bit selects the power of two, the following bits the bucket within it
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the largest value that is counted in a bucket.
+     *
+     * @param index Index of the bucket
+     * @return The largest value of the bucket
+     */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: count=%d, p50=%.1fms, p99=%.1fms, p99.9=%.1fms, max=%.1fms", name, getCount(),
+                getPercentile(50) / 1000.0, getPercentile(99) / 1000.0, getPercentile(99.9) / 1000.0, getMax() / 1000.0);
+    }
+}
@@ -0,0 +1,274 @@
+package com.okraku.android.heartrate.core.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the operations that wake up the CPU or the radio, to attribute the battery drain to
+ * the sensor, the data layer and the UI.
+ * <p>
+ * Besides the totals, the counts of the last {@link #MINUTES} minutes are kept in fixed arrays,
+ * one slot per minute since the epoch, so that the rate per hour can be compared between
+ * transport and sensor modes without restarting the app. The slot of a new minute is cleared by
+ * the first count in that minute; counts that race with the clearing may be missing from that
+ * minute, but never from the totals.
+ * <p>
+ * Counting does not allocate or lock and may be done by any number of threads.
+ */
+public class PowerCounters {
+    /**
+     * What is counted.
+     */
+    public enum Counter {
+        /**
+         * Heart rate events received from the sensor, including the invalid ones.
+         */
+        SENSOR_EVENTS("sensor events"),
+
+        /**
+         * Deliveries of sensor events, i.e. times the CPU has been woken up by the sensor.
+         */
+        SENSOR_WAKEUPS("sensor wakeups"),
+
+        /**
+         * Messages handed over to the data layer.
+         */
+        MESSAGES_SENT("messages sent"),
+
+        /**
+         * Payload bytes of the messages handed over to the data layer.
+         */
+        BYTES_SENT("bytes sent"),
+
+        /**
+         * Messages the data layer has failed to send.
+         */
+        SEND_FAILURES("send failures"),
+
+        /**
+         * Messages received from the data layer.
+         */
+        MESSAGES_RECEIVED("messages received"),
+
+        /**
+         * Queries of the connected nodes.
+         */
+        NODE_LOOKUPS("node lookups"),
+
+        /**
+         * Threads started by the app.
+         */
+        THREADS_SPAWNED("threads spawned"),
+
+        /**
+         * Notifications posted.
+         */
+        NOTIFICATIONS("notifications"),
+
+        /**
+         * Callbacks posted to the main looper, e.g. frame callbacks.
+         */
+        MAIN_LOOPER_POSTS("main looper posts");
+
+        private final String label;
+
+        Counter(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * Number of minutes whose counts are kept.
+     */
+    public static final int MINUTES = 60;
+
+    /**
+     * Number of minutes printed by {@link #getReport()}.
+     */
+    private static final int REPORTED_MINUTES = 10;
+
+    private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final Counter[] COUNTERS = Counter.values();
+
+    /**
+     * Total count per counter.
+     */
+    private final AtomicLongArray totals = new AtomicLongArray(COUNTERS.length);
+
+    /**
+     * Counts per minute and counter, {@code counts[slot * COUNTERS.length + counter]}.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(MINUTES * COUNTERS.length);
+
+    /**
+     * Minute since the epoch whose counts are in a slot, or -1 if the slot is unused.
+     */
+    private final AtomicLongArray slotMinutes = new AtomicLongArray(MINUTES);
+
+    /**
+     * Time the counters have been created in milliseconds.
+     */
+    private final long createdMillis;
+
+    /**
+     * Creates new counters, starting now.
+     */
+    public PowerCounters() {
+        this(System.currentTimeMillis());
+    }
+
+    /**
+     * Creates new counters.
+     *
+     * @param createdMillis Time counting starts in milliseconds
+     */
+    public PowerCounters(long createdMillis) {
+        this.createdMillis = createdMillis;
+        for (int i = 0; i < MINUTES; i++) {
+            slotMinutes.set(i, -1);
+        }
+    }
+
+    /**
+     * Counts one occurrence now.
+     *
+     * @param counter What has occurred
+     */
+    public void increment(Counter counter) {
+        add(counter, 1, System.currentTimeMillis());
+    }
+
+    /**
+     * Counts several occurrences now.
+     *
+     * @param counter What has occurred
+     * @param amount Number of occurrences, e.g. bytes
+     */
+    public void add(Counter counter, long amount) {
+        add(counter, amount, System.currentTimeMillis());
+    }
+
+    /**
+     * Counts several occurrences.
+     *
+     * @param counter What has occurred
+     * @param amount Number of occurrences, e.g. bytes
+     * @param now The current time in milliseconds
+     */
+    public void add(Counter counter, long amount, long now) {
+        totals.addAndGet(counter.ordinal(), amount);
+
+        long minute = now / MINUTE_MILLIS;
+        int slot = (int) (minute % MINUTES);
+        long slotMinute = slotMinutes.get(slot);
+        if (slotMinute != minute) {
+            if (slotMinute > minute) {
+                // The clock has been set back by more than the slot is old; only count the total
+                return;
+            }
+            if (slotMinutes.compareAndSet(slot, slotMinute, minute)) {
+                for (int i = 0; i < COUNTERS.length; i++) {
+                    counts.set(slot * COUNTERS.length + i, 0);
+                }
+            }
+        }
+        counts.addAndGet(slot * COUNTERS.length + counter.ordinal(), amount);
+    }
+
+    public long getTotal(Counter counter) {
+        return totals.get(counter.ordinal());
+    }
+
+    /**
+     * Returns the count of a minute.
+     *
+     * @param counter What has been counted
+     * @param minutesAgo 0 for the current minute, up to {@link #MINUTES} - 1
+     * @param now The current time in milliseconds
+     * @return The count, or 0 if the minute is not kept
+     */
+    public long getCount(Counter counter, int minutesAgo, long now) {
+        long minute = now / MINUTE_MILLIS - minutesAgo;
+        int slot = (int) (minute % MINUTES);
+        if (minutesAgo < 0 || minutesAgo >= MINUTES || slotMinutes.get(slot) != minute) {
+            return 0;
+        }
+        return counts.get(slot * COUNTERS.length + counter.ordinal());
+    }
+
+    /**
+     * Returns the rate per hour over the kept minutes, or over the time since the counters have
+     * been created if that is shorter.
+     *
+     * @param counter What has been counted
+     * @param now The current time in milliseconds
+     * @return Occurrences per hour
+     */
+    public double getPerHour(Counter counter, long now) {
+        long sum = 0;
+        for (int i = 0; i < MINUTES; i++) {
+            sum += getCount(counter, i, now);
+        }
+        // The kept minutes start at the beginning of the oldest one
+        long kept = now - (now / MINUTE_MILLIS - (MINUTES - 1)) * MINUTE_MILLIS;
+        long elapsed = Math.min(kept, now - createdMillis);
+        return elapsed > 0 ? sum * (double) HOUR_MILLIS / elapsed : 0;
+    }
+
+    /**
+     * Returns a report with the total, the rate per hour and the counts of the last minutes of
+     * every counter, e.g. for {@code dumpsys}.
+     *
+     * @return A multi-line report
+     */
+    public String getReport() {
+        return getReport(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the report of {@link #getReport()} as of a given time.
+     *
+     * @param now The current time in milliseconds
+     * @return A multi-line report
+     */
+    public String getReport(long now) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("PowerCounters: %d min since start, %d threads alive%n", (now - createdMillis) / MINUTE_MILLIS, Thread.activeCount()));
+        report.append(String.format("  %-18s %10s %10s  per minute, newest first%n", "", "total", "per hour"));
+        for (Counter counter : COUNTERS) {
+            report.append(String.format("  %-18s %10d %10.0f ", counter.getLabel(), getTotal(counter), getPerHour(counter, now)));
+            for (int i = 0; i < REPORTED_MINUTES; i++) {
+                report.append(' ').append(getCount(counter, i, now));
+            }
+            report.append(String.format("%n"));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Returns the rates per hour of all counters that have counted something, on a single line
+     * for a small screen.
+     */
+    @Override
+    public String toString() {
+        long now = System.currentTimeMillis();
+        StringBuilder report = new StringBuilder("per hour:");
+        for (Counter counter : COUNTERS) {
+            if (getTotal(counter) > 0) {
+                report.append(String.format(" %s %.0f,", counter.getLabel(), getPerHour(counter, now)));
+            }
+        }
+        if (report.charAt(report.length() - 1) != ',') {
+            return "per hour: nothing counted";
+        }
+        report.setLength(report.length() - 1);
+        return report.toString();
+    }
+}
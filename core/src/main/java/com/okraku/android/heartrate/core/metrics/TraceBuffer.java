@@ -0,0 +1,332 @@
+package com.okraku.android.heartrate.core.metrics;
+
+import com.okraku.android.heartrate.core.MessagePaths;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records events of the hot paths, e.g. every message sent or received, as fixed-size binary
+ * records in a preallocated ring buffer, instead of formatting a log line for each of them.
+ * <p>
+ * A record consists of the {@link Event}, the time in nanoseconds, the hash code of the node ID,
+ * the message path as an index into the known {@link MessagePaths}, and a value, e.g. the
+ * number of bytes. Records are only turned into text by {@link #dump(PrintWriter)}, e.g. for
+ * {@code dumpsys}; until then, the oldest records are overwritten by the newest ones.
+ * <p>
+ * Recording does not allocate or lock and may be done by any number of threads. Every slot has
+ * a stamp that is invalidated while the slot is written, so that the dump skips records that
+ * are overwritten while it reads them. Events above the current {@link Level} cost a single
+ * volatile read.
+ */
+public class TraceBuffer {
+    /**
+     * Verbosity of the recorded events; each level includes the ones before it.
+     */
+    public enum Level {
+        OFF,
+        ERROR,
+        INFO,
+        DEBUG
+    }
+
+    /**
+     * What is recorded.
+     */
+    public enum Event {
+        /**
+         * A message has been handed over to the data layer. Value: bytes.
+         */
+        MESSAGE_SENT(Level.DEBUG, "sent", "bytes"),
+
+        /**
+         * The data layer has failed to send a message. Value: bytes.
+         */
+        SEND_FAILED(Level.ERROR, "send failed", "bytes"),
+
+        /**
+         * A message has been received. Value: bytes.
+         */
+        MESSAGE_RECEIVED(Level.DEBUG, "received", "bytes"),
+
+        /**
+         * The connected nodes have been queried. Value: number of nearby nodes.
+         */
+        NODES_LOADED(Level.DEBUG, "nodes loaded", "nodes"),
+
+        /**
+         * A channel has been opened. No value.
+         */
+        CHANNEL_OPENED(Level.INFO, "channel opened", null);
+
+        private final Level level;
+
+        private final String label;
+
+        /**
+         * Meaning of the value, or null if it has none.
+         */
+        private final String valueLabel;
+
+        Event(Level level, String label, String valueLabel) {
+            this.level = level;
+            this.label = label;
+            this.valueLabel = valueLabel;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+    }
+
+    /**
+     * Default number of records: about 17 minutes of 4 events per second, 96 KiB.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Level of new buffers: the records are cheap enough to keep every event.
+     */
+    public static final Level DEFAULT_LEVEL = Level.DEBUG;
+
+    /**
+     * Paths that are recorded by their index; other paths are recorded as {@link #UNKNOWN_PATH}.
+     */
+    private static final String[] PATHS = {MessagePaths.HEART_RATE, MessagePaths.HEART_RATE_BATCH, MessagePaths.HEART_RATE_BACKFILL,
+            MessagePaths.HEART_RATE_HISTORY, MessagePaths.HEART_RATE_SUMMARY, MessagePaths.STREAM_MODE, MessagePaths.WARNING,
+            MessagePaths.WARNING_ACK};
+
+    private static final int UNKNOWN_PATH = 0xFFFF;
+
+    private static final Event[] EVENTS = Event.values();
+
+    /**
+     * Number of longs per record: time, event/path/node, value.
+     */
+    private static final int RECORD_LONGS = 3;
+
+    /**
+     * Stamp of a slot that is being written or has never been written.
+     */
+    private static final long INVALID = -1;
+
+    /**
+     * Mask to wrap a sequence number into a slot.
+     */
+    private final int mask;
+
+    /**
+     * The records, {@link #RECORD_LONGS} longs per slot.
+     */
+    private final AtomicLongArray records;
+
+    /**
+     * Sequence number of the record in every slot, or {@link #INVALID}.
+     */
+    private final AtomicLongArray stamps;
+
+    /**
+     * Sequence number of the next record.
+     */
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * Node IDs by hash code, to decode the records. Only filled on slow paths.
+     */
+    private final ConcurrentHashMap<Integer, String> nodeNames = new ConcurrentHashMap<>();
+
+    /**
+     * {@link System#currentTimeMillis()} and {@link System#nanoTime()} at the same time, to
+     * decode the times of the records.
+     */
+    private final long baseMillis;
+
+    private final long baseNanos;
+
+    private volatile Level level = DEFAULT_LEVEL;
+
+    /**
+     * Creates a new buffer.
+     *
+     * @param capacity Number of records kept, a power of two
+     */
+    public TraceBuffer(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        records = new AtomicLongArray(capacity * RECORD_LONGS);
+        stamps = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            stamps.set(i, INVALID);
+        }
+        baseMillis = System.currentTimeMillis();
+        baseNanos = System.nanoTime();
+    }
+
+    /**
+     * Sets which events are recorded from now on.
+     *
+     * @param level The level; {@link Level#OFF} records nothing
+     */
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns whether an event would be recorded, to skip preparing its value.
+     *
+     * @param event The event
+     * @return True, if the event is recorded at the current level
+     */
+    public boolean isEnabled(Event event) {
+        return event.level.ordinal() <= level.ordinal();
+    }
+
+    /**
+     * Records an event, if it is enabled.
+     *
+     * @param event The event
+     * @param nodeId ID of the node the event concerns, or null
+     * @param path The message path, or null
+     * @param value The value, see {@link Event}
+     */
+    public void record(Event event, String nodeId, String path, long value) {
+        if (event.level.ordinal() > level.ordinal()) {
+            return;
+        }
+
+        long time = System.nanoTime();
+        long key = (long) event.ordinal() << 48 | (long) pathIndex(path) << 32 | (nodeId != null ? nodeId.hashCode() : 0) & 0xFFFFFFFFL;
+
+        long sequence = next.getAndIncrement();
+        int slot = (int) sequence & mask;
+        // The full fence keeps the record from being written before the stamp is invalidated
+        stamps.set(slot, INVALID);
+        records.lazySet(slot * RECORD_LONGS, time);
+        records.lazySet(slot * RECORD_LONGS + 1, key);
+        records.lazySet(slot * RECORD_LONGS + 2, value);
+        stamps.lazySet(slot, sequence);
+    }
+
+    private static int pathIndex(String path) {
+        if (path == null) {
+            return UNKNOWN_PATH;
+        }
+        for (int i = 0; i < PATHS.length; i++) {
+            if (PATHS[i].equals(path)) {
+                return i;
+            }
+        }
+        return UNKNOWN_PATH;
+    }
+
+    /**
+     * Remembers a node ID, so that the dump shows it instead of its hash code. Meant for slow
+     * paths, e.g. when a node connects.
+     *
+     * @param nodeId ID of a node
+     */
+    public void registerNode(String nodeId) {
+        nodeNames.put(nodeId.hashCode(), nodeId);
+    }
+
+    /**
+     * Returns the number of records written so far, including overwritten ones.
+     *
+     * @return Number of records
+     */
+    public long getRecorded() {
+        return next.get();
+    }
+
+    /**
+     * Decodes the records in the buffer, oldest first, one line each. Records that are written
+     * concurrently are skipped.
+     *
+     * @param writer Receives the lines
+     */
+    public void dump(PrintWriter writer) {
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        long end = next.get();
+        long start = Math.max(0, end - (mask + 1));
+        long skipped = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) sequence & mask;
+            if (stamps.get(slot) != sequence) {
+                skipped++;
+                continue;
+            }
+            long time = records.get(slot * RECORD_LONGS);
+            long key = records.get(slot * RECORD_LONGS + 1);
+            long value = records.get(slot * RECORD_LONGS + 2);
+            if (stamps.get(slot) != sequence) {
+                skipped++;
+                continue;
+            }
+
+            Event event = EVENTS[(int) (key >>> 48)];
+            int path = (int) (key >>> 32) & 0xFFFF;
+            int node = (int) key;
+            StringBuilder line = new StringBuilder(80);
+            line.append(format.format(new Date(baseMillis + TimeUnit.NANOSECONDS.toMillis(time - baseNanos))));
+            line.append(' ').append(event.level).append(' ').append(event.label);
+            if (node != 0) {
+                String name = nodeNames.get(node);
+                line.append(" node=").append(name != null ? name : String.format("%08x", node));
+            }
+            if (path != UNKNOWN_PATH) {
+                line.append(" path=").append(PATHS[path]);
+            }
+            if (event.valueLabel != null) {
+                line.append(' ').append(event.valueLabel).append('=').append(value);
+            }
+            writer.println(line);
+        }
+        writer.println(String.format("%d records, %d overwritten, %d skipped", end - start, start, skipped));
+    }
+
+    /**
+     * Handles the arguments of {@code dumpsys}: {@code trace} decodes the records, {@code trace
+     * <level>} sets the {@link Level}.
+     *
+     * @param writer Receives the records or the new level
+     * @param args The arguments passed to {@code dumpsys}
+     * @return True, if the arguments have been handled; false, if they are not for the trace
+     */
+    public boolean dump(PrintWriter writer, String[] args) {
+        if (args == null || args.length == 0 || !"trace".equals(args[0])) {
+            return false;
+        }
+        if (args.length == 1) {
+            dump(writer);
+            return true;
+        }
+
+        try {
+            setLevel(Level.valueOf(args[1].toUpperCase(Locale.US)));
+            writer.println(this);
+        }
+        catch (IllegalArgumentException e) {
+            writer.println("Unknown level " + args[1] + ", expected one of OFF, ERROR, INFO, DEBUG");
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        long recorded = next.get();
+        return String.format("TraceBuffer[level=%s, recorded=%d, capacity=%d, overwritten=%d]", level, recorded, mask + 1,
+                Math.max(0, recorded - (mask + 1)));
+    }
+}
@@ -0,0 +1,199 @@
+package com.okraku.android.heartrate.core.rollup;
+
+/**
+ * Immutable block of closed buckets of one tier, compressed column by column.
+ * <p>
+ * Bucket starts are multiples of the resolution of the tier, and neighbouring buckets have
+ * similar heart rates, so every column is stored as varints of small deltas:
+ * <pre>
+ * varint   number of buckets n
+ * varlong  lowest bucket start / resolution
+ * varlong  (highest bucket start - lowest bucket start) / resolution
+ * n times  zig-zag varint: bucket start / resolution, delta to the previous one (first: to the lowest)
+ * n times  varint: number of heart rates
+ * n times  zig-zag varint: minimum, delta to the previous minimum (first: to 0)
+ * n times  varint: maximum - minimum
+ * n times  varlong: sum - minimum * number of heart rates
+ * </pre>
+ * A bucket of a full second takes about 4 bytes, instead of 28 bytes uncompressed. The lowest
+ * and highest bucket start are kept decoded, so that queries skip blocks outside their range.
+ */
+final class RollupBlock {
+    /**
+     * Maximum number of buckets per block.
+     */
+    static final int MAX_BUCKETS = 256;
+
+    /**
+     * Maximum size of an encoded block in bytes: header and five columns of maximum-length varints.
+     */
+    private static final int MAX_ENCODED_SIZE = 5 + 10 + 10 + MAX_BUCKETS * (10 + 5 + 5 + 5 + 10);
+
+    final byte[] data;
+
+    final int bucketCount;
+
+    /**
+     * Start of the earliest bucket in milliseconds.
+     */
+    final long minStart;
+
+    /**
+     * Start of the latest bucket in milliseconds.
+     */
+    final long maxStart;
+
+    private RollupBlock(byte[] data, int bucketCount, long minStart, long maxStart) {
+        this.data = data;
+        this.bucketCount = bucketCount;
+        this.minStart = minStart;
+        this.maxStart = maxStart;
+    }
+
+    /**
+     * Encodes buckets into a new block.
+     *
+     * @param resolution Resolution of the tier in milliseconds; all starts are multiples of it
+     * @param count Number of buckets, at most {@link #MAX_BUCKETS}
+     */
+    static RollupBlock encode(long resolution, long[] starts, int[] counts, int[] mins, int[] maxs, long[] sums, int count) {
+        long minStart = Long.MAX_VALUE;
+        long maxStart = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            minStart = Math.min(minStart, starts[i]);
+            maxStart = Math.max(maxStart, starts[i]);
+        }
+
+        Cursor out = new Cursor(new byte[MAX_ENCODED_SIZE], 0);
+        out.writeVarLong(count);
+        out.writeVarLong(minStart / resolution);
+        out.writeVarLong((maxStart - minStart) / resolution);
+
+        long previous = minStart / resolution;
+        for (int i = 0; i < count; i++) {
+            long start = starts[i] / resolution;
+            out.writeVarLong(zigZag(start - previous));
+            previous = start;
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeVarLong(counts[i]);
+        }
+        long previousMin = 0;
+        for (int i = 0; i < count; i++) {
+            out.writeVarLong(zigZag(mins[i] - previousMin));
+            previousMin = mins[i];
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeVarLong((long) maxs[i] - mins[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeVarLong(sums[i] - (long) mins[i] * counts[i]);
+        }
+
+        byte[] data = new byte[out.position];
+        System.arraycopy(out.data, 0, data, 0, out.position);
+        return new RollupBlock(data, count, minStart, maxStart);
+    }
+
+    /**
+     * Reads the header of an encoded block, e.g. one loaded from a file.
+     *
+     * @param resolution Resolution of the tier in milliseconds
+     * @param data The encoded block
+     * @return The block
+     * @throws IllegalArgumentException If the block is malformed
+     */
+    static RollupBlock parse(long resolution, byte[] data) {
+        Cursor in = new Cursor(data, 0);
+        long count = in.readVarLong();
+        if (count < 1 || count > MAX_BUCKETS) {
+            throw new IllegalArgumentException("Malformed block: " + count + " buckets");
+        }
+        long minStart = in.readVarLong() * resolution;
+        long maxStart = minStart + in.readVarLong() * resolution;
+        RollupBlock block = new RollupBlock(data, (int) count, minStart, maxStart);
+
+        // Decode once, so that malformed blocks are rejected here and not by a query
+        block.decode(resolution, new long[MAX_BUCKETS], new int[MAX_BUCKETS], new int[MAX_BUCKETS], new int[MAX_BUCKETS], new long[MAX_BUCKETS]);
+        return block;
+    }
+
+    /**
+     * Decodes all buckets of the block into the columns, which must hold {@link #bucketCount}
+     * buckets.
+     *
+     * @param resolution Resolution of the tier in milliseconds
+     * @return Number of buckets
+     */
+    int decode(long resolution, long[] starts, int[] counts, int[] mins, int[] maxs, long[] sums) {
+        Cursor in = new Cursor(data, 0);
+        in.readVarLong();
+        long previous = in.readVarLong();
+        in.readVarLong();
+
+        for (int i = 0; i < bucketCount; i++) {
+            previous += unZigZag(in.readVarLong());
+            starts[i] = previous * resolution;
+        }
+        for (int i = 0; i < bucketCount; i++) {
+            counts[i] = (int) in.readVarLong();
+        }
+        long previousMin = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            previousMin += unZigZag(in.readVarLong());
+            mins[i] = (int) previousMin;
+        }
+        for (int i = 0; i < bucketCount; i++) {
+            maxs[i] = (int) (mins[i] + in.readVarLong());
+        }
+        for (int i = 0; i < bucketCount; i++) {
+            sums[i] = in.readVarLong() + (long) mins[i] * counts[i];
+        }
+        return bucketCount;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Position within an encoded block.
+     */
+    private static final class Cursor {
+        final byte[] data;
+
+        int position;
+
+        Cursor(byte[] data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                data[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[position++] = (byte) value;
+        }
+
+        long readVarLong() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= data.length) {
+                    throw new IllegalArgumentException("Truncated block");
+                }
+                byte b = data[position++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("Varint too long");
+        }
+    }
+}
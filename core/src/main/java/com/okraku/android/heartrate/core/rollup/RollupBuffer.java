@@ -0,0 +1,159 @@
+package com.okraku.android.heartrate.core.rollup;
+
+import java.util.Arrays;
+
+/**
+ * Result of a {@link RollupStore} query: consecutive buckets of equal length with the minimum,
+ * maximum, mean and number of the heart rates in each. Buckets without heart rates are included
+ * with a count of 0, so bucket {@code i} always starts at {@code getStart(0) + i * getResolutionMillis()}.
+ * <p>
+ * The arrays grow as needed and are reused by every query, so a reader that queries repeatedly
+ * (e.g. to draw a chart) does not allocate once they are large enough. A buffer must only be used
+ * by one thread at a time.
+ */
+public final class RollupBuffer {
+    /**
+     * Start of the first bucket in milliseconds.
+     */
+    private long from;
+
+    /**
+     * Length of a bucket in milliseconds.
+     */
+    private long resolutionMillis;
+
+    private int size;
+
+    private int[] counts = new int[0];
+
+    private int[] mins = new int[0];
+
+    private int[] maxs = new int[0];
+
+    /**
+     * Sum of the heart rates per bucket.
+     */
+    private long[] sums = new long[0];
+
+    /**
+     * Columns for decoding a block during a query, so that queries do not allocate.
+     */
+    final long[] blockStarts = new long[RollupBlock.MAX_BUCKETS];
+
+    final int[] blockCounts = new int[RollupBlock.MAX_BUCKETS];
+
+    final int[] blockMins = new int[RollupBlock.MAX_BUCKETS];
+
+    final int[] blockMaxs = new int[RollupBlock.MAX_BUCKETS];
+
+    final long[] blockSums = new long[RollupBlock.MAX_BUCKETS];
+
+    /**
+     * Clears the buffer and makes room for the buckets of a query.
+     */
+    void reset(long from, long resolutionMillis, int size) {
+        if (counts.length < size) {
+            int capacity = Math.max(size, counts.length * 2);
+            counts = new int[capacity];
+            mins = new int[capacity];
+            maxs = new int[capacity];
+            sums = new long[capacity];
+        }
+        else {
+            Arrays.fill(counts, 0, size, 0);
+        }
+        this.from = from;
+        this.resolutionMillis = resolutionMillis;
+        this.size = size;
+    }
+
+    /**
+     * Adds the heart rates of a stored bucket to the bucket it starts in. Buckets outside the
+     * range of the buffer are ignored.
+     */
+    void merge(long start, int min, int max, long sum, int count) {
+        if (start < from) {
+            return;
+        }
+        long index = (start - from) / resolutionMillis;
+        if (index >= size) {
+            return;
+        }
+
+        int i = (int) index;
+        if (counts[i] == 0) {
+            mins[i] = min;
+            maxs[i] = max;
+            sums[i] = sum;
+        }
+        else {
+            mins[i] = Math.min(mins[i], min);
+            maxs[i] = Math.max(maxs[i], max);
+            sums[i] += sum;
+        }
+        counts[i] += count;
+    }
+
+    /**
+     * Returns the number of buckets, including empty ones.
+     *
+     * @return Number of buckets
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getResolutionMillis() {
+        return resolutionMillis;
+    }
+
+    /**
+     * Returns the start of a bucket.
+     *
+     * @param index Index of the bucket
+     * @return Start in milliseconds
+     */
+    public long getStart(int index) {
+        return from + index * resolutionMillis;
+    }
+
+    /**
+     * Returns the number of heart rates in a bucket.
+     *
+     * @param index Index of the bucket
+     * @return Number of heart rates, 0 if the bucket is empty
+     */
+    public int getCount(int index) {
+        return counts[index];
+    }
+
+    /**
+     * Returns the lowest heart rate in a bucket.
+     *
+     * @param index Index of the bucket
+     * @return Minimum, or 0 if the bucket is empty
+     */
+    public int getMin(int index) {
+        return counts[index] > 0 ? mins[index] : 0;
+    }
+
+    /**
+     * Returns the highest heart rate in a bucket.
+     *
+     * @param index Index of the bucket
+     * @return Maximum, or 0 if the bucket is empty
+     */
+    public int getMax(int index) {
+        return counts[index] > 0 ? maxs[index] : 0;
+    }
+
+    /**
+     * Returns the average heart rate in a bucket.
+     *
+     * @param index Index of the bucket
+     * @return Mean, or 0 if the bucket is empty
+     */
+    public double getMean(int index) {
+        return counts[index] > 0 ? (double) sums[index] / counts[index] : 0;
+    }
+}
@@ -0,0 +1,337 @@
+package com.okraku.android.heartrate.core.rollup;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Heart rates aggregated into tiers of increasing resolution, e.g. seconds, minutes and hours,
+ * with the minimum, maximum, mean and number of heart rates per bucket.
+ * <p>
+ * Tiers are updated incrementally: a heart rate only updates the open bucket of the finest tier;
+ * a closed bucket is passed on to the next coarser tier. Closed buckets are compressed in blocks
+ * of columns (see {@link RollupBlock}) and expire after the retention time of their tier, so
+ * coarse tiers can be kept much longer than the raw heart rates.
+ * <p>
+ * A query over a long time range therefore reads a few hundred hourly buckets instead of
+ * hundreds of thousands of heart rates: {@link #query(long, long, long, RollupBuffer)} uses the
+ * coarsest tier whose resolution divides the requested one.
+ * <p>
+ * If a directory is given, every tier appends its blocks to a file and is restored from it when
+ * the store is opened again. Buckets that have not been compressed yet (at most about an hour)
+ * are only written by {@link #flush()} and {@link #close()}.
+ * <p>
+ * Heart rates may be added by several threads, e.g. the thread that receives messages and the
+ * ones that receive history channels; every heart rate takes the write lock on its own. Any
+ * number of threads may query concurrently.
+ */
+public class RollupStore implements Closeable {
+    /**
+     * Default resolutions of the tiers: 1 second, 1 minute, 1 hour.
+     */
+    public static final long[] DEFAULT_RESOLUTIONS = {TimeUnit.SECONDS.toMillis(1), TimeUnit.MINUTES.toMillis(1), TimeUnit.HOURS.toMillis(1)};
+
+    /**
+     * Default retention times of the tiers: 7 days, 1 year, forever.
+     */
+    public static final long[] DEFAULT_RETENTIONS = {TimeUnit.DAYS.toMillis(7), TimeUnit.DAYS.toMillis(365), Long.MAX_VALUE};
+
+    /**
+     * Maximum number of buckets a query may return.
+     */
+    public static final int MAX_QUERY_BUCKETS = 1 << 20;
+
+    /**
+     * File name extension of tier files.
+     */
+    private static final String TIER_SUFFIX = ".rlp";
+
+    /**
+     * The tiers, finest first.
+     */
+    private final RollupTier[] tiers;
+
+    /**
+     * Guards the tiers and {@link #newestTimestamp}.
+     */
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * Timestamp of the newest heart rate; buckets expire relative to it.
+     */
+    private long newestTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Opens a store with the default tiers.
+     *
+     * @param directory Directory of the tier files, created if it does not exist; or null to keep
+     *                  the tiers in memory only
+     * @throws IOException If the directory or a tier file could not be opened
+     */
+    public RollupStore(File directory) throws IOException {
+        this(directory, DEFAULT_RESOLUTIONS, DEFAULT_RETENTIONS);
+    }
+
+    /**
+     * Opens a store. Existing tier files in the directory are loaded.
+     *
+     * @param directory Directory of the tier files, created if it does not exist; or null to keep
+     *                  the tiers in memory only
+     * @param resolutionMillis Length of the buckets of every tier in milliseconds, finest first;
+     *                         each a multiple of the previous one
+     * @param retentionMillis Time the buckets of every tier are kept for in milliseconds
+     * @throws IOException If the directory or a tier file could not be opened
+     */
+    public RollupStore(File directory, long[] resolutionMillis, long[] retentionMillis) throws IOException {
+        if (resolutionMillis.length == 0 || resolutionMillis.length != retentionMillis.length) {
+            throw new IllegalArgumentException("Need one retention time per tier");
+        }
+        for (int i = 0; i < resolutionMillis.length; i++) {
+            if (resolutionMillis[i] < 1 || (i > 0 && resolutionMillis[i] % resolutionMillis[i - 1] != 0)) {
+                throw new IllegalArgumentException("Resolution must be a multiple of the previous one: " + resolutionMillis[i]);
+            }
+        }
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+
+        tiers = new RollupTier[resolutionMillis.length];
+        try {
+            for (int i = 0; i < tiers.length; i++) {
+                File path = directory != null ? new File(directory, String.format(Locale.ROOT, "%d%s", resolutionMillis[i], TIER_SUFFIX)) : null;
+                tiers[i] = new RollupTier(path, resolutionMillis[i], retentionMillis[i]);
+                if (i > 0) {
+                    tiers[i - 1].next = tiers[i];
+                }
+            }
+        }
+        catch (IOException e) {
+            closeTiers();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a heart rate. May be called by several threads. Heart rates may be added out of time
+     * order, e.g. ones a smartwatch could not send earlier.
+     *
+     * @param timestamp Timestamp of the heart rate in milliseconds
+     * @param heartRate The heart rate
+     */
+    public void add(long timestamp, int heartRate) {
+        long stamp = lock.writeLock();
+        try {
+            newestTimestamp = Math.max(newestTimestamp, timestamp);
+            tiers[0].add(timestamp, heartRate, heartRate, heartRate, 1, newestTimestamp);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Aggregates the heart rates of a time range into buckets of the requested resolution, using
+     * the coarsest tier whose resolution divides it. If the requested resolution is finer than
+     * the finest tier, the buckets have the resolution of the finest tier.
+     * <p>
+     * Buckets are aligned to multiples of their resolution; the first bucket is the one that
+     * contains {@code from}. Buckets of the tier are included completely if they start before
+     * {@code to}. Tiers only hold heart rates within their retention time, so a fine resolution
+     * over a long range may return empty buckets at the start.
+     *
+     * @param from Start of the range in milliseconds (inclusive)
+     * @param to End of the range in milliseconds (exclusive)
+     * @param resolutionMillis Requested length of a bucket in milliseconds
+     * @param out Receives the buckets; cleared first
+     * @return Number of buckets that contain heart rates
+     * @throws IllegalArgumentException If the query would return more than
+     *                                  {@link #MAX_QUERY_BUCKETS} buckets
+     */
+    public int query(long from, long to, long resolutionMillis, RollupBuffer out) {
+        int tier = 0;
+        for (int i = tiers.length - 1; i > 0; i--) {
+            if (resolutionMillis % tiers[i].resolutionMillis == 0) {
+                tier = i;
+                break;
+            }
+        }
+        long resolution = Math.max(resolutionMillis, tiers[0].resolutionMillis);
+
+        long start = Math.floorDiv(from, resolution) * resolution;
+        long buckets = to > start ? (to - start + resolution - 1) / resolution : 0;
+        if (buckets > MAX_QUERY_BUCKETS) {
+            throw new IllegalArgumentException(String.format("Query for %d buckets, maximum is %d", buckets, MAX_QUERY_BUCKETS));
+        }
+        out.reset(start, resolution, (int) buckets);
+
+        long stamp = lock.readLock();
+        try {
+            tiers[tier].query(start, to, out);
+            // Heart rates in the open buckets of the finer tiers have not been passed on yet
+            for (int i = 0; i < tier; i++) {
+                tiers[i].queryOpen(start, to, out);
+            }
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+
+        int found = 0;
+        for (int i = 0; i < out.size(); i++) {
+            if (out.getCount(i) > 0) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the coarsest resolution that still splits a time range into at least the given
+     * number of buckets, rounded to a multiple of a tier, so that a query reads as few buckets as
+     * possible. Used e.g. to get one bucket per pixel of a chart.
+     *
+     * @param rangeMillis Length of the time range in milliseconds
+     * @param buckets Minimum number of buckets
+     * @return Resolution for {@link #query(long, long, long, RollupBuffer)} in milliseconds
+     */
+    public long getResolutionFor(long rangeMillis, int buckets) {
+        long wanted = Math.max(1, rangeMillis / Math.max(1, buckets));
+        int tier = 0;
+        while (tier + 1 < tiers.length && tiers[tier + 1].resolutionMillis <= wanted) {
+            tier++;
+        }
+        long resolution = tiers[tier].resolutionMillis;
+        return Math.max(1, wanted / resolution) * resolution;
+    }
+
+    public int getTierCount() {
+        return tiers.length;
+    }
+
+    /**
+     * Returns the length of the buckets of a tier.
+     *
+     * @param tier Index of the tier, finest first
+     * @return Resolution in milliseconds
+     */
+    public long getResolutionMillis(int tier) {
+        return tiers[tier].resolutionMillis;
+    }
+
+    /**
+     * Returns the number of closed buckets of a tier. Late heart rates add partial buckets, so
+     * it may be higher than the number of distinct bucket starts.
+     *
+     * @param tier Index of the tier, finest first
+     * @return Number of buckets
+     */
+    public long getBucketCount(int tier) {
+        long stamp = lock.readLock();
+        try {
+            return tiers[tier].getBucketCount();
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the size of the compressed buckets of all tiers.
+     *
+     * @return Size in bytes
+     */
+    public long getSizeBytes() {
+        long stamp = lock.readLock();
+        try {
+            long size = 0;
+            for (RollupTier tier : tiers) {
+                size += tier.getBlockBytes();
+            }
+            return size;
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the number of writes to the tier files that have failed. The buckets are kept in
+     * memory, but are lost when the app is restarted.
+     *
+     * @return Number of failed writes
+     */
+    public long getFailedWrites() {
+        long stamp = lock.readLock();
+        try {
+            long failed = 0;
+            for (RollupTier tier : tiers) {
+                failed += tier.getFailedWrites();
+            }
+            return failed;
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Closes the open buckets and writes all buckets to the tier files. Heart rates added later
+     * to the same buckets are stored as additional partial buckets.
+     */
+    public void flush() {
+        long stamp = lock.writeLock();
+        try {
+            // Finest first, so that every closed bucket reaches the coarser tiers before they are closed
+            for (RollupTier tier : tiers) {
+                tier.closeBucket(newestTimestamp);
+            }
+            for (RollupTier tier : tiers) {
+                tier.flush(newestTimestamp);
+            }
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Writes all buckets and closes the tier files.
+     *
+     * @throws IOException If a file could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        closeTiers();
+    }
+
+    private void closeTiers() throws IOException {
+        IOException failure = null;
+        for (RollupTier tier : tiers) {
+            if (tier == null) {
+                continue;
+            }
+            try {
+                tier.close();
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("RollupStore[");
+        for (int i = 0; i < tiers.length; i++) {
+            result.append(String.format("%dms=%d buckets, ", getResolutionMillis(i), getBucketCount(i)));
+        }
+        return result.append(String.format("size=%d bytes, failed writes=%d]", getSizeBytes(), getFailedWrites())).toString();
+    }
+}
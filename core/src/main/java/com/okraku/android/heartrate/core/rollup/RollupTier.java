@@ -0,0 +1,410 @@
+package com.okraku.android.heartrate.core.rollup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * One resolution of a {@link RollupStore}: the heart rates aggregated into buckets of a fixed
+ * length.
+ * <p>
+ * The current bucket is open and updated in place. When a heart rate or finer bucket falls into
+ * another bucket, the open bucket is closed: it is passed on to the next coarser tier and
+ * appended to the pending buckets, which are compressed into a {@link RollupBlock} when there
+ * are {@link RollupBlock#MAX_BUCKETS} of them or heart rates of {@link #FLUSH_INTERVAL_MILLIS}
+ * have been added since the first one. Late heart rates therefore produce additional partial
+ * buckets with the same start, which queries merge.
+ * <p>
+ * Blocks are appended to the tier file, if there is one:
+ * <pre>
+ * int     MAGIC ("HRR1")
+ * long    resolution in milliseconds
+ * n times int    length of the block
+ *         byte[] the block
+ * </pre>
+ * Blocks that have expired are dropped from memory; the file is rewritten once it holds more
+ * expired blocks than live ones.
+ * <p>
+ * Not thread-safe; guarded by the {@link RollupStore}.
+ */
+final class RollupTier implements Closeable {
+    /**
+     * First four bytes of every tier file ("HRR1").
+     */
+    private static final int MAGIC = 0x48525231;
+
+    /**
+     * Size of the file header in bytes: magic, resolution.
+     */
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * Maximum time pending buckets are kept in memory only, in milliseconds of heart rate time.
+     */
+    static final long FLUSH_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * Length of a bucket in milliseconds.
+     */
+    final long resolutionMillis;
+
+    /**
+     * Time buckets are kept for in milliseconds, relative to the newest heart rate.
+     */
+    final long retentionMillis;
+
+    /**
+     * The next coarser tier, or null.
+     */
+    RollupTier next;
+
+    /**
+     * The tier file, or null if the tier is kept in memory only.
+     */
+    private final File path;
+
+    private RandomAccessFile file;
+
+    /**
+     * Compressed buckets. Usually oldest first, but blocks with late buckets may be anywhere.
+     */
+    private final List<RollupBlock> blocks = new ArrayList<>();
+
+    /**
+     * Total size of all blocks in bytes.
+     */
+    private long blockBytes;
+
+    /**
+     * Number of blocks in the file that have expired since it has been written.
+     */
+    private int expiredBlocks;
+
+    /**
+     * Number of writes to the file that have failed.
+     */
+    private long failedWrites;
+
+    /**
+     * Closed buckets that have not been compressed yet, in columns.
+     */
+    private final long[] pendingStarts = new long[RollupBlock.MAX_BUCKETS];
+
+    private final int[] pendingCounts = new int[RollupBlock.MAX_BUCKETS];
+
+    private final int[] pendingMins = new int[RollupBlock.MAX_BUCKETS];
+
+    private final int[] pendingMaxs = new int[RollupBlock.MAX_BUCKETS];
+
+    private final long[] pendingSums = new long[RollupBlock.MAX_BUCKETS];
+
+    private int pending;
+
+    /**
+     * Timestamp of the newest heart rate when the first pending bucket was closed.
+     */
+    private long pendingSince;
+
+    /**
+     * The open bucket; empty if {@link #openCount} is 0.
+     */
+    private long openStart;
+
+    private int openCount;
+
+    private int openMin;
+
+    private int openMax;
+
+    private long openSum;
+
+    /**
+     * Creates a tier and loads the blocks of its file.
+     *
+     * @param path The tier file, created if it does not exist; or null to keep the tier in memory
+     * @param resolutionMillis Length of a bucket in milliseconds
+     * @param retentionMillis Time buckets are kept for in milliseconds
+     * @throws IOException If the file could not be opened
+     */
+    RollupTier(File path, long resolutionMillis, long retentionMillis) throws IOException {
+        this.path = path;
+        this.resolutionMillis = resolutionMillis;
+        this.retentionMillis = retentionMillis;
+        if (path != null) {
+            file = new RandomAccessFile(path, "rw");
+            load();
+        }
+    }
+
+    /**
+     * Reads all blocks of the file. A file of another tier is cleared; a block that has only
+     * been written partially, because the app was killed, is cut off.
+     */
+    private void load() throws IOException {
+        if (file.length() < HEADER_SIZE || file.readInt() != MAGIC || file.readLong() != resolutionMillis) {
+            file.setLength(0);
+            file.writeInt(MAGIC);
+            file.writeLong(resolutionMillis);
+            return;
+        }
+
+        long end = HEADER_SIZE;
+        try {
+            while (end < file.length()) {
+                int length = file.readInt();
+                if (length < 1 || length > file.length() - file.getFilePointer()) {
+                    break;
+                }
+                byte[] data = new byte[length];
+                file.readFully(data);
+                addBlock(RollupBlock.parse(resolutionMillis, data));
+                end = file.getFilePointer();
+            }
+        }
+        catch (EOFException | IllegalArgumentException e) {
+            // Cut off below
+        }
+        file.setLength(end);
+        file.seek(end);
+    }
+
+    /**
+     * Adds heart rates to the bucket they fall into.
+     *
+     * @param start Timestamp of a heart rate, or start of a finer bucket, in milliseconds
+     * @param min Lowest heart rate
+     * @param max Highest heart rate
+     * @param sum Sum of the heart rates
+     * @param count Number of heart rates
+     * @param newest Timestamp of the newest heart rate of the store
+     */
+    void add(long start, int min, int max, long sum, int count, long newest) {
+        long bucket = Math.floorDiv(start, resolutionMillis) * resolutionMillis;
+        if (openCount > 0 && bucket != openStart) {
+            closeBucket(newest);
+        }
+
+        if (openCount == 0) {
+            openStart = bucket;
+            openMin = min;
+            openMax = max;
+            openSum = sum;
+        }
+        else {
+            openMin = Math.min(openMin, min);
+            openMax = Math.max(openMax, max);
+            openSum += sum;
+        }
+        openCount += count;
+    }
+
+    /**
+     * Closes the open bucket: passes it on to the next tier and appends it to the pending buckets.
+     */
+    void closeBucket(long newest) {
+        if (openCount == 0) {
+            return;
+        }
+        if (next != null) {
+            next.add(openStart, openMin, openMax, openSum, openCount, newest);
+        }
+
+        if (pending == 0) {
+            pendingSince = newest;
+        }
+        pendingStarts[pending] = openStart;
+        pendingCounts[pending] = openCount;
+        pendingMins[pending] = openMin;
+        pendingMaxs[pending] = openMax;
+        pendingSums[pending] = openSum;
+        pending++;
+        openCount = 0;
+
+        if (pending == RollupBlock.MAX_BUCKETS || newest - pendingSince >= FLUSH_INTERVAL_MILLIS) {
+            flush(newest);
+        }
+    }
+
+    /**
+     * Compresses the pending buckets into a block, writes it to the file and drops expired blocks.
+     * If the file cannot be written, the block is kept in memory only and the failure counted.
+     */
+    void flush(long newest) {
+        if (pending == 0) {
+            return;
+        }
+        RollupBlock block = RollupBlock.encode(resolutionMillis, pendingStarts, pendingCounts, pendingMins, pendingMaxs, pendingSums, pending);
+        pending = 0;
+        addBlock(block);
+
+        try {
+            if (file != null) {
+                write(block);
+            }
+            expire(newest);
+        }
+        catch (IOException e) {
+            failedWrites++;
+        }
+    }
+
+    /**
+     * Appends a block to the file with a single write, so that a killed app leaves at most one
+     * partial block. If the write fails, the file is cut back to the previous block.
+     */
+    private void write(RollupBlock block) throws IOException {
+        byte[] record = new byte[4 + block.data.length];
+        record[0] = (byte) (block.data.length >>> 24);
+        record[1] = (byte) (block.data.length >>> 16);
+        record[2] = (byte) (block.data.length >>> 8);
+        record[3] = (byte) block.data.length;
+        System.arraycopy(block.data, 0, record, 4, block.data.length);
+
+        long end = file.getFilePointer();
+        try {
+            file.write(record);
+        }
+        catch (IOException e) {
+            file.setLength(end);
+            file.seek(end);
+            throw e;
+        }
+    }
+
+    private void addBlock(RollupBlock block) {
+        blocks.add(block);
+        blockBytes += block.data.length;
+    }
+
+    /**
+     * Drops the blocks whose buckets are all older than the retention time.
+     */
+    private void expire(long newest) throws IOException {
+        long oldest = newest - retentionMillis;
+        if (oldest <= 0 || oldest > newest) {
+            // Nothing is that old, or the retention time is unlimited
+            return;
+        }
+        for (Iterator<RollupBlock> iterator = blocks.iterator(); iterator.hasNext(); ) {
+            RollupBlock block = iterator.next();
+            if (block.maxStart + resolutionMillis <= oldest) {
+                iterator.remove();
+                blockBytes -= block.data.length;
+                expiredBlocks++;
+            }
+        }
+
+        if (file != null && expiredBlocks > blocks.size()) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Replaces the file by one with the live blocks only.
+     */
+    private void rewrite() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, HEADER_SIZE + blockBytes + 4L * blocks.size()));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeLong(resolutionMillis);
+        for (RollupBlock block : blocks) {
+            out.writeInt(block.data.length);
+            out.write(block.data);
+        }
+
+        File temporary = new File(path.getPath() + ".tmp");
+        try (RandomAccessFile replacement = new RandomAccessFile(temporary, "rw")) {
+            replacement.setLength(0);
+            replacement.write(bytes.toByteArray());
+            replacement.getFD().sync();
+        }
+        file.close();
+        boolean replaced = temporary.renameTo(path);
+        file = new RandomAccessFile(path, "rw");
+        file.seek(file.length());
+        if (!replaced) {
+            throw new IOException("Cannot replace " + path);
+        }
+        expiredBlocks = 0;
+    }
+
+    /**
+     * Merges all buckets of this tier that start within a range into the buffer, including the
+     * pending and the open bucket.
+     *
+     * @param from Start of the range in milliseconds (inclusive)
+     * @param to End of the range in milliseconds (exclusive)
+     * @param out Receives the buckets
+     */
+    void query(long from, long to, RollupBuffer out) {
+        long[] starts = out.blockStarts;
+        int[] counts = out.blockCounts;
+        int[] mins = out.blockMins;
+        int[] maxs = out.blockMaxs;
+        long[] sums = out.blockSums;
+        for (int b = 0; b < blocks.size(); b++) {
+            RollupBlock block = blocks.get(b);
+            if (block.maxStart < from || block.minStart >= to) {
+                continue;
+            }
+            int count = block.decode(resolutionMillis, starts, counts, mins, maxs, sums);
+            for (int i = 0; i < count; i++) {
+                if (starts[i] >= from && starts[i] < to) {
+                    out.merge(starts[i], mins[i], maxs[i], sums[i], counts[i]);
+                }
+            }
+        }
+
+        for (int i = 0; i < pending; i++) {
+            if (pendingStarts[i] >= from && pendingStarts[i] < to) {
+                out.merge(pendingStarts[i], pendingMins[i], pendingMaxs[i], pendingSums[i], pendingCounts[i]);
+            }
+        }
+        queryOpen(from, to, out);
+    }
+
+    /**
+     * Merges the open bucket into the buffer, if it starts within a range. Used for the finer
+     * tiers of a query, whose open buckets have not been passed on yet.
+     */
+    void queryOpen(long from, long to, RollupBuffer out) {
+        if (openCount > 0 && openStart >= from && openStart < to) {
+            out.merge(openStart, openMin, openMax, openSum, openCount);
+        }
+    }
+
+    /**
+     * Returns the number of closed buckets, including late partial ones.
+     *
+     * @return Number of buckets
+     */
+    long getBucketCount() {
+        long count = pending;
+        for (RollupBlock block : blocks) {
+            count += block.bucketCount;
+        }
+        return count;
+    }
+
+    long getBlockBytes() {
+        return blockBytes;
+    }
+
+    long getFailedWrites() {
+        return failedWrites;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+        }
+    }
+}
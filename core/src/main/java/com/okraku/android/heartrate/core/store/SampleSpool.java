@@ -0,0 +1,260 @@
+package com.okraku.android.heartrate.core.store;
+
+import com.okraku.android.heartrate.core.SampleBuffer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Bounded first-in first-out queue of heart rate samples, stored in a memory-mapped file.
+ * <p>
+ * Keeps samples that could not be sent, until they can be sent again. The file is a ring of
+ * fixed-size records. Its header holds the absolute positions of the first and after the last
+ * record, so the queue survives a restart of the app. If the ring is full, the oldest samples
+ * are overwritten and counted as dropped.
+ * <p>
+ * Samples are read in two steps: {@link #peek(SampleBuffer, int)} copies the oldest samples
+ * without removing them, {@link #remove(long, int)} removes them once they have been sent. If
+ * older samples have been overwritten in between, only the remaining ones are removed. Samples
+ * that have been removed but could not be sent are put back with {@link #addFirst(SampleBuffer)}.
+ * <p>
+ * All methods are thread-safe.
+ */
+public class SampleSpool implements Closeable {
+    /**
+     * First four bytes of the file ("HRQ1").
+     */
+    private static final int MAGIC = 0x48525131;
+
+    /**
+     * Size of the header in bytes: magic, record size, capacity, reserved, head, tail.
+     */
+    private static final int HEADER_SIZE = 32;
+
+    /**
+     * Size of a record in bytes: timestamp (long), heart rate (int).
+     */
+    public static final int RECORD_SIZE = 12;
+
+    private final RandomAccessFile file;
+
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Maximum number of records.
+     */
+    private final int capacity;
+
+    /**
+     * Absolute position of the oldest record. Guarded by this.
+     */
+    private long head;
+
+    /**
+     * Absolute position after the newest record. Guarded by this.
+     */
+    private long tail;
+
+    /**
+     * Number of samples overwritten before they could be removed. Guarded by this.
+     */
+    private long dropped;
+
+    /**
+     * Opens a spool. Samples of an existing file are kept, if its capacity matches.
+     *
+     * @param path The spool file; created if it does not exist
+     * @param capacity Maximum number of samples
+     * @throws IOException If the file could not be opened
+     */
+    public SampleSpool(File path, int capacity) throws IOException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        }
+        this.capacity = capacity;
+
+        file = new RandomAccessFile(path, "rw");
+        boolean valid = file.length() == HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        if (!valid) {
+            file.setLength(0);
+            file.setLength(HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        }
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+
+        if (valid && buffer.getInt(0) == MAGIC && buffer.getInt(4) == RECORD_SIZE && buffer.getInt(8) == capacity) {
+            head = buffer.getLong(16);
+            tail = buffer.getLong(24);
+            if (head < 0 || tail < head || tail - head > capacity) {
+                head = 0;
+                tail = 0;
+            }
+        }
+        else {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, RECORD_SIZE);
+            buffer.putInt(8, capacity);
+        }
+        writePositions();
+    }
+
+    /**
+     * Appends a sample. If the spool is full, the oldest sample is dropped.
+     *
+     * @param timestamp Timestamp of the sample in milliseconds
+     * @param heartRate The heart rate
+     */
+    public synchronized void add(long timestamp, int heartRate) {
+        put(timestamp, heartRate);
+        writePositions();
+    }
+
+    /**
+     * Appends all samples of a buffer. If the spool is full, the oldest samples are dropped.
+     *
+     * @param samples The samples to append
+     */
+    public synchronized void addAll(SampleBuffer samples) {
+        for (int i = 0; i < samples.size(); i++) {
+            put(samples.getTimestamp(i), samples.getValue(i));
+        }
+        writePositions();
+    }
+
+    /**
+     * Puts samples back in front of the oldest sample, e.g. after they have been removed but
+     * could not be sent, so that they are read again first and in their order. If the spool is
+     * full, the oldest of them are dropped.
+     *
+     * @param samples The samples, oldest first
+     */
+    public synchronized void addFirst(SampleBuffer samples) {
+        int count = Math.min(samples.size(), capacity - size());
+        dropped += samples.size() - count;
+        if (head < count) {
+            // Positions must not become negative; moving both by the capacity keeps the offsets
+            head += capacity;
+            tail += capacity;
+        }
+        for (int i = samples.size() - 1; i >= samples.size() - count; i--) {
+            head--;
+            int offset = offsetOf(head);
+            buffer.putLong(offset, samples.getTimestamp(i));
+            buffer.putInt(offset + 8, samples.getValue(i));
+        }
+        writePositions();
+    }
+
+    private void put(long timestamp, int heartRate) {
+        if (tail - head == capacity) {
+            head++;
+            dropped++;
+        }
+        int offset = offsetOf(tail);
+        buffer.putLong(offset, timestamp);
+        buffer.putInt(offset + 8, heartRate);
+        tail++;
+    }
+
+    /**
+     * Copies the oldest samples to the buffer without removing them.
+     *
+     * @param samples Receives the samples
+     * @param max Maximum number of samples to copy
+     * @return Position of the first copied sample, to be passed to {@link #remove(long, int)}
+     */
+    public synchronized long peek(SampleBuffer samples, int max) {
+        return peek(head, samples, max);
+    }
+
+    /**
+     * Copies samples to the buffer without removing them, starting at a position. Used to read
+     * ahead of samples that have not been removed yet.
+     *
+     * @param from Position of the first sample to copy; if older samples have been removed or
+     *             dropped, copying starts at the oldest sample
+     * @param samples Receives the samples
+     * @param max Maximum number of samples to copy
+     * @return Position of the first copied sample
+     */
+    public synchronized long peek(long from, SampleBuffer samples, int max) {
+        long start = Math.max(from, head);
+        long end = Math.min(tail, start + max);
+        for (long position = start; position < end; position++) {
+            int offset = offsetOf(position);
+            samples.add(buffer.getLong(offset), buffer.getInt(offset + 8));
+        }
+        return start;
+    }
+
+    /**
+     * Removes samples returned by {@link #peek(SampleBuffer, int)}.
+     *
+     * @param position Position of the first sample, as returned by {@link #peek(SampleBuffer, int)}
+     * @param count Number of samples to remove
+     */
+    public synchronized void remove(long position, int count) {
+        long end = Math.min(tail, position + count);
+        if (end > head) {
+            head = end;
+            writePositions();
+        }
+    }
+
+    private int offsetOf(long position) {
+        return HEADER_SIZE + (int) (position % capacity) * RECORD_SIZE;
+    }
+
+    private void writePositions() {
+        buffer.putLong(16, head);
+        buffer.putLong(24, tail);
+    }
+
+    /**
+     * Returns the number of samples in the spool.
+     *
+     * @return Number of samples
+     */
+    public synchronized int size() {
+        return (int) (tail - head);
+    }
+
+    public synchronized boolean isEmpty() {
+        return tail == head;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Forces all changes to disk. Without it, samples survive a crash of the app, but not one of
+     * the device.
+     */
+    public synchronized void force() {
+        buffer.force();
+    }
+
+    /**
+     * Forces all changes to disk and closes the file.
+     *
+     * @throws IOException If the file could not be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("SampleSpool[samples=%d of %d, dropped=%d]", size(), capacity, dropped);
+    }
+}
@@ -0,0 +1,771 @@
+package com.okraku.android.heartrate.core.store;
+
+import com.okraku.android.heartrate.core.SampleBuffer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Append-only log of heart rate samples, stored in memory-mapped segment files.
+ * <p>
+ * Every sample is a fixed-size record. A segment file holds a fixed number of records; when it
+ * is full, a new one is created. Records within a segment and segments among each other are
+ * usually in time order, so time ranges are found by binary search.
+ * <p>
+ * Samples sent late by a smartwatch (backfill) are appended like all others, but are older than
+ * records written before them. The segment they are written to is flagged as unordered in its
+ * header. As long as any segment is flagged, queries scan the segments overlapping the range and
+ * sort the result, so late samples are returned in their correct time position.
+ * <p>
+ * {@link #append(long, int, int)} never blocks and may be called by several threads, e.g. the
+ * message receiver and history channels: samples are put into a bounded lock-free queue and
+ * written by a background thread, which forces them to disk once per commit interval (group
+ * commit). If the queue is full, samples are dropped and counted. A failed commit is counted and
+ * retried with the next one; the samples stay queued.
+ * <p>
+ * On restart, the number of records of each segment is found by binary search for the first
+ * empty record, so recovery does not need to read the whole log.
+ * <p>
+ * With a retention time (see {@link #setRetention(long)}), segments whose records are all older
+ * than the retention time are deleted whenever a new segment is created, so that the raw log does
+ * not grow without bounds once aggregates are kept elsewhere.
+ */
+public class SessionStore implements Closeable {
+    /**
+     * First four bytes of every segment file ("HRS1").
+     */
+    private static final int MAGIC = 0x48525331;
+
+    /**
+     * Size of the segment header in bytes: magic, record size, capacity, flags.
+     */
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * Segment flag: the segment contains records that are older than records written before them.
+     */
+    private static final int FLAG_UNORDERED = 0x01;
+
+    /**
+     * Size of a record in bytes: timestamp (long), heart rate (short), flags (short), source (int).
+     */
+    public static final int RECORD_SIZE = 16;
+
+    /**
+     * File name extension of segment files.
+     */
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * Directory of the segment files.
+     */
+    private final File directory;
+
+    /**
+     * Number of records per segment.
+     */
+    private final int recordsPerSegment;
+
+    /**
+     * Time between two commits in milliseconds.
+     */
+    private final long commitIntervalMillis;
+
+    /**
+     * All segments, oldest first. Replaced on every roll; never modified.
+     */
+    private volatile Segment[] segments;
+
+    /**
+     * True, if all records are in time order, i.e. no segment is flagged as unordered.
+     */
+    private volatile boolean ordered;
+
+    /**
+     * Highest timestamp written so far. Guarded by this.
+     */
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Time records are kept for in milliseconds, relative to the newest record.
+     */
+    private volatile long retentionMillis = Long.MAX_VALUE;
+
+    /**
+     * Queue of samples that have not been written yet. Multiple producers, single consumer.
+     */
+    private final long[] queuedTimestamps;
+
+    private final int[] queuedValues;
+
+    private final int[] queuedSources;
+
+    /**
+     * Per slot of the queue, the number of samples put into the queue once the sample in the slot
+     * is complete. A producer claims a slot first and publishes it here after writing it, so the
+     * writer thread does not read a slot that is still being written.
+     */
+    private final AtomicLongArray published;
+
+    /**
+     * Number of slots claimed by producers so far.
+     */
+    private final AtomicLong queueTail = new AtomicLong();
+
+    /**
+     * Number of samples taken from the queue so far. Only modified by the writer thread.
+     */
+    private final AtomicLong queueHead = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong commits = new AtomicLong();
+
+    /**
+     * Number of commits that failed.
+     */
+    private final AtomicLong failedCommits = new AtomicLong();
+
+    /**
+     * Cause of the most recent failed commit, or null.
+     */
+    private volatile Exception lastFailure;
+
+    /**
+     * Number of segments deleted because of the retention time.
+     */
+    private final AtomicLong deletedSegments = new AtomicLong();
+
+    /**
+     * Time needed to open the existing segments in milliseconds.
+     */
+    private final long recoveryMillis;
+
+    /**
+     * Writes queued samples and commits them.
+     */
+    private final Thread writer;
+
+    private volatile boolean open = true;
+
+    /**
+     * Opens a store. Existing segments in the directory are recovered.
+     *
+     * @param directory Directory of the segment files; created if it does not exist
+     * @param recordsPerSegment Number of records per segment file
+     * @param commitIntervalMillis Time between two commits in milliseconds
+     * @param queueCapacity Maximum number of samples waiting to be written
+     * @throws IOException If the directory or a segment could not be opened
+     */
+    public SessionStore(File directory, int recordsPerSegment, long commitIntervalMillis, int queueCapacity) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        this.directory = directory;
+        this.recordsPerSegment = recordsPerSegment;
+        this.commitIntervalMillis = commitIntervalMillis;
+        this.queuedTimestamps = new long[queueCapacity];
+        this.queuedValues = new int[queueCapacity];
+        this.queuedSources = new int[queueCapacity];
+        this.published = new AtomicLongArray(queueCapacity);
+
+        long start = System.nanoTime();
+        this.segments = recover();
+        this.recoveryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "session-store-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Opens all segment files in the directory, oldest first.
+     */
+    private Segment[] recover() throws IOException {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (names == null) {
+            throw new IOException("Cannot list directory " + directory);
+        }
+        Arrays.sort(names);
+
+        boolean allOrdered = true;
+        List<Segment> result = new ArrayList<>(names.length);
+        for (String name : names) {
+            long number = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = Segment.open(new File(directory, name), number);
+            if (segment.count > 0) {
+                result.add(segment);
+                allOrdered &= !segment.unordered;
+                lastTimestamp = Math.max(lastTimestamp, segment.maxTimestamp);
+            }
+            else {
+                segment.close();
+            }
+        }
+        ordered = allOrdered;
+        return result.toArray(new Segment[0]);
+    }
+
+    /**
+     * Sets the time records are kept for and deletes the segments that have expired already.
+     * Only whole segments are deleted, and never the one written to.
+     *
+     * @param retentionMillis Time records are kept for in milliseconds, relative to the newest
+     *                        record; {@link Long#MAX_VALUE} to keep them forever
+     */
+    public void setRetention(long retentionMillis) {
+        if (retentionMillis < 1) {
+            throw new IllegalArgumentException("retentionMillis must be at least 1: " + retentionMillis);
+        }
+        this.retentionMillis = retentionMillis;
+        deleteExpired();
+    }
+
+    /**
+     * Queues a sample to be written. Never blocks; may be called by several threads.
+     *
+     * @param timestamp Timestamp of the sample in milliseconds; must not be 0
+     * @param heartRate The heart rate
+     * @param source Identifies the source of the sample, e.g. a hash of the node ID
+     * @return False, if the queue was full and the sample has been dropped
+     */
+    public boolean append(long timestamp, int heartRate, int source) {
+        long tail;
+        do {
+            tail = queueTail.get();
+            if (tail - queueHead.get() >= queuedTimestamps.length || !open) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!queueTail.compareAndSet(tail, tail + 1));
+
+        int slot = (int) (tail % queuedTimestamps.length);
+        queuedTimestamps[slot] = timestamp;
+        queuedValues[slot] = heartRate;
+        queuedSources[slot] = source;
+        published.lazySet(slot, tail + 1);
+        return true;
+    }
+
+    private void writeLoop() {
+        while (open) {
+            try {
+                Thread.sleep(commitIntervalMillis);
+            }
+            catch (InterruptedException e) {
+                // Closing: write what is queued
+            }
+
+            try {
+                commit();
+            }
+            catch (IOException | RuntimeException e) {
+                // Samples stay queued and are written with the next commit; if the queue
+                // runs full, further samples are counted as dropped.
+                failedCommits.incrementAndGet();
+                lastFailure = e;
+            }
+        }
+    }
+
+    /**
+     * Writes all queued samples and forces them to disk. Stops at the first slot a producer has
+     * claimed but not published yet; it is written with the next commit.
+     */
+    private synchronized void commit() throws IOException {
+        long head = queueHead.get();
+        long tail = queueTail.get();
+        if (head == tail) {
+            return;
+        }
+
+        Segment[] current = segments;
+        Segment segment = current.length > 0 ? current[current.length - 1] : null;
+
+        for (long i = head; i < tail; i++) {
+            int slot = (int) (i % queuedTimestamps.length);
+            if (published.get(slot) != i + 1) {
+                break;
+            }
+
+            if (segment == null || segment.count == recordsPerSegment) {
+                if (segment != null) {
+                    segment.force();
+                }
+                segment = roll(segment == null ? 0 : segment.number + 1);
+                deleteExpired();
+            }
+
+            long timestamp = queuedTimestamps[slot];
+            if (timestamp < lastTimestamp) {
+                segment.markUnordered();
+                ordered = false;
+            }
+            else {
+                lastTimestamp = timestamp;
+            }
+            segment.append(timestamp, queuedValues[slot], queuedSources[slot]);
+            queueHead.lazySet(i + 1);
+        }
+
+        if (segment == null) {
+            // The first queued sample has not been published yet
+            return;
+        }
+        segment.force();
+        commits.incrementAndGet();
+    }
+
+    /**
+     * Creates a new segment and adds it to the index.
+     */
+    private Segment roll(long number) throws IOException {
+        File file = new File(directory, String.format(Locale.ROOT, "%019d%s", number, SEGMENT_SUFFIX));
+        Segment segment = Segment.create(file, number, recordsPerSegment);
+
+        Segment[] current = segments;
+        Segment[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = segment;
+        segments = updated;
+        return segment;
+    }
+
+    /**
+     * Deletes all segments but the last one whose records are older than the retention time.
+     */
+    private synchronized void deleteExpired() {
+        long oldest = lastTimestamp - retentionMillis;
+        if (oldest > lastTimestamp) {
+            // Unlimited retention time
+            return;
+        }
+
+        Segment[] current = segments;
+        List<Segment> kept = new ArrayList<>(current.length);
+        boolean allOrdered = true;
+        for (int i = 0; i < current.length; i++) {
+            Segment segment = current[i];
+            if (i < current.length - 1 && segment.maxTimestamp < oldest) {
+                // Queries that still use the segment keep reading the mapped buffer
+                try {
+                    segment.close();
+                }
+                catch (IOException e) {
+                    // Deleted anyway
+                }
+                segment.delete();
+                deletedSegments.incrementAndGet();
+            }
+            else {
+                kept.add(segment);
+                allOrdered &= !segment.unordered;
+            }
+        }
+
+        if (kept.size() < current.length) {
+            segments = kept.toArray(new Segment[0]);
+            ordered = allOrdered;
+        }
+    }
+
+    /**
+     * Appends all samples of a time range to the buffer, oldest first. Samples still waiting
+     * in the queue are not included.
+     *
+     * @param from Start of the range in milliseconds (inclusive)
+     * @param to End of the range in milliseconds (exclusive)
+     * @param samples Receives the samples
+     * @return Number of samples found
+     */
+    public int query(long from, long to, SampleBuffer samples) {
+        Segment[] current = segments;
+        if (!ordered) {
+            return queryUnordered(current, from, to, samples);
+        }
+
+        // Last segment that starts at or before the range; earlier ones end before it
+        int low = 0;
+        int high = current.length - 1;
+        int first = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (current[mid].firstTimestamp <= from) {
+                first = mid;
+                low = mid + 1;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+
+        int found = 0;
+        for (int i = first; i < current.length && current[i].firstTimestamp < to; i++) {
+            found += current[i].query(from, to, samples);
+        }
+        return found;
+    }
+
+    /**
+     * Finds the samples of a time range in all segments that overlap it and appends them to the
+     * buffer in time order.
+     */
+    private int queryUnordered(Segment[] current, long from, long to, SampleBuffer samples) {
+        int count = 0;
+        for (Segment segment : current) {
+            if (segment.overlaps(from, to)) {
+                count += segment.count(from, to);
+            }
+        }
+
+        // Timestamp and heart rate packed into one long, so that sorting needs no objects
+        long[] keys = new long[count];
+        int found = 0;
+        for (Segment segment : current) {
+            if (segment.overlaps(from, to)) {
+                found = segment.collect(from, to, keys, found);
+            }
+        }
+        Arrays.sort(keys, 0, found);
+
+        for (int i = 0; i < found; i++) {
+            samples.add(keys[i] >> 16, (short) keys[i]);
+        }
+        return found;
+    }
+
+    /**
+     * Returns the number of stored records, excluding queued ones.
+     *
+     * @return Number of records
+     */
+    public long getRecordCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            count += segment.count;
+        }
+        return count;
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Returns the number of samples waiting to be written.
+     *
+     * @return Queue depth
+     */
+    public int getQueueDepth() {
+        return (int) (queueTail.get() - queueHead.get());
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    public long getFailedCommits() {
+        return failedCommits.get();
+    }
+
+    /**
+     * Returns the cause of the most recent failed commit.
+     *
+     * @return An exception, or null if no commit has failed
+     */
+    public Exception getLastFailure() {
+        return lastFailure;
+    }
+
+    public long getDeletedSegments() {
+        return deletedSegments.get();
+    }
+
+    /**
+     * Returns the time needed to open the existing segments.
+     *
+     * @return Recovery time in milliseconds
+     */
+    public long getRecoveryMillis() {
+        return recoveryMillis;
+    }
+
+    /**
+     * Writes all queued samples and closes the store.
+     *
+     * @throws IOException If the samples could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        open = false;
+        writer.interrupt();
+        try {
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        commit();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SessionStore[records=%d, segments=%d, deleted=%d, ordered=%b, queued=%d, dropped=%d, commits=%d, failedCommits=%d, lastFailure=%s, recovery=%dms]",
+                getRecordCount(), getSegmentCount(), getDeletedSegments(), ordered, getQueueDepth(), getDropped(), getCommits(), getFailedCommits(), lastFailure, getRecoveryMillis());
+    }
+
+    /**
+     * A memory-mapped segment file.
+     */
+    private static final class Segment {
+        /**
+         * Sequential number of the segment, part of its file name.
+         */
+        final long number;
+
+        final File path;
+
+        final RandomAccessFile file;
+
+        final MappedByteBuffer buffer;
+
+        /**
+         * Maximum number of records.
+         */
+        final int capacity;
+
+        /**
+         * Number of records. Written by the writer thread only.
+         */
+        volatile int count;
+
+        /**
+         * Timestamp of the first record, or {@link Long#MAX_VALUE} if the segment is empty.
+         */
+        volatile long firstTimestamp = Long.MAX_VALUE;
+
+        /**
+         * Lowest timestamp of all records, or {@link Long#MAX_VALUE} if the segment is empty.
+         */
+        volatile long minTimestamp = Long.MAX_VALUE;
+
+        /**
+         * Highest timestamp of all records, or {@link Long#MIN_VALUE} if the segment is empty.
+         */
+        volatile long maxTimestamp = Long.MIN_VALUE;
+
+        /**
+         * True, if the segment contains records that are older than records written before them.
+         */
+        volatile boolean unordered;
+
+        private Segment(long number, File path, RandomAccessFile file, MappedByteBuffer buffer, int capacity) {
+            this.number = number;
+            this.path = path;
+            this.file = file;
+            this.buffer = buffer;
+            this.capacity = capacity;
+        }
+
+        static Segment create(File path, long number, int capacity) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            file.setLength(HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, RECORD_SIZE);
+            buffer.putInt(8, capacity);
+            return new Segment(number, path, file, buffer, capacity);
+        }
+
+        static Segment open(File path, long number) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            if (file.length() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != RECORD_SIZE) {
+                file.close();
+                throw new IOException("Not a segment file: " + path);
+            }
+            int capacity = (int) Math.min(buffer.getInt(8), (file.length() - HEADER_SIZE) / RECORD_SIZE);
+
+            Segment segment = new Segment(number, path, file, buffer, capacity);
+
+            // Records are written in order and the file is zero-filled, so the first record
+            // with timestamp 0 marks the end
+            int low = 0;
+            int high = capacity;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (segment.timestampAt(mid) != 0) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            segment.count = low;
+            if (low > 0) {
+                segment.firstTimestamp = segment.timestampAt(0);
+                segment.unordered = (buffer.getInt(12) & FLAG_UNORDERED) != 0;
+                if (segment.unordered) {
+                    // Only segments with late samples need to be read completely
+                    for (int i = 0; i < low; i++) {
+                        long timestamp = segment.timestampAt(i);
+                        segment.minTimestamp = Math.min(segment.minTimestamp, timestamp);
+                        segment.maxTimestamp = Math.max(segment.maxTimestamp, timestamp);
+                    }
+                }
+                else {
+                    segment.minTimestamp = segment.firstTimestamp;
+                    segment.maxTimestamp = segment.timestampAt(low - 1);
+                }
+            }
+            return segment;
+        }
+
+        void append(long timestamp, int heartRate, int source) {
+            int offset = HEADER_SIZE + count * RECORD_SIZE;
+            buffer.putShort(offset + 8, (short) heartRate);
+            buffer.putShort(offset + 10, (short) 0);
+            buffer.putInt(offset + 12, source);
+            // Timestamp last: a record is only valid once its timestamp is set
+            buffer.putLong(offset, timestamp);
+
+            if (count == 0) {
+                firstTimestamp = timestamp;
+            }
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+            count = count + 1;
+        }
+
+        /**
+         * Flags the segment as containing records older than records written before them.
+         */
+        void markUnordered() {
+            if (!unordered) {
+                buffer.putInt(12, buffer.getInt(12) | FLAG_UNORDERED);
+                unordered = true;
+            }
+        }
+
+        boolean overlaps(long from, long to) {
+            return count > 0 && minTimestamp < to && maxTimestamp >= from;
+        }
+
+        long timestampAt(int index) {
+            return buffer.getLong(HEADER_SIZE + index * RECORD_SIZE);
+        }
+
+        /**
+         * Returns the index of the first record at or after the given time. Only valid for
+         * segments in time order.
+         */
+        int lowerBound(long from, int size) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (timestampAt(mid) < from) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Returns the number of records in a time range.
+         */
+        int count(long from, long to) {
+            int size = count;
+            int found = 0;
+            for (int i = unordered ? 0 : lowerBound(from, size); i < size; i++) {
+                long timestamp = timestampAt(i);
+                if (timestamp >= from && timestamp < to) {
+                    found++;
+                }
+                else if (!unordered && timestamp >= to) {
+                    break;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Packs the records of a time range into keys that sort by time: the timestamp shifted
+         * left by 16 bits, or'ed with the heart rate.
+         *
+         * @return Position after the last key written
+         */
+        int collect(long from, long to, long[] keys, int position) {
+            int size = count;
+            for (int i = unordered ? 0 : lowerBound(from, size); i < size && position < keys.length; i++) {
+                long timestamp = timestampAt(i);
+                if (timestamp >= from && timestamp < to) {
+                    keys[position++] = timestamp << 16 | (buffer.getShort(HEADER_SIZE + i * RECORD_SIZE + 8) & 0xFFFF);
+                }
+                else if (!unordered && timestamp >= to) {
+                    break;
+                }
+            }
+            return position;
+        }
+
+        int query(long from, long to, SampleBuffer samples) {
+            int size = count;
+
+            int found = 0;
+            for (int i = lowerBound(from, size); i < size; i++) {
+                long timestamp = timestampAt(i);
+                if (timestamp >= to) {
+                    break;
+                }
+                samples.add(timestamp, buffer.getShort(HEADER_SIZE + i * RECORD_SIZE + 8));
+                found++;
+            }
+            return found;
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        void close() throws IOException {
+            file.close();
+        }
+
+        void delete() {
+            path.delete();
+        }
+    }
+}
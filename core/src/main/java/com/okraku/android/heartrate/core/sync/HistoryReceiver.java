@@ -0,0 +1,125 @@
+package com.okraku.android.heartrate.core.sync;
+
+import com.okraku.android.heartrate.core.HeartRateCodec;
+import com.okraku.android.heartrate.core.SampleBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Receives the chunks sent by a {@link HistorySender} and acknowledges them once they have been
+ * passed to the listener. See {@link HistorySender} for the stream format.
+ * <p>
+ * Every call of {@link #receive(String, StreamChannel)} uses its own buffers, so several channels
+ * may be received at the same time on different threads.
+ */
+public class HistoryReceiver {
+    /**
+     * Interface which will be notified about received samples.
+     */
+    public interface OnSamplesReceivedListener {
+        /**
+         * Called for every received chunk, on the thread that receives the channel. The chunk is
+         * acknowledged when this method returns.
+         *
+         * @param nodeId ID of the sending node
+         * @param samples The samples of the chunk; only valid during the call
+         */
+        void onSamplesReceived(String nodeId, SampleBuffer samples);
+    }
+
+    /**
+     * Size of the buffer of the input stream in bytes.
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final OnSamplesReceivedListener listener;
+
+    /**
+     * Creates a new receiver.
+     *
+     * @param listener Receives the samples
+     */
+    public HistoryReceiver(OnSamplesReceivedListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Receives all chunks of a channel. Blocks until the sender has sent its last chunk.
+     *
+     * @param nodeId ID of the sending node
+     * @param channel The channel opened by the sender; not closed by this method
+     * @return Number of received samples
+     * @throws IOException If the channel broke off or is malformed; all chunks passed to the
+     *                     listener have been acknowledged
+     */
+    public long receive(String nodeId, StreamChannel channel) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(channel.getInputStream(), BUFFER_SIZE));
+        DataOutputStream out = new DataOutputStream(channel.getOutputStream());
+
+        if (in.readInt() != HistorySender.MAGIC) {
+            throw new IOException("Not a history stream");
+        }
+        byte version = in.readByte();
+        if (version != HistorySender.VERSION) {
+            throw new IOException("Unsupported version: " + version);
+        }
+
+        SampleBuffer samples = new SampleBuffer(HistorySender.DEFAULT_CHUNK_SIZE);
+        byte[] compressed = new byte[0];
+        byte[] encoded = new byte[0];
+        Inflater inflater = new Inflater();
+        long received = 0;
+        try {
+            while (true) {
+                long position = in.readLong();
+                int count = in.readInt();
+                int length = in.readInt();
+                if (count < 0 || count > HistorySender.MAX_CHUNK_SIZE || length < 0 || length > HeartRateCodec.maxEncodedSize(count)) {
+                    throw new IOException(String.format("Malformed chunk: %d samples, %d bytes", count, length));
+                }
+
+                if (count > 0) {
+                    if (compressed.length < length) {
+                        compressed = new byte[length];
+                    }
+                    in.readFully(compressed, 0, length);
+
+                    if (encoded.length < HeartRateCodec.maxEncodedSize(count)) {
+                        encoded = new byte[HeartRateCodec.maxEncodedSize(count)];
+                    }
+                    inflater.reset();
+                    inflater.setInput(compressed, 0, length);
+                    int encodedLength = inflater.inflate(encoded);
+                    if (!inflater.finished()) {
+                        throw new IOException("Malformed chunk: incomplete compressed data");
+                    }
+
+                    samples.clear();
+                    HeartRateCodec.decode(encoded, 0, encodedLength, samples);
+                    if (samples.size() != count) {
+                        throw new IOException(String.format("Malformed chunk: %d samples instead of %d", samples.size(), count));
+                    }
+                    listener.onSamplesReceived(nodeId, samples);
+                    received += count;
+                }
+
+                out.writeLong(position + count);
+                out.flush();
+                if (count == 0) {
+                    return received;
+                }
+            }
+        }
+        catch (DataFormatException | IllegalArgumentException e) {
+            throw new IOException("Malformed chunk", e);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+}
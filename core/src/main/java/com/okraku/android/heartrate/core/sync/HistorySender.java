@@ -0,0 +1,231 @@
+package com.okraku.android.heartrate.core.sync;
+
+import com.okraku.android.heartrate.core.HeartRateCodec;
+import com.okraku.android.heartrate.core.SampleBuffer;
+import com.okraku.android.heartrate.core.store.SampleSpool;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Sends the samples of a {@link SampleSpool} over a {@link StreamChannel} in compressed chunks,
+ * to be received by a {@link HistoryReceiver}.
+ * <p>
+ * The stream starts with a header, followed by the chunks:
+ * <pre>
+ * int     MAGIC ("HRH1")
+ * byte    VERSION
+ * n times long  spool position of the first sample of the chunk
+ *         int   number of samples, 0 for the last chunk
+ *         int   length of the compressed data
+ *         byte[] the samples encoded with {@link HeartRateCodec}, compressed with deflate
+ * </pre>
+ * The receiver answers every chunk with the spool position after its last sample (long), once it
+ * has processed the chunk. Only then are the samples removed from the spool, so a transfer that
+ * breaks off is resumed from the last acknowledged position by the next one. Up to
+ * {@code window} chunks are sent ahead of the acknowledgements, so the transfer does not wait for
+ * a round trip per chunk.
+ * <p>
+ * Instances reuse their buffers and must only be used by one thread at a time.
+ */
+public class HistorySender {
+    /**
+     * Opens channels to other nodes, usually with the channel client of the data layer.
+     */
+    public interface ChannelOpener {
+        /**
+         * Opens a channel to a node. Blocks until the channel is open.
+         *
+         * @param nodeId ID of the target node
+         * @param path The channel path
+         * @return The open channel
+         * @throws Exception If the channel could not be opened
+         */
+        StreamChannel openChannel(String nodeId, String path) throws Exception;
+    }
+
+    /**
+     * First four bytes of every stream ("HRH1").
+     */
+    static final int MAGIC = 0x48524831;
+
+    /**
+     * Current version of the stream format.
+     */
+    static final byte VERSION = 1;
+
+    /**
+     * Maximum number of samples per chunk accepted by the receiver.
+     */
+    static final int MAX_CHUNK_SIZE = 65536;
+
+    /**
+     * Default number of samples per chunk (a bit more than one hour at one sample per second).
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    /**
+     * Default number of chunks sent ahead of the acknowledgements.
+     */
+    public static final int DEFAULT_WINDOW = 4;
+
+    /**
+     * Size of the buffer of the output stream in bytes.
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The samples to send.
+     */
+    private final SampleSpool spool;
+
+    /**
+     * Number of samples per chunk.
+     */
+    private final int chunkSize;
+
+    /**
+     * Number of chunks sent ahead of the acknowledgements.
+     */
+    private final int window;
+
+    private final SampleBuffer samples;
+
+    /**
+     * Buffer for the encoded samples of a chunk.
+     */
+    private final byte[] encoded;
+
+    /**
+     * Buffer for the compressed samples of a chunk. Grows if needed.
+     */
+    private byte[] compressed;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    /**
+     * Creates a new sender.
+     *
+     * @param spool The samples to send
+     * @param chunkSize Number of samples per chunk
+     * @param window Number of chunks sent ahead of the acknowledgements
+     */
+    public HistorySender(SampleSpool spool, int chunkSize, int window) {
+        if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("chunkSize must be between 1 and " + MAX_CHUNK_SIZE + ": " + chunkSize);
+        }
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1: " + window);
+        }
+        this.spool = spool;
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.samples = new SampleBuffer(chunkSize);
+        this.encoded = new byte[HeartRateCodec.maxEncodedSize(chunkSize)];
+        this.compressed = new byte[encoded.length / 2];
+    }
+
+    /**
+     * Sends all samples of the spool, including those added during the transfer, and removes them
+     * once they have been acknowledged. Blocks until the receiver has acknowledged the last chunk.
+     *
+     * @param channel An open channel to the receiver; not closed by this method
+     * @return Number of samples that have been acknowledged
+     * @throws IOException If the channel broke off; acknowledged samples have been removed
+     */
+    public long send(StreamChannel channel) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(channel.getOutputStream(), BUFFER_SIZE));
+        DataInputStream in = new DataInputStream(channel.getInputStream());
+
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+
+        samples.clear();
+        long next = spool.peek(samples, chunkSize);
+        Acknowledgements acks = new Acknowledgements(in, next);
+        int inFlight = 0;
+        while (!samples.isEmpty()) {
+            writeChunk(out, next, samples);
+            next += samples.size();
+            inFlight++;
+
+            if (inFlight == window) {
+                out.flush();
+                acks.await();
+                inFlight--;
+            }
+
+            samples.clear();
+            next = spool.peek(next, samples, chunkSize);
+        }
+
+        // Empty last chunk, acknowledged once the receiver is done
+        out.writeLong(next);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.flush();
+        for (int i = 0; i <= inFlight; i++) {
+            acks.await();
+        }
+        return acks.acknowledged;
+    }
+
+    private void writeChunk(DataOutputStream out, long position, SampleBuffer chunk) throws IOException {
+        int length = HeartRateCodec.encode(chunk, encoded, 0);
+
+        deflater.reset();
+        deflater.setInput(encoded, 0, length);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+
+        out.writeLong(position);
+        out.writeInt(chunk.size());
+        out.writeInt(compressedLength);
+        out.write(compressed, 0, compressedLength);
+    }
+
+    /**
+     * Reads the acknowledgements of a transfer and removes the acknowledged samples.
+     */
+    private final class Acknowledgements {
+        final DataInputStream in;
+
+        /**
+         * Spool position up to which the samples have been acknowledged.
+         */
+        long position;
+
+        /**
+         * Number of acknowledged samples.
+         */
+        long acknowledged = 0;
+
+        Acknowledgements(DataInputStream in, long position) {
+            this.in = in;
+            this.position = position;
+        }
+
+        /**
+         * Waits for the next acknowledgement.
+         */
+        void await() throws IOException {
+            long acked = in.readLong();
+            if (acked > position) {
+                int count = (int) Math.min(Integer.MAX_VALUE, acked - position);
+                spool.remove(position, count);
+                acknowledged += count;
+                position = acked;
+            }
+        }
+    }
+}
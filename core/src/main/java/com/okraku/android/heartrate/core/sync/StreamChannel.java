@@ -0,0 +1,26 @@
+package com.okraku.android.heartrate.core.sync;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bidirectional byte stream between two nodes, e.g. a channel of the channel client of the
+ * Wearable API. Unlike messages, a channel carries any amount of data without a round trip per
+ * message.
+ */
+public interface StreamChannel extends Closeable {
+    /**
+     * Returns the stream of the data sent by the other node.
+     *
+     * @return The input stream
+     */
+    InputStream getInputStream();
+
+    /**
+     * Returns the stream of the data sent to the other node.
+     *
+     * @return The output stream
+     */
+    OutputStream getOutputStream();
+}
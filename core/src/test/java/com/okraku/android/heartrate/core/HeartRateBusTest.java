@@ -0,0 +1,177 @@
+package com.okraku.android.heartrate.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HeartRateBusTest {
+    /**
+     * Number of publishers of {@link #concurrentPublishersKeepOrder()}; a power of two, since the
+     * publisher is encoded in the lowest bits of the timestamp.
+     */
+    private static final int PUBLISHERS = 4;
+
+    /**
+     * Heart rates published by every publisher.
+     */
+    private static final int PUBLISHED = 200000;
+
+    /**
+     * Checks the order of the heart rates of every publisher.
+     */
+    private static class OrderChecker implements HeartRateBus.Subscriber {
+        /**
+         * Last timestamp per publisher. Only accessed by one drain at a time.
+         */
+        private final long[] last = new long[PUBLISHERS];
+
+        private final AtomicLong violations;
+
+        OrderChecker(AtomicLong violations) {
+            this.violations = violations;
+        }
+
+        @Override
+        public void onHeartRate(String nodeId, long timestamp, int heartRate, long receivedNanos) {
+            int publisher = (int) (timestamp & (PUBLISHERS - 1));
+            if (timestamp <= last[publisher]) {
+                violations.incrementAndGet();
+            }
+            last[publisher] = timestamp;
+        }
+    }
+
+    /**
+     * Runs the drains when asked to, so that the test controls the calling thread.
+     */
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    @Test
+    public void initialHeartRateIsQueuedFirst() {
+        HeartRateBus bus = new HeartRateBus();
+        ManualExecutor executor = new ManualExecutor();
+        final List<Integer> received = new ArrayList<>();
+
+        bus.subscribe(new HeartRateBus.Subscriber() {
+            @Override
+            public void onHeartRate(String nodeId, long timestamp, int heartRate, long receivedNanos) {
+                received.add(heartRate);
+            }
+        }, HeartRateBus.Delivery.EVERY_SAMPLE, executor, "watch", 1000, 70, System.nanoTime());
+
+        // Not called on the subscribing thread
+        assertTrue(received.isEmpty());
+
+        bus.publish("watch", 2000, 71, System.nanoTime());
+        executor.runAll();
+        assertEquals(Arrays.asList(70, 71), received);
+    }
+
+    @Test
+    public void newerHeartRateReplacesInitialForLatestOnly() {
+        HeartRateBus bus = new HeartRateBus();
+        ManualExecutor executor = new ManualExecutor();
+        final List<Integer> received = new ArrayList<>();
+
+        HeartRateBus.Subscription subscription = bus.subscribe(new HeartRateBus.Subscriber() {
+            @Override
+            public void onHeartRate(String nodeId, long timestamp, int heartRate, long receivedNanos) {
+                received.add(heartRate);
+            }
+        }, HeartRateBus.Delivery.LATEST_ONLY, executor, "watch", 1000, 70, System.nanoTime());
+
+        bus.publish("watch", 2000, 71, System.nanoTime());
+        executor.runAll();
+        assertEquals(Arrays.asList(71), received);
+        assertEquals(1, subscription.getConflated());
+    }
+
+    /**
+     * Publishers and a thread that subscribes and unsubscribes at the same time: the subscribers
+     * receive the heart rates of every publisher in order, and every published heart rate is
+     * delivered, dropped or conflated.
+     */
+    @Test
+    public void concurrentPublishersKeepOrder() throws InterruptedException {
+        final HeartRateBus bus = new HeartRateBus();
+        final AtomicLong violations = new AtomicLong();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        HeartRateBus.Subscription[] subscriptions = {
+                bus.subscribe(new OrderChecker(violations), HeartRateBus.Delivery.EVERY_SAMPLE, HeartRateBus.DIRECT),
+                bus.subscribe(new OrderChecker(violations), HeartRateBus.Delivery.LATEST_ONLY, HeartRateBus.DIRECT),
+                bus.subscribe(new OrderChecker(violations), HeartRateBus.Delivery.EVERY_SAMPLE, executor),
+                bus.subscribe(new OrderChecker(violations), HeartRateBus.Delivery.LATEST_ONLY, executor)
+        };
+
+        Thread[] publishers = new Thread[PUBLISHERS];
+        for (int i = 0; i < PUBLISHERS; i++) {
+            final int publisher = i;
+            publishers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long i = 1; i <= PUBLISHED; i++) {
+                        long timestamp = i * PUBLISHERS + publisher;
+                        bus.publish(null, timestamp, 60, timestamp);
+                    }
+                }
+            });
+            publishers[i].start();
+        }
+        final AtomicLong churned = new AtomicLong();
+        final AtomicBoolean published = new AtomicBoolean();
+        Thread subscriber = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!published.get()) {
+                    HeartRateBus.Subscription subscription = bus.subscribe(new OrderChecker(violations), HeartRateBus.Delivery.EVERY_SAMPLE, HeartRateBus.DIRECT);
+                    if (bus.unsubscribe(subscription)) {
+                        churned.incrementAndGet();
+                    }
+                }
+            }
+        });
+        subscriber.start();
+
+        for (Thread publisher : publishers) {
+            publisher.join();
+        }
+        published.set(true);
+        subscriber.join();
+        executor.shutdown();
+        assertTrue("Timed out", executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(0, violations.get());
+        assertEquals((long) PUBLISHED * PUBLISHERS, bus.getPublished());
+        assertEquals(subscriptions.length, bus.getSubscriberCount());
+        assertTrue(churned.get() > 0);
+        for (HeartRateBus.Subscription subscription : subscriptions) {
+            assertEquals(subscription.toString(), bus.getPublished(), subscription.getOffered());
+            assertEquals(subscription.toString(), subscription.getOffered(),
+                    subscription.getDelivered() + subscription.getDropped() + subscription.getConflated());
+        }
+    }
+}
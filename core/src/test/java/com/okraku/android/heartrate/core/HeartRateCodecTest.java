@@ -0,0 +1,241 @@
+package com.okraku.android.heartrate.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HeartRateCodecTest {
+    @Test
+    public void roundTripSingleSample() {
+        SampleBuffer samples = new SampleBuffer(1);
+        samples.add(1577836800000L, 72);
+
+        SampleBuffer decoded = roundTrip(samples);
+
+        assertEquals(1, decoded.size());
+        assertEquals(1577836800000L, decoded.getTimestamp(0));
+        assertEquals(72, decoded.getValue(0));
+        assertFalse(decoded.hasSendTime());
+        assertFalse(decoded.hasSequence());
+    }
+
+    @Test
+    public void roundTripBatchWithHeader() {
+        SampleBuffer samples = new SampleBuffer(4);
+        samples.add(1000, 80);
+        samples.add(2000, 95);
+        samples.add(2500, 61);
+        // Timestamps are not required to increase
+        samples.add(1500, 180);
+        samples.setSendTime(900);
+        samples.setSequence(3000000);
+        samples.setEpoch(16383);
+
+        SampleBuffer decoded = roundTrip(samples);
+
+        assertEquals(4, decoded.size());
+        for (int i = 0; i < samples.size(); i++) {
+            assertEquals(samples.getTimestamp(i), decoded.getTimestamp(i));
+            assertEquals(samples.getValue(i), decoded.getValue(i));
+        }
+        assertEquals(900, decoded.getSendTime());
+        assertEquals(3000000, decoded.getSequence());
+        assertEquals(16383, decoded.getEpoch());
+    }
+
+    @Test
+    public void roundTripEmpty() {
+        SampleBuffer decoded = roundTrip(new SampleBuffer(1));
+
+        assertEquals(0, decoded.size());
+    }
+
+    @Test
+    public void decodeAppendsAtOffset() {
+        SampleBuffer samples = new SampleBuffer(1);
+        samples.add(1000, 72);
+        byte[] out = new byte[5 + HeartRateCodec.maxEncodedSize(1)];
+        int length = HeartRateCodec.encode(samples, out, 5);
+
+        SampleBuffer decoded = new SampleBuffer(2);
+        decoded.add(0, 60);
+        assertEquals(1, HeartRateCodec.decode(out, 5, length, decoded));
+
+        assertEquals(2, decoded.size());
+        assertEquals(72, decoded.getValue(1));
+    }
+
+    @Test
+    public void rejectTruncatedMessages() {
+        SampleBuffer samples = new SampleBuffer(3);
+        samples.add(1000, 80);
+        samples.add(2000, 95);
+        samples.add(3000, 110);
+        samples.setSendTime(3100);
+        samples.setSequence(7);
+        byte[] data = encode(samples);
+
+        for (int length = 0; length < data.length; length++) {
+            assertRejected(Arrays.copyOf(data, length));
+        }
+    }
+
+    @Test
+    public void rejectTrailingBytes() {
+        SampleBuffer samples = new SampleBuffer(1);
+        samples.add(1000, 80);
+        byte[] data = encode(samples);
+
+        assertRejected(Arrays.copyOf(data, data.length + 1));
+    }
+
+    @Test
+    public void rejectBadMagic() {
+        SampleBuffer samples = new SampleBuffer(1);
+        samples.add(1000, 80);
+        byte[] data = encode(samples);
+        data[0] = '8';
+
+        assertRejected(data);
+    }
+
+    @Test
+    public void rejectUnknownVersion() {
+        SampleBuffer samples = new SampleBuffer(1);
+        samples.add(1000, 80);
+        byte[] data = encode(samples);
+        data[1] = HeartRateCodec.VERSION + 1;
+
+        assertRejected(data);
+    }
+
+    @Test
+    public void rejectUnknownFlags() {
+        SampleBuffer samples = new SampleBuffer(1);
+        samples.add(1000, 80);
+        byte[] data = encode(samples);
+
+        for (int flag = 0x04; flag <= 0x80; flag <<= 1) {
+            byte[] copy = data.clone();
+            copy[2] |= flag;
+            assertRejected(copy);
+        }
+    }
+
+    @Test
+    public void rejectNegativeCount() {
+        // Count 2^63 is a ten byte varint that reads as a negative long
+        byte[] data = {HeartRateCodec.MAGIC, HeartRateCodec.VERSION, 0,
+                (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01,
+                0x00};
+
+        assertRejected(data);
+    }
+
+    @Test
+    public void rejectCountLargerThanMessage() {
+        byte[] data = {HeartRateCodec.MAGIC, HeartRateCodec.VERSION, 0, 0x05, 0x00, 0x00, 0x02};
+
+        assertRejected(data);
+    }
+
+    @Test
+    public void rejectHeartRateOutOfRange() {
+        assertRejected(messageWithHeartRates(80, Integer.MAX_VALUE));
+        assertRejected(messageWithHeartRates(80, -5));
+        assertRejected(messageWithHeartRates(80, 40000));
+        assertRejected(messageWithHeartRates(80, HeartRateCodec.MAX_HEART_RATE + 1));
+
+        SampleBuffer decoded = new SampleBuffer(2);
+        assertEquals(2, HeartRateCodec.decode(messageWithHeartRates(0, HeartRateCodec.MAX_HEART_RATE), decoded));
+        assertEquals(HeartRateCodec.MAX_HEART_RATE, decoded.getValue(1));
+    }
+
+    @Test
+    public void keepBufferOfRejectedMessage() {
+        SampleBuffer samples = new SampleBuffer(4);
+        samples.add(500, 70);
+        samples.setSequence(1);
+        byte[] data = messageWithHeartRates(80, 90, 40000);
+
+        try {
+            HeartRateCodec.decode(data, samples);
+            fail("Accepted " + Arrays.toString(data));
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        assertEquals(1, samples.size());
+        assertEquals(70, samples.getValue(0));
+        assertEquals(1, samples.getSequence());
+    }
+
+    @Test
+    public void legacy() {
+        byte[] data = {'1', '2', '3'};
+
+        assertTrue(HeartRateCodec.isLegacy(data));
+        assertEquals(123, HeartRateCodec.decodeLegacy(data));
+        assertFalse(HeartRateCodec.isLegacy(new byte[]{HeartRateCodec.MAGIC}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectInvalidLegacy() {
+        HeartRateCodec.decodeLegacy(new byte[]{'1', 'x'});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectLegacyHeartRateOutOfRange() {
+        HeartRateCodec.decodeLegacy(new byte[]{'4', '0', '0', '0', '0'});
+    }
+
+    /**
+     * Writes a message with a sequence number and the heart rates one second apart, without the
+     * checks of the encoder.
+     */
+    private static byte[] messageWithHeartRates(int... heartRates) {
+        byte[] data = new byte[HeartRateCodec.maxEncodedSize(heartRates.length)];
+        int pos = 0;
+        data[pos++] = HeartRateCodec.MAGIC;
+        data[pos++] = HeartRateCodec.VERSION;
+        data[pos++] = HeartRateCodec.FLAG_SEQUENCE;
+        pos = HeartRateCodec.writeVarLong(heartRates.length, data, pos);
+        pos = HeartRateCodec.writeVarLong(1000, data, pos);
+        pos = HeartRateCodec.writeVarLong(7, data, pos);
+        long previous = 0;
+        for (int i = 0; i < heartRates.length; i++) {
+            pos = HeartRateCodec.writeVarLong(HeartRateCodec.zigZag(i == 0 ? 0 : 1000), data, pos);
+            pos = HeartRateCodec.writeVarLong(HeartRateCodec.zigZag(heartRates[i] - previous), data, pos);
+            previous = heartRates[i];
+        }
+        return Arrays.copyOf(data, pos);
+    }
+
+    private static byte[] encode(SampleBuffer samples) {
+        byte[] out = new byte[HeartRateCodec.maxEncodedSize(samples.size())];
+        return Arrays.copyOf(out, HeartRateCodec.encode(samples, out, 0));
+    }
+
+    private static SampleBuffer roundTrip(SampleBuffer samples) {
+        byte[] data = encode(samples);
+        SampleBuffer decoded = new SampleBuffer(1);
+        assertEquals(samples.size(), HeartRateCodec.decode(data, decoded));
+        return decoded;
+    }
+
+    private static void assertRejected(byte[] data) {
+        try {
+            HeartRateCodec.decode(data, new SampleBuffer(1));
+            fail("Accepted " + Arrays.toString(data));
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
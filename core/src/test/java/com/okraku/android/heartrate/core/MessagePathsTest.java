@@ -0,0 +1,128 @@
+package com.okraku.android.heartrate.core;
+
+import com.okraku.android.heartrate.core.alert.AlertEngine;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class MessagePathsTest {
+    private static final String ANDROID_NAMESPACE = "http://schemas.android.com/apk/res/android";
+
+    private static final String MESSAGE_RECEIVED = "com.google.android.gms.wearable.MESSAGE_RECEIVED";
+
+    private static final String CHANNEL_EVENT = "com.google.android.gms.wearable.CHANNEL_EVENT";
+
+    @Test
+    public void phoneManifestDeclaresReceivedPaths() throws Exception {
+        Document manifest = readManifest("phone");
+        assertDeclared(manifest, MESSAGE_RECEIVED, MessagePaths.RECEIVED_BY_PHONE);
+        assertDeclared(manifest, CHANNEL_EVENT, MessagePaths.CHANNELS_OF_PHONE);
+    }
+
+    @Test
+    public void watchManifestDeclaresReceivedPaths() throws Exception {
+        Document manifest = readManifest("watch");
+        assertDeclared(manifest, MESSAGE_RECEIVED, MessagePaths.RECEIVED_BY_WATCH);
+    }
+
+    @Test
+    public void phonePipelineHandlesReceivedPaths() {
+        PhonePipeline pipeline = new PhonePipeline(new Transport() {
+            @Override
+            public void sendMessage(String nodeId, String path, byte[] data) {
+            }
+
+            @Override
+            public Set<String> loadNodes() {
+                return Collections.emptySet();
+            }
+        }, 16, SendPipeline.OverflowPolicy.DROP_OLDEST, 16, new long[]{TimeUnit.MINUTES.toMillis(1)}, new PhonePipeline.AlertEngineFactory() {
+            @Override
+            public AlertEngine createAlertEngine(String nodeId) {
+                return new AlertEngine();
+            }
+        });
+        try {
+            Set<String> handled = new HashSet<>();
+            for (String path : new String[]{MessagePaths.HEART_RATE, MessagePaths.HEART_RATE_BATCH, MessagePaths.HEART_RATE_BACKFILL,
+                    MessagePaths.HEART_RATE_HISTORY, MessagePaths.HEART_RATE_SUMMARY, MessagePaths.STREAM_MODE, MessagePaths.WARNING,
+                    MessagePaths.WARNING_ACK}) {
+                try {
+                    if (pipeline.onMessageReceived("watch", path, new byte[0])) {
+                        handled.add(path);
+                    }
+                }
+                catch (IllegalArgumentException e) {
+                    // Known path, but not a valid message
+                    handled.add(path);
+                }
+            }
+            assertEquals(new HashSet<>(MessagePaths.RECEIVED_BY_PHONE), handled);
+        }
+        finally {
+            pipeline.shutdown();
+        }
+    }
+
+    /**
+     * Parses the manifest of an app module.
+     */
+    private static Document readManifest(String module) throws Exception {
+        // Gradle runs the tests in the module directory; search upwards for the project
+        File directory = new File(System.getProperty("user.dir")).getAbsoluteFile();
+        while (directory != null && !new File(directory, "settings.gradle").isFile()) {
+            directory = directory.getParentFile();
+        }
+        assertNotNull("Project directory not found", directory);
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new File(directory, module + "/src/main/AndroidManifest.xml"));
+    }
+
+    /**
+     * Fails if a path is not declared in an intent filter with the action.
+     */
+    private static void assertDeclared(Document manifest, String action, List<String> paths) {
+        Set<String> missing = new HashSet<>(paths);
+        missing.removeAll(declaredPaths(manifest, action));
+        assertEquals("Paths missing in the intent filter of " + action, Collections.<String>emptySet(), missing);
+    }
+
+    /**
+     * Returns the paths of the data elements of all intent filters with an action.
+     */
+    private static Set<String> declaredPaths(Document manifest, String action) {
+        Set<String> paths = new HashSet<>();
+        NodeList filters = manifest.getElementsByTagName("intent-filter");
+        for (int i = 0; i < filters.getLength(); i++) {
+            Element filter = (Element) filters.item(i);
+            NodeList actions = filter.getElementsByTagName("action");
+            boolean matches = false;
+            for (int j = 0; j < actions.getLength(); j++) {
+                matches |= action.equals(((Element) actions.item(j)).getAttributeNS(ANDROID_NAMESPACE, "name"));
+            }
+            if (matches) {
+                NodeList data = filter.getElementsByTagName("data");
+                for (int j = 0; j < data.getLength(); j++) {
+                    paths.add(((Element) data.item(j)).getAttributeNS(ANDROID_NAMESPACE, "path"));
+                }
+            }
+        }
+        return paths;
+    }
+}
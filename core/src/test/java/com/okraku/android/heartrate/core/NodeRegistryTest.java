@@ -0,0 +1,81 @@
+package com.okraku.android.heartrate.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NodeRegistryTest {
+    /**
+     * Returns a fixed set of nodes and counts the loads.
+     */
+    private static class CountingLoader implements NodeRegistry.NodeLoader {
+        private Set<String> nodes = Collections.emptySet();
+
+        private int loads;
+
+        @Override
+        public Set<String> loadNodes() {
+            loads++;
+            return nodes;
+        }
+    }
+
+    @Test
+    public void cacheConnectedNodes() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        loader.nodes = Collections.singleton("phone");
+        NodeRegistry registry = new NodeRegistry(loader, 60000, 60000);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Collections.singleton("phone"), registry.getNodes());
+        }
+
+        assertEquals(1, loader.loads);
+        assertEquals(99, registry.getHits());
+    }
+
+    @Test
+    public void cacheEmptyResult() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        NodeRegistry registry = new NodeRegistry(loader, 60000, 60000);
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(registry.getNodes().isEmpty());
+        }
+
+        assertEquals(1, loader.loads);
+    }
+
+    @Test
+    public void reloadEmptyResultAfterNegativeTtl() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        NodeRegistry registry = new NodeRegistry(loader, 60000, 0);
+
+        registry.getNodes();
+        registry.getNodes();
+
+        assertEquals(2, loader.loads);
+    }
+
+    @Test
+    public void peerEventsUpdateEmptyResult() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        NodeRegistry registry = new NodeRegistry(loader, 60000, 60000);
+        registry.getNodes();
+
+        registry.onPeerConnected("phone");
+        registry.onPeerConnected("tablet");
+        assertEquals(new HashSet<>(Arrays.asList("phone", "tablet")), registry.getNodes());
+
+        registry.onPeerDisconnected("phone");
+        assertEquals(Collections.singleton("tablet"), registry.getNodes());
+
+        assertEquals(1, loader.loads);
+    }
+}
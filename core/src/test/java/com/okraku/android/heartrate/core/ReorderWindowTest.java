@@ -0,0 +1,109 @@
+package com.okraku.android.heartrate.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReorderWindowTest {
+    private final ReorderWindow window = new ReorderWindow(ReorderWindow.DEFAULT_SIZE, ReorderWindow.DEFAULT_MAX_WAIT_MILLIS);
+
+    @Test
+    public void restartWithSequenceZeroLost() {
+        for (long sequence = 0; sequence < 10; sequence++) {
+            release(5, sequence);
+        }
+
+        // The smartwatch app restarted with a new epoch; message 0 of the new run is lost
+        release(9, 1);
+        release(9, 2);
+
+        assertEquals(1, window.getRestarts());
+        assertEquals(0, window.getDuplicates());
+        assertEquals(0, window.getGaps());
+    }
+
+    @Test
+    public void restartReleasesHeldMessagesOfPreviousEpoch() {
+        release(5, 0);
+        byte[] held3 = new byte[0];
+        byte[] held2 = new byte[0];
+        assertEquals(ReorderWindow.Result.ACCEPTED, window.offer(5, 3, held3, 0));
+        assertEquals(ReorderWindow.Result.ACCEPTED, window.offer(5, 2, held2, 0));
+        assertNull(window.poll(0));
+
+        // Message 1 is still missing when the smartwatch app restarts
+        byte[] restart = new byte[0];
+        assertEquals(ReorderWindow.Result.ACCEPTED, window.offer(9, 0, restart, 0));
+        assertSame(held2, window.poll(0));
+        assertFalse(window.isPolledRestart());
+        assertSame(held3, window.poll(0));
+        assertFalse(window.isPolledRestart());
+        assertSame(restart, window.poll(0));
+        assertTrue(window.isPolledRestart());
+        assertNull(window.poll(0));
+
+        release(9, 1);
+        assertFalse(window.isPolledRestart());
+        assertEquals(1, window.getRestarts());
+        assertEquals(1, window.getGaps());
+        assertEquals(5, window.getReleasedMessages());
+        assertEquals(ReorderWindow.Result.LATE, window.offer(5, 1, new byte[0], 0));
+    }
+
+    @Test
+    public void messageOfPreviousEpochIsLate() {
+        release(5, 0);
+        release(5, 1);
+        release(9, 0);
+
+        assertEquals(ReorderWindow.Result.LATE, window.offer(5, 2, new byte[0], 0));
+        assertEquals(1, window.getRestarts());
+        assertEquals(1, window.getLate());
+    }
+
+    @Test
+    public void sameEpochKeepsDroppingDuplicates() {
+        release(5, 0);
+        release(5, 1);
+
+        assertEquals(ReorderWindow.Result.DUPLICATE, window.offer(5, 0, new byte[0], 0));
+        assertEquals(0, window.getRestarts());
+    }
+
+    @Test
+    public void restartWithoutEpochAfterLargeJumpBack() {
+        for (long sequence = 0; sequence <= 2 * ReorderWindow.RESTART_DISTANCE; sequence++) {
+            release(SampleBuffer.NO_EPOCH, sequence);
+        }
+
+        release(SampleBuffer.NO_EPOCH, 1);
+
+        assertEquals(1, window.getRestarts());
+    }
+
+    @Test
+    public void restartWithoutEpochAtSequenceZero() {
+        // Further back than the remembered duplicates
+        for (long sequence = 0; sequence < 100; sequence++) {
+            release(SampleBuffer.NO_EPOCH, sequence);
+        }
+
+        release(SampleBuffer.NO_EPOCH, 0);
+
+        assertEquals(1, window.getRestarts());
+    }
+
+    /**
+     * Offers a message and asserts that it is released right away.
+     */
+    private void release(long epoch, long sequence) {
+        byte[] message = new byte[0];
+        assertEquals(ReorderWindow.Result.ACCEPTED, window.offer(epoch, sequence, message, 0));
+        assertSame(message, window.poll(0));
+        assertNull(window.poll(0));
+    }
+}
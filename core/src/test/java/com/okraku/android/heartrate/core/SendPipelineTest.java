@@ -0,0 +1,143 @@
+package com.okraku.android.heartrate.core;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SendPipelineTest {
+    /**
+     * Records the sent messages. Fails while no node is connected, or the nodes cannot be loaded.
+     */
+    private static class RecordingTransport implements Transport {
+        private final List<String> sent = new CopyOnWriteArrayList<>();
+
+        private volatile Set<String> nodes = Collections.emptySet();
+
+        private volatile boolean loadFails;
+
+        @Override
+        public void sendMessage(String nodeId, String path, byte[] data) {
+            sent.add(path);
+        }
+
+        @Override
+        public Set<String> loadNodes() throws Exception {
+            if (loadFails) {
+                throw new Exception("Node client unavailable");
+            }
+            return nodes;
+        }
+    }
+
+    private SendPipeline pipeline;
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    public void failingListenerDoesNotStopSending() throws InterruptedException {
+        RecordingTransport transport = new RecordingTransport();
+        pipeline = new SendPipeline("test-sender", transport, new NodeRegistry(transport, 0, 0), 16, SendPipeline.OverflowPolicy.DROP_OLDEST);
+        pipeline.setOnUndeliverableListener(new SendPipeline.OnUndeliverableListener() {
+            @Override
+            public void onUndeliverable(String path, byte[] data) {
+                throw new IllegalArgumentException("Not a binary heart rate message");
+            }
+        });
+
+        pipeline.broadcast("/lost", new byte[0]);
+        awaitProcessed(pipeline, 1);
+        transport.nodes = Collections.singleton("phone");
+        pipeline.broadcast("/sent", new byte[0]);
+        awaitProcessed(pipeline, 2);
+
+        assertEquals(Collections.singletonList("/sent"), transport.sent);
+        assertEquals(1, pipeline.getUndeliverable());
+        assertEquals(1, pipeline.getFailed());
+    }
+
+    @Test
+    public void failedNodeLoadIsUndeliverable() throws InterruptedException {
+        RecordingTransport transport = new RecordingTransport();
+        transport.loadFails = true;
+        final List<String> undeliverable = new CopyOnWriteArrayList<>();
+        final CountDownLatch notified = new CountDownLatch(1);
+        pipeline = new SendPipeline("test-sender", transport, new NodeRegistry(transport, 0, 0), 16, SendPipeline.OverflowPolicy.DROP_OLDEST);
+        pipeline.setOnUndeliverableListener(new SendPipeline.OnUndeliverableListener() {
+            @Override
+            public void onUndeliverable(String path, byte[] data) {
+                undeliverable.add(path);
+                notified.countDown();
+            }
+        });
+
+        pipeline.broadcast("/heart_rate", new byte[0]);
+
+        assertTrue("Timed out", notified.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("/heart_rate"), undeliverable);
+        assertEquals(1, pipeline.getFailed());
+    }
+
+    @Test
+    public void backgroundMessageIsSentLastAndNeverDropped() throws InterruptedException {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> sent = new CopyOnWriteArrayList<>();
+        Transport transport = new Transport() {
+            @Override
+            public void sendMessage(String nodeId, String path, byte[] data) throws InterruptedException {
+                if (path.equals("/blocked")) {
+                    sending.countDown();
+                    release.await();
+                }
+                sent.add(path);
+            }
+
+            @Override
+            public Set<String> loadNodes() {
+                return Collections.singleton("phone");
+            }
+        };
+        pipeline = new SendPipeline("test-sender", transport, new NodeRegistry(transport, 0, 0), 2, SendPipeline.OverflowPolicy.DROP_OLDEST);
+
+        pipeline.broadcast("/blocked", new byte[0]);
+        assertTrue("Timed out", sending.await(5, TimeUnit.SECONDS));
+        pipeline.broadcastInBackground("/background", new byte[0]);
+        for (int i = 0; i < 5; i++) {
+            pipeline.broadcast("/live" + i, new byte[0]);
+        }
+        assertFalse(pipeline.isBackgroundIdle());
+        release.countDown();
+        awaitProcessed(pipeline, 4);
+
+        assertEquals(Arrays.asList("/blocked", "/live3", "/live4", "/background"), sent);
+        assertEquals(3, pipeline.getDropped());
+        assertTrue(pipeline.isBackgroundIdle());
+    }
+
+    /**
+     * Waits until the given number of messages has been sent or given up.
+     */
+    private static void awaitProcessed(SendPipeline pipeline, long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pipeline.getSent() + pipeline.getUndeliverable() < count) {
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.okraku.android.heartrate.core;
+
+import com.okraku.android.heartrate.core.alert.AlertEngine;
+import com.okraku.android.heartrate.core.alert.AlertRule;
+import com.okraku.android.heartrate.core.history.SampleHistory;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SourceStateTest {
+    private final SourceState source = new SourceState("watch", new SampleHistory(16, TimeUnit.MINUTES.toMillis(1)), new AlertEngine(),
+            new SourceState.OnSourceAlertListener() {
+                @Override
+                public void onAlert(SourceState source, AlertRule rule, long timestamp, int heartRate) {
+                }
+            });
+
+    @Test
+    public void olderSampleIsStale() {
+        assertTrue(source.onSample(2000, 70));
+        assertFalse(source.onSample(1000, 80));
+
+        assertEquals(70, source.getLatestValue());
+        assertEquals(1, source.getStaleCount());
+    }
+
+    @Test
+    public void restartAcceptsClockSetBack() {
+        assertTrue(source.onSample(2000, 70));
+
+        // The smartwatch restarted with its clock set back
+        source.onRestart();
+        assertTrue(source.onSample(1000, 80));
+        assertTrue(source.onSample(1001, 81));
+        assertFalse(source.onSample(500, 90));
+
+        assertEquals(81, source.getLatestValue());
+        assertEquals(1001, source.getLatestTimestamp());
+        assertEquals(1, source.getStaleCount());
+    }
+}
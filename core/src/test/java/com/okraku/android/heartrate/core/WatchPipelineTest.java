@@ -0,0 +1,205 @@
+package com.okraku.android.heartrate.core;
+
+import com.okraku.android.heartrate.core.store.SampleSpool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WatchPipelineTest {
+    /**
+     * Decodes the messages. Fails while {@link #failing} is set.
+     */
+    private static class BackfillTransport implements Transport {
+        private final SampleBuffer received = new SampleBuffer(1024);
+
+        private volatile boolean failing = true;
+
+        private volatile int failures;
+
+        @Override
+        public synchronized void sendMessage(String nodeId, String path, byte[] data) throws IOException {
+            if (failing) {
+                failures++;
+                throw new IOException("Node unreachable");
+            }
+            HeartRateCodec.decode(data, received);
+        }
+
+        @Override
+        public Set<String> loadNodes() {
+            return Collections.singleton("phone");
+        }
+    }
+
+    /**
+     * Blocks the first live message until {@link #release} is counted down, so that further
+     * messages queue up behind it. Decodes the backfill messages.
+     */
+    private static class BlockingTransport implements Transport {
+        private final SampleBuffer received = new SampleBuffer(1024);
+
+        private final CountDownLatch sending = new CountDownLatch(1);
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void sendMessage(String nodeId, String path, byte[] data) throws InterruptedException {
+            if (MessagePaths.HEART_RATE_BACKFILL.equals(path)) {
+                synchronized (this) {
+                    HeartRateCodec.decode(data, received);
+                }
+            }
+            else {
+                sending.countDown();
+                release.await();
+            }
+        }
+
+        @Override
+        public Set<String> loadNodes() {
+            return Collections.singleton("phone");
+        }
+    }
+
+    private File file;
+
+    private SampleSpool spool;
+
+    private WatchPipeline pipeline;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("spool", ".hrq");
+        spool = new SampleSpool(file, 1000);
+        for (int i = 1; i <= 1000; i++) {
+            spool.add(i, 60 + i % 40);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+        spool.close();
+        file.delete();
+    }
+
+    @Test
+    public void failedBackfillKeepsOrder() throws InterruptedException {
+        BackfillTransport transport = new BackfillTransport();
+        pipeline = new WatchPipeline(transport, 64, SendPipeline.OverflowPolicy.DROP_OLDEST);
+        pipeline.setBackfillRate(100, 1);
+        pipeline.setSpool(spool);
+
+        pipeline.onPeerConnected("phone");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (transport.failures == 0 || pipeline.isBackfilling()) {
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(1000, spool.size());
+        assertEquals(0, pipeline.getBackfilledSamples());
+
+        transport.failing = false;
+        pipeline.onPeerConnected("phone");
+        while (!spool.isEmpty() || pipeline.isBackfilling() || !pipeline.getSendPipeline().isBackgroundIdle()) {
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        synchronized (transport) {
+            assertEquals(1000, transport.received.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i + 1, transport.received.getTimestamp(i));
+            }
+        }
+    }
+
+    @Test
+    public void liveOverflowDoesNotDropBackfill() throws InterruptedException {
+        BlockingTransport transport = new BlockingTransport();
+        pipeline = new WatchPipeline(transport, 4, SendPipeline.OverflowPolicy.DROP_OLDEST);
+        pipeline.setFlushPolicy(FlushPolicy.PER_SAMPLE);
+        pipeline.setSendPolicy(SendPolicy.EVERY_CHANGE);
+        pipeline.setBackfillRate(100, 1);
+        pipeline.setSpool(spool);
+
+        pipeline.onHeartRate(2000, 70);
+        assertTrue("Timed out", transport.sending.await(5, TimeUnit.SECONDS));
+        pipeline.onPeerConnected("phone");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pipeline.getSendPipeline().getQueueDepth() == 0) {
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+
+        // Overflows the queue while the first backfill batch waits
+        for (int i = 1; i <= 20; i++) {
+            pipeline.onHeartRate(2000 + i, 70 + i);
+        }
+        assertEquals(16, pipeline.getSendPipeline().getDropped());
+        transport.release.countDown();
+
+        while (!spool.isEmpty() || pipeline.isBackfilling() || !pipeline.getSendPipeline().isBackgroundIdle()) {
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        synchronized (transport) {
+            assertEquals(1000, transport.received.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i + 1, transport.received.getTimestamp(i));
+            }
+        }
+        assertEquals(16, pipeline.getSendPipeline().getDropped());
+    }
+
+    @Test
+    public void warningFlushesImmediately() throws InterruptedException {
+        BackfillTransport transport = new BackfillTransport();
+        transport.failing = false;
+        pipeline = new WatchPipeline(transport, 64, SendPipeline.OverflowPolicy.DROP_OLDEST);
+        pipeline.setFlushPolicy(FlushPolicy.DEFAULT);
+        pipeline.setSendPolicy(SendPolicy.EVERY_CHANGE);
+
+        long now = System.currentTimeMillis();
+        pipeline.onHeartRate(now, 70);
+        pipeline.onHeartRate(now + 1000, 71);
+        assertEquals(0, pipeline.getSendPipeline().getSent());
+
+        pipeline.onWarningReceived(now + 1500);
+        awaitSent(pipeline, 1);
+        pipeline.onHeartRate(now + 2000, 72);
+        awaitSent(pipeline, 2);
+        synchronized (transport) {
+            assertEquals(3, transport.received.size());
+            assertEquals(72, transport.received.getValue(2));
+        }
+
+        // Batched again once the warning is old
+        pipeline.onHeartRate(now + 1500 + FlushPolicy.DEFAULT.getUrgentMillis(), 73);
+        Thread.sleep(50);
+        assertEquals(2, pipeline.getSendPipeline().getSent());
+    }
+
+    /**
+     * Waits until the pipeline has sent the given number of messages.
+     */
+    private static void awaitSent(WatchPipeline pipeline, long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pipeline.getSendPipeline().getSent() < count) {
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
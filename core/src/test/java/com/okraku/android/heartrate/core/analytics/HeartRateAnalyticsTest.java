@@ -0,0 +1,215 @@
+package com.okraku.android.heartrate.core.analytics;
+
+import com.okraku.android.heartrate.core.HeartRateSummary;
+import com.okraku.android.heartrate.core.SummaryCodec;
+import com.okraku.android.heartrate.core.generator.SyntheticHeartRateSource;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HeartRateAnalyticsTest {
+    /**
+     * Time between two heart rates in milliseconds, like the sensor of the smartwatch.
+     */
+    private static final long PERIOD_MILLIS = 1000;
+
+    /**
+     * Wall clock time of the first heart rate, not aligned to a minute, so that the first window
+     * is incomplete.
+     */
+    private static final long START = 1700000012345L;
+
+    /**
+     * Largest allowed relative difference to the batch computation.
+     */
+    private static final double TOLERANCE = 1e-4;
+
+    /**
+     * Largest allowed difference after encoding and decoding: half of the fixed point step, plus
+     * the rounding of floats.
+     */
+    private static final double CODEC_TOLERANCE = 0.0051;
+
+    @Test
+    public void constantHeartRateHasNoVariabilityOrTrend() {
+        HeartRateSummary summary = summarizeFirstMinute(new float[]{72, 72, 72, 72, 72, 72, 72, 72, 72, 72});
+
+        assertEquals(10, summary.getCount());
+        assertEquals(72, summary.getMean(), 0);
+        assertEquals(72, summary.getMin(), 0);
+        assertEquals(72, summary.getMax(), 0);
+        assertEquals(0, summary.getRmssd(), 0);
+        assertEquals(0, summary.getSlope(), 1e-4);
+        assertEquals(72, summary.getBaseline(), 1e-4);
+    }
+
+    @Test
+    public void alternatingHeartRateHasKnownRmssd() {
+        // Beat intervals of 1000 and 500 ms: every successive difference is 500 ms
+        float[] heartRates = new float[60];
+        for (int i = 0; i < heartRates.length; i++) {
+            heartRates[i] = i % 2 == 0 ? 60 : 120;
+        }
+        HeartRateSummary summary = summarizeFirstMinute(heartRates);
+
+        assertEquals(60, summary.getCount());
+        assertEquals(90, summary.getMean(), 1e-4);
+        assertEquals(500, summary.getRmssd(), 1e-3);
+    }
+
+    @Test
+    public void linearRampHasKnownSlope() {
+        // 0.2 beats per minute per second are 12 beats per minute per minute
+        float[] heartRates = new float[60];
+        for (int i = 0; i < heartRates.length; i++) {
+            heartRates[i] = 60 + 0.2f * i;
+        }
+        HeartRateSummary summary = summarizeFirstMinute(heartRates);
+
+        assertEquals(12, summary.getSlope(), 1e-3);
+        assertEquals(60 + 0.2 * 59 / 2, summary.getMean(), 1e-4);
+        assertEquals(60, summary.getMin(), 0);
+        assertEquals(60 + 0.2f * 59, summary.getMax(), 0);
+    }
+
+    @Test
+    public void heartRatesOlderThanTheWindowAreIgnored() {
+        HeartRateAnalytics analytics = new HeartRateAnalytics(HeartRateAnalytics.DEFAULT_WINDOW_MILLIS, HeartRateAnalytics.DEFAULT_BASELINE_MILLIS);
+        assertNull(analytics.add(60000, 60));
+        assertNull(analytics.add(59000, 200));
+        HeartRateSummary summary = analytics.add(120000, 60);
+
+        assertEquals(1, summary.getCount());
+        assertEquals(60, summary.getMax(), 0);
+        assertEquals(1, analytics.getIgnored());
+    }
+
+    @Test
+    public void summariesMatchBatchComputation() {
+        float[] trace = generate();
+        HeartRateAnalytics analytics = new HeartRateAnalytics(HeartRateAnalytics.DEFAULT_WINDOW_MILLIS, HeartRateAnalytics.DEFAULT_BASELINE_MILLIS);
+        List<HeartRateSummary> summaries = new ArrayList<>();
+        for (int i = 0; i < trace.length; i++) {
+            HeartRateSummary summary = analytics.add(START + i * PERIOD_MILLIS, trace[i]);
+            if (summary != null) {
+                summaries.add(summary);
+            }
+        }
+        assertEquals(trace.length * PERIOD_MILLIS / HeartRateAnalytics.DEFAULT_WINDOW_MILLIS, summaries.size());
+
+        for (HeartRateSummary summary : summaries) {
+            HeartRateSummary expected = recompute(trace, summary.getStartTimestamp(), summary.getEndTimestamp());
+            assertEquals(summary.toString(), expected.getCount(), summary.getCount());
+            assertClose(summary, "mean", expected.getMean(), summary.getMean());
+            assertClose(summary, "min", expected.getMin(), summary.getMin());
+            assertClose(summary, "max", expected.getMax(), summary.getMax());
+            assertClose(summary, "rmssd", expected.getRmssd(), summary.getRmssd());
+            assertClose(summary, "slope", expected.getSlope(), summary.getSlope());
+            assertClose(summary, "baseline", expected.getBaseline(), summary.getBaseline());
+
+            HeartRateSummary decoded = SummaryCodec.decode(SummaryCodec.encode(summary));
+            assertEquals(summary.getStartTimestamp(), decoded.getStartTimestamp());
+            assertEquals(summary.getEndTimestamp(), decoded.getEndTimestamp());
+            assertEquals(summary.getCount(), decoded.getCount());
+            assertEquals(summary.getMean(), decoded.getMean(), CODEC_TOLERANCE);
+            assertEquals(summary.getMin(), decoded.getMin(), CODEC_TOLERANCE);
+            assertEquals(summary.getMax(), decoded.getMax(), CODEC_TOLERANCE);
+            assertEquals(summary.getRmssd(), decoded.getRmssd(), CODEC_TOLERANCE);
+            assertEquals(summary.getSlope(), decoded.getSlope(), CODEC_TOLERANCE);
+            assertEquals(summary.getBaseline(), decoded.getBaseline(), CODEC_TOLERANCE);
+        }
+    }
+
+    /**
+     * Passes heart rates, one per second from the start of a minute, to the analytics and
+     * returns the summary of that minute.
+     */
+    private static HeartRateSummary summarizeFirstMinute(float[] heartRates) {
+        HeartRateAnalytics analytics = new HeartRateAnalytics(HeartRateAnalytics.DEFAULT_WINDOW_MILLIS, HeartRateAnalytics.DEFAULT_BASELINE_MILLIS);
+        for (int i = 0; i < heartRates.length; i++) {
+            assertNull(analytics.add(i * PERIOD_MILLIS, heartRates[i]));
+        }
+        return analytics.add(HeartRateAnalytics.DEFAULT_WINDOW_MILLIS, heartRates[0]);
+    }
+
+    /**
+     * Generates a trace of about an hour as measured by the sensor: the integer heart rates of a
+     * profile with up to half a beat per minute of noise.
+     */
+    private static float[] generate() {
+        SyntheticHeartRateSource source = new SyntheticHeartRateSource(WaveformProfile.EXERCISE_RAMP, 42);
+        Random random = new Random(42);
+        float[] trace = new float[4096];
+        for (int i = 0; i < trace.length; i++) {
+            trace[i] = source.next(i * PERIOD_MILLIS) + random.nextFloat() - 0.5f;
+        }
+        return trace;
+    }
+
+    /**
+     * Recomputes a summary in several passes from all heart rates of a window of the trace.
+     */
+    private static HeartRateSummary recompute(float[] trace, long start, long end) {
+        int first = (int) Math.max(0, (start - START + PERIOD_MILLIS - 1) / PERIOD_MILLIS);
+        int last = (int) Math.min(trace.length, (end - START + PERIOD_MILLIS - 1) / PERIOD_MILLIS);
+        int count = last - first;
+
+        double sum = 0;
+        float min = Float.MAX_VALUE;
+        float max = 0;
+        for (int i = first; i < last; i++) {
+            sum += trace[i];
+            min = Math.min(min, trace[i]);
+            max = Math.max(max, trace[i]);
+        }
+        double mean = sum / count;
+
+        double sumOfSquaredDifferences = 0;
+        for (int i = first + 1; i < last; i++) {
+            double difference = 60000.0 / trace[i] - 60000.0 / trace[i - 1];
+            sumOfSquaredDifferences += difference * difference;
+        }
+        double rmssd = count > 1 ? Math.sqrt(sumOfSquaredDifferences / (count - 1)) : 0;
+
+        // Centered least squares with the time in minutes
+        double meanTime = 0;
+        for (int i = first; i < last; i++) {
+            meanTime += (START + i * PERIOD_MILLIS - start) / 60000.0;
+        }
+        meanTime /= count;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = first; i < last; i++) {
+            double time = (START + i * PERIOD_MILLIS - start) / 60000.0 - meanTime;
+            covariance += time * (trace[i] - mean);
+            variance += time * time;
+        }
+        double slope = variance > 0 ? covariance / variance : 0;
+
+        // The baseline depends on all heart rates before the end of the window
+        double baseline = trace[0];
+        for (int i = 1; i < last; i++) {
+            long timeConstant = trace[i] > baseline
+                    ? HeartRateAnalytics.DEFAULT_BASELINE_MILLIS * HeartRateAnalytics.BASELINE_RISE_FACTOR
+                    : HeartRateAnalytics.DEFAULT_BASELINE_MILLIS;
+            baseline += (1 - Math.exp(-PERIOD_MILLIS / (double) timeConstant)) * (trace[i] - baseline);
+        }
+
+        return new HeartRateSummary(start, end, count, (float) mean, min, max, (float) rmssd, (float) slope, (float) baseline);
+    }
+
+    /**
+     * Fails if the relative difference of a value is too large. Values near zero are compared
+     * absolutely.
+     */
+    private static void assertClose(HeartRateSummary summary, String name, double expected, double actual) {
+        assertEquals(summary + ": " + name, expected, actual, TOLERANCE * Math.max(1, Math.abs(expected)));
+    }
+}
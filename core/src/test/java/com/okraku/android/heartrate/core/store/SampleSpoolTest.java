@@ -0,0 +1,107 @@
+package com.okraku.android.heartrate.core.store;
+
+import com.okraku.android.heartrate.core.SampleBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class SampleSpoolTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("spool", ".hrq");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void addFirstKeepsOrder() throws IOException {
+        SampleSpool spool = new SampleSpool(file, 100);
+        try {
+            for (int i = 1; i <= 20; i++) {
+                spool.add(i, 60 + i);
+            }
+            SampleBuffer removed = new SampleBuffer(10);
+            long position = spool.peek(removed, 10);
+            spool.remove(position, removed.size());
+            spool.add(21, 81);
+
+            spool.addFirst(removed);
+
+            assertTimestamps(spool, 1, 21);
+        }
+        finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void addFirstToNewSpool() throws IOException {
+        SampleSpool spool = new SampleSpool(file, 100);
+        try {
+            spool.add(3, 63);
+            SampleBuffer samples = new SampleBuffer(2);
+            samples.add(1, 61);
+            samples.add(2, 62);
+
+            spool.addFirst(samples);
+
+            assertTimestamps(spool, 1, 3);
+        }
+        finally {
+            spool.close();
+        }
+
+        SampleSpool reopened = new SampleSpool(file, 100);
+        try {
+            assertTimestamps(reopened, 1, 3);
+        }
+        finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void addFirstToFullSpoolDropsOldest() throws IOException {
+        SampleSpool spool = new SampleSpool(file, 10);
+        try {
+            for (int i = 6; i <= 13; i++) {
+                spool.add(i, 60);
+            }
+            SampleBuffer samples = new SampleBuffer(5);
+            for (int i = 1; i <= 5; i++) {
+                samples.add(i, 60);
+            }
+
+            spool.addFirst(samples);
+
+            assertEquals(3, spool.getDropped());
+            assertTimestamps(spool, 4, 13);
+        }
+        finally {
+            spool.close();
+        }
+    }
+
+    /**
+     * Asserts that the spool holds consecutive timestamps.
+     */
+    private static void assertTimestamps(SampleSpool spool, long first, long last) {
+        SampleBuffer samples = new SampleBuffer(16);
+        spool.peek(samples, spool.getCapacity());
+        assertEquals(last - first + 1, samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            assertEquals(first + i, samples.getTimestamp(i));
+        }
+    }
+}
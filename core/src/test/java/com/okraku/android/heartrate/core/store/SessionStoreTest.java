@@ -0,0 +1,99 @@
+package com.okraku.android.heartrate.core.store;
+
+import com.okraku.android.heartrate.core.SampleBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SessionStoreTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("sessions").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void recoverAppendedSamples() throws IOException {
+        SessionStore store = new SessionStore(directory, 100, 10, 1000);
+        for (int i = 1; i <= 250; i++) {
+            assertTrue(store.append(i * 1000L, 60 + i % 40, 7));
+        }
+        store.close();
+
+        SessionStore recovered = new SessionStore(directory, 100, 10, 1000);
+        try {
+            assertEquals(250, recovered.getRecordCount());
+            assertEquals(3, recovered.getSegmentCount());
+
+            SampleBuffer samples = new SampleBuffer(16);
+            assertEquals(10, recovered.query(100000, 110000, samples));
+            assertEquals(100000, samples.getTimestamp(0));
+            assertEquals(60 + 100 % 40, samples.getValue(0));
+        }
+        finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void appendFromSeveralThreads() throws Exception {
+        final int threads = 4;
+        final int perThread = 20000;
+        final SessionStore store = new SessionStore(directory, 8192, 1, threads * perThread);
+
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int producer = t;
+            producers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= perThread; i++) {
+                        // Distinct timestamps per producer, so that every sample can be found again
+                        store.append((long) i * threads + producer, 60 + producer, producer);
+                    }
+                }
+            });
+            producers[t].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        store.close();
+
+        assertEquals(0, store.getDropped());
+        assertEquals(threads * perThread, store.getRecordCount());
+
+        SessionStore recovered = new SessionStore(directory, 8192, 1, 16);
+        try {
+            SampleBuffer samples = new SampleBuffer(threads * perThread);
+            assertEquals(threads * perThread, recovered.query(0, Long.MAX_VALUE, samples));
+            for (int i = 0; i < samples.size(); i++) {
+                assertEquals(threads + i, samples.getTimestamp(i));
+                assertEquals(60 + samples.getTimestamp(i) % threads, samples.getValue(i));
+            }
+        }
+        finally {
+            recovered.close();
+        }
+    }
+}
@@ -3,55 +3,202 @@ package com.okraku.android.heartrate.phone;
 import android.content.Context;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
-
-import com.google.android.gms.tasks.OnFailureListener;
-import com.google.android.gms.tasks.OnSuccessListener;
-import com.google.android.gms.tasks.Task;
-import com.google.android.gms.tasks.Tasks;
+import com.google.android.gms.wearable.ChannelClient;
 import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.Node;
 import com.google.android.gms.wearable.Wearable;
 import com.google.android.gms.wearable.WearableListenerService;
+import com.okraku.android.heartrate.core.HeartRateBus;
+import com.okraku.android.heartrate.core.MessagePaths;
+import com.okraku.android.heartrate.core.PhonePipeline;
+import com.okraku.android.heartrate.core.SendPipeline;
+import com.okraku.android.heartrate.core.SourceState;
+import com.okraku.android.heartrate.core.StreamMode;
+import com.okraku.android.heartrate.core.alert.AlertEngine;
+import com.okraku.android.heartrate.core.alert.RateOfChangeRule;
+import com.okraku.android.heartrate.core.alert.SustainedAboveRule;
+import com.okraku.android.heartrate.core.history.SampleHistory;
+import com.okraku.android.heartrate.core.history.WindowStats;
+import com.okraku.android.heartrate.core.metrics.PowerCounters;
+import com.okraku.android.heartrate.core.metrics.TraceBuffer;
+import com.okraku.android.heartrate.core.rollup.RollupStore;
+import com.okraku.android.heartrate.core.store.SessionStore;
+import com.okraku.android.heartrate.wearable.WearableStreamChannel;
+import com.okraku.android.heartrate.wearable.WearableTransport;
 
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Data layer service for smartphones. Receives and sends messages.
+ * <p>
+ * Received heart rates are processed by a {@link PhonePipeline}; this service connects it to the
+ * Wearable API.
  */
 public class DataLayerService extends WearableListenerService {
     /**
-     * This path is used by smartwatches to send the current heart rate.
+     * log tag.
      */
-    private static final String MESSAGE_PATH_HEART_RATE = "/heart_rate";
+    private static final String LOG_TAG = DataLayerService.class.getName();
 
     /**
-     * This path is used by smartphones to send warnings, if the heart rate is too high.
+     * Maximum number of messages waiting to be sent.
      */
-    private static final String MESSAGE_PATH_WARNING = "/heart_rate_warning";
+    private static final int SEND_QUEUE_CAPACITY = 16;
 
     /**
-     * log tag.
+     * What to do if more messages are waiting than {@link #SEND_QUEUE_CAPACITY}.
      */
-    private static final String LOG_TAG = DataLayerService.class.getName();
+    private static final SendPipeline.OverflowPolicy SEND_QUEUE_OVERFLOW_POLICY = SendPipeline.OverflowPolicy.DROP_OLDEST;
+
+    /**
+     * Lengths of the windows rolling statistics are kept for: 10 seconds, 1 minute, 5 minutes.
+     */
+    private static final long[] HISTORY_WINDOWS = {TimeUnit.SECONDS.toMillis(10), TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(5)};
+
+    /**
+     * Memory used for the history of received heart rates per smartwatch (256 KiB).
+     */
+    private static final int HISTORY_MEMORY_BUDGET = 256 * 1024;
+
+    /**
+     * Number of records per session log segment (1 MiB per segment).
+     */
+    private static final int SESSION_SEGMENT_RECORDS = 65536;
+
+    /**
+     * Time between two commits of the session log in milliseconds.
+     */
+    private static final long SESSION_COMMIT_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * Maximum number of received heart rates waiting to be written to the session log.
+     */
+    private static final int SESSION_QUEUE_CAPACITY = 4096;
 
     /**
-     * This listener will be notified when the heart rate has changed. Usually implemented by
-     * activities.
+     * Time received heart rates are kept in the session log. Older ones are only kept as
+     * aggregates in the rollup store, see {@link RollupStore#DEFAULT_RETENTIONS}.
+     */
+    private static final long SESSION_RETENTION = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * Counts what wakes up the CPU and the radio of the smartphone.
+     */
+    private static final PowerCounters POWER_COUNTERS = new PowerCounters();
+
+    /**
+     * Records the messages sent and received instead of logging them.
+     */
+    private static final TraceBuffer TRACE = new TraceBuffer(TraceBuffer.DEFAULT_CAPACITY);
+
+    /**
+     * Receives history channels, one at a time, so that the listener thread keeps processing
+     * live messages meanwhile.
+     */
+    private static final ExecutorService HISTORY_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            POWER_COUNTERS.increment(PowerCounters.Counter.THREADS_SPAWNED);
+            return new Thread(runnable, "phone-history-sync");
+        }
+    });
+
+    /**
+     * Decodes, stores and evaluates received heart rates and sends warnings. Created once, when
+     * the service or the UI first needs it, and read without a lock afterwards, since it is used
+     * for every received message.
+     */
+    private static volatile PhonePipeline pipeline;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        PhonePipeline pipeline = getPipeline(this);
+        openSessionStore(pipeline, this);
+        openRollupStore(pipeline, this);
+    }
+
+    /**
+     * Opens the session log in the app's files directory, unless it is open already.
+     *
+     * @param pipeline The pipeline that appends received heart rates to the session log
+     * @param context An Android context
      */
-    private static OnHeartRateChangeListener onChangeListener;
+    private static synchronized void openSessionStore(PhonePipeline pipeline, Context context) {
+        if (pipeline.getSessionStore() == null) {
+            try {
+                SessionStore sessionStore = new SessionStore(new File(context.getFilesDir(), "sessions"), SESSION_SEGMENT_RECORDS, SESSION_COMMIT_INTERVAL, SESSION_QUEUE_CAPACITY);
+                sessionStore.setRetention(SESSION_RETENTION);
+                pipeline.setSessionStore(sessionStore);
+                Log.d(LOG_TAG, "Opened " + sessionStore);
+            }
+            catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to open session log - received heart rates will not be stored", e);
+            }
+        }
+    }
 
     /**
-     * The current heart rate.
+     * Opens the rollup store in the app's files directory, unless it is open already.
+     *
+     * @param pipeline The pipeline that adds received heart rates to the rollup store
+     * @param context An Android context
      */
-    private static int currentValue = 0;
+    private static synchronized void openRollupStore(PhonePipeline pipeline, Context context) {
+        if (pipeline.getRollupStore() == null) {
+            try {
+                RollupStore rollupStore = new RollupStore(new File(context.getFilesDir(), "rollups"));
+                pipeline.setRollupStore(rollupStore);
+                Log.d(LOG_TAG, "Opened " + rollupStore);
+            }
+            catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to open rollup store - received heart rates will not be aggregated", e);
+            }
+        }
+    }
 
     /**
-     * Determines if a warning has been sent to the smartwatch already.
+     * Prints statistics of this service, e.g. with
+     * {@code adb shell dumpsys activity service com.okraku.android.heartrate/.phone.DataLayerService}.
+     * With the argument {@code trace}, prints the recorded messages instead; with
+     * {@code trace <level>}, sets the level of the trace, e.g. {@code OFF}.
      */
-    private static boolean warned = false;
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (TRACE.dump(writer, args)) {
+            return;
+        }
+        PhonePipeline pipeline = getPipeline(this);
+        writer.println(pipeline);
+        writer.println(TRACE);
+
+        WindowStats stats = new WindowStats();
+        for (SourceState source : pipeline.getSources()) {
+            writer.println(source);
+            SampleHistory history = source.getHistory();
+            for (int i = 0; i < history.getWindowCount(); i++) {
+                writer.println("  " + history.getStats(i, stats));
+            }
+        }
+
+        SessionStore sessionStore = pipeline.getSessionStore();
+        writer.println(sessionStore != null ? sessionStore : "SessionStore not open");
+
+        RollupStore rollupStore = pipeline.getRollupStore();
+        writer.println(rollupStore != null ? rollupStore : "RollupStore not open");
+
+        writer.print(POWER_COUNTERS.getReport());
+    }
 
     /**
      * Called when a peer has connected.
@@ -61,6 +208,10 @@ public class DataLayerService extends WearableListenerService {
     @Override
     public void onPeerConnected(Node node) {
         super.onPeerConnected(node);
+        TRACE.registerNode(node.getId());
+        if (node.isNearby()) {
+            getPipeline(this).onPeerConnected(node.getId());
+        }
         Log.d(LOG_TAG, String.format("Peer connected: id=%s, name=%s", node.getId(), node.getDisplayName()));
     }
 
@@ -72,6 +223,7 @@ public class DataLayerService extends WearableListenerService {
     @Override
     public void onPeerDisconnected(Node node) {
         super.onPeerDisconnected(node);
+        getPipeline(this).onPeerDisconnected(node.getId());
         Log.d(LOG_TAG, String.format("Peer disconnected: id=%s, name=%s", node.getId(), node.getDisplayName()));
     }
 
@@ -83,118 +235,283 @@ public class DataLayerService extends WearableListenerService {
     @Override
     public void onMessageReceived(MessageEvent messageEvent) {
         super.onMessageReceived(messageEvent);
-        String data = new String(messageEvent.getData());
+        POWER_COUNTERS.increment(PowerCounters.Counter.MESSAGES_RECEIVED);
 
-        Log.d(LOG_TAG, String.format("Received message: sourceNodeId=%s, path=%s, data=%s", messageEvent.getSourceNodeId(), messageEvent.getPath(), data));
+        byte[] data = messageEvent.getData();
+        TRACE.record(TraceBuffer.Event.MESSAGE_RECEIVED, messageEvent.getSourceNodeId(), messageEvent.getPath(), data.length);
 
-        if (MESSAGE_PATH_HEART_RATE.equals(messageEvent.getPath())) {
-            /*
-             * A new heart rate has been received from the smartwatch.
-             */
+        try {
+            if (!getPipeline(this).onMessageReceived(messageEvent.getSourceNodeId(), messageEvent.getPath(), data)) {
+                /*
+                 * Unknown message path.
+                 */
+                Log.e(LOG_TAG, "Ignoring message to path " + messageEvent.getPath());
+            }
+        }
+        catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "Ignoring malformed message from " + messageEvent.getSourceNodeId(), e);
+        }
+    }
 
-            // Store value
-            currentValue = Integer.parseInt(new String(messageEvent.getData()));
+    /**
+     * Called when a smartwatch has opened a channel. History channels are received on a
+     * background thread.
+     *
+     * @param channel The channel
+     */
+    @Override
+    public void onChannelOpened(final ChannelClient.Channel channel) {
+        super.onChannelOpened(channel);
+        Log.d(LOG_TAG, String.format("Channel opened: sourceNodeId=%s, path=%s", channel.getNodeId(), channel.getPath()));
 
-            // Notify the GUI to update the TextView
-            if (onChangeListener != null) {
-                onChangeListener.onHeartRateChanged(currentValue);
-            }
+        final ChannelClient channelClient = Wearable.getChannelClient(getApplicationContext());
+        if (!MessagePaths.HEART_RATE_HISTORY.equals(channel.getPath())) {
+            Log.e(LOG_TAG, "Closing channel to path " + channel.getPath());
+            channelClient.close(channel);
+            return;
+        }
 
-            // Example for bidirectional communication:
-            // If the received heart rate is higher than 100, send a warning to the smartwatch.
-            if(!warned && currentValue > 100) {
-                sendMessage(getApplicationContext(), MESSAGE_PATH_WARNING, "");
-                warned = true;
+        final PhonePipeline pipeline = getPipeline(this);
+        HISTORY_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try (WearableStreamChannel streamChannel = new WearableStreamChannel(channelClient, channel)) {
+                    long received = pipeline.receiveHistory(channel.getNodeId(), streamChannel);
+                    Log.d(LOG_TAG, String.format("Received %d heart rates over history channel from %s", received, channel.getNodeId()));
+                }
+                catch (Exception e) {
+                    Log.e(LOG_TAG, "History channel from " + channel.getNodeId() + " failed", e);
+                }
             }
-        }
-        else {
-            /*
-             * Unknown message path.
-             */
-            Log.e(LOG_TAG, "Ignoring message to path " + messageEvent.getPath());
-        }
+        });
     }
 
     /**
-     * Sends a message to the smartwatch.
+     * Creates the rules that decide when a warning is sent:
+     * <ul>
+     *     <li>the heart rate is above 100 for 5 seconds, armed again below 90</li>
+     *     <li>the heart rate rises by more than 3 beats per minute per second</li>
+     * </ul>
+     * Each rule warns at most once per minute.
+     *
+     * @return A new alert engine
+     */
+    private static AlertEngine createAlertEngine() {
+        long cooldown = TimeUnit.MINUTES.toMillis(1);
+        return new AlertEngine(
+                new SustainedAboveRule("high heart rate", 100, TimeUnit.SECONDS.toMillis(5), 90, cooldown),
+                new RateOfChangeRule("fast rise", 3, TimeUnit.SECONDS.toMillis(5), cooldown));
+    }
+
+    /**
+     * Sends a message to all smartwatches.
      *
      * @param context An Android context
      * @param path A path
      * @param data A message
      */
-    public static void sendMessage(final Context context, final String path, final String data) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                for (final String nodeID : getNodes(context)) {
-                    Task<Integer> sendTask = Wearable.getMessageClient(context).sendMessage(nodeID, path, data.getBytes());
+    public static void sendMessage(Context context, String path, String data) {
+        getPipeline(context).broadcast(path, data.getBytes());
+    }
 
-                    sendTask.addOnSuccessListener(new OnSuccessListener<Integer>() {
-                        @Override
-                        public void onSuccess(Integer heartRate) {
-                            Log.d(LOG_TAG, String.format("Successfully sent message: target=%s, path=%s, data=%s", nodeID, path, data));
-                        }
-                    });
+    /**
+     * Sends a message to a single smartwatch.
+     *
+     * @param context An Android context
+     * @param nodeId ID of the smartwatch
+     * @param path A path
+     * @param data A message
+     */
+    public static void sendMessage(Context context, String nodeId, String path, String data) {
+        getPipeline(context).getSendPipeline().send(nodeId, path, data.getBytes());
+    }
+
+    /**
+     * Returns the counters of what wakes up the CPU and the radio, to be incremented by the UI
+     * as well.
+     *
+     * @return The counters of this process
+     */
+    public static PowerCounters getPowerCounters() {
+        return POWER_COUNTERS;
+    }
+
+    /**
+     * Returns the pipeline that processes the received heart rates. Creates it on first use;
+     * only then the class lock is taken.
+     *
+     * @param context An Android context
+     * @return The pipeline
+     */
+    private static PhonePipeline getPipeline(Context context) {
+        PhonePipeline pipeline = DataLayerService.pipeline;
+        if (pipeline != null) {
+            return pipeline;
+        }
+        return createPipeline(context);
+    }
 
-                    sendTask.addOnFailureListener(new OnFailureListener() {
+    /**
+     * Creates the pipeline, unless another thread has done so already.
+     *
+     * @param context An Android context
+     * @return The pipeline
+     */
+    private static synchronized PhonePipeline createPipeline(Context context) {
+        if (pipeline == null) {
+            pipeline = new PhonePipeline(new WearableTransport(context, POWER_COUNTERS, TRACE), SEND_QUEUE_CAPACITY, SEND_QUEUE_OVERFLOW_POLICY,
+                    SampleHistory.capacityForBudget(HISTORY_MEMORY_BUDGET, HISTORY_WINDOWS.length), HISTORY_WINDOWS,
+                    new PhonePipeline.AlertEngineFactory() {
                         @Override
-                        public void onFailure(@NonNull Exception e) {
-                            Log.e(LOG_TAG, String.format("Failed to send message: target=%s, path=%s, data=%s", nodeID, path, data), e);
+                        public AlertEngine createAlertEngine(String nodeId) {
+                            Log.d(LOG_TAG, "New smartwatch " + nodeId);
+                            TRACE.registerNode(nodeId);
+                            return DataLayerService.createAlertEngine();
                         }
                     });
-                }
-            }
-        }).start();
+        }
+        return pipeline;
     }
 
     /**
-     * Returns all connected nearby nodes.
+     * Returns the state of all smartwatches that have sent heart rates. It may be read from
+     * any thread.
      *
-     * @param context An Android context
-     * @return A set of nodes
+     * @return The state of every smartwatch, empty if the service has not been created yet
      */
-    private static Set<String> getNodes(Context context) {
-        HashSet<String> results = new HashSet<>();
-        List<Node> nodes;
+    public static Collection<SourceState> getSources() {
+        PhonePipeline pipeline = DataLayerService.pipeline;
+        if (pipeline == null) {
+            return Collections.emptyList();
+        }
+        return pipeline.getSources();
+    }
 
-        try {
-            nodes = Tasks.await(Wearable.getNodeClient(context).getConnectedNodes());
+    /**
+     * Returns the history of the smartwatch that has sent the most recent heart rate, for charts.
+     *
+     * @return The history, or null if no heart rate has been received yet
+     */
+    public static SampleHistory getLatestHistory() {
+        PhonePipeline pipeline = DataLayerService.pipeline;
+        if (pipeline == null) {
+            return null;
+        }
+        SourceState source = pipeline.getLatestSource();
+        return source != null ? source.getHistory() : null;
+    }
 
-            for (Node node : nodes) {
-                if (node.isNearby()) {
-                    results.add(node.getId());
-                }
+    /**
+     * Returns the store that aggregates all received heart rates, for charts.
+     *
+     * @return The rollup store, or null if it is not open
+     */
+    public static RollupStore getRollupStore() {
+        PhonePipeline pipeline = DataLayerService.pipeline;
+        return pipeline != null ? pipeline.getRollupStore() : null;
+    }
+
+    /**
+     * Called by the listener when a heart rate has been displayed.
+     *
+     * @param receivedNanos {@link System#nanoTime()} when the heart rate has been received, as
+     *                      passed to the listener
+     */
+    public static void onDisplayed(long receivedNanos) {
+        PhonePipeline pipeline = DataLayerService.pipeline;
+        if (pipeline != null) {
+            pipeline.onDisplayed(receivedNanos);
+        }
+    }
+
+    /**
+     * Returns the latencies from the sensor of the smartwatch to the screen, the power counters
+     * per hour, and the clock offset and latest summary of every smartwatch, for display on a
+     * debug screen.
+     *
+     * @return A multi-line report
+     */
+    public static String getLatencyReport() {
+        PhonePipeline pipeline = DataLayerService.pipeline;
+        if (pipeline == null) {
+            return "DataLayerService not created";
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append(pipeline.getSensorToReceiveLatency()).append('\n');
+        report.append(pipeline.getReceiveToDisplayLatency()).append('\n');
+        report.append(POWER_COUNTERS);
+        for (SourceState source : pipeline.getSources()) {
+            report.append('\n').append(source.getNodeId()).append(": ").append(source.getClockOffset());
+            if (source.getLatestSummary() != null) {
+                report.append('\n').append(source.getNodeId()).append(": ").append(source.getLatestSummary());
             }
         }
-        catch (Exception e) {
-            Log.e(LOG_TAG, "Failed to get nodes", e);
+        return report.toString();
+    }
+
+    /**
+     * Subscribes to the heart rates received from now on, e.g. by an activity. The subscriber
+     * is called with the most recent heart rate first, by the executor like every other one.
+     *
+     * @param context An Android context
+     * @param subscriber The subscriber
+     * @param delivery Which heart rates the subscriber receives
+     * @param executor Calls the subscriber
+     * @return The subscription, to unsubscribe
+     */
+    public static HeartRateBus.Subscription subscribe(Context context, HeartRateBus.Subscriber subscriber,
+            HeartRateBus.Delivery delivery, Executor executor) {
+        PhonePipeline pipeline = getPipeline(context.getApplicationContext());
+        SourceState source = pipeline.getLatestSource();
+        if (source == null) {
+            return pipeline.getHeartRateBus().subscribe(subscriber, delivery, executor);
         }
+        return pipeline.getHeartRateBus().subscribe(subscriber, delivery, executor,
+                source.getNodeId(), source.getLatestTimestamp(), source.getLatestValue(), System.nanoTime());
+    }
 
-        return results;
+    /**
+     * Unsubscribes from the heart rates.
+     *
+     * @param subscription The subscription
+     */
+    public static void unsubscribe(HeartRateBus.Subscription subscription) {
+        PhonePipeline pipeline = DataLayerService.pipeline;
+        if (pipeline != null) {
+            pipeline.getHeartRateBus().unsubscribe(subscription);
+        }
     }
 
     /**
-     * Interface which will be notified when the heart rate has changed.
+     * Asks all smartwatches to send either heart rates and summaries, or summaries only.
+     *
+     * @param context An Android context
+     * @param mode The stream mode
      */
-    public interface OnHeartRateChangeListener {
-        /**
-         * Called when the heart rate has changed.
-         *
-         * @param value The new heart rate
-         */
-        void onHeartRateChanged(int value);
+    public static void setStreamMode(Context context, StreamMode mode) {
+        getPipeline(context.getApplicationContext()).setStreamMode(mode);
     }
 
     /**
-     * Sets a listener that will be notified when the heart rate has changed.
+     * Adds a listener for the summaries that are sent by the smartwatches once per minute.
      *
-     * @param onChangeListener Listener to set
+     * @param context An Android context
+     * @param listener The listener, called on the thread that received the summary
      */
-    public static void setCallBack(OnHeartRateChangeListener onChangeListener) {
-        DataLayerService.onChangeListener = onChangeListener;
+    public static void addSummaryListener(Context context, PhonePipeline.OnSummaryListener listener) {
+        getPipeline(context.getApplicationContext()).addSummaryListener(listener);
+    }
 
-        if (onChangeListener != null) {
-            onChangeListener.onHeartRateChanged(currentValue);
+    /**
+     * Removes a listener for summaries.
+     *
+     * @param listener The listener
+     */
+    public static void removeSummaryListener(PhonePipeline.OnSummaryListener listener) {
+        PhonePipeline pipeline = DataLayerService.pipeline;
+        if (pipeline != null) {
+            pipeline.removeSummaryListener(listener);
         }
     }
 }
@@ -0,0 +1,240 @@
+package com.okraku.android.heartrate.phone;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.okraku.android.heartrate.core.chart.MinMaxDecimator;
+import com.okraku.android.heartrate.core.history.SampleHistory;
+import com.okraku.android.heartrate.core.metrics.LatencyHistogram;
+import com.okraku.android.heartrate.core.rollup.RollupBuffer;
+import com.okraku.android.heartrate.core.rollup.RollupStore;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chart of the heart rates of the most recent time span: the aggregated history from the
+ * {@link RollupStore} and, on top, the live heart rates from the {@link SampleHistory} of the
+ * smartwatch. A click switches between the time spans.
+ * <p>
+ * Both series are decimated to one column per pixel with a {@link MinMaxDecimator}, so drawing
+ * takes the same time for a few minutes and for a day of heart rates. The live series is
+ * decimated incrementally: every frame only adds the heart rates received since the previous one.
+ * All buffers are allocated up front; {@link #onDraw(Canvas)} does not allocate once they have
+ * grown to the capacity of the history. The activity invalidates the chart at most once per frame,
+ * so any number of new heart rates per frame cost a single draw.
+ */
+public class HeartRateChartView extends View {
+    /**
+     * Time spans the chart switches between: 5 minutes, 1 hour, 24 hours.
+     */
+    private static final long[] SPANS = {TimeUnit.MINUTES.toMillis(5), TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(1)};
+
+    /**
+     * Labels of the {@link #SPANS}.
+     */
+    private static final String[] SPAN_LABELS = {"5 min", "1 h", "24 h"};
+
+    /**
+     * Maximum number of columns; wider charts use wider columns.
+     */
+    private static final int MAX_COLUMNS = 2048;
+
+    /**
+     * Heart rates further apart than this are not connected, e.g. while the smartwatch was out
+     * of range, in milliseconds.
+     */
+    private static final long MAX_GAP_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Time between two queries of the rollup store in milliseconds; in between, the previous
+     * buckets are drawn at their new position.
+     */
+    private static final long ROLLUP_REFRESH_MILLIS = 1000;
+
+    /**
+     * Space above the highest and below the lowest heart rate, in beats per minute.
+     */
+    private static final int VALUE_MARGIN = 5;
+
+    /**
+     * Value axis if there are no heart rates.
+     */
+    private static final int DEFAULT_MIN_VALUE = 60;
+
+    private static final int DEFAULT_MAX_VALUE = 120;
+
+    private final Paint historyPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private final Paint livePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private final Paint labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private final MinMaxDecimator historyDecimator = new MinMaxDecimator(MAX_COLUMNS);
+
+    private final MinMaxDecimator liveDecimator = new MinMaxDecimator(MAX_COLUMNS);
+
+    private final float[] historyPoints = new float[MAX_COLUMNS * MinMaxDecimator.FLOATS_PER_COLUMN];
+
+    private final float[] livePoints = new float[MAX_COLUMNS * MinMaxDecimator.FLOATS_PER_COLUMN];
+
+    /**
+     * Buckets of the last query of the rollup store.
+     */
+    private final RollupBuffer buckets = new RollupBuffer();
+
+    /**
+     * Time of the last query of the rollup store, or 0 to query and decimate the aggregated
+     * history with the next draw.
+     */
+    private long bucketsQueriedAt;
+
+    /**
+     * Buffers for the live heart rates copied from the history. Grow to the capacity of the
+     * history once.
+     */
+    private long[] timestamps = new long[0];
+
+    private int[] values = new int[0];
+
+    /**
+     * History of the smartwatch whose live heart rates are drawn, or null.
+     */
+    private SampleHistory history;
+
+    /**
+     * History whose heart rates are in the live decimator.
+     */
+    private SampleHistory decimatedHistory;
+
+    /**
+     * Aggregated heart rates of all smartwatches, or null.
+     */
+    private RollupStore rollupStore;
+
+    /**
+     * Index of the current time span in {@link #SPANS}.
+     */
+    private int span = 0;
+
+    /**
+     * Time needed to decimate and draw a frame.
+     */
+    private final LatencyHistogram drawTime = new LatencyHistogram("chart draw");
+
+    public HeartRateChartView(Context context) {
+        this(context, null);
+    }
+
+    public HeartRateChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        float density = getResources().getDisplayMetrics().density;
+        historyPaint.setColor(Color.argb(128, 255, 255, 255));
+        historyPaint.setStrokeWidth(density);
+        livePaint.setColor(Color.WHITE);
+        livePaint.setStrokeWidth(2 * density);
+        labelPaint.setColor(Color.WHITE);
+        labelPaint.setTextSize(12 * density);
+
+        setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                span = (span + 1) % SPANS.length;
+                bucketsQueriedAt = 0;
+                invalidate();
+            }
+        });
+    }
+
+    /**
+     * Sets the heart rates to draw. Must be called on the main thread.
+     *
+     * @param history History of the smartwatch whose live heart rates are drawn, or null
+     * @param rollupStore Aggregated heart rates, or null
+     */
+    public void setSeries(SampleHistory history, RollupStore rollupStore) {
+        this.history = history;
+        this.rollupStore = rollupStore;
+        bucketsQueriedAt = 0;
+        invalidate();
+    }
+
+    /**
+     * Returns the time needed to decimate and draw a frame, for the latency report.
+     *
+     * @return Draw times in microseconds
+     */
+    public LatencyHistogram getDrawTime() {
+        return drawTime;
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        bucketsQueriedAt = 0;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        long start = System.nanoTime();
+
+        float left = getPaddingLeft();
+        float top = getPaddingTop();
+        float width = getWidth() - getPaddingLeft() - getPaddingRight();
+        float height = getHeight() - getPaddingTop() - getPaddingBottom();
+        if (width < 1 || height < 1) {
+            return;
+        }
+        int columns = Math.min((int) width, MAX_COLUMNS);
+        long columnMillis = Math.max(1, SPANS[span] / columns);
+        long to = System.currentTimeMillis();
+
+        // The aggregated history is queried at most once per refresh interval
+        if (to - bucketsQueriedAt >= ROLLUP_REFRESH_MILLIS) {
+            historyDecimator.reset(columnMillis, columns);
+            RollupStore rollups = rollupStore;
+            if (rollups != null) {
+                rollups.query(to - SPANS[span], to, rollups.getResolutionFor(SPANS[span], columns), buckets);
+                historyDecimator.addAll(buckets);
+            }
+            bucketsQueriedAt = to;
+        }
+
+        // Only the live heart rates received since the last frame are added
+        SampleHistory live = history;
+        if (columnMillis != liveDecimator.getColumnMillis() || columns != liveDecimator.getColumnCount() || live != decimatedHistory) {
+            liveDecimator.reset(columnMillis, columns);
+            decimatedHistory = live;
+        }
+        if (live != null) {
+            if (timestamps.length < live.getCapacity()) {
+                timestamps = new long[live.getCapacity()];
+                values = new int[live.getCapacity()];
+            }
+            long from = Math.max(to - SPANS[span], liveDecimator.getNewestTimestamp() + 1);
+            liveDecimator.addAll(timestamps, values, live.copy(from, Long.MAX_VALUE, timestamps, values));
+        }
+
+        int minValue = Math.min(historyDecimator.getMinValue(to), liveDecimator.getMinValue(to));
+        int maxValue = Math.max(historyDecimator.getMaxValue(to), liveDecimator.getMaxValue(to));
+        if (minValue > maxValue) {
+            minValue = DEFAULT_MIN_VALUE;
+            maxValue = DEFAULT_MAX_VALUE;
+        }
+        float bottomValue = minValue - VALUE_MARGIN;
+        float topValue = maxValue + VALUE_MARGIN;
+
+        int historyCount = historyDecimator.toLines(historyPoints, to, left, top, width, height, bottomValue, topValue, Math.max(MAX_GAP_MILLIS, buckets.getResolutionMillis() * 2));
+        canvas.drawLines(historyPoints, 0, historyCount, historyPaint);
+        int liveCount = liveDecimator.toLines(livePoints, to, left, top, width, height, bottomValue, topValue, MAX_GAP_MILLIS);
+        canvas.drawLines(livePoints, 0, liveCount, livePaint);
+        canvas.drawText(SPAN_LABELS[span], left, top + labelPaint.getTextSize(), labelPaint);
+
+        drawTime.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+}
@@ -1,53 +1,166 @@
 package com.okraku.android.heartrate.phone;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.view.View;
 import android.widget.TextView;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import com.okraku.android.heartrate.core.HeartRateBus;
+import com.okraku.android.heartrate.core.display.HeartRateText;
+import com.okraku.android.heartrate.core.metrics.PowerCounters;
+import com.okraku.android.heartrate.wearable.FrameDispatcher;
+
 /**
  * Main activity for smartphones.
+ * <p>
+ * A long click on the heart rate shows or hides the latencies from the sensor of the smartwatch
+ * to the screen and the power counters. Below the heart rate, a chart shows the recent heart
+ * rates; a click on it switches the time span.
+ * <p>
+ * Heart rates may arrive faster than the display refreshes; the screen is updated at most once
+ * per frame with the most recent one, and not at all while the activity is not visible.
  */
-public class MainActivity extends AppCompatActivity implements DataLayerService.OnHeartRateChangeListener {
+public class MainActivity extends AppCompatActivity implements HeartRateBus.Subscriber, FrameDispatcher.OnFrameListener {
+    /**
+     * Time between two updates of the latencies in milliseconds.
+     */
+    private static final long LATENCY_UPDATE_INTERVAL = 1000;
+
     /**
      * Text view that displays the current heart rate.
      */
     private TextView textView;
 
+    /**
+     * Text view that displays the latencies. Hidden by default.
+     */
+    private TextView latencyView;
+
+    /**
+     * Chart of the recent heart rates.
+     */
+    private HeartRateChartView chartView;
+
+    /**
+     * ID of the smartwatch whose live heart rates are drawn by the chart. Only accessed on the
+     * main thread.
+     */
+    private String chartNodeId;
+
+    /**
+     * ID of the smartwatch that has sent the most recent heart rate.
+     */
+    private volatile String latestNodeId;
+
+    /**
+     * Updates the screen once per frame. Created on the main thread in {@link #onCreate(Bundle)}.
+     */
+    private FrameDispatcher frameDispatcher;
+
+    /**
+     * Subscription to the heart rates while the activity is in the foreground, otherwise null.
+     */
+    private HeartRateBus.Subscription subscription;
+
+    /**
+     * Updates the latencies on the main thread.
+     */
+    private final Handler handler = new Handler();
+
+    /**
+     * Updates the latencies once per second while they are visible.
+     */
+    private final Runnable latencyUpdater = new Runnable() {
+        @Override
+        public void run() {
+            latencyView.setText(DataLayerService.getLatencyReport() + '\n' + chartView.getDrawTime() + '\n' + frameDispatcher);
+            handler.postDelayed(this, LATENCY_UPDATE_INTERVAL);
+            DataLayerService.getPowerCounters().increment(PowerCounters.Counter.MAIN_LOOPER_POSTS);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         this.textView = findViewById(R.id.heartRate);
+        this.latencyView = findViewById(R.id.latency);
+        this.chartView = findViewById(R.id.chart);
+        this.frameDispatcher = new FrameDispatcher(this, DataLayerService.getPowerCounters());
+
+        textView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                boolean visible = latencyView.getVisibility() != View.VISIBLE;
+                latencyView.setVisibility(visible ? View.VISIBLE : View.GONE);
+                handler.removeCallbacks(latencyUpdater);
+                if (visible) {
+                    latencyUpdater.run();
+                }
+                return true;
+            }
+        });
     }
 
     @Override
     protected void onResume() {
         super.onResume();
         // Listen for heart rate changes when the activity comes to foreground
-        DataLayerService.setCallBack(this);
+        subscription = DataLayerService.subscribe(this, this, HeartRateBus.Delivery.LATEST_ONLY, HeartRateBus.DIRECT);
+        chartView.setSeries(DataLayerService.getLatestHistory(), DataLayerService.getRollupStore());
+        frameDispatcher.resume();
+        if (latencyView.getVisibility() == View.VISIBLE) {
+            latencyUpdater.run();
+        }
     }
 
     @Override
     protected void onPause() {
         // Stop listening for heart rate changes when the activity has been paused
-        DataLayerService.setCallBack(null);
+        DataLayerService.unsubscribe(subscription);
+        subscription = null;
+        frameDispatcher.pause();
+        handler.removeCallbacks(latencyUpdater);
         super.onPause();
     }
 
     /**
-     * Called when the heart rate has changed.
+     * Called when a heart rate has been received from a smartwatch. Shows the most recent heart
+     * rate of any smartwatch with the next frame.
      *
-     * @param value The new heart rate
+     * @param nodeId ID of the smartwatch
+     * @param timestamp Time the heart rate has been measured in milliseconds
+     * @param heartRate The heart rate
+     * @param receivedNanos {@link System#nanoTime()} when the heart rate has been received
      */
     @Override
-    public void onHeartRateChanged(final int value) {
-        // Update text view
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                textView.setText(Integer.toString(value));
-            }
-        });
+    public void onHeartRate(String nodeId, long timestamp, int heartRate, long receivedNanos) {
+        latestNodeId = nodeId;
+        frameDispatcher.offer(heartRate, receivedNanos);
+    }
+
+    /**
+     * Called once per frame on the main thread, if a heart rate has changed since the previous
+     * frame.
+     *
+     * @param heartRate The most recent heart rate
+     * @param receivedNanos {@link System#nanoTime()} when it has been received
+     */
+    @Override
+    public void onFrame(int heartRate, long receivedNanos) {
+        textView.setText(HeartRateText.toString(heartRate));
+        DataLayerService.onDisplayed(receivedNanos);
+
+        String nodeId = latestNodeId;
+        if (nodeId != null && !nodeId.equals(chartNodeId)) {
+            chartNodeId = nodeId;
+            chartView.setSeries(DataLayerService.getLatestHistory(), DataLayerService.getRollupStore());
+        }
+        else {
+            // Draw the new heart rates with this frame
+            chartView.invalidate();
+        }
     }
 }
@@ -8,49 +8,108 @@ import android.content.Intent;
 import android.os.Build;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 
-import com.google.android.gms.tasks.OnFailureListener;
-import com.google.android.gms.tasks.OnSuccessListener;
-import com.google.android.gms.tasks.Task;
-import com.google.android.gms.tasks.Tasks;
 import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.Node;
-import com.google.android.gms.wearable.Wearable;
 import com.google.android.gms.wearable.WearableListenerService;
+import com.okraku.android.heartrate.core.FlushPolicy;
+import com.okraku.android.heartrate.core.HeartRateSummary;
+import com.okraku.android.heartrate.core.MessagePaths;
+import com.okraku.android.heartrate.core.SampleBuffer;
+import com.okraku.android.heartrate.core.SendPipeline;
+import com.okraku.android.heartrate.core.SendPolicy;
+import com.okraku.android.heartrate.core.StreamMode;
+import com.okraku.android.heartrate.core.Warning;
+import com.okraku.android.heartrate.core.WarningCodec;
+import com.okraku.android.heartrate.core.WarningReceiver;
+import com.okraku.android.heartrate.core.WatchPipeline;
+import com.okraku.android.heartrate.core.metrics.PowerCounters;
+import com.okraku.android.heartrate.core.metrics.TraceBuffer;
+import com.okraku.android.heartrate.core.store.SampleSpool;
 import com.okraku.android.heartrate.watch.sensor.HeartRateSensorEventListener;
+import com.okraku.android.heartrate.wearable.WearableTransport;
 
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 
 /**
  * Data layer service for smartwatches. Receives and sends messages.
+ * <p>
+ * Sending is done by a {@link WatchPipeline}; this service connects it to the Wearable API.
  */
 public class DataLayerService extends WearableListenerService {
     /**
-     * This path is used by smartwatches to send the current heart rate.
+     * Log tag.
      */
-    private static final String MESSAGE_PATH_HEART_RATE = "/heart_rate";
+    private static final String LOG_TAG = DataLayerService.class.getName();
 
     /**
-     * This path is used by smartphones to send warnings, if the heart rate is too high.
+     * Maximum number of messages waiting to be sent.
      */
-    private static final String MESSAGE_PATH_WARNING = "/heart_rate_warning";
+    private static final int SEND_QUEUE_CAPACITY = 64;
 
     /**
-     * Log tag.
+     * What to do if more messages are waiting than {@link #SEND_QUEUE_CAPACITY}.
      */
-    private static final String LOG_TAG = DataLayerService.class.getName();
+    private static final SendPipeline.OverflowPolicy SEND_QUEUE_OVERFLOW_POLICY = SendPipeline.OverflowPolicy.DROP_OLDEST;
+
+    /**
+     * Maximum number of heart rates kept while no smartphone is connected: 12 hours at one heart
+     * rate per second (about 500 KiB).
+     */
+    private static final int SPOOL_CAPACITY = 12 * 60 * 60;
 
     /**
      * ID of the notification channel.
      */
     private static final String CHANNEL_ID = "heartrate_channel";
 
+    /**
+     * ID of the notification that shows the warnings; all warnings update the same notification.
+     */
+    private static final int WARNING_NOTIFICATION_ID = 1;
+
+    /**
+     * Counts what wakes up the CPU and the radio of the smartwatch.
+     */
+    private static final PowerCounters POWER_COUNTERS = new PowerCounters();
+
+    /**
+     * Records the messages sent and received instead of logging them.
+     */
+    private static final TraceBuffer TRACE = new TraceBuffer(TraceBuffer.DEFAULT_CAPACITY);
+
+    /**
+     * Drops repeated warnings and coalesces warnings that follow shortly after an alert.
+     */
+    private static final WarningReceiver WARNING_RECEIVER = new WarningReceiver(WarningReceiver.DEFAULT_COALESCE_MILLIS);
+
+    /**
+     * Batches, encodes and sends the heart rates. Created on first use.
+     */
+    private static WatchPipeline pipeline;
+
+    /**
+     * Prints statistics of this service, e.g. with
+     * {@code adb shell dumpsys activity service com.okraku.android.heartrate/.watch.DataLayerService}.
+     * With the argument {@code trace}, prints the recorded messages instead; with
+     * {@code trace <level>}, sets the level of the trace, e.g. {@code OFF}.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (TRACE.dump(writer, args)) {
+            return;
+        }
+        writer.println(getPipeline(this));
+        writer.println(WARNING_RECEIVER);
+        writer.println(TRACE);
+        writer.print(POWER_COUNTERS.getReport());
+    }
+
     /**
      * Called when a peer has connected.
      *
@@ -59,6 +118,10 @@ public class DataLayerService extends WearableListenerService {
     @Override
     public void onPeerConnected(Node node) {
         super.onPeerConnected(node);
+        TRACE.registerNode(node.getId());
+        if (node.isNearby()) {
+            getPipeline(this).onPeerConnected(node.getId());
+        }
         Log.d(LOG_TAG, String.format("Peer connected: id=%s name=%s", node.getId(), node.getDisplayName()));
     }
 
@@ -70,6 +133,7 @@ public class DataLayerService extends WearableListenerService {
     @Override
     public void onPeerDisconnected(Node node) {
         super.onPeerDisconnected(node);
+        getPipeline(this).onPeerDisconnected(node.getId());
         Log.d(LOG_TAG, String.format("Peer disconnected: id=%s, name=%s", node.getId(), node.getDisplayName()));
     }
 
@@ -81,31 +145,76 @@ public class DataLayerService extends WearableListenerService {
     @Override
     public void onMessageReceived(MessageEvent messageEvent) {
         super.onMessageReceived(messageEvent);
-        Log.d(LOG_TAG, String.format("Received message: path=%s, data=%s", messageEvent.getPath(), new String(messageEvent.getData())));
+        POWER_COUNTERS.increment(PowerCounters.Counter.MESSAGES_RECEIVED);
+        TRACE.record(TraceBuffer.Event.MESSAGE_RECEIVED, messageEvent.getSourceNodeId(), messageEvent.getPath(), messageEvent.getData().length);
+
+        if (MessagePaths.WARNING.equals(messageEvent.getPath())) {
+            try {
+                onWarningReceived(messageEvent.getSourceNodeId(), WarningCodec.decode(messageEvent.getData()));
+            }
+            catch (IllegalArgumentException e) {
+                Log.e(LOG_TAG, "Ignoring malformed warning from " + messageEvent.getSourceNodeId(), e);
+            }
+        }
+        else if (MessagePaths.STREAM_MODE.equals(messageEvent.getPath())) {
+            try {
+                getPipeline(this).setStreamMode(StreamMode.fromBytes(messageEvent.getData()));
+                Log.d(LOG_TAG, String.format("Smartphone %s requested stream mode %s", messageEvent.getSourceNodeId(), getPipeline(this).getStreamMode()));
+            }
+            catch (IllegalArgumentException e) {
+                Log.e(LOG_TAG, "Ignoring unknown stream mode from " + messageEvent.getSourceNodeId(), e);
+            }
+        }
+    }
+
+    /**
+     * Called when a warning has been received. Acknowledges it, so that the smartphone stops
+     * sending it, even if it has been received before, since the previous acknowledgement may
+     * have been lost. Unless it is a repeated one, shows it and lets the pipeline send the heart
+     * rates without batching for a while.
+     *
+     * @param sourceNodeId ID of the smartphone
+     * @param warning The warning
+     */
+    private void onWarningReceived(String sourceNodeId, Warning warning) {
+        if (warning.hasId()) {
+            getPipeline(this).getSendPipeline().sendUrgent(sourceNodeId, MessagePaths.WARNING_ACK, WarningCodec.encodeAck(warning.getId()));
+        }
 
-        if (MESSAGE_PATH_WARNING.equals(messageEvent.getPath())) {
-            Log.d(LOG_TAG, String.format("Received warning from smartphone %s - heart rate is too high (now: %d)!", messageEvent.getSourceNodeId(), HeartRateSensorEventListener.lastHeartRate));
-            createNotification();
+        long now = System.currentTimeMillis();
+        WarningReceiver.Result result = WARNING_RECEIVER.onWarning(sourceNodeId, warning, now);
+        if (result == WarningReceiver.Result.DUPLICATE) {
+            return;
         }
+        getPipeline(this).onWarningReceived(now);
+        Log.d(LOG_TAG, String.format("Received warning %s from smartphone %s - heart rate is too high (now: %d)!", warning, sourceNodeId, HeartRateSensorEventListener.lastHeartRate));
+        createNotification(result == WarningReceiver.Result.ALERT, WARNING_RECEIVER.getCoalesced(), warning.getRule());
     }
 
     /**
-     * Creates a notification to inform the user that his heart rate is too high.
+     * Creates or updates the notification to inform the user that his heart rate is too high.
+     *
+     * @param alert Whether to alert the user; otherwise, the notification is updated silently
+     * @param count Number of warnings shown by the notification
+     * @param rule Name of the alert rule of the most recent warning
      */
-    private void createNotification() {
+    private void createNotification(boolean alert, int count, String rule) {
         createNotificationChannel();
 
-        int notificationId = 001;
         Intent viewIntent = new Intent(this, MainActivity.class);
         PendingIntent viewPendingIntent = PendingIntent.getActivity(this, 0, viewIntent, 0);
         NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(this, CHANNEL_ID)
                         .setSmallIcon(R.mipmap.ic_launcher)
                         .setContentTitle(getString(R.string.notification_title))
                         .setContentText(getString(R.string.notification_description))
+                        .setSubText(rule)
+                        .setNumber(count)
+                        .setOnlyAlertOnce(!alert)
                         .setContentIntent(viewPendingIntent);
 
         NotificationManagerCompat notificationManager = NotificationManagerCompat.from(this);
-        notificationManager.notify(notificationId, notificationBuilder.build());
+        notificationManager.notify(WARNING_NOTIFICATION_ID, notificationBuilder.build());
+        POWER_COUNTERS.increment(PowerCounters.Counter.NOTIFICATIONS);
     }
 
     /**
@@ -124,67 +233,88 @@ public class DataLayerService extends WearableListenerService {
     }
 
     /**
-     * Sends a message to all connected nodes.
+     * Sets the policy that decides how many heart rates are collected before they are sent.
+     * Pending heart rates of the previous policy are sent immediately.
      *
      * @param context An Android context
-     * @param heartRate The heart rate to send
+     * @param policy The new flush policy
      */
-    public static void sendBroadcastMessage(final Context context, final int heartRate) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                Collection<String> nodeIDs;
-                try {
-                    nodeIDs = getNodes(context);
-                }
-                catch (Exception e) {
-                    Log.e(LOG_TAG, "Failed to get connected nodes", e);
-                    return;
-                }
-
-                sendMessageInternal(context, nodeIDs, heartRate);
-            }
-        }).start();
+    public static void setFlushPolicy(Context context, FlushPolicy policy) {
+        getPipeline(context).setFlushPolicy(policy);
     }
 
-    private static void sendMessageInternal(final Context context, final Collection<String> nodeIDs, final int heartRate) {
-        final String path = MESSAGE_PATH_HEART_RATE;
-        final String data = String.valueOf(heartRate);
+    /**
+     * Sets the policy that decides which heart rates are worth sending.
+     *
+     * @param context An Android context
+     * @param policy The new send policy
+     */
+    public static void setSendPolicy(Context context, SendPolicy policy) {
+        getPipeline(context).setSendPolicy(policy);
+    }
 
-        if (nodeIDs.isEmpty()) {
-            Log.d(LOG_TAG, "No nodes found - cannot send heart rate");
-            return;
-        }
+    /**
+     * Sends a heart rate to all connected nodes, if the current {@link SendPolicy} considers it
+     * worth sending, either immediately or as part of a batch, depending on the current
+     * {@link FlushPolicy}.
+     *
+     * @param context An Android context
+     * @param timestamp Time the heart rate has been measured in milliseconds
+     * @param heartRate The heart rate to send
+     */
+    public static void sendBroadcastMessage(Context context, long timestamp, int heartRate) {
+        getPipeline(context).onHeartRate(timestamp, heartRate);
+    }
 
-        for (final String nodeID : nodeIDs) {
-            Log.d(LOG_TAG, String.format("Sending heart rate %d to node id %s", HeartRateSensorEventListener.lastHeartRate, nodeID));
-            Task<Integer> sendTask = Wearable.getMessageClient(context).sendMessage(nodeID, path, data.getBytes());
-
-            sendTask.addOnSuccessListener(new OnSuccessListener<Integer>() {
-                @Override
-                public void onSuccess(Integer heartRate) {
-                    Log.d(LOG_TAG, String.format("Successfully sent message: target=%s, path=%s, data=%s", nodeID, path, data));
-                }
-            });
-
-            sendTask.addOnFailureListener(new OnFailureListener() {
-                @Override
-                public void onFailure(@NonNull Exception e) {
-                    Log.e(LOG_TAG, String.format("Failed to send message: target=%s, path=%s, data=%s", nodeID, path, data), e);
-                }
-            });
-        }
+    /**
+     * Sends a batch of heart rates like {@link #sendBroadcastMessage(Context, long, int)}, as one
+     * block.
+     *
+     * @param context An Android context
+     * @param samples The heart rates in the order they have been measured
+     */
+    public static void sendBroadcastMessages(Context context, SampleBuffer samples) {
+        getPipeline(context).onHeartRates(samples);
+    }
+
+    /**
+     * Sends the summary of a minute of heart rates to all connected nodes.
+     *
+     * @param context An Android context
+     * @param summary The summary
+     */
+    public static void sendSummary(Context context, HeartRateSummary summary) {
+        getPipeline(context).onSummary(summary);
     }
 
-    private static Collection<String> getNodes(Context context) throws ExecutionException, InterruptedException {
-        HashSet<String> results = new HashSet<>();
-        List<Node> nodes = Tasks.await(Wearable.getNodeClient(context).getConnectedNodes());
+    /**
+     * Returns the counters of what wakes up the CPU and the radio, to be incremented by the
+     * sensor listeners and the UI as well.
+     *
+     * @return The counters of this process
+     */
+    public static PowerCounters getPowerCounters() {
+        return POWER_COUNTERS;
+    }
 
-        for (Node node : nodes) {
-            if (node.isNearby()) {
-                results.add(node.getId());
+    /**
+     * Returns the pipeline that sends the heart rates. Creates it on first use.
+     *
+     * @param context An Android context
+     * @return The pipeline
+     */
+    private static synchronized WatchPipeline getPipeline(Context context) {
+        if (pipeline == null) {
+            WearableTransport transport = new WearableTransport(context, POWER_COUNTERS, TRACE);
+            pipeline = new WatchPipeline(transport, SEND_QUEUE_CAPACITY, SEND_QUEUE_OVERFLOW_POLICY);
+            pipeline.setChannelOpener(transport);
+            try {
+                pipeline.setSpool(new SampleSpool(new File(context.getFilesDir(), "spool.hrq"), SPOOL_CAPACITY));
+            }
+            catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to open spool - heart rates will be lost while no smartphone is connected", e);
             }
         }
-        return results;
+        return pipeline;
     }
 }
@@ -7,48 +7,150 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.util.Log;
+import android.view.View;
 import android.widget.TextView;
+import android.widget.Toast;
 
+import com.okraku.android.heartrate.core.FlushPolicy;
+import com.okraku.android.heartrate.core.HeartRateBus;
+import com.okraku.android.heartrate.core.SendPolicy;
+import com.okraku.android.heartrate.core.display.HeartRateText;
 import com.okraku.android.heartrate.watch.sensor.AbstractHeartRateEventListener;
 import com.okraku.android.heartrate.watch.sensor.HeartRateSensorEventListener;
 import com.okraku.android.heartrate.watch.sensor.MockHeartRateSensorEventListener;
+import com.okraku.android.heartrate.wearable.FrameDispatcher;
 
 /**
  * Main activity of the smartwatch.
+ * <p>
+ * The screen is updated at most once per frame with the most recent heart rate, and not at all
+ * while the activity is not visible. A long click on the heart rate shows the power counters
+ * per hour.
  */
-public class MainActivity extends Activity implements AbstractHeartRateEventListener.OnHeartRateChangeListener, ServiceConnection {
+public class MainActivity extends Activity implements HeartRateBus.Subscriber, ServiceConnection, FrameDispatcher.OnFrameListener {
+    private static final String LOG_TAG = MainActivity.class.getName();
+
     /**
      * Text view that displays the current heart rate.
      */
     private TextView textView;
 
+    /**
+     * Binder of the service that listens for heart rate sensor events, once connected.
+     */
+    private AbstractHeartRateEventListener.ServiceBinder binder;
+
+    /**
+     * Subscription to the heart rates of the service, once connected.
+     */
+    private HeartRateBus.Subscription subscription;
+
+    /**
+     * Updates the screen once per frame. Created on the main thread in {@link #onCreate(Bundle)}.
+     */
+    private FrameDispatcher frameDispatcher;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         textView = findViewById(R.id.text);
+        frameDispatcher = new FrameDispatcher(this, DataLayerService.getPowerCounters());
+
+        textView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                Toast.makeText(MainActivity.this, DataLayerService.getPowerCounters().toString(), Toast.LENGTH_LONG).show();
+                return true;
+            }
+        });
 
         /**
          * Start the service that listens for heart rate sensor events.
          *
          * Use {@link HeartRateSensorEventListener} to use the heart rate sensor of the smartwatch.
          * Use {@link MockHeartRateSensorEventListener} to use a mockup that generates random numbers.
+         * The mockup can be configured with intent extras, e.g. to generate an exercise profile
+         * at 100 heart rates per second:
+         *
+         * intent.putExtra(MockHeartRateSensorEventListener.EXTRA_RATE, 100.0);
+         * intent.putExtra(MockHeartRateSensorEventListener.EXTRA_PROFILE, "EXERCISE_RAMP");
+         *
+         * To save wakeups, both can deliver heart rates in batches, e.g. at most every 10 seconds:
+         *
+         * intent.putExtra(AbstractHeartRateEventListener.EXTRA_MAX_REPORT_LATENCY_US, 10000000);
          */
         Intent intent = new Intent(MainActivity.this, MockHeartRateSensorEventListener.class);
         bindService(intent, this, Service.BIND_AUTO_CREATE);
+
+        /*
+         * Send every heart rate immediately, so that the smartphone shows it without delay.
+         *
+         * Use FlushPolicy.DEFAULT to collect heart rates and send them in batches to save radio
+         * wakeups. The smartphone then shows them up to 10 seconds later, except for a minute after
+         * a warning.
+         */
+        DataLayerService.setFlushPolicy(getApplicationContext(), FlushPolicy.PER_SAMPLE);
+
+        /*
+         * Send every change of the heart rate, as before.
+         *
+         * Use SendPolicy.DEFAULT to skip small changes and save radio wakeups; every change is
+         * still sent while the heart rate rises or falls quickly or is close to the alert
+         * threshold of the smartphone.
+         */
+        DataLayerService.setSendPolicy(getApplicationContext(), SendPolicy.EVERY_CHANGE);
+    }
+
+    @Override
+    public void onHeartRate(String nodeId, long timestamp, int heartRate, long receivedNanos) {
+        // Heart rates may be delivered on any thread, e.g. by the mockup's generator thread
+        frameDispatcher.offer(heartRate, receivedNanos);
+    }
+
+    @Override
+    public void onFrame(int heartRate, long receivedNanos) {
+        textView.setText(HeartRateText.toString(heartRate));
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        frameDispatcher.resume();
+        // Show the most recent heart rate, even if the sensor holds it back for batching
+        if (binder != null) {
+            binder.flush();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        frameDispatcher.pause();
+        Log.d(LOG_TAG, frameDispatcher.toString());
+        super.onPause();
     }
 
     @Override
-    public void onHeartRateChanged(int newValue) {
-        textView.setText(Integer.toString(newValue));
+    protected void onDestroy() {
+        if (binder != null) {
+            binder.unsubscribe(subscription);
+            binder = null;
+        }
+        unbindService(this);
+        super.onDestroy();
     }
 
     @Override
     public void onServiceConnected(ComponentName name, IBinder service) {
-        ((HeartRateSensorEventListener.ServiceBinder) service).setChangeListener(MainActivity.this);
+        binder = (AbstractHeartRateEventListener.ServiceBinder) service;
+        subscription = binder.subscribe(MainActivity.this, HeartRateBus.Delivery.LATEST_ONLY, HeartRateBus.DIRECT);
+        binder.flush();
     }
 
     @Override
     public void onServiceDisconnected(ComponentName name) {
+        binder = null;
+        subscription = null;
     }
 }
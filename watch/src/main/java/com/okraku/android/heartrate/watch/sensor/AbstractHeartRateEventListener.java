@@ -5,30 +5,95 @@ import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
 
+import com.okraku.android.heartrate.core.HeartRateBus;
+import com.okraku.android.heartrate.core.HeartRateSummary;
+import com.okraku.android.heartrate.core.SampleBuffer;
+import com.okraku.android.heartrate.core.analytics.HeartRateAnalytics;
+import com.okraku.android.heartrate.core.metrics.PowerCounters;
 import com.okraku.android.heartrate.watch.DataLayerService;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.concurrent.Executor;
+
 public abstract class AbstractHeartRateEventListener extends Service {
     /**
-     * The most recent heart rate.
+     * Intent extra (int): maximum time heart rates may be held back to deliver them in batches,
+     * in microseconds. Batches save wakeups of the CPU; 0 delivers every heart rate immediately.
      */
-    public static int lastHeartRate = 0;
+    public static final String EXTRA_MAX_REPORT_LATENCY_US = "com.okraku.android.heartrate.watch.extra.MAX_REPORT_LATENCY_US";
 
     /**
-     * This listener will be notified when the heart rate has changed.
+     * The most recent heart rate. Written by the thread that delivers heart rates, read by any.
      */
-    protected OnHeartRateChangeListener onHeartRateChangeListener;
+    public static volatile int lastHeartRate = 0;
+
+    /**
+     * Publishes every heart rate to the subscribers, e.g. the UI.
+     */
+    protected final HeartRateBus heartRateBus = new HeartRateBus();
+
+    /**
+     * Computes variability, baseline and trend of the heart rates and summarizes them once per
+     * minute. Only used by the thread that delivers heart rates.
+     */
+    private final HeartRateAnalytics analytics = new HeartRateAnalytics(HeartRateAnalytics.DEFAULT_WINDOW_MILLIS, HeartRateAnalytics.DEFAULT_BASELINE_MILLIS);
+
+    /**
+     * Counts sensor events, wakeups and threads, shared with the {@link DataLayerService}.
+     */
+    protected final PowerCounters powerCounters = DataLayerService.getPowerCounters();
 
     /**
      * A binder to connect this service to an activity.
      */
     protected IBinder binder = new ServiceBinder();
 
-    public class ServiceBinder extends Binder {
-        public void setChangeListener(OnHeartRateChangeListener listener) {
-            onHeartRateChangeListener = listener;
+    /**
+     * Number of deliveries, i.e. times the CPU has been woken up to process heart rates.
+     * Only written by the thread that delivers heart rates.
+     */
+    private volatile long wakeups = 0;
+
+    /**
+     * Number of heart rates delivered.
+     */
+    private volatile long events = 0;
+
+    /**
+     * Largest number of heart rates in a single delivery.
+     */
+    private volatile int maxEventsPerWakeup = 0;
 
+    public class ServiceBinder extends Binder {
+        /**
+         * Subscribes to the heart rates. The subscriber is called with the most recent heart rate
+         * first, by the executor like every other one.
+         *
+         * @param subscriber The subscriber
+         * @param delivery Which heart rates the subscriber receives
+         * @param executor Calls the subscriber
+         * @return The subscription, to unsubscribe
+         */
+        public HeartRateBus.Subscription subscribe(HeartRateBus.Subscriber subscriber, HeartRateBus.Delivery delivery, Executor executor) {
             // Initial value
-            listener.onHeartRateChanged(lastHeartRate);
+            return heartRateBus.subscribe(subscriber, delivery, executor, null, System.currentTimeMillis(), lastHeartRate, System.nanoTime());
+        }
+
+        /**
+         * Unsubscribes from the heart rates.
+         *
+         * @param subscription The subscription
+         */
+        public void unsubscribe(HeartRateBus.Subscription subscription) {
+            heartRateBus.unsubscribe(subscription);
+        }
+
+        /**
+         * Delivers heart rates held back for batching immediately, e.g. when the UI becomes visible.
+         */
+        public void flush() {
+            AbstractHeartRateEventListener.this.flush();
         }
     }
 
@@ -38,29 +103,96 @@ public abstract class AbstractHeartRateEventListener extends Service {
     }
 
     /**
-     * Interface which will be called when the heart rate has changed.
+     * Prints the delivery statistics of this service, e.g. with
+     * {@code adb shell dumpsys activity service com.okraku.android.heartrate/.watch.sensor.HeartRateSensorEventListener}.
      */
-    public interface OnHeartRateChangeListener {
-        /**
-         * Called on the listener when the heart rate has changed.
-         *
-         * @param value The new heart rate
-         */
-        void onHeartRateChanged(int value);
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        long wakeups = this.wakeups;
+        writer.println(String.format("%s: events=%d, wakeups=%d, events/wakeup avg=%.1f max=%d", getClass().getSimpleName(),
+                events, wakeups, wakeups > 0 ? events / (double) wakeups : 0, maxEventsPerWakeup));
+        writer.println(heartRateBus);
+        writer.println(analytics);
+        writer.println(powerCounters);
     }
 
     /**
-     * Called when a new heart rate has been detected.
+     * Delivers heart rates held back for batching immediately. Does nothing by default.
+     */
+    protected void flush() {
+    }
+
+    /**
+     * Passes a heart rate as measured, before it is rounded, to the analytics, and sends the
+     * summary of the previous minute once a new minute begins. Must be called by the thread that
+     * delivers heart rates.
+     *
+     * @param timestamp Time the heart rate has been measured in milliseconds
+     * @param heartRate The heart rate as measured by the sensor
+     */
+    protected void analyze(long timestamp, float heartRate) {
+        HeartRateSummary summary = analytics.add(timestamp, heartRate);
+        if (summary != null) {
+            DataLayerService.sendSummary(getApplicationContext(), summary);
+        }
+    }
+
+    /**
+     * Called when a new heart rate has been detected now.
      *
      * @param value The new heart rate
      */
     protected void onNewHeartRate(int value) {
+        onNewHeartRate(System.currentTimeMillis(), value);
+    }
+
+    /**
+     * Called when a new heart rate has been detected.
+     *
+     * @param timestamp Time the heart rate has been measured in milliseconds
+     * @param value The new heart rate
+     */
+    protected void onNewHeartRate(long timestamp, int value) {
+        onDelivery(1);
         lastHeartRate = value;
+        heartRateBus.publish(null, timestamp, value, System.nanoTime());
+
+        DataLayerService.sendBroadcastMessage(getApplicationContext(), timestamp, value);
+    }
+
+    /**
+     * Called when a batch of heart rates has been delivered at once. The batch is processed as
+     * one block: every heart rate is published, then the batch is sent at once.
+     *
+     * @param samples The heart rates in the order they have been measured; may be reused by the
+     *                caller after this method has returned
+     */
+    protected void onNewHeartRates(SampleBuffer samples) {
+        if (samples.isEmpty()) {
+            return;
+        }
+        onDelivery(samples.size());
+        lastHeartRate = samples.getValue(samples.size() - 1);
 
-        if (onHeartRateChangeListener != null) {
-            onHeartRateChangeListener.onHeartRateChanged(value);
+        long now = System.nanoTime();
+        for (int i = 0; i < samples.size(); i++) {
+            heartRateBus.publish(null, samples.getTimestamp(i), samples.getValue(i), now);
         }
 
-        DataLayerService.sendBroadcastMessage(getApplicationContext(), lastHeartRate);
+        DataLayerService.sendBroadcastMessages(getApplicationContext(), samples);
+    }
+
+    /**
+     * Counts a delivery of heart rates.
+     *
+     * @param count Number of heart rates delivered
+     */
+    private void onDelivery(int count) {
+        powerCounters.increment(PowerCounters.Counter.SENSOR_WAKEUPS);
+        wakeups = wakeups + 1;
+        events = events + count;
+        if (count > maxEventsPerWakeup) {
+            maxEventsPerWakeup = count;
+        }
     }
 }
@@ -1,15 +1,29 @@
 package com.okraku.android.heartrate.watch.sensor;
 
+import android.content.Intent;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.okraku.android.heartrate.core.SampleBuffer;
+import com.okraku.android.heartrate.core.metrics.PowerCounters;
+
+import java.util.concurrent.TimeUnit;
+
 /**
  * Collects data from the heart rate sensor.
+ * <p>
+ * With {@link #EXTRA_MAX_REPORT_LATENCY_US}, the sensor keeps heart rates in its hardware FIFO
+ * and delivers them in batches, so that the CPU is not woken up for every heart rate. Events are
+ * received on a separate thread; all events of a delivery are processed as one block.
  */
-public class HeartRateSensorEventListener extends AbstractHeartRateEventListener implements SensorEventListener {
+public class HeartRateSensorEventListener extends AbstractHeartRateEventListener implements SensorEventListener2 {
     /**
      * Log tag.
      */
@@ -20,17 +34,85 @@ public class HeartRateSensorEventListener extends AbstractHeartRateEventListener
      */
     private SensorManager sensorManager;
 
+    /**
+     * The thread sensor events are received on.
+     */
+    private HandlerThread sensorThread;
+
+    /**
+     * Handler of {@link #sensorThread}.
+     */
+    private Handler sensorHandler;
+
+    /**
+     * True, once the listener has been registered.
+     */
+    private boolean registered = false;
+
+    /**
+     * Maximum time the sensor may hold back heart rates in microseconds, 0 if not batched.
+     */
+    private int maxReportLatencyUs = 0;
+
+    /**
+     * Heart rates of the current delivery. Only accessed on the sensor thread.
+     */
+    private final SampleBuffer block = new SampleBuffer(64);
+
+    /**
+     * True, if {@link #processBlock} has been posted for the current delivery. Only accessed on
+     * the sensor thread.
+     */
+    private boolean blockPosted = false;
+
+    /**
+     * Processes all heart rates of a delivery. Posted by the first event of a delivery, so that it
+     * runs after the sensor has dispatched all events of the delivery.
+     */
+    private final Runnable processBlock = new Runnable() {
+        @Override
+        public void run() {
+            blockPosted = false;
+            onNewHeartRates(block);
+            block.clear();
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
 
         sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
+        sensorThread = new HandlerThread("heart-rate-sensor");
+        sensorThread.start();
+        powerCounters.increment(PowerCounters.Counter.THREADS_SPAWNED);
+        sensorHandler = new Handler(sensorThread.getLooper());
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        if (!registered) {
+            register(intent.getIntExtra(EXTRA_MAX_REPORT_LATENCY_US, 0));
+        }
+        return super.onBind(intent);
+    }
+
+    /**
+     * Registers this listener for the heart rate sensor.
+     *
+     * @param maxReportLatencyUs Maximum time the sensor may hold back heart rates in microseconds
+     */
+    private void register(int maxReportLatencyUs) {
         Sensor heartRateSensor = sensorManager.getDefaultSensor(Sensor.TYPE_HEART_RATE);
 
-        boolean ok = sensorManager.registerListener(this, heartRateSensor, SensorManager.SENSOR_DELAY_UI);
+        this.maxReportLatencyUs = maxReportLatencyUs;
+        registered = sensorManager.registerListener(this, heartRateSensor, SensorManager.SENSOR_DELAY_UI, maxReportLatencyUs, sensorHandler);
 
-        if(ok) {
-            Log.d(LOG_TAG, "Registered listener for heart rate sensor");
+        if (registered) {
+            Log.d(LOG_TAG, String.format("Registered listener for heart rate sensor: maxReportLatencyUs=%d, fifo=%d events", maxReportLatencyUs, heartRateSensor.getFifoMaxEventCount()));
+            if (maxReportLatencyUs > 0 && heartRateSensor.getFifoMaxEventCount() == 0) {
+                Log.w(LOG_TAG, "Heart rate sensor has no FIFO - events will not be batched");
+            }
         }
         else {
             Log.e(LOG_TAG, "Could not register listener for heart rate sensor");
@@ -41,20 +123,52 @@ public class HeartRateSensorEventListener extends AbstractHeartRateEventListener
     public void onDestroy() {
         super.onDestroy();
         sensorManager.unregisterListener(this);
+        sensorThread.quitSafely();
         Log.d(LOG_TAG, "Event listener has been destroyed.");
     }
 
+    /**
+     * Asks the sensor to deliver the heart rates in its FIFO now.
+     */
+    @Override
+    protected void flush() {
+        if (registered && maxReportLatencyUs > 0) {
+            sensorManager.flush(this);
+        }
+    }
+
+    /**
+     * Called on the sensor thread for every event. Events of a delivery are collected and
+     * processed as one block; the analytics get the heart rate before it is rounded.
+     */
     @Override
     public void onSensorChanged(SensorEvent sensorEvent) {
         if (sensorEvent.sensor.getType() == Sensor.TYPE_HEART_RATE && sensorEvent.values.length > 0) {
-            int newHeartRate = Math.round(sensorEvent.values[0]);
+            powerCounters.increment(PowerCounters.Counter.SENSOR_EVENTS);
+            float value = sensorEvent.values[0];
+            int newHeartRate = Math.round(value);
+
+            // Unchanged heart rates are passed on as well: the send policy decides what is sent
+            if (newHeartRate != 0) {
+                // The event timestamp is based on elapsed realtime; the phone needs wall clock time
+                long age = TimeUnit.NANOSECONDS.toMillis(SystemClock.elapsedRealtimeNanos() - sensorEvent.timestamp);
+                long timestamp = System.currentTimeMillis() - age;
+                analyze(timestamp, value);
+                block.add(timestamp, newHeartRate);
 
-            if (newHeartRate != 0 && lastHeartRate != newHeartRate) {
-                onNewHeartRate(newHeartRate);
+                if (!blockPosted) {
+                    blockPosted = true;
+                    sensorHandler.post(processBlock);
+                }
             }
         }
     }
 
+    @Override
+    public void onFlushCompleted(Sensor sensor) {
+        Log.d(LOG_TAG, "Heart rate sensor flushed");
+    }
+
     @Override
     public void onAccuracyChanged(Sensor sensor, int i) {
     }
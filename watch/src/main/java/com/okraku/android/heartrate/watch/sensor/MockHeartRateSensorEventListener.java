@@ -1,52 +1,218 @@
 package com.okraku.android.heartrate.watch.sensor;
 
-import android.os.Handler;
+import android.content.Intent;
+import android.os.IBinder;
 import android.util.Log;
 
-import java.util.concurrent.ThreadLocalRandom;
+import com.okraku.android.heartrate.core.SampleBuffer;
+import com.okraku.android.heartrate.core.generator.HeartRateSource;
+import com.okraku.android.heartrate.core.generator.ReplayHeartRateSource;
+import com.okraku.android.heartrate.core.generator.SyntheticHeartRateSource;
+import com.okraku.android.heartrate.core.generator.WaveformProfile;
+import com.okraku.android.heartrate.core.metrics.PowerCounters;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Generates random numbers for the heart rate.
+ * Generates heart rates for testing, e.g. to stress the transport to the smartphone.
+ * <p>
+ * The heart rates are generated on a separate thread with a configurable rate, using a
+ * synthetic {@link WaveformProfile} or a recorded file. The generator is configured by extras
+ * of the intent used to bind the service; without extras it generates a uniformly distributed
+ * random number between 80 and 120 every 2 seconds. {@link #EXTRA_MAX_REPORT_LATENCY_US}
+ * emulates the batching of a sensor FIFO.
  */
 public class MockHeartRateSensorEventListener extends AbstractHeartRateEventListener {
     /**
-     * Delay between number generation.
+     * Intent extra (double): heart rates generated per second.
+     */
+    public static final String EXTRA_RATE = "com.okraku.android.heartrate.watch.extra.RATE";
+
+    /**
+     * Intent extra (String): name of the {@link WaveformProfile}.
+     */
+    public static final String EXTRA_PROFILE = "com.okraku.android.heartrate.watch.extra.PROFILE";
+
+    /**
+     * Intent extra (long): seed of the random number generator. The same seed generates the
+     * same heart rates.
      */
-    private static final int UPDATE_DELAY = 2000;
+    public static final String EXTRA_SEED = "com.okraku.android.heartrate.watch.extra.SEED";
 
     /**
-     * Minimum number.
+     * Intent extra (String): path of a recording to replay instead of a synthetic profile
+     * (see {@link ReplayHeartRateSource}).
      */
-    private static final int MIN = 80;
+    public static final String EXTRA_REPLAY_FILE = "com.okraku.android.heartrate.watch.extra.REPLAY_FILE";
 
     /**
-     * Maximum number.
+     * Default number of heart rates per second.
      */
-    private static final int MAX = 120;
+    private static final double DEFAULT_RATE = 0.5;
+
+    /**
+     * Interval in which the actual rate is measured and logged.
+     */
+    private static final long RATE_REPORT_INTERVAL = TimeUnit.SECONDS.toNanos(10);
 
     /**
      * Log tag.
      */
     private static final String LOG_TAG = MockHeartRateSensorEventListener.class.getName();
 
+    /**
+     * The thread that generates the heart rates.
+     */
+    private Thread generator;
+
+    private volatile boolean running = false;
+
+    /**
+     * True, if the heart rates held back for batching should be delivered now.
+     */
+    private volatile boolean flushRequested = false;
+
+    /**
+     * Heart rates per second actually generated during the last report interval.
+     */
+    private volatile double actualRate = 0;
+
     @Override
-    public void onCreate() {
-        super.onCreate();
+    public IBinder onBind(Intent intent) {
+        if (generator == null) {
+            start(intent);
+        }
+        return super.onBind(intent);
+    }
+
+    /**
+     * Starts generating heart rates as configured by the intent extras.
+     *
+     * @param intent The intent used to bind the service
+     */
+    private void start(Intent intent) {
+        final double rate = intent.getDoubleExtra(EXTRA_RATE, DEFAULT_RATE);
+        final long maxReportLatency = TimeUnit.MICROSECONDS.toNanos(intent.getIntExtra(EXTRA_MAX_REPORT_LATENCY_US, 0));
+        final HeartRateSource source;
+
+        try {
+            source = createSource(intent);
+        }
+        catch (IOException | IllegalArgumentException e) {
+            Log.e(LOG_TAG, "Invalid generator configuration - no heart rates will be generated", e);
+            return;
+        }
 
-        final Handler handler = new Handler();
-        handler.postDelayed(new Runnable() {
+        running = true;
+        generator = new Thread(new Runnable() {
+            @Override
             public void run() {
-                int random = ThreadLocalRandom.current().nextInt(MIN, MAX + 1);
-                // Notify listeners that the heart rate has changed.
-                onNewHeartRate(random);
-                handler.postDelayed(this, UPDATE_DELAY);
+                generate(source, rate, maxReportLatency);
             }
-        }, 0);
+        }, "mock-heart-rate");
+        generator.start();
+        powerCounters.increment(PowerCounters.Counter.THREADS_SPAWNED);
+
+        Log.d(LOG_TAG, String.format("Generating %.1f heart rates per second", rate));
+    }
+
+    private static HeartRateSource createSource(Intent intent) throws IOException {
+        String replayFile = intent.getStringExtra(EXTRA_REPLAY_FILE);
+        if (replayFile != null) {
+            try (Reader reader = new FileReader(replayFile)) {
+                return new ReplayHeartRateSource(ReplayHeartRateSource.read(reader));
+            }
+        }
+
+        String profile = intent.getStringExtra(EXTRA_PROFILE);
+        long seed = intent.getLongExtra(EXTRA_SEED, System.nanoTime());
+        return new SyntheticHeartRateSource(profile != null ? WaveformProfile.valueOf(profile) : WaveformProfile.UNIFORM, seed);
+    }
+
+    /**
+     * Generates heart rates until the service is destroyed. Runs on the generator thread.
+     *
+     * @param source Generates the heart rates
+     * @param rate Heart rates per second
+     * @param maxReportLatency Maximum time heart rates are held back in nanoseconds, 0 if not batched
+     */
+    private void generate(HeartRateSource source, double rate, long maxReportLatency) {
+        long period = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long next = start;
+        long reportStart = start;
+        long reportCount = 0;
+        SampleBuffer block = new SampleBuffer(64);
+        long blockStart = start;
+
+        while (running) {
+            long now = System.nanoTime();
+            if (now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+
+            // Notify listeners that the heart rate has changed, or hold it back like a sensor FIFO
+            int heartRate = source.next(TimeUnit.NANOSECONDS.toMillis(now - start));
+            long timestamp = System.currentTimeMillis();
+            powerCounters.add(PowerCounters.Counter.SENSOR_EVENTS, 1, timestamp);
+            analyze(timestamp, heartRate);
+            if (maxReportLatency == 0) {
+                onNewHeartRate(timestamp, heartRate);
+            }
+            else {
+                if (block.isEmpty()) {
+                    blockStart = now;
+                }
+                block.add(timestamp, heartRate);
+                if (flushRequested || now - blockStart >= maxReportLatency) {
+                    flushRequested = false;
+                    onNewHeartRates(block);
+                    block.clear();
+                }
+            }
+            reportCount++;
+
+            // If the listeners could not keep up, do not try to catch up on missed heart rates
+            next = Math.max(next + period, now);
+
+            if (now - reportStart >= RATE_REPORT_INTERVAL) {
+                actualRate = reportCount * (double) TimeUnit.SECONDS.toNanos(1) / (now - reportStart);
+                Log.d(LOG_TAG, String.format("Generated %.1f heart rates per second (requested: %.1f)", actualRate, rate));
+                reportStart = now;
+                reportCount = 0;
+            }
+        }
+    }
+
+    /**
+     * Delivers the heart rates held back for batching together with the next generated one.
+     */
+    @Override
+    protected void flush() {
+        flushRequested = true;
+    }
+
+    /**
+     * Returns the number of heart rates per second generated during the last 10 seconds.
+     *
+     * @return Actual rate
+     */
+    public double getActualRate() {
+        return actualRate;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        running = false;
+        if (generator != null) {
+            generator.interrupt();
+        }
         Log.d(LOG_TAG, "Event listener has been destroyed.");
     }
 }
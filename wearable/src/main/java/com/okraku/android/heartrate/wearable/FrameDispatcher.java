@@ -0,0 +1,112 @@
+package com.okraku.android.heartrate.wearable;
+
+import android.view.Choreographer;
+
+import com.okraku.android.heartrate.core.display.ConflatedValue;
+import com.okraku.android.heartrate.core.metrics.PowerCounters;
+
+/**
+ * Applies the most recent heart rate to the screen at most once per display frame.
+ * <p>
+ * Heart rates may be offered on any thread. They are conflated by a {@link ConflatedValue}, and
+ * the first one after a frame schedules the next frame with the {@link Choreographer}; heart
+ * rates received until then only replace it. While the activity is not visible, no frames are
+ * scheduled at all; the most recent heart rate is shown when it becomes visible again.
+ */
+public class FrameDispatcher implements Choreographer.FrameCallback {
+    /**
+     * Listener that updates the screen.
+     */
+    public interface OnFrameListener {
+        /**
+         * Called on the main thread with the most recent heart rate, at most once per frame.
+         *
+         * @param heartRate The heart rate
+         * @param receivedNanos {@link System#nanoTime()} when it has been received
+         */
+        void onFrame(int heartRate, long receivedNanos);
+    }
+
+    /**
+     * The heart rate waiting for the next frame.
+     */
+    private final ConflatedValue value = new ConflatedValue();
+
+    /**
+     * Choreographer of the main thread.
+     */
+    private final Choreographer choreographer;
+
+    private final OnFrameListener listener;
+
+    /**
+     * Counts the frame callbacks posted to the main thread.
+     */
+    private final PowerCounters powerCounters;
+
+    /**
+     * True, while frames may be scheduled.
+     */
+    private volatile boolean resumed = false;
+
+    /**
+     * Creates a new dispatcher. Must be called on the main thread.
+     *
+     * @param listener Listener that updates the screen
+     * @param powerCounters Counts the frame callbacks posted to the main thread
+     */
+    public FrameDispatcher(OnFrameListener listener, PowerCounters powerCounters) {
+        this.choreographer = Choreographer.getInstance();
+        this.listener = listener;
+        this.powerCounters = powerCounters;
+    }
+
+    /**
+     * Offers a heart rate for the next frame. May be called on any thread.
+     *
+     * @param heartRate The heart rate
+     * @param receivedNanos {@link System#nanoTime()} when it has been received
+     */
+    public void offer(int heartRate, long receivedNanos) {
+        if (value.offer(heartRate, receivedNanos) && resumed) {
+            choreographer.postFrameCallback(this);
+            powerCounters.increment(PowerCounters.Counter.MAIN_LOOPER_POSTS);
+        }
+    }
+
+    /**
+     * Starts updating the screen, e.g. in {@code onResume()}. Must be called on the main thread.
+     */
+    public void resume() {
+        resumed = true;
+        if (value.isPending()) {
+            choreographer.removeFrameCallback(this);
+            choreographer.postFrameCallback(this);
+            powerCounters.increment(PowerCounters.Counter.MAIN_LOOPER_POSTS);
+        }
+    }
+
+    /**
+     * Stops updating the screen, e.g. in {@code onPause()}. Must be called on the main thread.
+     */
+    public void pause() {
+        resumed = false;
+        choreographer.removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!resumed) {
+            return;
+        }
+        int heartRate = value.take();
+        if (heartRate >= 0) {
+            listener.onFrame(heartRate, value.getReceivedNanos());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return value.toString();
+    }
+}
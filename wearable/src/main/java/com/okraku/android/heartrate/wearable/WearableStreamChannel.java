@@ -0,0 +1,63 @@
+package com.okraku.android.heartrate.wearable;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.android.gms.wearable.ChannelClient;
+import com.okraku.android.heartrate.core.sync.StreamChannel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A channel of the channel client of the Wearable API. The constructor blocks and must not be
+ * called on the main thread.
+ */
+public class WearableStreamChannel implements StreamChannel {
+    private final ChannelClient channelClient;
+
+    private final ChannelClient.Channel channel;
+
+    private final InputStream in;
+
+    private final OutputStream out;
+
+    /**
+     * Gets the streams of an open channel.
+     *
+     * @param channelClient The channel client the channel belongs to
+     * @param channel An open channel
+     * @throws Exception If the streams could not be opened
+     */
+    public WearableStreamChannel(ChannelClient channelClient, ChannelClient.Channel channel) throws Exception {
+        this.channelClient = channelClient;
+        this.channel = channel;
+        this.in = Tasks.await(channelClient.getInputStream(channel));
+        this.out = Tasks.await(channelClient.getOutputStream(channel));
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * Closes both streams and the channel.
+     *
+     * @throws IOException If the channel could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+            in.close();
+        }
+        finally {
+            channelClient.close(channel);
+        }
+    }
+}
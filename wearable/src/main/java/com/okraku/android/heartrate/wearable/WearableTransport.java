@@ -0,0 +1,121 @@
+package com.okraku.android.heartrate.wearable;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.android.gms.wearable.ChannelClient;
+import com.google.android.gms.wearable.MessageClient;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.NodeClient;
+import com.google.android.gms.wearable.Wearable;
+import com.okraku.android.heartrate.core.Transport;
+import com.okraku.android.heartrate.core.metrics.PowerCounters;
+import com.okraku.android.heartrate.core.metrics.TraceBuffer;
+import com.okraku.android.heartrate.core.sync.HistorySender;
+import com.okraku.android.heartrate.core.sync.StreamChannel;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Transport over the data layer of the Wearable API, used by the smartwatch and the smartphone.
+ * All methods block and must not be called on the main thread.
+ */
+public class WearableTransport implements Transport, HistorySender.ChannelOpener {
+    /**
+     * Log tag.
+     */
+    private static final String LOG_TAG = WearableTransport.class.getName();
+
+    /**
+     * Sends messages. Created once and reused for every message.
+     */
+    private final MessageClient messageClient;
+
+    /**
+     * Lists the connected nodes.
+     */
+    private final NodeClient nodeClient;
+
+    /**
+     * Opens channels for bulk transfers.
+     */
+    private final ChannelClient channelClient;
+
+    /**
+     * Counts the messages sent and the node lookups.
+     */
+    private final PowerCounters powerCounters;
+
+    /**
+     * Records the messages sent and the node lookups instead of logging them.
+     */
+    private final TraceBuffer trace;
+
+    /**
+     * Creates a new transport.
+     *
+     * @param context An Android context
+     * @param powerCounters Counts the messages sent and the node lookups
+     * @param trace Records the messages sent and the node lookups
+     */
+    public WearableTransport(Context context, PowerCounters powerCounters, TraceBuffer trace) {
+        this.powerCounters = powerCounters;
+        this.trace = trace;
+        messageClient = Wearable.getMessageClient(context.getApplicationContext());
+        nodeClient = Wearable.getNodeClient(context.getApplicationContext());
+        channelClient = Wearable.getChannelClient(context.getApplicationContext());
+    }
+
+    @Override
+    public void sendMessage(String nodeId, String path, byte[] data) throws Exception {
+        try {
+            Tasks.await(messageClient.sendMessage(nodeId, path, data));
+            powerCounters.increment(PowerCounters.Counter.MESSAGES_SENT);
+            powerCounters.add(PowerCounters.Counter.BYTES_SENT, data.length);
+            trace.record(TraceBuffer.Event.MESSAGE_SENT, nodeId, path, data.length);
+        }
+        catch (Exception e) {
+            powerCounters.increment(PowerCounters.Counter.SEND_FAILURES);
+            trace.record(TraceBuffer.Event.SEND_FAILED, nodeId, path, data.length);
+            Log.e(LOG_TAG, "Failed to send message", e);
+            throw e;
+        }
+    }
+
+    @Override
+    public StreamChannel openChannel(String nodeId, String path) throws Exception {
+        try {
+            StreamChannel channel = new WearableStreamChannel(channelClient, Tasks.await(channelClient.openChannel(nodeId, path)));
+            trace.record(TraceBuffer.Event.CHANNEL_OPENED, nodeId, path, 0);
+            return channel;
+        }
+        catch (Exception e) {
+            Log.e(LOG_TAG, String.format("Failed to open channel: target=%s, path=%s", nodeId, path), e);
+            throw e;
+        }
+    }
+
+    /**
+     * Queries all connected nearby nodes from the node client.
+     *
+     * @return A set of node IDs
+     */
+    @Override
+    public Set<String> loadNodes() throws Exception {
+        HashSet<String> results = new HashSet<>();
+        powerCounters.increment(PowerCounters.Counter.NODE_LOOKUPS);
+        List<Node> nodes = Tasks.await(nodeClient.getConnectedNodes());
+
+        for (Node node : nodes) {
+            if (node.isNearby()) {
+                results.add(node.getId());
+            }
+        }
+
+        trace.record(TraceBuffer.Event.NODES_LOADED, null, null, results.size());
+        return results;
+    }
+}